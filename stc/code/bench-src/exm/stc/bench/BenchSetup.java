@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.frontend.ASTWalker;
+import exm.stc.ic.STCMiddleEnd;
+import exm.stc.ic.opt.FlattenNested;
+import exm.stc.ic.opt.OptimizerPipeline;
+import exm.stc.ic.opt.PruneFunctions;
+import exm.stc.ic.opt.UniqueVarNames;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Shared setup for compiler benchmarks: settings, logging and inputs.
+ *
+ * Inputs are either names of test cases in the STC test directory
+ * (set with -Dstc.bench.tests, by default ../tests), e.g. "986-sudoku",
+ * or synthetic programs named "synthetic-N", which have N functions
+ * with loops, conditionals and calls between them.
+ */
+public class BenchSetup {
+
+  public static final String TESTS_DIR_PROPERTY = "stc.bench.tests";
+
+  private static final String SYNTHETIC_PREFIX = "synthetic-";
+
+  private static boolean initialized = false;
+
+  private static Logger logger;
+
+  public static synchronized Logger init() {
+    if (!initialized) {
+      try {
+        Settings.initSTCProperties();
+      } catch (InvalidOptionException e) {
+        throw new STCRuntimeError("Error setting up options: " +
+                                  e.getMessage());
+      }
+      Settings.addModulePath(testsDir().getPath());
+      logger = Logging.setupLogging(null, false);
+      initialized = true;
+    }
+    return logger;
+  }
+
+  private static File testsDir() {
+    return new File(System.getProperty(TESTS_DIR_PROPERTY, "../tests"));
+  }
+
+  /**
+   * @param input name of input
+   * @return path to Swift file for input, generating it if synthetic
+   * @throws IOException
+   */
+  public static String inputPath(String input) throws IOException {
+    if (input.startsWith(SYNTHETIC_PREFIX)) {
+      int functions = Integer.parseInt(
+                          input.substring(SYNTHETIC_PREFIX.length()));
+      return syntheticProgram(functions).getPath();
+    }
+    File file = new File(testsDir(), input + ".swift");
+    if (!file.exists()) {
+      throw new IOException("Benchmark input " + file + " not found");
+    }
+    return file.getPath();
+  }
+
+  /**
+   * Write a synthetic program to a temporary file
+   * @param functions number of functions in program
+   * @return temporary file, deleted on exit
+   * @throws IOException
+   */
+  private static File syntheticProgram(int functions) throws IOException {
+    File file = File.createTempFile("stc-bench-", ".swift");
+    file.deleteOnExit();
+    Writer out = new FileWriter(file);
+    try {
+      out.write("import io;\nimport stats;\n\n");
+      for (int i = 0; i < functions; i++) {
+        out.write("(int o) f" + i + "(int x) {\n" +
+                  "  int A[];\n" +
+                  "  foreach j in [0:x] {\n" +
+                  "    A[j] = j * " + (i + 2) + " + x;\n" +
+                  "  }\n" +
+                  "  if (x > " + i + ") {\n" +
+                  "    o = sum_integer(A)" +
+                  (i > 0 ? " + f" + (i - 1) + "(x - 1)" : "") + ";\n" +
+                  "  } else {\n" +
+                  "    o = x + " + i + ";\n" +
+                  "  }\n" +
+                  "}\n\n");
+      }
+      for (int i = 0; i < functions; i++) {
+        out.write("printf(\"f" + i + ": %i\", f" + i + "(" + i + "));\n");
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Run the frontend on a file
+   * @return middle end containing the unoptimized IC
+   */
+  public static STCMiddleEnd frontend(Logger logger, String path)
+      throws UserException {
+    ForeignFunctions foreignFuncs = new ForeignFunctions();
+    STCMiddleEnd intermediate = new STCMiddleEnd(logger, null, foreignFuncs);
+    ASTWalker walker = new ASTWalker(intermediate, foreignFuncs);
+    walker.walk(path, path, false);
+    return intermediate;
+  }
+
+  /**
+   * Run frontend and the optimizer preprocessing passes, to get IC in
+   * the form the iterated optimizer passes expect.
+   */
+  public static Program preprocessedIC(Logger logger, String path)
+      throws UserException {
+    Program program = frontend(logger, path).program();
+    program.checkModified();
+
+    OptimizerPipeline preprocess = new OptimizerPipeline(null);
+    preprocess.addPass(new PruneFunctions());
+    preprocess.addPass(new UniqueVarNames());
+    preprocess.addPass(new FlattenNested());
+    preprocess.runPipeline(logger, program, 0);
+    return program;
+  }
+}
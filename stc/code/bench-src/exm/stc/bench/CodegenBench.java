@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.util.Misc;
+import exm.stc.ic.STCMiddleEnd;
+import exm.stc.tclbackend.TurbineGenerator;
+
+/**
+ * Benchmark generation of Tcl code from optimized IC.  The IC is
+ * regenerated into a fresh code generator for each invocation, so only
+ * output of the Tcl tree is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodegenBench {
+
+  @Param({"986-sudoku", "452-assoc-array", "900-mapreduce-1",
+          "synthetic-50", "synthetic-500"})
+  public String input;
+
+  private Logger logger;
+  private STCMiddleEnd intermediate;
+  private TurbineGenerator codeGen;
+
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException, UserException {
+    logger = BenchSetup.init();
+    intermediate = BenchSetup.frontend(logger, BenchSetup.inputPath(input));
+    intermediate.optimize();
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() throws UserException {
+    codeGen = new TurbineGenerator(logger, Misc.timestamp());
+    intermediate.regenerate(codeGen);
+  }
+
+  @Benchmark
+  public void generate() throws IOException {
+    codeGen.generate(new NullOutputStream());
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import exm.stc.common.exceptions.UserException;
+import exm.stc.frontend.ParsedModule;
+import exm.stc.ic.STCMiddleEnd;
+
+/**
+ * Benchmark parsing and the frontend AST walk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrontendBench {
+
+  @Param({"986-sudoku", "452-assoc-array", "900-mapreduce-1",
+          "synthetic-50", "synthetic-500"})
+  public String input;
+
+  private Logger logger;
+  private String path;
+
+  @Setup
+  public void setup() throws IOException {
+    logger = BenchSetup.init();
+    path = BenchSetup.inputPath(input);
+  }
+
+  @Benchmark
+  public ParsedModule parse() throws IOException {
+    return ParsedModule.parse(input, path, false);
+  }
+
+  /**
+   * Parse, typecheck and generate IC for the input and any modules
+   * it imports.
+   */
+  @Benchmark
+  public STCMiddleEnd walk() throws UserException {
+    return BenchSetup.frontend(logger, path);
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import exm.stc.jvm.runtime.JVMRuntime;
+import exm.stc.jvm.runtime.LogicException;
+import exm.stc.jvm.runtime.Task;
+import exm.stc.jvm.runtime.Vars.ArrayVar;
+import exm.stc.jvm.runtime.Vars.BagVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+
+/**
+ * Benchmarks of the JVM runtime task queue and futures, analogous to the
+ * Turbine benchmarks in stc/bench.  Each invocation runs a complete
+ * program with JVMRuntime.run() on the given number of worker threads,
+ * and scores are in tasks (or futures, or inserts) per second, so they
+ * can be compared with task rates measured on Turbine.
+ *
+ * - spawnFlat: one task spawns all tasks, so other workers must steal
+ * - spawnSplit: foreach-1D: range loop split recursively into tasks
+ * - chain: dataflow-1D: each task waits for the previous task's output,
+ *   measuring subscribe/notify latency (1 / score)
+ * - fanOut: many tasks wait on a single future
+ * - fanIn: a single task waits on many futures set by other tasks
+ * - wavefront: wavefront: each cell of a grid waits for its neighbours
+ *   above and to the left
+ * - arrayInsert/bagInsert: tasks insert members into a shared container
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JVMRuntimeBench {
+
+  /** Number of tasks, futures or inserts per invocation */
+  private static final int N = 100000;
+
+  /** Side of wavefront grid: N cells in total */
+  private static final int GRID = 316;
+
+  /** Leaf size for split loops, as in ForeachLoop defaults */
+  private static final int SPLIT_DEGREE = 16;
+  private static final int LEAF_DEGREE = 64;
+
+  private static final String FN = "bench";
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  /** Sink for task results, to avoid dead code elimination */
+  private final AtomicLong sink = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setup() {
+    if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+      Logger.getRootLogger().addAppender(new NullAppender());
+    }
+  }
+
+  private void run(Task entry) {
+    int rc = JVMRuntime.run(new String[0], threads, entry);
+    if (rc != 0) {
+      throw new IllegalStateException("Benchmark program failed: " + rc);
+    }
+  }
+
+  private Task countTask() {
+    return new Task() {
+      @Override
+      public void run() {
+        sink.incrementAndGet();
+      }
+    };
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void spawnFlat() {
+    run(new Task() {
+      @Override
+      public void run() {
+        for (int i = 0; i < N; i++) {
+          JVMRuntime.spawn(countTask());
+        }
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void spawnSplit() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        JVMRuntime.forRange(0, N - 1, 1, SPLIT_DEGREE, LEAF_DEGREE,
+            new JVMRuntime.RangeBody() {
+          @Override
+          public void run(long lo, long hi, long inc) {
+            for (long i = lo; i <= hi; i += inc) {
+              JVMRuntime.spawn(countTask());
+            }
+          }
+        });
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void chain() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        IntVar prev = new IntVar(1);
+        IntVar first = prev;
+        for (int i = 0; i < N; i++) {
+          final IntVar in = prev;
+          final IntVar out = new IntVar(1);
+          JVMRuntime.waitFor(new Task() {
+            @Override
+            public void run() throws LogicException {
+              out.set(FN, "out", in.get(FN, "in") + 1);
+            }
+          }, in);
+          prev = out;
+        }
+        first.set(FN, "first", 0L);
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void fanOut() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        final IntVar x = new IntVar(1);
+        for (int i = 0; i < N; i++) {
+          JVMRuntime.waitFor(new Task() {
+            @Override
+            public void run() throws LogicException {
+              sink.addAndGet(x.get(FN, "x"));
+            }
+          }, x);
+        }
+        x.set(FN, "x", 1L);
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void fanIn() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        final IntVar xs[] = new IntVar[N];
+        for (int i = 0; i < N; i++) {
+          xs[i] = new IntVar(1);
+        }
+        JVMRuntime.waitFor(new Task() {
+          @Override
+          public void run() throws LogicException {
+            long sum = 0;
+            for (IntVar x: xs) {
+              sum += x.get(FN, "x");
+            }
+            sink.addAndGet(sum);
+          }
+        }, (BaseVar[])xs);
+        JVMRuntime.forRange(0, N - 1, 1, SPLIT_DEGREE, LEAF_DEGREE,
+            new JVMRuntime.RangeBody() {
+          @Override
+          public void run(long lo, long hi, long inc) throws LogicException {
+            for (long i = lo; i <= hi; i += inc) {
+              xs[(int)i].set(FN, "x", i);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(GRID * GRID)
+  public void wavefront() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        final IntVar grid[][] = new IntVar[GRID][GRID];
+        for (int i = 0; i < GRID; i++) {
+          for (int j = 0; j < GRID; j++) {
+            grid[i][j] = new IntVar(1);
+          }
+        }
+        for (int i = 0; i < GRID; i++) {
+          for (int j = 0; j < GRID; j++) {
+            final IntVar out = grid[i][j];
+            final IntVar up = i > 0 ? grid[i - 1][j] : null;
+            final IntVar left = j > 0 ? grid[i][j - 1] : null;
+            Task cell = new Task() {
+              @Override
+              public void run() throws LogicException {
+                long val = 1;
+                if (up != null) {
+                  val += up.get(FN, "up");
+                }
+                if (left != null) {
+                  val += left.get(FN, "left");
+                }
+                out.set(FN, "cell", val);
+              }
+            };
+            if (up != null && left != null) {
+              JVMRuntime.waitFor(cell, up, left);
+            } else if (up != null) {
+              JVMRuntime.waitFor(cell, up);
+            } else if (left != null) {
+              JVMRuntime.waitFor(cell, left);
+            } else {
+              JVMRuntime.spawn(cell);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void arrayInsert() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        // One writer per insert, as for a foreach loop
+        final ArrayVar<Object> arr = new ArrayVar<Object>(N);
+        JVMRuntime.waitFor(new Task() {
+          @Override
+          public void run() {
+            sink.addAndGet(arr.size());
+          }
+        }, arr);
+        JVMRuntime.forRange(0, N - 1, 1, SPLIT_DEGREE, LEAF_DEGREE,
+            new JVMRuntime.RangeBody() {
+          @Override
+          public void run(long lo, long hi, long inc) throws LogicException {
+            for (long i = lo; i <= hi; i += inc) {
+              arr.insert(FN, "arr", i, i, 1);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public void bagInsert() {
+    run(new Task() {
+      @Override
+      public void run() throws LogicException {
+        final BagVar<Object> bag = new BagVar<Object>(N);
+        JVMRuntime.waitFor(new Task() {
+          @Override
+          public void run() throws LogicException {
+            sink.addAndGet(bag.getAll(FN, "bag").size());
+          }
+        }, bag);
+        JVMRuntime.forRange(0, N - 1, 1, SPLIT_DEGREE, LEAF_DEGREE,
+            new JVMRuntime.RangeBody() {
+          @Override
+          public void run(long lo, long hi, long inc) throws LogicException {
+            for (long i = lo; i <= hi; i += inc) {
+              bag.insert(FN, "bag", i, 1);
+            }
+          }
+        });
+      }
+    });
+  }
+}
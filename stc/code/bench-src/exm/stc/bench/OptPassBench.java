@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import exm.stc.common.exceptions.UserException;
+import exm.stc.ic.opt.ArrayBuild;
+import exm.stc.ic.opt.ContinuationFusion;
+import exm.stc.ic.opt.DataflowOpInline;
+import exm.stc.ic.opt.DeadCodeEliminator;
+import exm.stc.ic.opt.DemoteGlobals;
+import exm.stc.ic.opt.FixupVariables;
+import exm.stc.ic.opt.FunctionInline;
+import exm.stc.ic.opt.FunctionSignature;
+import exm.stc.ic.opt.HoistLoops;
+import exm.stc.ic.opt.LoopSimplify;
+import exm.stc.ic.opt.LoopUnroller;
+import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.opt.Pipeline;
+import exm.stc.ic.opt.PropagateAliases;
+import exm.stc.ic.opt.ReorderInstructions;
+import exm.stc.ic.opt.StructBuild;
+import exm.stc.ic.opt.Validate;
+import exm.stc.ic.opt.WaitCoalescer;
+import exm.stc.ic.opt.valuenumber.ValueNumber;
+import exm.stc.ic.refcount.RefcountPass;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Benchmark individual optimizer passes in isolation.  Each invocation
+ * runs the pass on a fresh copy of the IC for the input as it is after
+ * the frontend and optimizer preprocessing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OptPassBench {
+
+  /**
+   * Passes that can be benchmarked.
+   */
+  public static enum Pass {
+    ARRAY_BUILD {
+      @Override
+      OptimizerPass create() {
+        return new ArrayBuild();
+      }
+    },
+    CONTINUATION_FUSION {
+      @Override
+      OptimizerPass create() {
+        return new ContinuationFusion();
+      }
+    },
+    DATAFLOW_OP_INLINE {
+      @Override
+      OptimizerPass create() {
+        return new DataflowOpInline();
+      }
+    },
+    DEAD_CODE_ELIM {
+      @Override
+      OptimizerPass create() {
+        return new DeadCodeEliminator();
+      }
+    },
+    DEMOTE_GLOBALS {
+      @Override
+      OptimizerPass create() {
+        return new DemoteGlobals();
+      }
+    },
+    FUNCTION_INLINE {
+      @Override
+      OptimizerPass create() {
+        return new FunctionInline();
+      }
+    },
+    FUNCTION_SIGNATURE {
+      @Override
+      OptimizerPass create() {
+        return new FunctionSignature();
+      }
+    },
+    HOIST_LOOPS {
+      @Override
+      OptimizerPass create() {
+        return new HoistLoops(false);
+      }
+    },
+    LOOP_SIMPLIFY {
+      @Override
+      OptimizerPass create() {
+        return new LoopSimplify();
+      }
+    },
+    LOOP_UNROLL {
+      @Override
+      OptimizerPass create() {
+        return new LoopUnroller();
+      }
+    },
+    PIPELINE {
+      @Override
+      OptimizerPass create() {
+        return new Pipeline();
+      }
+    },
+    PROPAGATE_ALIASES {
+      @Override
+      OptimizerPass create() {
+        return new PropagateAliases();
+      }
+    },
+    REORDER_INSTRUCTIONS {
+      @Override
+      OptimizerPass create() {
+        return new ReorderInstructions();
+      }
+    },
+    STRUCT_BUILD {
+      @Override
+      OptimizerPass create() {
+        return new StructBuild();
+      }
+    },
+    VALIDATE {
+      @Override
+      OptimizerPass create() {
+        return Validate.standardValidator();
+      }
+    },
+    VALUE_NUMBER {
+      @Override
+      OptimizerPass create() {
+        return new ValueNumber(true);
+      }
+    },
+    WAIT_COALESCE {
+      @Override
+      OptimizerPass create() {
+        return new WaitCoalescer(true, true);
+      }
+    },
+    FIXUP_VARIABLES {
+      @Override
+      OptimizerPass create() {
+        return new FixupVariables();
+      }
+    },
+    REFCOUNT {
+      @Override
+      OptimizerPass create() {
+        return new RefcountPass();
+      }
+
+      @Override
+      void prepare(Logger logger, Program program) throws UserException {
+        // Refcounting expects passing annotations to be complete
+        new FixupVariables().optimize(logger, program);
+      }
+    };
+
+    abstract OptimizerPass create();
+
+    /**
+     * Get program into state expected by pass
+     */
+    void prepare(Logger logger, Program program) throws UserException {
+      // Default: nothing to do
+    }
+  }
+
+  @Param({"986-sudoku", "900-mapreduce-1", "synthetic-50"})
+  public String input;
+
+  @Param
+  public Pass pass;
+
+  private Logger logger;
+  private String path;
+  private Program program;
+  private OptimizerPass optimizerPass;
+
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException {
+    logger = BenchSetup.init();
+    path = BenchSetup.inputPath(input);
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() throws UserException {
+    program = BenchSetup.preprocessedIC(logger, path);
+    pass.prepare(logger, program);
+    optimizerPass = pass.create();
+  }
+
+  @Benchmark
+  public Program optimize() throws UserException {
+    optimizerPass.optimize(logger, program);
+    return program;
+  }
+}
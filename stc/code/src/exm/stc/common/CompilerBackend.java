@@ -247,16 +247,21 @@ public interface CompilerBackend {
    * @param loopCountVar counter variable, can be null
    * @param splitDegree
    * @param leafDegree
+   * @param minLeafDegree if positive, choose leaf degree at runtime: see
+   *                      {@link #startRangeLoop}
    * @param arrayClosed if true, assume array is already closed
    * @param passedVars
    * @param perIterIncrs per-iteration increments
    * @param constIncrs constant increments
+   * @param accumulateBags bags to accumulate inserts for: see
+   *                      {@link #startRangeLoop}
    */
   public void startForeachLoop(String loopName,
       Var container, Var memberVar, Var loopCountVar, int splitDegree,
-      int leafDegree, boolean arrayClosed,
+      int leafDegree, int minLeafDegree, boolean arrayClosed,
       List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs);
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> accumulateBags);
 
   /**
    * Finish the parallel foreach loop over array.
@@ -282,13 +287,23 @@ public interface CompilerBackend {
    * @param increment increment of the loop: should be int or int value var
    * @param passedVars variables used in loop body
    * @param splitDegree the desired loop split factor (negative if no splitting)
+   * @param leafDegree maximum iterations to run in a leaf task
+   * @param minLeafDegree if positive, the leaf degree is chosen at runtime
+   *        from the total iteration count n as
+   *        max(minLeafDegree, min(leafDegree, ceil(n / splitDegree^2))),
+   *        so that loops are split at most twice before running leaves
    * @param perIterIncrs per-iteration increments
    * @param constIncrs constant increments
+   * @param accumulateBags bags that the loop body inserts into directly.
+   *        The backend may collect the elements inserted by a leaf task
+   *        and store them, and the write decrements, in one operation at
+   *        the end of the leaf, before the per-iteration decrements.
    */
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
-      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs);
+      int minLeafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> accumulateBags);
 
   /**
    * Finish the range loop
@@ -717,6 +732,13 @@ public interface CompilerBackend {
   public void buildStructLocal(Var struct, List<List<String>> fieldPaths,
                                 List<Arg> fieldVals);
 
+  /**
+   * Build a complete local bag value.
+   * @param bag a local {@link BagType} to initialize.
+   * @param elems values of bag members
+   */
+  public void buildBagLocal(Var bag, List<Arg> elems);
+
   /**
    * Decrement local file refcount, deleting referenced file if needed
    * @param fileVal a {@link FileValueType} file
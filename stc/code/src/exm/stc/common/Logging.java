@@ -25,6 +25,7 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
+import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.util.Pair;
 import exm.stc.ui.ExitCode;
 
@@ -32,7 +33,8 @@ public class Logging {
   private static final String STC_LOGGER_NAME = "exm.stc";
 
   /**
-   * Messages already emitted.
+   * Messages already emitted.  Access must be synchronized since
+   * optimizer passes may run in multiple threads.
    */
   private static final HashSet<Pair<org.apache.log4j.Level, String>> emitted =
           new HashSet<Pair<org.apache.log4j.Level, String>>();
@@ -42,6 +44,17 @@ public class Logging {
   }
 
 
+  /**
+   * Remove all appenders and forget emitted messages, so that logging
+   * can be set up again for another compile in the same JVM.
+   */
+  public static void reset() {
+    getSTCLogger().removeAllAppenders();
+    synchronized (emitted) {
+      emitted.clear();
+    }
+  }
+
   public static Logger setupLogging(String logfile, boolean trace) {
     Logger stcLogger = getSTCLogger();
     if (logfile != null && logfile.length() > 0) {
@@ -72,7 +85,7 @@ public class Logging {
       stcLogger.setLevel(threshold);
     } catch (IOException e) {
       System.out.println(e.getMessage());
-      System.exit(ExitCode.ERROR_IO.code());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
     }
   }
 
@@ -96,7 +109,9 @@ public class Logging {
    * @return true if not already emitted
    */
   public static boolean addEmitted(org.apache.log4j.Level level, String msg) {
-    return emitted.add(Pair.create(level, msg));
+    synchronized (emitted) {
+      return emitted.add(Pair.create(level, msg));
+    }
   }
 
   public static void uniqueWarn(String msg) {
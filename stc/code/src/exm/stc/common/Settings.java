@@ -94,6 +94,10 @@ public class Settings {
   // Threshold extra instructions for unrolling loop
   public static final String OPT_UNROLL_LOOP_THRESHOLD_INSTS =
                             "stc.opt.unroll-loop-threshold-insts";
+  /* Choose foreach split and leaf degrees with cost model */
+  public static final String OPT_SPLIT_DEGREES = "stc.opt.split-degrees";
+  /* Number of workers to assume when choosing split degrees */
+  public static final String OPT_SPLIT_WORKERS = "stc.opt.split-workers";
   public static final String OPT_HOIST = "stc.opt.hoist";
   public static final String OPT_REORDER_INSTS = "stc.opt.reorder-insts";
   public static final String OPT_ARRAY_BUILD = "stc.opt.array-build";
@@ -107,12 +111,23 @@ public class Settings {
   public static final String OPT_HOIST_REFCOUNTS = "stc.opt.hoist-refcounts";
 
   public static final String OPT_MAX_ITERATIONS = "stc.opt.max-iterations";
+  /* Skip iterations once optimizer stops modifying IR */
+  public static final String OPT_FIXPOINT = "stc.opt.fixpoint";
+  /* Number of threads to run function-local optimizer passes with */
+  public static final String OPT_THREADS = "stc.opt.threads";
+  /* How often to validate IC during optimization: none, iteration or pass */
+  public static final String OPT_VALIDATE = "stc.opt.validate";
+  /* File to write optimizer pass profile to, empty for no profiling */
+  public static final String OPT_PROFILE = "stc.opt.profile";
 
   public static final String ENABLE_REFCOUNTING = "stc.refcounting";
   public static final String ENABLE_CHECKPOINTING = "stc.checkpointing";
 
   public static final String AUTO_DECLARE = "stc.auto-declare";
 
+  /* Directory to cache parsed modules in, empty for no caching */
+  public static final String MODULE_CACHE_DIR = "stc.module-cache";
+
   public static final String INPUT_FILENAME = "stc.input_filename";
   public static final String OUTPUT_FILENAME = "stc.output_filename";
   public static final String STC_HOME = "stc.stc_home";
@@ -131,21 +146,40 @@ public class Settings {
   public static final String PREPROCESSOR_FORCE_GCC = "stc.preproc.force-gcc";
   public static final String PREPROCESSOR_FORCE_CPP = "stc.preproc.force-cpp";
 
+  /**
+   * Code generation target: turbine (Tcl) or jvm (Java source).
+   * The jvm target is experimental: it does not support all language
+   * features, e.g. files, user foreign functions or local arrays, and
+   * rejects programs that use them.
+   */
+  public static final String CODEGEN_TARGET = "stc.codegen.target";
+  public static final String CODEGEN_TURBINE = "turbine";
+  public static final String CODEGEN_JVM = "jvm";
+
 
   /** Record assumption that we need to pass waited-on vars into block */
   public static final String MUST_PASS_WAIT_VARS = "stc.must_pass_wait_vars";
 
-  private static final Properties defaults;
-  private static final Properties properties;
+  private static final Properties defaults = new Properties();
+  private static final Properties properties = new Properties(defaults);
 
   private static final List<String> modulePath = new ArrayList<String>();
 
+  /**
+   * Directory to resolve relative file names against, or null for
+   * working directory of process
+   */
+  private static File baseDir = null;
+
   /** Additional metadata */
   private static final List<Pair<String, String>> metadata =
             new ArrayList<Pair<String, String>>();
 
   static {
-    defaults = new Properties();
+    setDefaults();
+  }
+
+  private static void setDefaults() {
     // Set defaults here
     defaults.setProperty(TURBINE_VERSION, "0.0.5");
     defaults.setProperty(DEBUG_LEVEL, "COMMENTS");
@@ -160,6 +194,7 @@ public class Settings {
     defaults.setProperty(PREPROCESS_ONLY, "false");
     defaults.setProperty(PREPROCESSOR_FORCE_CPP, "false");
     defaults.setProperty(PREPROCESSOR_FORCE_GCC, "false");
+    defaults.setProperty(CODEGEN_TARGET, CODEGEN_TURBINE);
 
     // Code optimisation settings - defaults
     defaults.setProperty(OPT_FLATTEN_NESTED, "true");
@@ -189,6 +224,8 @@ public class Settings {
     defaults.setProperty(OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD,
               Long.toString(FUNCTION_ALWAYS_INLINE_THRESHOLD_DEFAULT));
     defaults.setProperty(OPT_FUNCTION_SIGNATURE, "true");
+    defaults.setProperty(OPT_SPLIT_DEGREES, "true");
+    defaults.setProperty(OPT_SPLIT_WORKERS, "16");
     defaults.setProperty(OPT_HOIST, "true");
     defaults.setProperty(OPT_REORDER_INSTS, "false");
     defaults.setProperty(OPT_ARRAY_BUILD, "true");
@@ -200,9 +237,14 @@ public class Settings {
     defaults.setProperty(OPT_BATCH_REFCOUNTS, "true");
     defaults.setProperty(OPT_HOIST_REFCOUNTS, "true");
     defaults.setProperty(OPT_MAX_ITERATIONS, "10");
+    defaults.setProperty(OPT_FIXPOINT, "true");
+    defaults.setProperty(OPT_THREADS, "1");
+    defaults.setProperty(OPT_VALIDATE, "iteration");
+    defaults.setProperty(OPT_PROFILE, "");
     defaults.setProperty(ENABLE_REFCOUNTING, "true");
     defaults.setProperty(ENABLE_CHECKPOINTING, "true");
     defaults.setProperty(AUTO_DECLARE, "true");
+    defaults.setProperty(MODULE_CACHE_DIR, "");
     defaults.setProperty(PROFILE_STC, "false");
     defaults.setProperty(LOG_FILE, "");
     defaults.setProperty(LOG_TRACE, "false");
@@ -215,7 +257,41 @@ public class Settings {
     // Turbine code generation
     // Turbine version
     defaults.setProperty(TURBINE_VERSION, "unknown");
-    properties = new Properties(defaults);
+  }
+
+  /**
+   * Discard all settings, module path and metadata, restoring defaults.
+   * Used to isolate compiles that run in the same JVM.
+   */
+  public static void reset() {
+    properties.clear();
+    defaults.clear();
+    setDefaults();
+    modulePath.clear();
+    metadata.clear();
+    baseDir = null;
+  }
+
+  /**
+   * Set directory that relative file names in arguments and settings
+   * should be resolved against, e.g. when compiling on behalf of another
+   * process.
+   * @param dir directory, or null for working directory of this process
+   */
+  public static void setBaseDir(File dir) {
+    baseDir = dir;
+  }
+
+  /**
+   * @param path file name from arguments or settings
+   * @return file, resolved against base directory if relative
+   */
+  public static File resolveFile(String path) {
+    File file = new File(path);
+    if (baseDir == null || file.isAbsolute()) {
+      return file;
+    }
+    return new File(baseDir, path);
   }
 
   /**
@@ -223,9 +299,19 @@ public class Settings {
      with value from System
    */
   public static void initSTCProperties() throws InvalidOptionException {
+    initSTCProperties(System.getProperties());
+  }
+
+  /**
+   * Overwrite each default property in properties with value from
+   * sysProps
+   * @param sysProps properties from wrapper script
+   */
+  public static void initSTCProperties(Properties sysProps)
+      throws InvalidOptionException {
     // Pull in properties from wrapper script
     for (String key: properties.stringPropertyNames()) {
-      String sysVal = System.getProperty(key);
+      String sysVal = sysProps.getProperty(key);
       if (sysVal != null) {
         properties.setProperty(key, sysVal);
       }
@@ -243,7 +329,7 @@ public class Settings {
     // Search Turbine directory first
     modulePath.add(0, Settings.get(Settings.TURBINE_HOME) + "/export");
     // Search current directory last
-    modulePath.add(".");
+    modulePath.add(baseDir == null ? "." : baseDir.getPath());
   }
 
   public static void addModulePath(String dir) {
@@ -332,6 +418,12 @@ public class Settings {
     getBoolean(OPT_FULL_UNROLL);
     getBoolean(OPT_ARRAY_BUILD);
     getBoolean(OPT_LOOP_SIMPLIFY);
+    getBoolean(OPT_SPLIT_DEGREES);
+    if (getInt(OPT_SPLIT_WORKERS) < 1) {
+      throw new InvalidOptionException("Expected positive number of workers "
+          + "for option " + OPT_SPLIT_WORKERS + " but was "
+          + get(OPT_SPLIT_WORKERS));
+    }
     getBoolean(OPT_PROPAGATE_ALIASES);
     getLong(OPT_EXPAND_LOOP_THRESHOLD_ITERS);
     getLong(OPT_UNROLL_LOOP_THRESHOLD_ITERS);
@@ -347,17 +439,25 @@ public class Settings {
     getBoolean(AUTO_DECLARE);
     getBoolean(COMPILER_DEBUG);
     getBoolean(PROFILE_STC);
-    getBoolean(USE_C_PREPROCESSOR);
     getBoolean(PREPROCESS_ONLY);
     getBoolean(PREPROCESSOR_FORCE_CPP);
     getBoolean(PREPROCESSOR_FORCE_GCC);
     getBoolean(MUST_PASS_WAIT_VARS);
 
     getLong(OPT_MAX_ITERATIONS);
+    getBoolean(OPT_FIXPOINT);
+    if (getInt(OPT_THREADS) < 1) {
+      throw new InvalidOptionException("Expected positive number of threads "
+          + "for option " + OPT_THREADS + " but was " + get(OPT_THREADS));
+    }
 
     initInlineProperties();
 
     checkOneOf(DEBUG_LEVEL, Arrays.asList("off", "comments", "debugger"));
+    checkOneOf(OPT_VALIDATE, Arrays.asList("none", "iteration", "pass"));
+    // true: builtin preprocessor, external: always run cpp or gcc
+    checkOneOf(USE_C_PREPROCESSOR, Arrays.asList("true", "false", "external"));
+    checkOneOf(CODEGEN_TARGET, Arrays.asList(CODEGEN_TURBINE, CODEGEN_JVM));
   }
 
   private static void initInlineProperties() throws InvalidOptionException {
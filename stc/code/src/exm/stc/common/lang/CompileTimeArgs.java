@@ -26,6 +26,10 @@ public class CompileTimeArgs {
     return compileTimeArgs.get(key);
   }
   
+  public static void reset() {
+    compileTimeArgs.clear();
+  }
+
   public static Map<String, String> getCompileTimeArgs() {
     return Collections.unmodifiableMap(compileTimeArgs);
   }
@@ -92,7 +92,11 @@ public class WaitVar implements Comparable<WaitVar> {
     return null;
   }
 
-  public static void replaceVars(List<WaitVar> waitVars, Map<Var, Arg> renames) {
+  /**
+   * @return true if any wait var was replaced
+   */
+  public static boolean replaceVars(List<WaitVar> waitVars,
+                                    Map<Var, Arg> renames) {
     boolean replaced = false;
     ListIterator<WaitVar> it = waitVars.listIterator();
     while (it.hasNext()) {
@@ -100,12 +104,14 @@ public class WaitVar implements Comparable<WaitVar> {
       Arg replacement = renames.get(wv.var);
       if (replacement != null && replacement.isVar()) {
         it.set(new WaitVar(replacement.getVar(), wv.explicit));
-        replaced = true;
+        replaced |= replacement.getVar() != wv.var &&
+                    !replacement.getVar().identical(wv.var);
       }
     }
     if (replaced) {
       removeDuplicates(waitVars);
     }
+    return replaced;
   }
 
   /**
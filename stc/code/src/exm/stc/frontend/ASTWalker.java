@@ -998,7 +998,7 @@ public class ASTWalker {
   private void foreach(Context context, SwiftAST tree) throws UserException {
     ForeachLoop loop = ForeachLoop.fromAST(context, tree);
 
-    if (loop.iteratesOverRange() && loop.getCountVarName() == null) {
+    if (loop.iteratesOverRange()) {
       foreachRange(context, loop);
     } else {
       foreachArray(context, loop);
@@ -1064,7 +1064,7 @@ public class ASTWalker {
             VarRepr.backendArg(startVal), VarRepr.backendArg(endVal),
             VarRepr.backendArg(stepVal),
             loop.getDesiredUnroll(), loop.getSplitDegree(),
-            loop.getLeafDegree());
+            loop.getLeafDegree(), loop.autoDegrees());
     // Need to spawn off task per iteration
     if (!loop.isSyncLoop()) {
       backend.startWaitStatement(fc.getFunctionName() + "range-iter" + loopNum,
@@ -1161,7 +1161,8 @@ public class ASTWalker {
     backend.startForeachLoop(fc.getFunctionName() + "-foreach" + loopNum,
             VarRepr.backendVar(realArray), backendIterVar,
             loopCountVal == null ? null : VarRepr.backendVar(loopCountVal),
-            loop.getSplitDegree(), loop.getLeafDegree(), true);
+            loop.getSplitDegree(), loop.getLeafDegree(),
+            loop.autoDegrees(), true);
 
 
     if (memberIsVal) {
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.frontend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import exm.stc.ast.SwiftAST;
+import exm.stc.ast.antlr.ExMParser;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.util.Pair;
+
+/**
+ * Cache of parsed module ASTs, so that modules shared between
+ * many programs, e.g. the standard library, are only parsed once.
+ *
+ * Enabled on disk by setting stc.module-cache to a directory, or in
+ * memory by a long-running compiler process with enableMemoryCache().
+ * Entries are keyed by a hash of the module's canonical path and
+ * contents, the STC version, the parser's token types and any
+ * preprocessor macros.  Failures
+ * reading or writing the cache are not fatal: we just parse the module
+ * as normal.
+ */
+public class ModuleCache {
+
+  /**
+   * Identify cache files and format version.  Change version if
+   * format changes: grammar changes are detected by GRAMMAR_HASH.
+   */
+  private static final int MAGIC = 0x53544341;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String SUFFIX = ".ast";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final HashFunction KEY_HASH = Hashing.sha256();
+
+  /**
+   * Hash of the parser's token names.  Cached trees store raw token
+   * type numbers, which change whenever the grammar changes, so
+   * entries from a different grammar must not match.
+   */
+  private static final byte[] GRAMMAR_HASH = grammarHash();
+
+  private static byte[] grammarHash() {
+    Hasher h = KEY_HASH.newHasher();
+    h.putInt(ExMParser.tokenNames.length);
+    for (String name: ExMParser.tokenNames) {
+      putString(h, name);
+    }
+    return h.hash().asBytes();
+  }
+
+  /**
+   * Serialized ASTs shared between compiles in this JVM, or null if
+   * disabled.  Entries are stored serialized so that each compile gets
+   * its own copy of the tree.  Access must be synchronized.
+   */
+  private static Map<String, byte[]> memoryCache = null;
+
+  /** Directory for cache files, or null if only caching in memory */
+  private final File cacheDir;
+
+  public ModuleCache(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * Keep cached ASTs in memory for the lifetime of this JVM.
+   * @param maxEntries maximum number of ASTs to keep, evicting least
+   *                   recently used first
+   */
+  public static synchronized void enableMemoryCache(final int maxEntries) {
+    memoryCache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  private static synchronized byte[] memoryLookup(String key) {
+    return memoryCache == null ? null : memoryCache.get(key);
+  }
+
+  private static synchronized void memoryStore(String key, byte data[]) {
+    if (memoryCache != null) {
+      memoryCache.put(key, data);
+    }
+  }
+
+  /**
+   * @return cache if enabled in settings or in memory, otherwise null
+   */
+  public static ModuleCache fromSettings() {
+    String dir = Settings.get(Settings.MODULE_CACHE_DIR);
+    boolean useDir = dir != null && dir.length() > 0;
+    synchronized (ModuleCache.class) {
+      if (!useDir && memoryCache == null) {
+        return null;
+      }
+    }
+    return new ModuleCache(useDir ? Settings.resolveFile(dir) : null);
+  }
+
+  /**
+   * @param canonicalPath canonical path of module file
+   * @param contents contents of module file
+   * @return cache key
+   */
+  public String key(String canonicalPath, byte contents[]) {
+    Hasher h = KEY_HASH.newHasher();
+    h.putInt(FORMAT_VERSION);
+    putString(h, Settings.get(Settings.STC_VERSION));
+    h.putBytes(GRAMMAR_HASH);
+    putString(h, canonicalPath);
+    for (Pair<String, String> md: Settings.getMetadata()) {
+      if (md.val1.equals("Macro")) {
+        putString(h, md.val2);
+      }
+    }
+    h.putInt(contents.length);
+    h.putBytes(contents);
+    return h.hash().toString();
+  }
+
+  private static void putString(Hasher h, String s) {
+    if (s == null) {
+      h.putInt(-1);
+    } else {
+      byte bytes[] = s.getBytes(UTF8);
+      h.putInt(bytes.length);
+      h.putBytes(bytes);
+    }
+  }
+
+  private File cacheFile(String key) {
+    return new File(cacheDir, key + SUFFIX);
+  }
+
+  /**
+   * Lookup AST in cache
+   * @param key
+   * @return the AST, or null if not cached
+   */
+  public SwiftAST lookup(String key) {
+    Logger logger = Logging.getSTCLogger();
+    byte data[] = memoryLookup(key);
+    String source = "memory";
+    if (data == null && cacheDir != null) {
+      File file = cacheFile(key);
+      source = file.getPath();
+      if (file.isFile()) {
+        try {
+          data = FileUtils.readFileToByteArray(file);
+        } catch (IOException e) {
+          logger.debug("Error reading module cache file " + file + ": " +
+                       e.getMessage());
+          return null;
+        }
+        memoryStore(key, data);
+      }
+    }
+
+    if (data == null) {
+      logger.trace("Module cache miss: " + key);
+      return null;
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(
+                                  new ByteArrayInputStream(data));
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        logger.debug("Ignoring invalid module cache entry from " + source);
+        return null;
+      }
+      SwiftAST ast = readTree(in);
+      logger.debug("Loaded module AST from cache: " + source);
+      return ast;
+    } catch (IOException e) {
+      logger.debug("Error reading module cache entry from " + source +
+                   ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Store AST in cache.  Writes to a temporary file first so that
+   * concurrent compiles never see partially written entries.
+   * @param key
+   * @param ast
+   */
+  public void store(String key, SwiftAST ast) {
+    Logger logger = Logging.getSTCLogger();
+    byte data[];
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      writeTree(out, ast);
+      out.close();
+      data = bytes.toByteArray();
+    } catch (IOException e) {
+      // Should not happen for in-memory stream
+      logger.debug("Error serializing module AST: " + e.getMessage());
+      return;
+    }
+
+    memoryStore(key, data);
+    if (cacheDir != null) {
+      storeFile(key, data);
+    }
+  }
+
+  private void storeFile(String key, byte data[]) {
+    Logger logger = Logging.getSTCLogger();
+    File file = cacheFile(key);
+    File tmp = null;
+    try {
+      if (!cacheDir.isDirectory() && !cacheDir.mkdirs() &&
+          !cacheDir.isDirectory()) {
+        throw new IOException("Could not create directory " + cacheDir);
+      }
+      tmp = File.createTempFile(key, ".tmp", cacheDir);
+      FileUtils.writeByteArrayToFile(tmp, data);
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+      tmp = null;
+      logger.debug("Stored module AST in cache: " + file);
+    } catch (IOException e) {
+      logger.debug("Error writing module cache file " + file + ": " +
+                   e.getMessage());
+    } finally {
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Write tree in pre-order.  Only need information from tokens that
+   * the frontend uses: type, text and position.
+   */
+  private static void writeTree(DataOutputStream out, SwiftAST tree)
+      throws IOException {
+    Token token = tree.getToken();
+    if (token == null) {
+      out.writeBoolean(false);
+    } else {
+      out.writeBoolean(true);
+      out.writeInt(token.getType());
+      writeString(out, token.getText());
+      out.writeInt(token.getLine());
+      out.writeInt(token.getCharPositionInLine());
+    }
+
+    out.writeInt(tree.childCount());
+    for (SwiftAST child: tree.children()) {
+      writeTree(out, child);
+    }
+  }
+
+  private static SwiftAST readTree(DataInputStream in) throws IOException {
+    Token token = null;
+    if (in.readBoolean()) {
+      int type = in.readInt();
+      String text = readString(in);
+      token = new CommonToken(type, text);
+      token.setLine(in.readInt());
+      token.setCharPositionInLine(in.readInt());
+    }
+
+    SwiftAST tree = new SwiftAST(token);
+    int childCount = in.readInt();
+    for (int i = 0; i < childCount; i++) {
+      tree.addChild(readTree(in));
+    }
+    return tree;
+  }
+
+  /**
+   * Write string with length prefix: DataOutputStream.writeUTF is
+   * limited to 64KB, which might not be enough for string literals.
+   */
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte bytes[] = s.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte bytes[] = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+}
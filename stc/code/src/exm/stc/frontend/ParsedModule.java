@@ -1,21 +1,29 @@
 package exm.stc.frontend;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
+import java.util.List;
 
 import org.antlr.runtime.ANTLRInputStream;
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.CommonTreeAdaptor;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
 
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
 import exm.stc.ast.antlr.ExMLexer;
 import exm.stc.ast.antlr.ExMParser;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.ui.ExitCode;
@@ -48,6 +56,21 @@ public class ParsedModule {
    */
   public static ParsedModule parse(String moduleName, String path,
                                    boolean preprocessed) throws IOException {
+    if (preprocessed && Preprocessor.mode() == Preprocessor.Mode.BUILTIN) {
+      // File is not yet preprocessed: do it here
+      return parseBuiltinPreprocessed(moduleName, path);
+    }
+
+    // Preprocessor output is a temporary file, so don't bother caching
+    ModuleCache cache = preprocessed ? null : ModuleCache.fromSettings();
+    if (cache != null) {
+      return parseCached(cache, moduleName, path);
+    }
+    return parseFile(moduleName, path, preprocessed);
+  }
+
+  private static ParsedModule parseFile(String moduleName, String path,
+                                   boolean preprocessed) throws IOException {
     FileInputStream inputStream = setupInput(path);
     /* Parse the input file and build AST */
     ANTLRInputStream antlrInput = new ANTLRInputStream(inputStream);
@@ -64,6 +87,56 @@ public class ParsedModule {
 
     return new ParsedModule(moduleName, path, tree, lineMapping);
   }
+
+  /**
+   * Run builtin preprocessor on module and parse the output from memory.
+   * Fall back to external preprocessor if the module uses features the
+   * builtin preprocessor doesn't support.
+   */
+  private static ParsedModule parseBuiltinPreprocessed(String moduleName,
+                                     String path) throws IOException {
+    Logger logger = Logging.getSTCLogger();
+    List<String> macros = Preprocessor.commandLineMacros();
+    Preprocessor.Result pp;
+    try {
+      pp = Preprocessor.preprocess(logger, path, Settings.getModulePath(),
+                                   macros);
+    } catch (Preprocessor.UnsupportedException e) {
+      logger.debug("Using external preprocessor: " + e.getMessage());
+      File preprocOutput = File.createTempFile("stc-preproc", ".swift");
+      try {
+        Preprocessor.runExternal(logger, path, preprocOutput.getPath(),
+                                 macros);
+        return parseFile(moduleName, preprocOutput.getPath(), true);
+      } finally {
+        preprocOutput.delete();
+      }
+    }
+
+    SwiftAST tree = runANTLR(new ANTLRStringStream(pp.text),
+                             pp.lineMapping);
+    return new ParsedModule(moduleName, path, tree, pp.lineMapping);
+  }
+
+  /**
+   * Parse a module that wasn't preprocessed, using the cached AST if
+   * the module was parsed previously.
+   */
+  private static ParsedModule parseCached(ModuleCache cache,
+      String moduleName, String path) throws IOException {
+    byte contents[] = readInput(path);
+    String key = cache.key(getCanonicalFilePath(path), contents);
+
+    LineMapping lineMapping = LineMapping.makeSimple(path);
+    SwiftAST tree = cache.lookup(key);
+    if (tree == null) {
+      ANTLRInputStream antlrInput = new ANTLRInputStream(
+                                  new ByteArrayInputStream(contents));
+      tree = runANTLR(antlrInput, lineMapping);
+      cache.store(key, tree);
+    }
+    return new ParsedModule(moduleName, path, tree, lineMapping);
+  }
   /**
    * @param filePath
    * @return
@@ -90,11 +163,21 @@ public class ParsedModule {
     return input;
   }
 
+  private static byte[] readInput(String inputFilename) {
+    try {
+      return FileUtils.readFileToByteArray(new File(inputFilename));
+    } catch (IOException e) {
+      System.out.println("Error opening input Swift file: " +
+                                            e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
+    }
+  }
+
   /**
      Use ANTLR to parse the input and get the Tree
    * @throws IOException
    */
-  private static SwiftAST runANTLR(ANTLRInputStream input, LineMapping lineMap) {
+  private static SwiftAST runANTLR(CharStream input, LineMapping lineMap) {
 
     ExMLexer lexer = new ExMLexer(input);
     lexer.lineMap = lineMap;
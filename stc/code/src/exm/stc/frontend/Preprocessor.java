@@ -0,0 +1,1158 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.frontend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.log4j.Logger;
+
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.util.Pair;
+import exm.stc.ui.ExitCode;
+
+/**
+ * C preprocessor for Swift source files.
+ *
+ * The builtin implementation handles the subset of the C preprocessor
+ * used in Swift programs: #include, object-like and function-like
+ * macros, -D definitions and conditionals.  It avoids launching cpp for
+ * each compile and produces the line mapping directly, without
+ * scanning the output again.
+ *
+ * Output has exactly one line per input line, so that positions map
+ * directly back to the input files.  Directives and lines in skipped
+ * conditional blocks become blank lines, and comments are left in place
+ * for the lexer to discard.
+ *
+ * Anything outside the subset, e.g. token pasting, predefined macros,
+ * line continuations or unknown directives, raises UnsupportedException
+ * so that the caller can fall back to the external preprocessor, which
+ * will either handle it or report the error as before.
+ */
+public class Preprocessor {
+
+  /**
+   * How to preprocess, from the stc.c_preprocess setting
+   */
+  public static enum Mode {
+    /** Don't preprocess */
+    NONE,
+    /** Builtin preprocessor, falling back to external if needed */
+    BUILTIN,
+    /** Always run cpp or gcc -E */
+    EXTERNAL;
+  }
+
+  public static final String MODE_EXTERNAL = "external";
+
+  /** Limit on include nesting, same as cpp */
+  private static final int MAX_INCLUDE_DEPTH = 200;
+
+  /**
+   * Output of builtin preprocessor
+   */
+  public static class Result {
+    public final String text;
+    public final LineMapping lineMapping;
+
+    private Result(String text, LineMapping lineMapping) {
+      this.text = text;
+      this.lineMapping = lineMapping;
+    }
+  }
+
+  /**
+   * Input uses preprocessor features not handled by builtin preprocessor
+   */
+  public static class UnsupportedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedException(String file, int line, String msg) {
+      super(file + ":" + line + ": " + msg);
+    }
+  }
+
+  /**
+   * @return preprocessing mode from settings
+   */
+  public static Mode mode() {
+    String val = Settings.get(Settings.USE_C_PREPROCESSOR);
+    if (val == null || val.equalsIgnoreCase("false")) {
+      return Mode.NONE;
+    } else if (val.equalsIgnoreCase(MODE_EXTERNAL)) {
+      return Mode.EXTERNAL;
+    } else {
+      return Mode.BUILTIN;
+    }
+  }
+
+  /**
+   * @return macros defined on command line, in NAME or NAME=VALUE form
+   */
+  public static List<String> commandLineMacros() {
+    List<String> result = new ArrayList<String>();
+    for (Pair<String, String> md: Settings.getMetadata()) {
+      if (md.val1.equals("Macro")) {
+        result.add(md.val2);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Preprocess a file with the builtin preprocessor.
+   * @param logger
+   * @param path path of main file, as it should appear in messages
+   * @param includeDirs directories to search for included files
+   * @param macroDefs macros from the command line
+   * @return the preprocessed text and line mapping
+   * @throws IOException if main file could not be read
+   * @throws UnsupportedException if external preprocessor must be used
+   */
+  public static Result preprocess(Logger logger, String path,
+                List<String> includeDirs, List<String> macroDefs)
+                    throws IOException, UnsupportedException {
+    Preprocessor pp = new Preprocessor(includeDirs);
+    for (String def: macroDefs) {
+      pp.defineFromCommandLine(def);
+    }
+    pp.processFile(path, pp.readFile(path));
+    logger.debug("Preprocessed " + path + " with builtin preprocessor: " +
+                 pp.outLine + " lines");
+    return new Result(pp.out.toString(), pp.lineMapping);
+  }
+
+  private static enum TokType {
+    IDENT, NUMBER, STRING, CHAR, PUNCT, SPACE, COMMENT;
+  }
+
+  /**
+   * Preprocessing token.  Text is kept exactly as in input.
+   */
+  private static class Tok {
+    final TokType type;
+    final String text;
+    /** Macros that must not be expanded again in this token */
+    final Set<String> hide;
+    /**
+     * Identify where token came from: 0 for input line, or a distinct
+     * number for each macro expansion.
+     */
+    final int source;
+
+    Tok(TokType type, String text) {
+      this(type, text, Collections.<String>emptySet(), 0);
+    }
+
+    Tok(TokType type, String text, Set<String> hide, int source) {
+      this.type = type;
+      this.text = text;
+      this.hide = hide;
+      this.source = source;
+    }
+
+    boolean significant() {
+      return type != TokType.SPACE && type != TokType.COMMENT;
+    }
+
+    boolean isPunct(String p) {
+      return type == TokType.PUNCT && text.equals(p);
+    }
+  }
+
+  private static class Macro {
+    final String name;
+    /** Parameter names, or null if object-like */
+    final List<String> params;
+    /** Replacement list, without comments or surrounding space */
+    final List<Tok> body;
+
+    Macro(String name, List<String> params, List<Tok> body) {
+      this.name = name;
+      this.params = params;
+      this.body = body;
+    }
+
+    boolean sameDefinition(Macro other) {
+      if (params == null ? other.params != null :
+                           !params.equals(other.params)) {
+        return false;
+      }
+      return bodyText().equals(other.bodyText());
+    }
+
+    private String bodyText() {
+      StringBuilder sb = new StringBuilder();
+      for (Tok t: body) {
+        sb.append(t.type == TokType.SPACE ? " " : t.text);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * State of an enclosing conditional
+   */
+  private static class Cond {
+    /** Whether enclosing block is active */
+    final boolean outerActive;
+    /** Whether any branch has been taken */
+    boolean taken;
+    /** Whether current branch is active */
+    boolean active;
+    boolean seenElse = false;
+
+    Cond(boolean outerActive, boolean active) {
+      this.outerActive = outerActive;
+      this.active = outerActive && active;
+      this.taken = this.active;
+    }
+  }
+
+  private final List<String> includeDirs;
+  private final Map<String, Macro> macros = new HashMap<String, Macro>();
+
+  private final StringBuilder out = new StringBuilder();
+  private final LineMapping lineMapping = new LineMapping();
+  /** Number of next line of output */
+  private int outLine = 1;
+
+  private int includeDepth = 0;
+  private int nextSource = 1;
+
+  /** Position in input, for error messages */
+  private String currentFile;
+  private int currentLine;
+
+  /** Whether lexer is inside a multi-line comment */
+  private boolean inBlockComment = false;
+
+  private Preprocessor(List<String> includeDirs) {
+    this.includeDirs = includeDirs;
+  }
+
+  private UnsupportedException unsupported(String msg) {
+    return new UnsupportedException(currentFile, currentLine, msg);
+  }
+
+  private String readFile(String path) throws IOException {
+    // Use default charset, same as for non-preprocessed input
+    return FileUtils.readFileToString(Settings.resolveFile(path));
+  }
+
+  private void processFile(String path, String text)
+      throws UnsupportedException {
+    if (includeDepth >= MAX_INCLUDE_DEPTH) {
+      throw unsupported("#include nested too deeply");
+    }
+    includeDepth++;
+    String prevFile = currentFile;
+    int prevLine = currentLine;
+    currentFile = path;
+
+    lineMapping.addPreprocInfo(outLine, path, 1);
+    String lines[] = text.split("\n", -1);
+    // Last element is empty if file ends with newline
+    int lineCount = text.endsWith("\n") || text.isEmpty() ?
+                    lines.length - 1 : lines.length;
+
+    Deque<Cond> conds = new ArrayDeque<Cond>();
+    for (int i = 0; i < lineCount; i++) {
+      currentLine = i + 1;
+      String line = lines[i];
+      if (line.endsWith("\\") || line.endsWith("\\\r")) {
+        throw unsupported("line continuation");
+      }
+
+      boolean startInComment = inBlockComment;
+      List<Tok> toks = lexLine(line);
+      int first = nextSignificant(toks, 0);
+      if (first >= 0 && toks.get(first).isPunct("#")) {
+        if (startInComment) {
+          throw unsupported("directive after multi-line comment");
+        }
+        if (inBlockComment) {
+          throw unsupported("multi-line comment in directive");
+        }
+        boolean included = directive(toks.subList(first + 1, toks.size()),
+                                     conds);
+        if (included) {
+          // Resume mapping at next line of this file
+          lineMapping.addPreprocInfo(outLine, path, i + 2);
+        } else {
+          emitLine("");
+        }
+      } else if (isActive(conds)) {
+        emitLine(render(expand(toks, true)));
+      } else {
+        emitLine("");
+      }
+    }
+
+    if (inBlockComment) {
+      throw unsupported("unterminated comment");
+    }
+    if (!conds.isEmpty()) {
+      throw unsupported("unterminated conditional");
+    }
+    includeDepth--;
+    currentFile = prevFile;
+    currentLine = prevLine;
+  }
+
+  private void emitLine(String text) {
+    out.append(text).append('\n');
+    outLine++;
+  }
+
+  private static boolean isActive(Deque<Cond> conds) {
+    return conds.isEmpty() || conds.peek().active;
+  }
+
+  /**
+   * Handle a directive
+   * @param toks tokens after #
+   * @param conds enclosing conditionals in this file
+   * @return true if a file was included in the output
+   */
+  private boolean directive(List<Tok> toks, Deque<Cond> conds)
+      throws UnsupportedException {
+    int nameIx = nextSignificant(toks, 0);
+    if (nameIx < 0) {
+      // Null directive
+      return false;
+    }
+    Tok nameTok = toks.get(nameIx);
+    List<Tok> args = toks.subList(nameIx + 1, toks.size());
+    String name = nameTok.type == TokType.IDENT ? nameTok.text : null;
+    boolean active = isActive(conds);
+
+    if ("if".equals(name)) {
+      conds.push(new Cond(active, active && evalCondition(args)));
+    } else if ("ifdef".equals(name) || "ifndef".equals(name)) {
+      boolean defined = active && isDefined(singleIdent(args));
+      conds.push(new Cond(active, defined == "ifdef".equals(name)));
+    } else if ("elif".equals(name)) {
+      Cond cond = conds.peek();
+      if (cond == null || cond.seenElse) {
+        throw unsupported("unexpected #elif");
+      }
+      cond.active = cond.outerActive && !cond.taken && evalCondition(args);
+      cond.taken |= cond.active;
+    } else if ("else".equals(name)) {
+      Cond cond = conds.peek();
+      if (cond == null || cond.seenElse) {
+        throw unsupported("unexpected #else");
+      }
+      cond.seenElse = true;
+      cond.active = cond.outerActive && !cond.taken;
+      cond.taken = true;
+    } else if ("endif".equals(name)) {
+      if (conds.isEmpty()) {
+        throw unsupported("unexpected #endif");
+      }
+      conds.pop();
+    } else if (!active) {
+      // Other directives are ignored in skipped blocks
+    } else if ("define".equals(name)) {
+      define(args);
+    } else if ("undef".equals(name)) {
+      String macro = singleIdent(args);
+      checkDefinable(macro);
+      macros.remove(macro);
+    } else if ("include".equals(name)) {
+      include(args);
+      return true;
+    } else {
+      // E.g. #error, #pragma, #line, or invalid directive
+      throw unsupported("directive #" + nameTok.text);
+    }
+    return false;
+  }
+
+  /**
+   * @return the only significant token, which must be an identifier
+   */
+  private String singleIdent(List<Tok> toks) throws UnsupportedException {
+    int i = nextSignificant(toks, 0);
+    if (i < 0 || toks.get(i).type != TokType.IDENT ||
+        nextSignificant(toks, i + 1) >= 0) {
+      throw unsupported("expected single macro name");
+    }
+    return toks.get(i).text;
+  }
+
+  private boolean isDefined(String name) throws UnsupportedException {
+    if (!macros.containsKey(name)) {
+      // May be predefined by cpp
+      checkNotPredefined(name);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Check that name doesn't look like a macro that cpp predefines, e.g.
+   * __FILE__ or __STDC__, since we don't emulate those.
+   */
+  private void checkNotPredefined(String name) throws UnsupportedException {
+    if ((name.startsWith("__") && name.endsWith("__") && name.length() > 4) ||
+        name.startsWith("__STDC") || name.startsWith("__has_") ||
+        name.equals("_STDC_PREDEF_H") || name.equals("_Pragma")) {
+      throw unsupported("predefined macro " + name);
+    }
+  }
+
+  private void checkDefinable(String name) throws UnsupportedException {
+    if (name.equals("defined")) {
+      throw unsupported("cannot define " + name);
+    }
+    checkNotPredefined(name);
+  }
+
+  /**
+   * Define macro from -D argument
+   */
+  private void defineFromCommandLine(String def)
+      throws UnsupportedException {
+    currentFile = "<command-line>";
+    currentLine = 0;
+    String text;
+    int eq = def.indexOf('=');
+    if (eq < 0) {
+      text = def + " 1";
+    } else {
+      text = def.substring(0, eq) + " " + def.substring(eq + 1);
+    }
+    List<Tok> toks = lexLine(text);
+    if (inBlockComment) {
+      throw unsupported("comment in macro definition");
+    }
+    define(toks);
+  }
+
+  private void define(List<Tok> toks) throws UnsupportedException {
+    int nameIx = nextSignificant(toks, 0);
+    if (nameIx < 0 || toks.get(nameIx).type != TokType.IDENT) {
+      throw unsupported("expected macro name");
+    }
+    String name = toks.get(nameIx).text;
+    checkDefinable(name);
+
+    int pos = nameIx + 1;
+    List<String> params = null;
+    // Function-like only if parenthesis immediately follows name
+    if (pos < toks.size() && toks.get(pos).isPunct("(")) {
+      params = new ArrayList<String>();
+      pos = nextSignificant(toks, pos + 1);
+      if (pos >= 0 && toks.get(pos).isPunct(")")) {
+        pos++;
+      } else {
+        while (true) {
+          if (pos < 0 || toks.get(pos).type != TokType.IDENT ||
+              params.contains(toks.get(pos).text)) {
+            throw unsupported("macro parameter list for " + name);
+          }
+          params.add(toks.get(pos).text);
+          pos = nextSignificant(toks, pos + 1);
+          if (pos >= 0 && toks.get(pos).isPunct(",")) {
+            pos = nextSignificant(toks, pos + 1);
+          } else if (pos >= 0 && toks.get(pos).isPunct(")")) {
+            pos++;
+            break;
+          } else {
+            throw unsupported("macro parameter list for " + name);
+          }
+        }
+      }
+    }
+
+    List<Tok> body = new ArrayList<Tok>();
+    for (Tok t: toks.subList(pos, toks.size())) {
+      if (t.isPunct("#")) {
+        // Stringification or token pasting
+        throw unsupported("# or ## in macro " + name);
+      }
+      if (!t.significant()) {
+        // Comments and whitespace become single space
+        if (!body.isEmpty() &&
+            body.get(body.size() - 1).type != TokType.SPACE) {
+          body.add(new Tok(TokType.SPACE, " "));
+        }
+      } else {
+        body.add(t);
+      }
+    }
+    if (!body.isEmpty() && body.get(body.size() - 1).type == TokType.SPACE) {
+      body.remove(body.size() - 1);
+    }
+
+    Macro macro = new Macro(name, params, body);
+    Macro prev = macros.get(name);
+    if (prev != null && !prev.sameDefinition(macro)) {
+      // cpp warns about this
+      throw unsupported("redefinition of macro " + name);
+    }
+    macros.put(name, macro);
+  }
+
+  private void include(List<Tok> toks) throws UnsupportedException {
+    int i = nextSignificant(toks, 0);
+    if (i < 0) {
+      throw unsupported("#include without file name");
+    }
+    Tok t = toks.get(i);
+    String name;
+    boolean quoted;
+    int end;
+    if (t.type == TokType.STRING && t.text.length() >= 2 &&
+        t.text.endsWith("\"")) {
+      name = t.text.substring(1, t.text.length() - 1);
+      quoted = true;
+      end = i + 1;
+    } else if (t.isPunct("<")) {
+      StringBuilder sb = new StringBuilder();
+      end = i + 1;
+      while (end < toks.size() && !toks.get(end).isPunct(">")) {
+        sb.append(toks.get(end).text);
+        end++;
+      }
+      if (end == toks.size()) {
+        throw unsupported("malformed #include");
+      }
+      end++;
+      name = sb.toString();
+      quoted = false;
+    } else {
+      // E.g. computed include
+      throw unsupported("malformed #include");
+    }
+    if (nextSignificant(toks, end) >= 0 || name.isEmpty() ||
+        name.contains("\\")) {
+      throw unsupported("malformed #include");
+    }
+
+    String path = findInclude(name, quoted);
+    String text;
+    try {
+      text = readFile(path);
+    } catch (IOException e) {
+      throw unsupported("could not read " + path + ": " + e.getMessage());
+    }
+    processFile(path, text);
+  }
+
+  /**
+   * Search for included file in same way as cpp
+   * @return path of file, as cpp would write it in line markers
+   */
+  private String findInclude(String name, boolean quoted)
+      throws UnsupportedException {
+    if (new File(name).isAbsolute()) {
+      if (Settings.resolveFile(name).isFile()) {
+        return name;
+      }
+      throw unsupported("include file " + name + " not found");
+    }
+
+    List<String> candidates = new ArrayList<String>();
+    if (quoted) {
+      // Directory of current file first
+      int slash = currentFile.lastIndexOf('/');
+      candidates.add(slash < 0 ? name :
+                     currentFile.substring(0, slash + 1) + name);
+    }
+    for (String dir: includeDirs) {
+      candidates.add(dir.endsWith("/") ? dir + name : dir + "/" + name);
+    }
+
+    for (String candidate: candidates) {
+      if (Settings.resolveFile(candidate).isFile()) {
+        return candidate;
+      }
+    }
+    // Might be in system include directories
+    throw unsupported("include file " + name + " not found");
+  }
+
+  /**
+   * Split a line into preprocessing tokens
+   */
+  private List<Tok> lexLine(String line) {
+    List<Tok> toks = new ArrayList<Tok>();
+    int n = line.length();
+    int i = 0;
+    if (inBlockComment) {
+      int end = line.indexOf("*/");
+      if (end < 0) {
+        toks.add(new Tok(TokType.COMMENT, line));
+        return toks;
+      }
+      toks.add(new Tok(TokType.COMMENT, line.substring(0, end + 2)));
+      inBlockComment = false;
+      i = end + 2;
+    }
+
+    while (i < n) {
+      char c = line.charAt(i);
+      int start = i;
+      TokType type;
+      if (isSpace(c)) {
+        while (i < n && isSpace(line.charAt(i))) {
+          i++;
+        }
+        type = TokType.SPACE;
+      } else if (line.startsWith("/*", i)) {
+        int end = line.indexOf("*/", i + 2);
+        if (end < 0) {
+          inBlockComment = true;
+          i = n;
+        } else {
+          i = end + 2;
+        }
+        type = TokType.COMMENT;
+      } else if (line.startsWith("//", i)) {
+        i = n;
+        type = TokType.COMMENT;
+      } else if (isIdentStart(c)) {
+        while (i < n && isIdentChar(line.charAt(i))) {
+          i++;
+        }
+        type = TokType.IDENT;
+      } else if (Character.isDigit(c) || (c == '.' && i + 1 < n &&
+                                      Character.isDigit(line.charAt(i + 1)))) {
+        // Preprocessing number
+        i++;
+        while (i < n) {
+          char d = line.charAt(i);
+          if ((d == '+' || d == '-') && "eEpP".indexOf(line.charAt(i - 1)) >= 0) {
+            i++;
+          } else if (isIdentChar(d) || d == '.') {
+            i++;
+          } else {
+            break;
+          }
+        }
+        type = TokType.NUMBER;
+      } else if (c == '"' || c == '\'') {
+        // Literal ends at matching quote or end of line
+        i++;
+        while (i < n && line.charAt(i) != c) {
+          if (line.charAt(i) == '\\' && i + 1 < n) {
+            i++;
+          }
+          i++;
+        }
+        if (i < n) {
+          i++;
+        }
+        type = c == '"' ? TokType.STRING : TokType.CHAR;
+      } else {
+        i++;
+        type = TokType.PUNCT;
+      }
+      toks.add(new Tok(type, line.substring(start, i)));
+    }
+    return toks;
+  }
+
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\f' || c == '\r' || c == '\u000B';
+  }
+
+  private static boolean isIdentStart(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+            c == '_' || c == '$';
+  }
+
+  private static boolean isIdentChar(char c) {
+    return isIdentStart(c) || (c >= '0' && c <= '9');
+  }
+
+  /**
+   * @return index of next significant token at or after start, or -1
+   */
+  private static int nextSignificant(List<Tok> toks, int start) {
+    for (int i = start; i < toks.size(); i++) {
+      if (toks.get(i).significant()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Expand all macros in tokens.
+   * @param toks
+   * @param wholeLine if true, toks is the rest of the line, so a
+   *        function-like macro name at the end might have arguments on
+   *        the next line
+   * @return expanded tokens
+   */
+  private List<Tok> expand(List<Tok> toks, boolean wholeLine)
+      throws UnsupportedException {
+    LinkedList<Tok> work = new LinkedList<Tok>(toks);
+    List<Tok> result = new ArrayList<Tok>();
+    while (!work.isEmpty()) {
+      Tok t = work.removeFirst();
+      if (t.type != TokType.IDENT) {
+        result.add(t);
+        continue;
+      }
+      Macro m = macros.get(t.text);
+      if (m == null) {
+        checkNotPredefined(t.text);
+        result.add(t);
+        continue;
+      } else if (t.hide.contains(m.name)) {
+        result.add(t);
+        continue;
+      }
+
+      Set<String> hide = new HashSet<String>(t.hide);
+      hide.add(m.name);
+      int source = nextSource++;
+      if (m.params == null) {
+        work.addAll(0, copyTokens(m.body, hide, source));
+        continue;
+      }
+
+      // Function-like macro is only expanded if followed by arguments
+      int open = nextSignificant(work, 0);
+      if (open < 0) {
+        if (wholeLine) {
+          throw unsupported("arguments of macro " + m.name +
+                            " may be on following line");
+        }
+        result.add(t);
+        continue;
+      } else if (!work.get(open).isPunct("(")) {
+        result.add(t);
+        continue;
+      }
+
+      List<List<Tok>> args = new ArrayList<List<Tok>>();
+      List<Tok> arg = new ArrayList<Tok>();
+      int depth = 0;
+      int pos = open + 1;
+      while (true) {
+        if (pos >= work.size()) {
+          throw unsupported("unterminated arguments of macro " + m.name);
+        }
+        Tok a = work.get(pos++);
+        if (a.isPunct("(")) {
+          depth++;
+        } else if (a.isPunct(")")) {
+          if (depth == 0) {
+            args.add(arg);
+            break;
+          }
+          depth--;
+        } else if (a.isPunct(",") && depth == 0) {
+          args.add(arg);
+          arg = new ArrayList<Tok>();
+          continue;
+        }
+        arg.add(a);
+      }
+      work.subList(0, pos).clear();
+
+      if (m.params.isEmpty() && args.size() == 1 &&
+          nextSignificant(args.get(0), 0) < 0) {
+        args.clear();
+      }
+      if (args.size() != m.params.size()) {
+        throw unsupported("wrong number of arguments to macro " + m.name);
+      }
+
+      List<Tok> replacement = new ArrayList<Tok>();
+      for (Tok b: m.body) {
+        int paramIx = b.type == TokType.IDENT ? m.params.indexOf(b.text) : -1;
+        if (paramIx >= 0) {
+          List<Tok> expandedArg = expand(trim(args.get(paramIx)), false);
+          replacement.addAll(copyTokens(expandedArg, hide, source));
+        } else {
+          replacement.add(new Tok(b.type, b.text, hide, source));
+        }
+      }
+      work.addAll(0, replacement);
+    }
+    return result;
+  }
+
+  private static List<Tok> copyTokens(List<Tok> toks, Set<String> hide,
+                                      int source) {
+    List<Tok> result = new ArrayList<Tok>(toks.size());
+    for (Tok t: toks) {
+      Set<String> tokHide = hide;
+      if (!t.hide.isEmpty()) {
+        tokHide = new HashSet<String>(hide);
+        tokHide.addAll(t.hide);
+      }
+      result.add(new Tok(t.type, t.text, tokHide, source));
+    }
+    return result;
+  }
+
+  /**
+   * Remove leading and trailing space and comments
+   */
+  private static List<Tok> trim(List<Tok> toks) {
+    int start = 0;
+    int end = toks.size();
+    while (start < end && !toks.get(start).significant()) {
+      start++;
+    }
+    while (end > start && !toks.get(end - 1).significant()) {
+      end--;
+    }
+    return toks.subList(start, end);
+  }
+
+  /**
+   * Convert tokens back to text.  Adds a space where tokens from
+   * different sources would otherwise run together into one token.
+   */
+  private static String render(List<Tok> toks) {
+    StringBuilder sb = new StringBuilder();
+    Tok prev = null;
+    for (Tok t: toks) {
+      if (prev != null && prev.source != t.source && t.text.length() > 0 &&
+          sb.length() > 0 &&
+          wouldPaste(sb.charAt(sb.length() - 1), t.text.charAt(0))) {
+        sb.append(' ');
+      }
+      sb.append(t.text);
+      prev = t;
+    }
+    return sb.toString();
+  }
+
+  private static boolean wouldPaste(char a, char b) {
+    final String punct = "+-*/<>=!&|%^:.#";
+    boolean wordA = isIdentChar(a) || a == '.';
+    boolean wordB = isIdentChar(b) || b == '.';
+    return (wordA && wordB) ||
+           (punct.indexOf(a) >= 0 && punct.indexOf(b) >= 0);
+  }
+
+  /**
+   * Evaluate #if or #elif condition
+   */
+  private boolean evalCondition(List<Tok> toks) throws UnsupportedException {
+    // Evaluate defined operator before expanding macros
+    List<Tok> replaced = new ArrayList<Tok>();
+    for (int i = 0; i < toks.size(); i++) {
+      Tok t = toks.get(i);
+      if (t.type == TokType.IDENT && t.text.equals("defined")) {
+        int j = nextSignificant(toks, i + 1);
+        boolean paren = j >= 0 && toks.get(j).isPunct("(");
+        if (paren) {
+          j = nextSignificant(toks, j + 1);
+        }
+        if (j < 0 || toks.get(j).type != TokType.IDENT) {
+          throw unsupported("malformed defined in #if");
+        }
+        boolean defined = isDefined(toks.get(j).text);
+        if (paren) {
+          j = nextSignificant(toks, j + 1);
+          if (j < 0 || !toks.get(j).isPunct(")")) {
+            throw unsupported("malformed defined in #if");
+          }
+        }
+        replaced.add(new Tok(TokType.NUMBER, defined ? "1" : "0"));
+        i = j;
+      } else {
+        replaced.add(t);
+      }
+    }
+
+    List<Tok> expanded = expand(replaced, false);
+    List<String> exprToks = new ArrayList<String>();
+    for (int i = 0; i < expanded.size(); i++) {
+      Tok t = expanded.get(i);
+      if (!t.significant()) {
+        continue;
+      }
+      if (t.type == TokType.IDENT) {
+        if (t.text.equals("defined")) {
+          throw unsupported("defined produced by macro expansion");
+        }
+        // Remaining identifiers are zero
+        exprToks.add("0");
+      } else if (t.type == TokType.NUMBER) {
+        exprToks.add(t.text);
+      } else if (t.type == TokType.PUNCT) {
+        // Join two-character operators
+        if (i + 1 < expanded.size()) {
+          Tok next = expanded.get(i + 1);
+          String op = t.text + next.text;
+          if (next.type == TokType.PUNCT && next.source == t.source &&
+              TWO_CHAR_OPS.contains(op)) {
+            exprToks.add(op);
+            i++;
+            continue;
+          }
+        }
+        exprToks.add(t.text);
+      } else {
+        throw unsupported("unsupported token in #if: " + t.text);
+      }
+    }
+
+    ExprParser parser = new ExprParser(exprToks);
+    long val = parser.ternary();
+    if (parser.pos != exprToks.size()) {
+      throw unsupported("malformed #if expression");
+    }
+    return val != 0;
+  }
+
+  private static final Set<String> TWO_CHAR_OPS = new HashSet<String>(
+      Arrays.asList("<<", ">>", "<=", ">=", "==", "!=", "&&", "||"));
+
+  /**
+   * Recursive descent parser for #if expressions, with C operator
+   * precedence.
+   */
+  private class ExprParser {
+    private final List<String> toks;
+    int pos = 0;
+
+    ExprParser(List<String> toks) {
+      this.toks = toks;
+    }
+
+    private String peek() {
+      return pos < toks.size() ? toks.get(pos) : null;
+    }
+
+    private boolean accept(String op) {
+      if (op.equals(peek())) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    long ternary() throws UnsupportedException {
+      long cond = binary(0);
+      if (accept("?")) {
+        long a = ternary();
+        if (!accept(":")) {
+          throw unsupported("malformed #if expression");
+        }
+        long b = ternary();
+        return cond != 0 ? a : b;
+      }
+      return cond;
+    }
+
+    /** Binary operators from lowest to highest precedence */
+    private final List<List<String>> levels = Arrays.asList(
+        Arrays.asList("||"), Arrays.asList("&&"), Arrays.asList("|"),
+        Arrays.asList("^"), Arrays.asList("&"), Arrays.asList("==", "!="),
+        Arrays.asList("<", ">", "<=", ">="), Arrays.asList("<<", ">>"),
+        Arrays.asList("+", "-"), Arrays.asList("*", "/", "%"));
+
+    private long binary(int level) throws UnsupportedException {
+      if (level == levels.size()) {
+        return unary();
+      }
+      long val = binary(level + 1);
+      while (peek() != null && levels.get(level).contains(peek())) {
+        String op = toks.get(pos++);
+        long rhs = binary(level + 1);
+        val = apply(op, val, rhs);
+      }
+      return val;
+    }
+
+    private long apply(String op, long a, long b)
+        throws UnsupportedException {
+      if (op.equals("||")) return (a != 0 || b != 0) ? 1 : 0;
+      if (op.equals("&&")) return (a != 0 && b != 0) ? 1 : 0;
+      if (op.equals("|")) return a | b;
+      if (op.equals("^")) return a ^ b;
+      if (op.equals("&")) return a & b;
+      if (op.equals("==")) return a == b ? 1 : 0;
+      if (op.equals("!=")) return a != b ? 1 : 0;
+      if (op.equals("<")) return a < b ? 1 : 0;
+      if (op.equals(">")) return a > b ? 1 : 0;
+      if (op.equals("<=")) return a <= b ? 1 : 0;
+      if (op.equals(">=")) return a >= b ? 1 : 0;
+      if (op.equals("<<")) return a << b;
+      if (op.equals(">>")) return a >> b;
+      if (op.equals("+")) return a + b;
+      if (op.equals("-")) return a - b;
+      if (op.equals("*")) return a * b;
+      if (b == 0) {
+        throw unsupported("division by zero in #if");
+      }
+      if (op.equals("/")) return a / b;
+      assert(op.equals("%")) : op;
+      return a % b;
+    }
+
+    private long unary() throws UnsupportedException {
+      if (accept("!")) {
+        return unary() == 0 ? 1 : 0;
+      } else if (accept("~")) {
+        return ~unary();
+      } else if (accept("-")) {
+        return -unary();
+      } else if (accept("+")) {
+        return unary();
+      } else if (accept("(")) {
+        long val = ternary();
+        if (!accept(")")) {
+          throw unsupported("malformed #if expression");
+        }
+        return val;
+      }
+      String tok = peek();
+      if (tok == null) {
+        throw unsupported("malformed #if expression");
+      }
+      pos++;
+      return parseNumber(tok);
+    }
+
+    private long parseNumber(String tok) throws UnsupportedException {
+      String digits = tok.replaceAll("[uUlL]+$", "");
+      try {
+        if (digits.startsWith("0x") || digits.startsWith("0X")) {
+          return Long.parseLong(digits.substring(2), 16);
+        } else if (digits.length() > 1 && digits.startsWith("0")) {
+          return Long.parseLong(digits.substring(1), 8);
+        } else {
+          return Long.parseLong(digits);
+        }
+      } catch (NumberFormatException e) {
+        throw unsupported("invalid number in #if: " + tok);
+      }
+    }
+  }
+
+  /**
+   * Run the external C preprocessor.  In event of failure, throw a fatal
+   * error.
+   * @param logger
+   * @param input
+   * @param output
+   * @param preprocArgs
+   */
+  public static void runExternal(Logger logger, String input, String output,
+                                 List<String> preprocArgs) {
+    List<String> cmd = new ArrayList<String>();
+    /*
+      -undef flag is provided to disable non-standard macros
+     */
+    if (useGCCProcessor()) {
+      // We use gcc -E because cpp is broken on Mac GCC 4.2.1
+      //    Cf. http://stackoverflow.com/questions/4137923
+      cmd.addAll(Arrays.asList("gcc", "-E", "-undef", "-x", "c", input,
+                               "-o", output));
+    } else {
+      cmd.addAll(Arrays.asList("cpp", "-undef", input, output));
+    }
+
+    for (String dir: Settings.getModulePath()) {
+      cmd.add("-I");
+      cmd.add(dir);
+    }
+
+    for (String macro: preprocArgs) {
+      cmd.add("-D");
+      cmd.add(macro);
+    }
+
+    String cmdString = StringUtils.join(cmd, ' ');
+    try {
+      logger.debug("Running cpp: " + cmdString);
+      // Run in base directory so that file names in output are as given
+      Process cpp = Runtime.getRuntime().exec(cmd.toArray(new String[]{}),
+                                  null, Settings.resolveFile("."));
+      int cppExitCode = -1;
+      boolean done = false;
+      do {
+        try {
+          cppExitCode = cpp.waitFor();
+          done = true;
+        } catch (InterruptedException ex) {
+          // Continue on after spurious interrupt
+        }
+      } while (!done);
+
+      StringWriter sw = new StringWriter();
+      IOUtils.copy(cpp.getErrorStream(), sw, "UTF-8");
+      String cppStderr = sw.toString();
+
+      logger.debug("Preprocessor exit code: " + cppExitCode);
+      logger.debug("Preprocessor stderr: " + cppStderr);
+
+      if (cppExitCode != 0) {
+        // Print stderr message first, then clarify that failure was in preprocessor
+        System.out.println(cppStderr);
+        System.out.println("Aborting due to failure in cpp preprocessor invoked as: " +
+            cmdString + ". " + ("Exit code was " + cppExitCode + ". "));
+        throw new STCFatal(1);
+      } else if (cppStderr.length() != 0){
+        logger.warn("Preprocessor warnings:\n" + cppStderr);
+      }
+    } catch (IOException e) {
+      System.out.println("I/O error while launching preprocessor with command line:" +
+                          cmdString + ": " + e.getMessage());
+      throw new STCFatal(1);
+    }
+  }
+
+  public static boolean useGCCProcessor() {
+    try {
+      if ((SystemUtils.IS_OS_MAC_OSX &&
+          !Settings.getBoolean(Settings.PREPROCESSOR_FORCE_CPP))) {
+        return true;
+      } else if (Settings.getBoolean(Settings.PREPROCESSOR_FORCE_GCC)) {
+        return true;
+      } else {
+        return false;
+      }
+    } catch (InvalidOptionException e) {
+      System.out.println("Internal error with settings: " + e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
+    }
+  }
+}
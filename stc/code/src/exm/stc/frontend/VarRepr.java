@@ -38,6 +38,14 @@ public class VarRepr {
   private static HashMap<Type, Type> conversionCache
                           = new HashMap<Type, Type>();
 
+  /**
+   * Discard cached conversions, e.g. before compiling another program
+   * in the same JVM, which may define types with the same names.
+   */
+  public static void clearCache() {
+    conversionCache.clear();
+  }
+
   public static Var backendVar(Var frontendVar) {
     assert(frontendVar != null);
     Type backendT = backendType(frontendVar.type(), true);
@@ -58,6 +58,8 @@ public class ForeachLoop {
   private int unroll = 1;
   private int splitDegree = DEFAULT_SPLIT_DEGREE;
   private int leafDegree = DEFAULT_LEAF_DEGREE;
+  /** True if split and leaf degree weren't set by annotations */
+  private boolean autoDegrees = true;
 
   public int getDesiredUnroll() {
     return unroll;
@@ -71,6 +73,14 @@ public class ForeachLoop {
     return leafDegree;
   }
 
+  /**
+   * @return true if split and leaf degrees are defaults, which the
+   *         optimizer can tune
+   */
+  public boolean autoDegrees() {
+    return autoDegrees;
+  }
+
   public List<String> getAnnotations() {
     return Collections.unmodifiableList(annotations);
   }
@@ -139,6 +149,7 @@ public class ForeachLoop {
     int unrollFactor = 1;
     int splitDegree = DEFAULT_SPLIT_DEGREE;
     int leafDegree = DEFAULT_LEAF_DEGREE;
+    boolean autoDegrees = true;
 
 
     int annotationCount = 0;
@@ -158,9 +169,11 @@ public class ForeachLoop {
                 unrollFactor = (int)Math.min(Integer.MAX_VALUE, val);
               } else if (key.equals(Annotations.LOOP_SPLIT_DEGREE)) {
                 splitDegree = (int)Math.min(Integer.MAX_VALUE, val);;
+                autoDegrees = false;
               } else {
                 assert(key.equals(Annotations.LOOP_LEAF_DEGREE));
                 leafDegree = (int)Math.min(Integer.MAX_VALUE, val);;
+                autoDegrees = false;
               }
               annotationCount++;
             }
@@ -185,6 +198,7 @@ public class ForeachLoop {
     if (annotations.contains(Annotations.LOOP_NOSPLIT)) {
       // Disable splitting
       splitDegree = -1;
+      autoDegrees = false;
     }
 
     int childCount = tree.getChildCount() - annotationCount;
@@ -210,6 +224,7 @@ public class ForeachLoop {
     loop.unroll = unrollFactor;
     loop.splitDegree = splitDegree;
     loop.leafDegree = leafDegree;
+    loop.autoDegrees = autoDegrees;
     return loop;
   }
 
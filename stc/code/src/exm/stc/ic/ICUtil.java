@@ -160,14 +160,16 @@ public class ICUtil {
    * Remove variables with duplicate names
    * @param replacements
    * @param vars
+   * @return true if the list was changed
    */
-  public static void replaceVarsInList(Map<Var, Arg> replacements,
+  public static boolean replaceVarsInList(Map<Var, Arg> replacements,
       List<Var> vars, boolean removeDupes) {
-    replaceVarsInList(replacements, vars, removeDupes, true);
+    return replaceVarsInList(replacements, vars, removeDupes, true);
   }
 
-  public static void replaceVarsInList(Map<Var, Arg> replacements,
+  public static boolean replaceVarsInList(Map<Var, Arg> replacements,
         List<Var> vars, boolean removeDupes, boolean removeMapped) {
+    boolean changed = false;
     // Remove new duplicates
     ArrayList<Var> alreadySeen = null;
     if (removeDupes) {
@@ -182,8 +184,10 @@ public class ICUtil {
         if (oa.isVar()) {
           if (removeDupes &&  alreadySeen.contains(oa.getVar())) {
             it.remove();
+            changed = true;
           } else {
             it.set(oa.getVar());
+            changed |= varChanged(v, oa.getVar());
             if (removeDupes) {
               alreadySeen.add(oa.getVar());
             }
@@ -193,12 +197,14 @@ public class ICUtil {
         if (removeDupes) {
           if (alreadySeen.contains(v)) {
             it.remove();
+            changed = true;
           } else {
             alreadySeen.add(v);
           }
         }
       }
     }
+    return changed;
   }
 
   public static void removeDuplicates(List<Var> varList) {
@@ -214,16 +220,20 @@ public class ICUtil {
     }
   }
 
-  public static void replaceArgsInList(Map<Var, Arg> renames,
+  public static boolean replaceArgsInList(Map<Var, Arg> renames,
       List<Arg> args) {
-    replaceArgsInList(renames, args, false);
+    return replaceArgsInList(renames, args, false);
   }
 
-  public static void replaceArgsInList(Map<Var, Arg> renames,
+  /**
+   * @return true if the list was changed
+   */
+  public static boolean replaceArgsInList(Map<Var, Arg> renames,
       List<Arg> args, boolean nullsOk) {
     if (renames.isEmpty()) {
-      return;
+      return false;
     }
+    boolean changed = false;
     for (int i = 0; i < args.size(); i++) {
       Arg oa = args.get(i);
       if (oa == null) {
@@ -237,9 +247,11 @@ public class ICUtil {
         Arg val = renames.get(oa.getVar());
         if (val != null) {
           args.set(i, val);
+          changed |= argChanged(oa, val);
         }
       }
     }
+    return changed;
   }
 
   /**
@@ -265,15 +277,52 @@ public class ICUtil {
     return oa;
   }
 
-  public static <K> void replaceArgValsInMap(Map<Var, Arg> renames, Map<K, Arg> map) {
+  /**
+   * @return true if the map was changed
+   */
+  /**
+   * Check if replacing a variable changes anything.  Variables are
+   * compared on name by equals(), but a replacement may have the same
+   * name with different attributes.
+   * @return true if newVar is not identical to oldVar
+   */
+  public static boolean varChanged(Var oldVar, Var newVar) {
+    if (oldVar == newVar) {
+      return false;
+    } else if (oldVar == null || newVar == null) {
+      return true;
+    }
+    return !oldVar.identical(newVar);
+  }
+
+  /**
+   * @return true if newArg is not identical to oldArg
+   * @see #varChanged(Var, Var)
+   */
+  public static boolean argChanged(Arg oldArg, Arg newArg) {
+    if (oldArg == newArg) {
+      return false;
+    } else if (oldArg == null || newArg == null) {
+      return true;
+    } else if (oldArg.isVar() && newArg.isVar()) {
+      return varChanged(oldArg.getVar(), newArg.getVar());
+    }
+    return !oldArg.equals(newArg);
+  }
+
+  public static <K> boolean replaceArgValsInMap(Map<Var, Arg> renames,
+                                                Map<K, Arg> map) {
+    boolean changed = false;
     for (Entry<K, Arg> e: map.entrySet()) {
       Arg val = e.getValue();
       if (val.isVar() && renames.containsKey(val.getVar())) {
         Arg newVal = renames.get(val.getVar());
         assert(newVal != null);
         e.setValue(newVal);
+        changed |= argChanged(val, newVal);
       }
     }
+    return changed;
   }
 
   public static LinkedList<Statement> cloneStatements(
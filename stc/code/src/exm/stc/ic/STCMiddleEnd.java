@@ -142,6 +142,13 @@ public class STCMiddleEnd {
     logger.debug("Done using Swift IC to regenerate code");
   }
 
+  /**
+   * @return the program built so far
+   */
+  public Program program() {
+    return program;
+  }
+
   public void requirePackage(RequiredPackage pkg) {
     program.addRequiredPackage(pkg);
   }
@@ -303,9 +310,14 @@ public class STCMiddleEnd {
     // all cases should already be off stack, do nothing
   }
 
+  /**
+   * @param autoDegrees if true, splitDegree and leafDegree are defaults
+   *                    that the optimizer may tune
+   */
   public void startForeachLoop(String loopName,
           Var container, Var memberVar, Var loopCountVar,
-          int splitDegree, int leafDegree, boolean arrayClosed) {
+          int splitDegree, int leafDegree, boolean autoDegrees,
+          boolean arrayClosed) {
     assert(Types.isContainer(container) || Types.isContainerLocal(container)):
           "foreach loop over bad type: " + container.toString();
 
@@ -322,6 +334,7 @@ public class STCMiddleEnd {
             arrayClosed, PassedVar.NONE, Var.NONE,
             RefCount.NONE, ArrayListMultimap.<Var, RefCount>create(),
             RefCount.NONE);
+    loop.setAutoDegrees(autoDegrees);
     currBlock().addContinuation(loop);
     blockStack.push(loop.getLoopBody());
   }
@@ -331,14 +344,19 @@ public class STCMiddleEnd {
     blockStack.pop();
   }
 
+  /**
+   * @param autoDegrees if true, splitDegree and leafDegree are defaults
+   *                    that the optimizer may tune
+   */
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int desiredUnroll, int splitDegree,
-      int leafDegree) {
+      int leafDegree, boolean autoDegrees) {
     RangeLoop loop = new RangeLoop(loopName, loopVar, countVar,
           start, end, increment,
           PassedVar.NONE, Var.NONE, desiredUnroll, false,
           splitDegree, leafDegree, RefCount.NONE,
           ArrayListMultimap.<Var, RefCount>create(), RefCount.NONE);
+    loop.setAutoDegrees(autoDegrees);
     currBlock().addContinuation(loop);
     blockStack.push(loop.getLoopBody());
   }
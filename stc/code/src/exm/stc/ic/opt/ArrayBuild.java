@@ -27,10 +27,13 @@ import exm.stc.common.util.Pair;
 import exm.stc.ic.aliases.AliasKey;
 import exm.stc.ic.aliases.AliasTracker;
 import exm.stc.ic.opt.InitVariables.InitState;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ICContinuations.AsyncContinuation;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.BlockType;
+import exm.stc.ic.tree.ICTree.CleanupAction;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
@@ -39,14 +42,33 @@ import exm.stc.ic.tree.Opcode;
 import exm.stc.ic.tree.TurbineOp;
 
 /**
- * Try to merge multiple array inserts into a single build instruction.
- * TODO: optimise multisets
+ * Try to merge multiple array or bag inserts into a single build
+ * instruction.  Bags are built as a local bag value, then stored.
+ *
+ * Can also be run after reference counting to find bags that foreach
+ * loop bodies insert into, so that the backend can collect the elements
+ * inserted by a leaf task and store them together.
  */
 public class ArrayBuild implements OptimizerPass {
 
+  /**
+   * If true, find bags to accumulate in foreach loops instead of merging
+   * inserts.  Only valid once loop bodies and refcounts are final, since
+   * the inserts must stay directly in the loop body.
+   */
+  private final boolean loopAccumulators;
+
+  public ArrayBuild() {
+    this(false);
+  }
+
+  public ArrayBuild(boolean loopAccumulators) {
+    this.loopAccumulators = loopAccumulators;
+  }
+
   @Override
   public String getPassName() {
-    return "Array build";
+    return loopAccumulators ? "Bag accumulators" : "Array build";
   }
 
   @Override
@@ -56,6 +78,13 @@ public class ArrayBuild implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program prog) throws UserException {
+    if (loopAccumulators) {
+      for (Function f: prog.functions()) {
+        findAccumulateBags(logger, f.mainBlock());
+      }
+      return;
+    }
+
     Map<FnID, Function> funcMap = prog.getFunctionMap();
     for (Function f: prog.functions()) {
       ArrayInfo info = buildInfo(logger, funcMap, f);
@@ -220,15 +249,24 @@ public class ArrayBuild implements OptimizerPass {
    */
   private boolean isValidCandidate(Var var, boolean canonicalOnly) {
     /*
-     * Only attempt to optimise non-alias arrays. Optimising
+     * Only attempt to optimise non-alias arrays and bags. Optimising
      * some alias arrays, e.g. nested ones, would require further
      * analysis since there is not a single canonical non-alias
      * variable for the nested array.
      */
-    return Types.isArray(var) &&
+    return (Types.isArray(var) || isBagCandidate(var)) &&
             !(canonicalOnly && var.storage() == Alloc.ALIAS);
   }
 
+  /**
+   * Only handle bags of scalar values: the inserts would otherwise
+   * manage reference counts of the members.
+   */
+  private static boolean isBagCandidate(Var var) {
+    return Types.isBag(var) &&
+           Types.isScalarValue(Types.containerElemValType(var));
+  }
+
   private void addBlockCandidates(Block block,
       ArrayInfo info, Collection<Var> candidates,
       Collection<Var> vars) {
@@ -294,7 +332,7 @@ public class ArrayBuild implements OptimizerPass {
   private void updateInfo(Logger logger, Map<FnID, Function> funcMap,
       Block block, ArrayInfo info, Instruction inst, Set<Var> candidates) {
 
-    if (inst.op == Opcode.ARR_STORE) {
+    if (isImmInsert(inst)) {
       Var arr = inst.getOutput(0);
       if (candidates.contains(arr)) {
         BlockVarInfo entry = info.getEntry(block, arr);
@@ -328,6 +366,20 @@ public class ArrayBuild implements OptimizerPass {
     }
   }
 
+  /**
+   * @return true if instruction inserts a value into a container without
+   *         touching the container's write refcount
+   */
+  private static boolean isImmInsert(Instruction inst) {
+    if (inst.op == Opcode.ARR_STORE) {
+      return true;
+    } else if (inst.op == Opcode.BAG_INSERT) {
+      Arg writersDecr = inst.getInput(1);
+      return writersDecr.isInt() && writersDecr.getInt() == 0;
+    }
+    return false;
+  }
+
   private boolean initsAlias(Instruction inst, Var out) {
     if (out.storage() == Alloc.ALIAS) {
       for (Var init: inst.getInitialized()) {
@@ -482,7 +534,8 @@ public class ArrayBuild implements OptimizerPass {
   }
 
   /**
-   * Replace arrayInsertImm instructions with an arrayBuild
+   * Replace arrayInsertImm instructions with an arrayBuild, or bagInsert
+   * instructions with a local bag build and store
    * @param block
    * @param candKey
    * @param init initialized state from outside.  Not modified
@@ -500,7 +553,13 @@ public class ArrayBuild implements OptimizerPass {
     ListIterator<Statement> insertPos;
     insertPos = findArrayBuildPos(logger, block, init, cand, keys, vals);
 
-    insertPos.add(TurbineOp.arrayBuild(cand, keys, vals));
+    if (Types.isBag(cand)) {
+      Var localBag = OptUtil.createDerefTmp(block, cand);
+      insertPos.add(TurbineOp.bagLocalBuild(localBag, vals));
+      insertPos.add(TurbineOp.assignBag(cand, localBag.asArg()));
+    } else {
+      insertPos.add(TurbineOp.arrayBuild(cand, keys, vals));
+    }
   }
 
   /**
@@ -591,17 +650,23 @@ public class ArrayBuild implements OptimizerPass {
       Statement stmt = it.next();
       if (stmt.type() == StatementType.INSTRUCTION) {
         Instruction inst = stmt.instruction();
-        if (inst.op == Opcode.ARR_STORE) {
+        if (isImmInsert(inst)) {
           Var arrVar = inst.getOutput(0);
           AliasKey arrKey = blockAliases.getCanonical(arrVar);
           if (arrKey.equals(candKey)) {
             it.remove();
-            Arg key = inst.getInput(0);
-            Arg val = inst.getInput(1);
-            assert(Types.isArrayKeyVal(candKey, key));
-            assert(Types.isElemValType(candKey, val));
-            keys.add(key);
-            vals.add(val);
+            if (inst.op == Opcode.BAG_INSERT) {
+              Arg val = inst.getInput(0);
+              assert(Types.isElemValType(candKey, val));
+              vals.add(val);
+            } else {
+              Arg key = inst.getInput(0);
+              Arg val = inst.getInput(1);
+              assert(Types.isArrayKeyVal(candKey, key));
+              assert(Types.isElemValType(candKey, val));
+              keys.add(key);
+              vals.add(val);
+            }
           }
         }
       }
@@ -609,4 +674,93 @@ public class ArrayBuild implements OptimizerPass {
     return Pair.create(keys, vals);
   }
 
+  /**
+   * Find foreach loops in block and descendants, and mark bags that
+   * they can accumulate inserts for.
+   */
+  private void findAccumulateBags(Logger logger, Block block) {
+    for (Continuation c: block.allComplexStatements()) {
+      if (c instanceof AbstractForeachLoop) {
+        findAccumulateBags(logger, (AbstractForeachLoop)c);
+      }
+      for (Block inner: c.getBlocks()) {
+        findAccumulateBags(logger, inner);
+      }
+    }
+  }
+
+  /**
+   * A bag can be accumulated if it is declared outside the loop and
+   * all inserts into it run directly in the loop body, without any
+   * other use of the bag inside the loop.  In particular no write
+   * refcount can be decremented in the loop before the elements are
+   * stored.
+   */
+  private void findAccumulateBags(Logger logger, AbstractForeachLoop loop) {
+    Set<Var> inserted = new HashSet<Var>();
+    Set<Var> invalid = new HashSet<Var>();
+    findLoopBagUses(loop.getLoopBody(), true, inserted, invalid);
+
+    for (Var bag: inserted) {
+      if (!invalid.contains(bag)) {
+        if (logger.isTraceEnabled()) {
+          logger.trace("Accumulate inserts into " + bag + " in loop " +
+                       loop.loopName());
+        }
+        loop.addAccumulateBag(bag);
+      }
+    }
+  }
+
+  /**
+   * @param direct if true, block runs in the loop body's task, as part
+   *               of the same iteration
+   * @param inserted add bags inserted into directly
+   * @param invalid add bags that are declared in loop or used in another
+   *                way in the loop
+   */
+  private void findLoopBagUses(Block block, boolean direct,
+      Set<Var> inserted, Set<Var> invalid) {
+    invalid.addAll(block.variables());
+
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        Instruction inst = stmt.instruction();
+        if (direct && inst.op == Opcode.BAG_INSERT &&
+            isBagCandidate(inst.getOutput(0))) {
+          inserted.add(inst.getOutput(0));
+        } else {
+          addInstructionVars(inst, invalid);
+        }
+      }
+    }
+
+    // Refcount passes often put write decrements in cleanups, which
+    // would run before the accumulated elements are stored
+    for (CleanupAction ca: block.getCleanups()) {
+      invalid.add(ca.var());
+      addInstructionVars(ca.action(), invalid);
+    }
+
+    for (Continuation c: block.allComplexStatements()) {
+      if (c instanceof AsyncContinuation) {
+        // Write refcounts may be passed into continuation
+        invalid.addAll(c.getKeepOpenVars());
+      }
+      boolean innerDirect = direct && !c.isAsync() && !c.isLoop();
+      for (Block inner: c.getBlocks()) {
+        findLoopBagUses(inner, innerDirect, inserted, invalid);
+      }
+    }
+  }
+
+  private static void addInstructionVars(Instruction inst, Set<Var> vars) {
+    vars.addAll(inst.getOutputs());
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar()) {
+        vars.add(in.getVar());
+      }
+    }
+  }
+
 }
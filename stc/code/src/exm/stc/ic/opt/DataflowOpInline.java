@@ -126,6 +126,7 @@ public class DataflowOpInline extends FunctionOptimizerPass {
     MakeImmRequest req = inst.canMakeImmediate(waitedFor,
              Collections.<ArgCV>emptySet(), Collections.<Var>emptySet(),
              true);
+    OptUtil.recordClosedInfoUpdate(block, inst);
     if (req != null && req.in.size() > 0) {
       if (logger.isTraceEnabled()) {
         logger.trace("Exploding " + inst + " in function " + fn.id());
@@ -22,6 +22,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 
@@ -38,6 +39,7 @@ import exm.stc.ic.ICUtil;
 import exm.stc.ic.componentaliases.Component;
 import exm.stc.ic.componentaliases.ComponentAlias;
 import exm.stc.ic.componentaliases.ComponentGraph;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -48,7 +50,12 @@ import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 import exm.stc.ic.tree.Opcode;
 
-public class DeadCodeEliminator implements OptimizerPass {
+public class DeadCodeEliminator extends FunctionOptimizerPass {
+
+  /**
+   * Global variables of program currently being optimized
+   */
+  private GlobalVars globalVars = null;
 
   @Override
   public String getPassName() {
@@ -61,10 +68,16 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program program) throws UserException {
-    for (Function f: program.functions()) {
-      eliminate(logger, f, program.globalVars());
-    }
+  public int optimizeFunctions(Logger logger, Program program,
+                          ForkJoinPool pool) throws UserException {
+    globalVars = program.globalVars();
+    return super.optimizeFunctions(logger, program, pool);
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) {
+    assert(globalVars != null);
+    eliminate(logger, f, globalVars);
   }
 
   /**
@@ -17,12 +17,14 @@ package exm.stc.ic.opt;
 
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 
 import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.ExecTarget;
@@ -32,6 +34,7 @@ import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.HierarchicalMap;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
@@ -40,6 +43,7 @@ import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.CleanupAction;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Program.AllGlobals;
 import exm.stc.ic.tree.ICTree.Statement;
 
 /**
@@ -54,7 +58,7 @@ import exm.stc.ic.tree.ICTree.Statement;
  *                                            output
  *
  */
-public class HoistLoops implements OptimizerPass {
+public class HoistLoops extends FunctionOptimizerPass {
 
   /**
    * If true, hoist array reads in such a way that could prevent
@@ -62,6 +66,11 @@ public class HoistLoops implements OptimizerPass {
    */
   private final boolean aggressive;
 
+  /**
+   * Globals of program currently being optimized
+   */
+  private AllGlobals globals = null;
+
   public HoistLoops(boolean aggressive) {
     this.aggressive = true;
   }
@@ -71,39 +80,50 @@ public class HoistLoops implements OptimizerPass {
     return "Loop hoisting";
   }
 
+  @Override
+  protected String fixpointKey() {
+    return getPassName() + ":" + aggressive;
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_HOIST;
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      HoistTracking global = new HoistTracking();
-      // Global constants already written
-      for (Var gv: prog.allGlobals()) {
-        if (gv.storage().isConst()) {
-          // Constants are pre-written
-          global.write(gv, false);
-        }
-        global.declare(gv);
+  public int optimizeFunctions(Logger logger, Program program,
+                          ForkJoinPool pool) throws UserException {
+    globals = program.allGlobals();
+    return super.optimizeFunctions(logger, program, pool);
+  }
+
+  @Override
+  public void optimize(Logger logger, Function f) {
+    assert(globals != null);
+    HoistTracking global = new HoistTracking();
+    // Global constants already written
+    for (Var gv: globals) {
+      if (gv.storage().isConst()) {
+        // Constants are pre-written
+        global.write(gv, false);
       }
+      global.declare(gv);
+    }
 
-      // Set up map for top block of function
-      HoistTracking mainBlockState =
-          global.makeChild(f.mainBlock(), true, true,
-                           ExecContext.control(), 0, 0);
+    // Set up map for top block of function
+    HoistTracking mainBlockState =
+        global.makeChild(f.mainBlock(), true, true,
+                         ExecContext.control(), 0, 0);
 
-      // Inputs are written elsewhere
-      for (Var in: f.getInputList()) {
-        mainBlockState.write(in, false);
-        mainBlockState.declare(in);
-      }
-      for (Var out: f.getOutputList()) {
-        mainBlockState.declare(out);
-      }
-      hoistRec(logger, mainBlockState);
+    // Inputs are written elsewhere
+    for (Var in: f.getInputList()) {
+      mainBlockState.write(in, false);
+      mainBlockState.declare(in);
+    }
+    for (Var out: f.getOutputList()) {
+      mainBlockState.declare(out);
     }
+    hoistRec(logger, mainBlockState);
   }
 
   /**
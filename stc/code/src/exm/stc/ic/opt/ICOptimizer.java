@@ -16,6 +16,7 @@
 package exm.stc.ic.opt;
 
 import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 
@@ -29,9 +30,12 @@ import exm.stc.ic.tree.ICTree.Program;
 public class ICOptimizer {
 
   /**
-   * If true, validate as frequently as possible
+   * Number of consecutive iterations without modification after which
+   * the IR is considered to have reached a fixed point.  Must be enough
+   * that every pass scheduled every second or third iteration has run
+   * at least once on the unmodified IR.
    */
-  public static final boolean SUPER_DEBUG = true;
+  private static final int FIXPOINT_ITERATIONS = 3;
 
   /**
    * Optimize the program and return a new one
@@ -51,11 +55,37 @@ public class ICOptimizer {
 
     long nIterations = Settings.getLongUnchecked(Settings.OPT_MAX_ITERATIONS);
 
-    boolean debug = Settings.getBooleanUnchecked(Settings.COMPILER_DEBUG);
+    Validate.Level validate = Validate.configuredLevel();
+    boolean stopAtFixpoint = Settings.getBooleanUnchecked(Settings.OPT_FIXPOINT);
 
-    preprocess(icOutput, logger, debug, prog);
-    iterate(icOutput, logger, prog, debug, nIterations);
-    postprocess(icOutput, logger, debug, prog, nIterations);
+    // Record initial state of IR so that modifications can be detected
+    prog.checkModified();
+
+    int threads = Settings.getIntUnchecked(Settings.OPT_THREADS);
+    ForkJoinPool pool = null;
+    if (threads > 1) {
+      logger.debug("Running function-local passes with " + threads +
+                   " threads");
+      pool = new ForkJoinPool(threads);
+    }
+
+    OptimizerProfile profile = OptimizerProfile.fromSettings(logger);
+
+    try {
+      preprocess(icOutput, logger, validate, prog, pool, profile);
+      iterate(icOutput, logger, prog, validate, nIterations, stopAtFixpoint,
+              pool, profile);
+      postprocess(icOutput, logger, validate, prog, nIterations, pool,
+                  profile);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+
+    if (profile != null) {
+      profile.finish(System.err);
+    }
 
     if (logIC) {
       prog.log(icOutput, "Final optimized IC");
@@ -67,13 +97,18 @@ public class ICOptimizer {
    * Do preprocessing optimizer steps
    * @param icOutput
    * @param logger
-   * @param debug
+   * @param validate
    * @param program
+   * @param pool
+   * @param profile if not null, record statistics for each pass
    * @throws Exception
    */
   private static void preprocess(PrintStream icOutput, Logger logger,
-                         boolean debug, Program program) throws UserException {
+                Validate.Level validate, Program program, ForkJoinPool pool,
+                OptimizerProfile profile) throws UserException {
     OptimizerPipeline preprocess = new OptimizerPipeline(icOutput);
+    preprocess.setPool(pool);
+    preprocess.setProfile(profile);
 
     // Cut down size of IR right away
     preprocess.addPass(new PruneFunctions());
@@ -82,135 +117,298 @@ public class ICOptimizer {
     preprocess.addPass(new UniqueVarNames());
     // Must fix up variables as frontend doesn't do it
     preprocess.addPass(new FlattenNested());
-    if (debug)
+    if (validate != Validate.Level.NONE)
       preprocess.addPass(Validate.standardValidator());
 
     preprocess.runPipeline(logger, program, 0);
   }
 
   /**
-   * Do one iteration of the iterative optimizer passes
+   * Run the iterative optimizer passes.
+   *
+   * If stopAtFixpoint is set, once the IR stops changing we only run
+   * the passes scheduled for particular iterations, skipping directly
+   * between those iterations.  If a scheduled pass changes the IR, the
+   * rest of that iteration is run and we go back to running full
+   * iterations.
    * @param icOutput
    * @param logger
    * @param prog
-   * @param debug
-   * @param iteration
+   * @param validate
    * @param nIterations
-   * @throws Exception
+   * @param stopAtFixpoint
+   * @param pool if not null, run function-local passes in parallel
+   * @param profile if not null, record statistics for each pass
+   * @throws UserException
    */
   private static void iterate(PrintStream icOutput, Logger logger,
-      Program prog, boolean debug, long nIterations) throws UserException {
+      Program prog, Validate.Level validate, long nIterations,
+      boolean stopAtFixpoint, ForkJoinPool pool, OptimizerProfile profile)
+          throws UserException {
 
     // FunctionInline is stateful
     FunctionInline inliner = new FunctionInline();
-    boolean canReorder = true;
-
-    for (long iteration = 0; iteration < nIterations; iteration++) {
-      OptimizerPipeline pipe = new OptimizerPipeline(icOutput);
-      if (SUPER_DEBUG) {
-        pipe.setValidator(Validate.standardValidator());
-      }
 
-      // First prune and inline any functions
-      if (iteration == nIterations / 2) {
-        // Only makes sense to do periodically
-        pipe.addPass(new PruneFunctions());
-      }
-      if (iteration == 0 || iteration == 3 || iteration == nIterations - 2) {
-        pipe.addPass(inliner);
+    long fullIterations = 0;
+    long scheduledIterations = 0;
+    // Number of consecutive full iterations with no modifications
+    long unmodifiedIterations = 0;
+
+    long iteration = 0;
+    while (iteration < nIterations) {
+      boolean atFixpoint = stopAtFixpoint &&
+                          unmodifiedIterations >= FIXPOINT_ITERATIONS;
+
+      int modified = 0;
+      if (atFixpoint) {
+        // Only passes that behave differently in this iteration can
+        // change the IR
+        OptimizerPipeline pipe = newPipeline(icOutput, validate, pool,
+                                             profile);
+        addScheduledPasses(pipe, iteration, nIterations, inliner);
+        modified = pipe.runPipeline(logger, prog, iteration);
+        if (modified == 0) {
+          scheduledIterations++;
+        } else {
+          logger.debug("Scheduled passes modified IC at iteration " +
+                       iteration + ", resuming full iterations");
+        }
       }
 
+      if (!atFixpoint || modified > 0) {
+        OptimizerPipeline pipe = newPipeline(icOutput, validate, pool,
+                                             profile);
+        // Don't rerun scheduled passes that ran above
+        addIterationPasses(pipe, iteration, nIterations, inliner,
+                           !atFixpoint);
 
-      if ((iteration % 3) == 2) {
-        // Try to merge instructions into array build
-        pipe.addPass(new ArrayBuild());
-        pipe.addPass(new StructBuild());
+        if (validate == Validate.Level.ITERATION)
+          pipe.addPass(Validate.standardValidator());
 
-        // Try occasionally to unroll loops.  Don't do it on first iteration
-        // so the code can be shrunk a little first
-        pipe.addPass(new LoopUnroller());
-        pipe.addPass(Validate.standardValidator());
+        modified += pipe.runPipeline(logger, prog, iteration);
+        fullIterations++;
       }
 
-      boolean lastHalf = iteration > nIterations * 2;
+      // Cleanup internal indices, etc.
+      prog.cleanup();
 
-      // Try to hoist variables out of loops, etc
-      // Do before forward dataflow since it may open up new opportunites
-      // switch to aggressive hoisting later on when we have probably done all
-      // the other optimizations possible
-      if (canReorder) {
-        pipe.addPass(new HoistLoops(lastHalf));
+      if (modified == 0) {
+        unmodifiedIterations++;
+      } else {
+        unmodifiedIterations = 0;
       }
 
-      // Try to reorder instructions for benefit of forward dataflow
-      // Don't do every iteration, instructions are first
-      // in original order, then in a different but valid order
-      if (canReorder && (iteration % 2 == 1)) {
-        pipe.addPass(new ReorderInstructions());
+      if (stopAtFixpoint && unmodifiedIterations >= FIXPOINT_ITERATIONS) {
+        long next = nextScheduledIteration(iteration, nIterations);
+        logger.debug("IC unmodified since iteration " +
+                     (iteration - unmodifiedIterations + 1) +
+                     ", skipping to iteration " + next);
+        iteration = next;
+      } else {
+        iteration++;
       }
+    }
+    logger.info("Optimizer ran " + fullIterations + " full iterations and " +
+                scheduledIterations + " scheduled-only iterations of " +
+                nIterations);
+  }
 
-      if (iteration % 3 == 0) {
-        pipe.addPass(new PropagateAliases());
-      }
+  private static OptimizerPipeline newPipeline(PrintStream icOutput,
+      Validate.Level validate, ForkJoinPool pool, OptimizerProfile profile) {
+    OptimizerPipeline pipe = new OptimizerPipeline(icOutput);
+    pipe.setPool(pool);
+    pipe.setProfile(profile);
+    if (validate == Validate.Level.PASS) {
+      pipe.setValidator(Validate.standardValidator());
+    }
+    return pipe;
+  }
 
-      if (iteration == nIterations - 2) {
-        // Towards end, inline explicit waits and disallow reordering
-        canReorder = false;
-      }
-      // ValueNumber is a key pass that reduces a lot of redundancy
-      pipe.addPass(new ValueNumber(canReorder));
+  /**
+   * Add passes for an iteration.
+   * @param includeOnce if false, omit passes that are only run in a
+   *      particular iteration
+   */
+  private static void addIterationPasses(OptimizerPipeline pipe,
+      long iteration, long nIterations, FunctionInline inliner,
+      boolean includeOnce) {
+    // Reordering is allowed for passes before the point in iteration
+    // nIterations - 2 where it is disabled
+    boolean canReorderEarly = nIterations < 2 || iteration <= nIterations - 2;
+    boolean canReorder = canReorderAfter(iteration, nIterations);
+
+    // First prune and inline any functions
+    if (includeOnce && iteration == nIterations / 2) {
+      // Only makes sense to do periodically
+      pipe.addPass(new PruneFunctions());
+    }
+    if (includeOnce && (iteration == 0 || iteration == 3 ||
+                        iteration == nIterations - 2)) {
+      pipe.addPass(inliner);
+    }
 
-      // This loop optimization depends on info updated by ValueNumber,
-      // but can generate dead code
-      pipe.addPass(new LoopSimplify());
 
-      // ValueNumber tends to generate most dead code
-      pipe.addPass(new DeadCodeEliminator());
+    if ((iteration % 3) == 2) {
+      // Try to merge instructions into array build
+      pipe.addPass(new ArrayBuild());
+      pipe.addPass(new StructBuild());
 
-      if (iteration % 3 == 0) {
-        // Dead code eliminator will have just eliminated references
-        pipe.addPass(new DemoteGlobals());
-      }
+      // Try occasionally to unroll loops.  Don't do it on first iteration
+      // so the code can be shrunk a little first
+      pipe.addPass(new LoopUnroller());
+    }
 
-      // ValueNumber adds blocking vars to function
-      pipe.addPass(new FunctionSignature());
+    boolean lastHalf = iteration > nIterations * 2;
 
-      // Do this after forward dataflow to improve odds of fusing things
-      // one common subexpression elimination has happened
-      pipe.addPass(new ContinuationFusion());
+    // Try to hoist variables out of loops, etc
+    // Do before forward dataflow since it may open up new opportunites
+    // switch to aggressive hoisting later on when we have probably done all
+    // the other optimizations possible
+    if (canReorderEarly) {
+      pipe.addPass(new HoistLoops(lastHalf));
+    }
 
-      // Can only run this pass once. Do it near end so that
-      // results can be cleaned up by forward dataflow
-      if (iteration == nIterations - (nIterations / 4) - 1) {
-        pipe.addPass(new Pipeline());
-        if (debug)
-          pipe.addPass(Validate.standardValidator());
-      }
+    // Try to reorder instructions for benefit of forward dataflow
+    // Don't do every iteration, instructions are first
+    // in original order, then in a different but valid order
+    if (canReorderEarly && (iteration % 2 == 1)) {
+      pipe.addPass(new ReorderInstructions());
+    }
 
-      // Expand ops about halfway through
-      boolean doInlineOps = iteration == nIterations / 2;
-      if (doInlineOps) {
-        pipe.addPass(new DataflowOpInline());
-      }
+    if (iteration % 3 == 0) {
+      pipe.addPass(new PropagateAliases());
+    }
+
+    // ValueNumber is a key pass that reduces a lot of redundancy
+    pipe.addPass(new ValueNumber(canReorder));
+
+    // This loop optimization depends on info updated by ValueNumber,
+    // but can generate dead code
+    pipe.addPass(new LoopSimplify());
+
+    // ValueNumber tends to generate most dead code
+    pipe.addPass(new DeadCodeEliminator());
+
+    if (iteration % 3 == 0) {
+      // Dead code eliminator will have just eliminated references
+      pipe.addPass(new DemoteGlobals());
+    }
 
-      // Do merges near end since it can be detrimental to other optimizations
-      boolean doWaitMerges = (iteration >= nIterations - (nIterations / 4) - 2)
-                              && iteration % 2 == 0;
+    // ValueNumber adds blocking vars to function
+    pipe.addPass(new FunctionSignature());
+
+    // Do this after forward dataflow to improve odds of fusing things
+    // one common subexpression elimination has happened
+    pipe.addPass(new ContinuationFusion());
+
+    // Can only run this pass once. Do it near end so that
+    // results can be cleaned up by forward dataflow
+    if (includeOnce && iteration == pipelineIteration(nIterations)) {
+      pipe.addPass(new Pipeline());
+    }
+
+    // Expand ops about halfway through
+    if (includeOnce && iteration == nIterations / 2) {
+      pipe.addPass(new DataflowOpInline());
+    }
+
+    // Do merges near end since it can be detrimental to other optimizations
+    pipe.addPass(new WaitCoalescer(doWaitMerges(iteration, nIterations),
+                                   canReorder));
+  }
+
+  /**
+   * Add only the passes for an iteration that behave differently from
+   * the passes in earlier iterations.  Once the IR is at a fixpoint, the
+   * other passes will not change it.
+   */
+  private static void addScheduledPasses(OptimizerPipeline pipe,
+      long iteration, long nIterations, FunctionInline inliner) {
+    if (iteration == nIterations / 2) {
+      pipe.addPass(new PruneFunctions());
+    }
+    if (iteration == 3 || iteration == nIterations - 2) {
+      pipe.addPass(inliner);
+    }
+
+    boolean canReorder = canReorderAfter(iteration, nIterations);
+    if (iteration == nIterations - 2) {
+      // Passes run with reordering disabled for first time
+      pipe.addPass(new ValueNumber(canReorder));
+    }
+
+    if (iteration == pipelineIteration(nIterations)) {
+      pipe.addPass(new Pipeline());
+    }
+
+    if (iteration == nIterations / 2) {
+      pipe.addPass(new DataflowOpInline());
+    }
+
+    boolean doWaitMerges = doWaitMerges(iteration, nIterations);
+    if (doWaitMerges || iteration == nIterations - 2) {
       pipe.addPass(new WaitCoalescer(doWaitMerges, canReorder));
+    }
+  }
+
+  /**
+   * Whether reordering is allowed for passes after the point in
+   * the iteration where it is disabled
+   */
+  private static boolean canReorderAfter(long iteration, long nIterations) {
+    return nIterations < 2 || iteration < nIterations - 2;
+  }
 
-      if (debug)
-        pipe.addPass(Validate.standardValidator());
+  private static long pipelineIteration(long nIterations) {
+    return nIterations - (nIterations / 4) - 1;
+  }
 
-      pipe.runPipeline(logger, prog, iteration);
+  private static long mergeWindowStart(long nIterations) {
+    return nIterations - (nIterations / 4) - 2;
+  }
 
-      // Cleanup internal indices, etc.
-      prog.cleanup();
+  private static boolean doWaitMerges(long iteration, long nIterations) {
+    return iteration >= mergeWindowStart(nIterations) && iteration % 2 == 0;
+  }
+
+  /**
+   * Find the next iteration at which scheduled passes run differently.
+   * Must be kept in sync with addScheduledPasses().
+   * @param iteration current iteration
+   * @param nIterations
+   * @return next such iteration, or nIterations if none left
+   */
+  private static long nextScheduledIteration(long iteration,
+                                             long nIterations) {
+    long mergeStart = mergeWindowStart(nIterations);
+    if (mergeStart % 2 != 0) {
+      // Merges only happen on even iterations
+      mergeStart++;
     }
+
+    long[] scheduled = {
+        3, // FunctionInline
+        nIterations / 2, // PruneFunctions, DataflowOpInline
+        pipelineIteration(nIterations), // Pipeline
+        mergeStart, // WaitCoalescer merges
+        nIterations - 2, // FunctionInline, disable reordering
+      };
+
+    long next = nIterations;
+    for (long s: scheduled) {
+      if (s > iteration && s < next) {
+        next = s;
+      }
+    }
+    return next;
   }
 
   private static void postprocess(PrintStream icOutput, Logger logger,
-      boolean debug, Program prog, long nIterations) throws UserException {
+      Validate.Level validate, Program prog, long nIterations,
+      ForkJoinPool pool, OptimizerProfile profile) throws UserException {
     OptimizerPipeline postprocess = new OptimizerPipeline(icOutput);
+    postprocess.setPool(pool);
+    postprocess.setProfile(profile);
 
     // Final dead code elimination to clean up any remaining dead code
     // (from last iteration or constant sharing)
@@ -219,6 +417,9 @@ public class ICOptimizer {
     // Final pruning to remove unused functions
     postprocess.addPass(new PruneFunctions());
 
+    // Tune loop splitting once loop bodies are final
+    postprocess.addPass(new SplitDegrees());
+
     // Add in all the variable passing annotations now that instructions,
     // continuations and variables are fixed
     postprocess.addPass(new FixupVariables());
@@ -227,8 +428,11 @@ public class ICOptimizer {
     // Refcount pass sometimes adds instructions, do another fixup as a
     // workaround to make sure that passing annotations are still correct
     postprocess.addPass(new FixupVariables());
+    // Find bag inserts in loop bodies to accumulate once refcounts are final
+    postprocess.addPass(new ArrayBuild(true));
 
-    postprocess.addPass(Validate.finalValidator());
+    if (validate != Validate.Level.NONE)
+      postprocess.addPass(Validate.finalValidator());
     postprocess.runPipeline(logger, prog,  nIterations - 1);
   }
 
@@ -62,6 +62,18 @@ public class OptUtil {
         fn.id().equals(FnID.ENTRY_FUNCTION);
   }
 
+  /**
+   * Record modification with block if analysis of the instruction
+   * updated its closed info.
+   * @param block block containing inst
+   * @param inst
+   */
+  public static void recordClosedInfoUpdate(Block block, Instruction inst) {
+    if (inst.checkClosedInfoUpdated()) {
+      block.markModified();
+    }
+  }
+
   /**
    * Generate optimiser variable name guaranteed to be unique
    * @param v
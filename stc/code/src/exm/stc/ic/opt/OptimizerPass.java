@@ -15,8 +15,16 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import org.apache.log4j.Logger;
 
+import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
@@ -33,15 +41,125 @@ public interface OptimizerPass {
   public abstract void optimize(Logger logger, Program program)
                                               throws UserException;
   
+  /**
+   * A pass that optimizes each function separately.
+   *
+   * The result of optimizing a function must depend only on that function
+   * and on global state of the program.  Any modification to the globals
+   * counts as a modification of every function (see
+   * {@link Program#checkModified()}), so a function can be skipped if
+   * it wasn't modified since the pass last ran on it without modifying it.
+   */
   public static abstract class FunctionOptimizerPass implements OptimizerPass {
 
     @Override
     public void optimize(Logger logger, Program program) throws UserException {
+      optimizeFunctions(logger, program, null);
+    }
+
+    /**
+     * Optimize all functions, skipping any that are already at a fixed
+     * point for this pass.  Checks each optimized function for
+     * modifications.
+     *
+     * Functions are independent of each other, so can be optimized in
+     * parallel. Implementations must not modify any shared state other than
+     * the function being optimized.
+     * @param pool if not null, optimize functions in parallel in this pool
+     * @return number of functions modified
+     */
+    public int optimizeFunctions(final Logger logger, Program program,
+                          ForkJoinPool pool) throws UserException {
+      final String fixpointKey = fixpointKey();
+      List<Function> toOptimize = new ArrayList<Function>();
       for (Function f: program.functions()) {
-        optimize(logger, f);
+        if (f.atPassFixpoint(fixpointKey)) {
+          if (logger.isTraceEnabled()) {
+            logger.trace("Skipping unmodified function " + f.id() +
+                         " for pass " + fixpointKey);
+          }
+        } else {
+          toOptimize.add(f);
+        }
+      }
+
+      int modified = 0;
+      if (pool == null || toOptimize.size() <= 1) {
+        for (Function f: toOptimize) {
+          if (optimizeFunction(logger, f, fixpointKey)) {
+            modified++;
+          }
+        }
+      } else {
+        List<Callable<Boolean>> tasks =
+                    new ArrayList<Callable<Boolean>>(toOptimize.size());
+        for (final Function f: toOptimize) {
+          tasks.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws UserException {
+              return optimizeFunction(logger, f, fixpointKey);
+            }
+          });
+        }
+
+        for (Future<Boolean> result: pool.invokeAll(tasks)) {
+          if (getResult(result)) {
+            modified++;
+          }
+        }
+      }
+      return modified;
+    }
+
+    /**
+     * @return key to track which functions are at a fixed point for this
+     *         pass.  Passes with configuration options must include them,
+     *         so that differently configured instances don't share a key.
+     */
+    protected String fixpointKey() {
+      return getPassName();
+    }
+
+    /**
+     * @return true if function was modified
+     */
+    private boolean optimizeFunction(Logger logger, Function f,
+                          String fixpointKey) throws UserException {
+      optimize(logger, f);
+
+      if (f.checkModified()) {
+        return true;
+      } else {
+        f.setPassFixpoint(fixpointKey);
+        return false;
       }
     }
-    
+
+    /**
+     * Get result of task, rethrowing any exception from the task
+     */
+    private static boolean getResult(Future<Boolean> result)
+        throws UserException {
+      try {
+        return result.get();
+      } catch (InterruptedException e) {
+        throw new STCRuntimeError("Interrupted while optimizing: " +
+                                  e.getMessage());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UserException) {
+          throw (UserException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        } else {
+          throw new STCRuntimeError("Unexpected exception while " +
+                                    "optimizing: " + cause);
+        }
+      }
+    }
+
     public abstract void optimize(Logger logger, Function f) throws UserException;
   }
 }
@@ -17,12 +17,20 @@ package exm.stc.ic.opt;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 
 import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.FnID;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.OptimizerProfile.PassRun;
+import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
 
@@ -36,6 +44,17 @@ public class OptimizerPipeline {
   private final PrintStream icOutput;
   private Validate validator = null;
 
+  /**
+   * Pool to run function-local passes in parallel.  If null, run
+   * sequentially.
+   */
+  private ForkJoinPool pool = null;
+
+  /**
+   * If not null, record statistics for each pass run
+   */
+  private OptimizerProfile profile = null;
+
   public void addPass(OptimizerPass pass) {
     passes.add(pass);
   }
@@ -44,21 +63,104 @@ public class OptimizerPipeline {
     this.validator = validator;
   }
 
-  public void runPipeline(Logger logger, Program program, long iteration) throws UserException {
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  public void setProfile(OptimizerProfile profile) {
+    this.profile = profile;
+  }
+
+  /**
+   * Run all enabled passes in order.
+   *
+   * Modifications are detected after each pass from the modification
+   * counts maintained by the IR (see {@link Program#checkModified()}).
+   * If a validator is set, also check that any function whose text
+   * changed during a pass had its modification count updated.
+   * @return total number of modifications made by passes in pipeline
+   */
+  public int runPipeline(Logger logger, Program program, long iteration)
+      throws UserException {
+    int totalModified = 0;
     for (OptimizerPass pass: passes) {
       if (passEnabled(pass)) {
         logger.debug("Iteration: " + iteration + " Pass: "
                    + pass.getPassName());
-        pass.optimize(logger, program);
+        PassRun run = null;
+        if (profile != null) {
+          run = profile.startPass(program, pass.getPassName(), iteration);
+        }
+        Map<FnID, FunctionSnapshot> before = null;
+        if (validator != null) {
+          before = snapshotFunctions(program);
+        }
+        int modified;
+        if (pass instanceof FunctionOptimizerPass) {
+          // Only need to check functions that the pass optimized
+          modified = ((FunctionOptimizerPass)pass).optimizeFunctions(logger,
+                                                            program, pool);
+        } else {
+          pass.optimize(logger, program);
+          modified = program.checkModified();
+        }
+        logger.debug("Pass " + pass.getPassName() + " modified " + modified
+                   + " functions/globals");
+        totalModified += modified;
+        if (profile != null) {
+          profile.endPass(run, program, modified);
+        }
         if (icOutput != null) {
           program.log(icOutput, "Iteration " + iteration + " IC after " +
                                  pass.getPassName());
         }
         if (validator != null) {
+          checkModifiedMarked(pass, program, before);
           validator.optimize(logger, program);
         }
       }
     }
+    return totalModified;
+  }
+
+  private static class FunctionSnapshot {
+    final Function function;
+    final long modCount;
+    final String text;
+
+    FunctionSnapshot(Function f) {
+      this.function = f;
+      this.modCount = f.modCount();
+      this.text = f.toString();
+    }
+  }
+
+  private static Map<FnID, FunctionSnapshot> snapshotFunctions(
+                                                    Program program) {
+    Map<FnID, FunctionSnapshot> result = new HashMap<FnID, FunctionSnapshot>();
+    for (Function f: program.functions()) {
+      result.put(f.id(), new FunctionSnapshot(f));
+    }
+    return result;
+  }
+
+  /**
+   * Check that pass didn't modify a function in place without the
+   * modification being recorded: skipping passes at a fixpoint
+   * depends on modifications always being recorded.
+   */
+  private static void checkModifiedMarked(OptimizerPass pass,
+      Program program, Map<FnID, FunctionSnapshot> before) {
+    for (Function f: program.functions()) {
+      FunctionSnapshot old = before.get(f.id());
+      if (old != null && old.function == f &&
+          old.modCount == f.modCount() && !old.text.equals(f.toString())) {
+        throw new STCRuntimeError("Pass " + pass.getPassName() +
+            " modified function " + f.id() + " without recording " +
+            "modification.\nBefore:\n" + old.text +
+            "\nAfter:\n" + f.toString());
+      }
+    }
   }
 
   public boolean passEnabled(OptimizerPass pass) {
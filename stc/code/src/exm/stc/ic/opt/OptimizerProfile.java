@@ -0,0 +1,313 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.lang.Var;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ui.ExitCode;
+
+/**
+ * Collect timing, allocation and IR size statistics for each optimizer
+ * pass run.  Enabled by setting stc.opt.profile to an output file name:
+ * results for each pass run are written there as JSON and a summary
+ * table is printed once optimization finishes.
+ */
+public class OptimizerProfile {
+
+  private final Logger logger;
+
+  private final String outputFile;
+
+  private final List<PassRun> runs = new ArrayList<PassRun>();
+
+  private final ThreadMXBean threadBean;
+
+  /**
+   * True if we can measure allocated bytes
+   */
+  private final boolean allocSupported;
+
+  public OptimizerProfile(Logger logger, String outputFile) {
+    this.logger = logger;
+    this.outputFile = outputFile;
+    this.threadBean = ManagementFactory.getThreadMXBean();
+    this.allocSupported = allocSupported(threadBean);
+  }
+
+  /**
+   * @return profile if enabled in settings, otherwise null
+   */
+  public static OptimizerProfile fromSettings(Logger logger) {
+    String outputFile = Settings.get(Settings.OPT_PROFILE);
+    if (outputFile == null || outputFile.length() == 0) {
+      return null;
+    }
+    return new OptimizerProfile(logger,
+                    Settings.resolveFile(outputFile).getPath());
+  }
+
+  private static boolean allocSupported(ThreadMXBean threadBean) {
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+      return false;
+    }
+    com.sun.management.ThreadMXBean bean =
+                          (com.sun.management.ThreadMXBean)threadBean;
+    if (!bean.isThreadAllocatedMemorySupported()) {
+      return false;
+    }
+    if (!bean.isThreadAllocatedMemoryEnabled()) {
+      bean.setThreadAllocatedMemoryEnabled(true);
+    }
+    return true;
+  }
+
+  /**
+   * Start recording a pass run.
+   * @param program program before pass
+   * @return record to pass to {@link #endPass(PassRun, Program, int)}
+   */
+  public PassRun startPass(Program program, String passName,
+                           long iteration) {
+    PassRun run = new PassRun(passName, iteration,
+                              IRSize.measure(logger, program));
+    run.startAlloc = allocatedBytes();
+    run.startTime = System.nanoTime();
+    return run;
+  }
+
+  /**
+   * Finish recording a pass run.
+   * @param program program after pass
+   * @param modified number of modifications detected
+   */
+  public void endPass(PassRun run, Program program, int modified) {
+    run.timeNanos = System.nanoTime() - run.startTime;
+    if (allocSupported) {
+      run.allocatedBytes = allocatedBytes() - run.startAlloc;
+    }
+    run.after = IRSize.measure(logger, program);
+    run.changed = modified > 0;
+    runs.add(run);
+  }
+
+  /**
+   * Allocated bytes summed over all live threads, so that passes run
+   * in parallel are accounted for.
+   */
+  private long allocatedBytes() {
+    if (!allocSupported) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean bean =
+                          (com.sun.management.ThreadMXBean)threadBean;
+    long total = 0;
+    for (long allocated: bean.getThreadAllocatedBytes(
+                                bean.getAllThreadIds())) {
+      if (allocated > 0) {
+        total += allocated;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Write results to output file and print summary
+   * @param summaryOut where to print summary table
+   */
+  public void finish(PrintStream summaryOut) {
+    logger.debug("Writing optimizer profile to " + outputFile);
+    try {
+      Writer out = new BufferedWriter(new FileWriter(outputFile));
+      try {
+        writeJSON(out);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Error writing optimizer profile " + outputFile
+                         + ": " + e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
+    }
+
+    printSummary(summaryOut);
+  }
+
+  private void writeJSON(Writer out) throws IOException {
+    out.write("{\n  \"passes\": [");
+    boolean first = true;
+    for (PassRun run: runs) {
+      out.write(first ? "\n" : ",\n");
+      first = false;
+      out.write("    {\"pass\": " + jsonString(run.passName) +
+          ", \"iteration\": " + run.iteration +
+          ", \"timeNanos\": " + run.timeNanos +
+          ", \"allocatedBytes\": " + run.allocatedBytes +
+          ", \"before\": " + run.before.toJSON() +
+          ", \"after\": " + run.after.toJSON() +
+          ", \"changed\": " + run.changed + "}");
+    }
+    out.write("\n  ]\n}\n");
+  }
+
+  private static String jsonString(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Print table with totals per pass, most expensive first
+   */
+  public void printSummary(PrintStream out) {
+    Map<String, PassTotals> totals = new LinkedHashMap<String, PassTotals>();
+    long totalTime = 0;
+    for (PassRun run: runs) {
+      PassTotals t = totals.get(run.passName);
+      if (t == null) {
+        t = new PassTotals(run.passName);
+        totals.put(run.passName, t);
+      }
+      t.runs++;
+      if (run.changed) {
+        t.changedRuns++;
+      }
+      t.timeNanos += run.timeNanos;
+      t.allocatedBytes += run.allocatedBytes;
+      totalTime += run.timeNanos;
+    }
+
+    List<PassTotals> sorted = new ArrayList<PassTotals>(totals.values());
+    Collections.sort(sorted, new Comparator<PassTotals>() {
+      @Override
+      public int compare(PassTotals a, PassTotals b) {
+        return Long.compare(b.timeNanos, a.timeNanos);
+      }
+    });
+
+    String format = "%-32s %6s %8s %10s %7s %12s%n";
+    out.printf(format, "Pass", "Runs", "Changed", "Time(ms)", "Time%",
+               "Alloc(KB)");
+    for (PassTotals t: sorted) {
+      out.printf(format, t.passName, t.runs, t.changedRuns,
+          String.format("%.1f", t.timeNanos / 1e6),
+          String.format("%.1f", totalTime == 0 ? 0.0 :
+                                    100.0 * t.timeNanos / totalTime),
+          allocSupported ? Long.toString(t.allocatedBytes / 1024) : "n/a");
+    }
+    out.printf("%-32s %6s %8s %10.1f%n", "Total", runs.size(), "",
+               totalTime / 1e6);
+  }
+
+  public static class PassRun {
+    private final String passName;
+    private final long iteration;
+    private final IRSize before;
+    private IRSize after;
+    private long startTime;
+    private long startAlloc;
+    private long timeNanos;
+    private long allocatedBytes = -1;
+    private boolean changed;
+
+    private PassRun(String passName, long iteration, IRSize before) {
+      this.passName = passName;
+      this.iteration = iteration;
+      this.before = before;
+    }
+  }
+
+  private static class PassTotals {
+    private final String passName;
+    private int runs = 0;
+    private int changedRuns = 0;
+    private long timeNanos = 0;
+    private long allocatedBytes = 0;
+
+    private PassTotals(String passName) {
+      this.passName = passName;
+    }
+  }
+
+  /**
+   * Counts of IR elements in program
+   */
+  private static class IRSize extends TreeWalker {
+    private int instructions = 0;
+    private int continuations = 0;
+    private int variables = 0;
+
+    public static IRSize measure(Logger logger, Program program) {
+      IRSize size = new IRSize();
+      for (Function f: program.functions()) {
+        size.variables += f.getInputList().size() + f.getOutputList().size();
+        TreeWalk.walk(logger, f, size);
+      }
+      return size;
+    }
+
+    @Override
+    protected void visit(Instruction inst) {
+      instructions++;
+    }
+
+    @Override
+    protected void visit(Continuation cont) {
+      continuations++;
+    }
+
+    @Override
+    protected void visitDeclaration(Var declared) {
+      variables++;
+    }
+
+    public String toJSON() {
+      return "{\"instructions\": " + instructions +
+             ", \"continuations\": " + continuations +
+             ", \"variables\": " + variables + "}";
+    }
+  }
+}
@@ -20,6 +20,7 @@ import org.apache.log4j.Logger;
 import exm.stc.common.Logging;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -32,8 +33,30 @@ import exm.stc.ic.tree.ICTree.StatementType;
  * - Opcodes that don't spawn or enable further work, so can be put off
  * - Opcodes that are not computationally intense, so don't need to run in parallel 
  *
+ * Also provides a rough cost estimate for blocks based on the same
+ * categories, measured in units of cheap instructions.
  */
 public class ProgressOpcodes {
+
+  /** Estimated cost of a cheap instruction: unit of cost */
+  public static final long CHEAP_COST = 1;
+
+  /** Estimated cost of spawning a task, relative to a cheap instruction */
+  public static final long SPAWN_COST = 50;
+
+  /**
+   * Estimated cost of an instruction that isn't cheap, e.g. a call to a
+   * leaf function or app
+   */
+  public static final long EXPENSIVE_COST = 1000;
+
+  /**
+   * Assumed number of iterations for sync loops with unknown bounds
+   */
+  public static final long DEFAULT_LOOP_ITERS = 16;
+
+  /** Upper bound for costs, to avoid overflow */
+  private static final long MAX_COST = Long.MAX_VALUE / 1024;
   
   public static boolean isCheapWorkerInst(Instruction i) {
     // TODO: default worker isn't right
@@ -76,6 +99,63 @@ public class ProgressOpcodes {
     }
   }
   
+  /**
+   * Estimate cost of executing block once.  Async continuations only
+   * count as the cost of spawning a task, since they can run in parallel.
+   * Only one branch of conditionals is executed, so we take the most
+   * expensive.
+   * @param block
+   * @return estimated cost in units of cheap instructions
+   */
+  public static long blockCost(Block block) {
+    long cost = 0;
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        cost += stmt.instruction().isCheap() ? CHEAP_COST : EXPENSIVE_COST;
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        cost += continuationCost(stmt.conditional());
+      }
+      cost = Math.min(cost, MAX_COST);
+    }
+
+    for (Continuation c: block.getContinuations()) {
+      cost = Math.min(cost + continuationCost(c), MAX_COST);
+    }
+    return cost;
+  }
+
+  private static long continuationCost(Continuation c) {
+    if (c.isAsync()) {
+      return SPAWN_COST;
+    }
+
+    long cost = 0;
+    for (Block inner: c.getBlocks()) {
+      long innerCost = blockCost(inner);
+      if (c.isConditional()) {
+        cost = Math.max(cost, innerCost);
+      } else {
+        cost += innerCost;
+      }
+    }
+
+    if (c.isLoop()) {
+      long iters = DEFAULT_LOOP_ITERS;
+      if (c instanceof AbstractForeachLoop) {
+        long constIters = ((AbstractForeachLoop)c).constIterCount();
+        if (constIters >= 0) {
+          iters = constIters;
+        }
+      }
+      if (iters > 0 && cost > MAX_COST / iters) {
+        return MAX_COST;
+      }
+      cost *= iters;
+    }
+    return Math.min(cost, MAX_COST);
+  }
+
   /**
    * @param rootBlock
    * @return true if the block makes progress of the specified type
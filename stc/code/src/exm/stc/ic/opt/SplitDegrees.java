@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICTree.Function;
+
+/**
+ * Choose split and leaf degree of split foreach loops from a simple cost
+ * model, instead of using fixed defaults.  Leaves should be big enough
+ * that the cost of spawning each leaf task is amortized over the loop
+ * body, but small enough that all workers get some leaves.  If the
+ * number of iterations is known, the leaf degree is chosen here.
+ * Otherwise a range of leaf degrees is chosen here and the runtime
+ * picks one based on the actual number of iterations, so that loops with
+ * cheap bodies and moderate iteration counts aren't run serially.
+ * Loops where the user set split or leaf degree with annotations are
+ * left alone.
+ *
+ * Should run once the loop bodies are in their final form.
+ */
+public class SplitDegrees extends FunctionOptimizerPass {
+
+  /**
+   * Target ratio of work in leaf to cost of spawning it
+   */
+  private static final long LEAF_WORK_RATIO = 10;
+
+  /**
+   * Target number of leaves per worker if iteration count is known,
+   * to allow for load imbalance
+   */
+  private static final long LEAVES_PER_WORKER = 4;
+
+  private static final int MIN_SPLIT_DEGREE = 2;
+  private static final int MAX_SPLIT_DEGREE = 64;
+  private static final int MAX_LEAF_DEGREE = 4096;
+
+  @Override
+  public String getPassName() {
+    return "Choose split degrees";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_SPLIT_DEGREES;
+  }
+
+  @Override
+  public void optimize(final Logger logger, Function f) {
+    final int workers = Settings.getIntUnchecked(Settings.OPT_SPLIT_WORKERS);
+    TreeWalk.walk(logger, f, new TreeWalker() {
+      @Override
+      protected void visit(Continuation cont) {
+        if (cont.getType() == ContinuationType.FOREACH_LOOP ||
+            cont.getType() == ContinuationType.RANGE_LOOP) {
+          chooseDegrees(logger, (AbstractForeachLoop)cont, workers);
+        }
+      }
+    });
+  }
+
+  private static void chooseDegrees(Logger logger, AbstractForeachLoop loop,
+                                    int workers) {
+    if (!loop.autoDegrees() || loop.splitDegree() <= 0) {
+      return;
+    }
+
+    long bodyCost = Math.max(1,
+                        ProgressOpcodes.blockCost(loop.getLoopBody()));
+
+    // Amortize spawn cost over iterations in leaf
+    long leaf = divideRoundUp(LEAF_WORK_RATIO * ProgressOpcodes.SPAWN_COST,
+                              bodyCost);
+    // Trade off some overhead for parallelism, but don't let spawning
+    // cost more than the work done
+    long minLeaf = divideRoundUp(ProgressOpcodes.SPAWN_COST, bodyCost);
+
+    long iters = loop.constIterCount();
+    if (iters > 0) {
+      long parallelLeaf = divideRoundUp(iters, workers * LEAVES_PER_WORKER);
+      leaf = Math.max(minLeaf, Math.min(leaf, parallelLeaf));
+    }
+    leaf = Math.min(leaf, MAX_LEAF_DEGREE);
+
+    // Let runtime choose between minLeaf and leaf if count unknown
+    long runtimeMinLeaf = 0;
+    if (iters < 0 && minLeaf < leaf) {
+      runtimeMinLeaf = minLeaf;
+    }
+
+    // Spread work across workers quickly, but don't split more ways
+    // than there are leaves
+    long split = Math.min(workers, MAX_SPLIT_DEGREE);
+    if (iters > 0) {
+      split = Math.min(split, divideRoundUp(iters, leaf));
+    }
+    split = Math.max(split, MIN_SPLIT_DEGREE);
+
+    if (loop.setSplitDegrees((int)split, (int)leaf, (int)runtimeMinLeaf)) {
+      logger.debug("Loop " + loop.loopName() + ": body cost " + bodyCost +
+          ", iterations " + iters + ": split degree " + split +
+          ", leaf degree " + leaf + ", min leaf degree " + runtimeMinLeaf);
+    }
+  }
+
+  private static long divideRoundUp(long num, long denom) {
+    return (num + denom - 1) / denom;
+  }
+}
@@ -24,6 +24,7 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
@@ -32,6 +33,7 @@ import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.Semantics;
 import exm.stc.common.lang.Var;
 import exm.stc.common.util.HierarchicalSet;
+import exm.stc.ic.opt.FixupVariables.FixupVarMode;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.ICContinuations.ContVarDefType;
 import exm.stc.ic.tree.ICContinuations.Continuation;
@@ -53,6 +55,31 @@ import exm.stc.ic.tree.TurbineOp.RefCountOp;
  * - Check parent links are valid
  */
 public class Validate implements OptimizerPass {
+
+  /**
+   * How often validation is done during optimization
+   */
+  public static enum Level {
+    /** Don't validate at all */
+    NONE,
+    /** Validate once per optimizer iteration */
+    ITERATION,
+    /** Validate after every optimizer pass */
+    PASS;
+  }
+
+  /**
+   * @return validation level from settings.  Validation is disabled if
+   *         compiler debugging is switched off.
+   */
+  public static Level configuredLevel() {
+    if (!Settings.getBooleanUnchecked(Settings.COMPILER_DEBUG)) {
+      return Level.NONE;
+    }
+    String level = Settings.get(Settings.OPT_VALIDATE);
+    return Level.valueOf(level.toUpperCase());
+  }
+
   private final boolean checkVarPassing;
   private final boolean checkCleanups;
   private final boolean noNestedBlocks;
@@ -92,23 +119,50 @@ public class Validate implements OptimizerPass {
     return null;
   }
 
+  /**
+   * Validate only functions that were modified since this validator
+   * last checked them.  Relies on modifications having been recorded with
+   * {@link Program#checkModified()}, which marks all functions as
+   * modified if globals change.
+   */
   @Override
   public void optimize(Logger logger, Program program) throws UserException {
+    String fixpointKey = fixpointKey();
+    for (Function fn : program.functions()) {
+      if (fn.atPassFixpoint(fixpointKey)) {
+        continue;
+      }
+      validateFunction(logger, program, fn);
+      fn.setPassFixpoint(fixpointKey);
+    }
+  }
+
+  /**
+   * @return key to track which functions were validated with this
+   *         combination of checks
+   */
+  private String fixpointKey() {
+    return getPassName() + ":" + checkVarPassing + ":" + checkCleanups + ":" +
+           noNestedBlocks + ":" + checkExecContext;
+  }
+
+  private void validateFunction(Logger logger, Program program, Function fn)
+      throws UserException {
     if (checkVarPassing) {
       // Check visibility of vars without modifying IC
-      FixupVariables.fixupProgram(logger, program, false);
+      FixupVariables.fixupFunction(logger, program.allGlobals(), fn,
+                       new HashSet<Var>(), FixupVarMode.NO_UPDATE);
     }
 
-    for (Function fn : program.functions()) {
-      checkParentLinks(logger, program, fn);
-      checkUniqueVarNames(logger, program.allGlobals(), fn);
-      InitVariables.checkVarInit(logger, fn);
-      if (checkExecContext) {
-        checkExecCx(logger, program, fn);
-      }
-      checkDuplicateRefs(logger, fn);
+    checkParentLinks(logger, program, fn);
+    checkUniqueVarNames(logger, program.allGlobals(), fn);
+    InitVariables.checkVarInit(logger, fn);
+    if (checkExecContext) {
+      checkExecCx(logger, program, fn);
     }
+    checkDuplicateRefs(logger, fn);
   }
+
   /**
    * Check that var names are unique within each function, and
    * that all references to variable have same attributes
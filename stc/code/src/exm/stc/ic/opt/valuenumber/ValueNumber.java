@@ -47,7 +47,6 @@ import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.WrapUtil;
 import exm.stc.ic.aliases.Alias;
-import exm.stc.ic.opt.ICOptimizer;
 import exm.stc.ic.opt.InitVariables;
 import exm.stc.ic.opt.InitVariables.InitState;
 import exm.stc.ic.opt.OptUtil;
@@ -57,6 +56,7 @@ import exm.stc.ic.opt.ProgressOpcodes;
 import exm.stc.ic.opt.ProgressOpcodes.Category;
 import exm.stc.ic.opt.TreeWalk;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.Validate;
 import exm.stc.ic.opt.valuenumber.Congruences.OptUnsafeError;
 import exm.stc.ic.opt.valuenumber.ValLoc.IsAssign;
 import exm.stc.ic.tree.Conditionals.Conditional;
@@ -118,10 +118,16 @@ public class ValueNumber implements OptimizerPass {
    */
   private boolean finalizedVarEnabled;
 
+  /**
+   * True if we should validate internal state after each step
+   */
+  private boolean validateState;
+
   public ValueNumber(boolean reorderingAllowed) {
     this.reorderingAllowed = reorderingAllowed;
 
     finalizedVarEnabled = Settings.getBooleanUnchecked(Settings.OPT_FINALIZED_VAR);
+    validateState = Validate.configuredLevel() == Validate.Level.PASS;
   }
 
   @Override
@@ -591,7 +597,7 @@ public class ValueNumber implements OptimizerPass {
       if (stmt.type() == StatementType.INSTRUCTION) {
         // Replace vars in instruction
         Instruction inst = stmt.instruction();
-        replaceCongruent(function, inst, state, init);
+        replaceCongruent(function, block, inst, state, init);
 
         if (!inst.hasSideEffects() && inst.getOutputs().size() == 1) {
           Var output = inst.getOutput(0);
@@ -602,15 +608,19 @@ public class ValueNumber implements OptimizerPass {
               Arg val = state.findRetrieveResult(output, false);
               if (val != null && init.isInitialized(val, false)) {
                 Instruction futureSet = TurbineOp.storePrim(output, val);
-                stmtIt.set(futureSet);
-                logger.trace("Replaced with " + futureSet);
+                if (!sameOperation(inst, futureSet)) {
+                  stmtIt.set(futureSet);
+                  logger.trace("Replaced with " + futureSet);
+                }
               }
             } else if (Types.isScalarValue(output)) {
               Arg val = state.findValue(output);
               if (val != null && val.isConst()) {
                 Instruction valueSet = ICInstructions.valueSet(output, val);
-                stmtIt.set(valueSet);
-                logger.trace("Replaced with " + valueSet);
+                if (!sameOperation(inst, valueSet)) {
+                  stmtIt.set(valueSet);
+                  logger.trace("Replaced with " + valueSet);
+                }
               }
             }
           }
@@ -794,6 +804,16 @@ public class ValueNumber implements OptimizerPass {
     }
   }
 
+  /**
+   * Check if replacing an instruction with a single output would be a
+   * no-op, to avoid recording a modification.
+   */
+  private static boolean sameOperation(Instruction oldInst,
+                                       Instruction newInst) {
+    return oldInst.op == newInst.op &&
+           oldInst.toString().equals(newInst.toString());
+  }
+
   private static final List<RenameMode> RENAME_MODES =
       Arrays.asList(RenameMode.VALUE, RenameMode.REFERENCE);
 
@@ -804,15 +824,20 @@ public class ValueNumber implements OptimizerPass {
     }
   }
 
-  private void replaceCongruent(FnID function, Instruction inst,
+  private void replaceCongruent(FnID function, Block block, Instruction inst,
                                 Congruences congruent, InitState init) {
     assert(congruent != null);
 
     if (logger.isTraceEnabled()) {
       logger.trace("Instruction before replacement: " + inst);
     }
+    boolean changed = false;
     for (RenameMode mode: RENAME_MODES) {
-      inst.renameVars(function, congruent.replacements(mode, init), mode);
+      changed |= inst.renameVars(function, congruent.replacements(mode, init),
+                                 mode);
+    }
+    if (changed) {
+      block.markModified();
     }
     if (logger.isTraceEnabled()) {
       logger.trace("Instruction after replacement: " + inst);
@@ -865,6 +890,7 @@ public class ValueNumber implements OptimizerPass {
     MakeImmRequest req = inst.canMakeImmediate(state.getClosed(stmtIndex),
                                state.getClosedLocs(stmtIndex),
                                state.retrieveResultAvail(), false);
+    OptUtil.recordClosedInfoUpdate(block, inst);
 
     if (req == null) {
       return false;
@@ -1027,7 +1053,7 @@ public class ValueNumber implements OptimizerPass {
    * Do any validations of the state of things
    */
   private void validateState(GlobalConstants consts, Congruences state) {
-    if (ICOptimizer.SUPER_DEBUG) {
+    if (validateState) {
       state.validate(consts);
     }
   }
@@ -56,8 +56,12 @@ import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
  * them on other operations, or canceling them out.
  *
  *
- * TODO: Merge together refcounts to place - e.g. read/write same var,
- *       or two vars if they happen to alias same refcounted var
+ * Refcount operations placed next to each other, e.g. read and write
+ * decrements for the same var, are passed to the backend as one batch
+ * when code is generated (see Block.generate), so aren't merged here.
+ *
+ * TODO: Merge together refcounts for two vars if they happen to alias
+ *       same refcounted var
  */
 public class RCPlacer {
 
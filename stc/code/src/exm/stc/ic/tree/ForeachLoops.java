@@ -46,6 +46,7 @@ import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.BlockType;
 import exm.stc.ic.tree.ICTree.GenInfo;
 import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.TrackedListIterator;
 import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
 
 /**
@@ -63,6 +64,26 @@ public class ForeachLoops {
     protected int splitDegree;
     protected int leafDegree;
 
+    /**
+     * If true, split and leaf degree weren't specified by user, so
+     * can be tuned by optimizer
+     */
+    protected boolean autoDegrees = false;
+
+    /**
+     * If positive, leaf degree is chosen at runtime from the iteration
+     * count, between this and leafDegree.  Used when iteration count isn't
+     * known at compile time.
+     */
+    protected int minLeafDegree = 0;
+
+    /**
+     * Bags that are only inserted into directly by the loop body.  The
+     * backend can accumulate the elements inserted by each leaf task
+     * and store them together.
+     */
+    protected final List<Var> accumulateBags = new ArrayList<Var>();
+
     /** Increments that should happen before loop spawn.  Each
      * increment is multiplied by the number of loop iterations */
     protected final List<RefCount> startIncrements;
@@ -98,16 +119,83 @@ public class ForeachLoops {
       this.endDecrements = new ArrayList<RefCount>(endDecrements);
     }
 
+    public String loopName() {
+      return loopName;
+    }
+
+    public int splitDegree() {
+      return splitDegree;
+    }
+
+    public int leafDegree() {
+      return leafDegree;
+    }
+
+    public int minLeafDegree() {
+      return minLeafDegree;
+    }
+
+    public boolean autoDegrees() {
+      return autoDegrees;
+    }
+
+    public List<Var> accumulateBags() {
+      return Collections.unmodifiableList(accumulateBags);
+    }
+
+    public void addAccumulateBag(Var bag) {
+      assert(Types.isBag(bag)) : bag;
+      if (!accumulateBags.contains(bag)) {
+        accumulateBags.add(bag);
+        markModified();
+      }
+    }
+
+    public void setAutoDegrees(boolean autoDegrees) {
+      this.autoDegrees = autoDegrees;
+      markModified();
+    }
+
+    /**
+     * Change split and leaf degree of split loop.  Can't be used to
+     * switch between split and unsplit, since that changes the context
+     * the loop body runs in.
+     * @param minLeafDegree if positive, minimum leaf degree to choose
+     *                      at runtime
+     * @return true if changed
+     */
+    public boolean setSplitDegrees(int splitDegree, int leafDegree,
+                                   int minLeafDegree) {
+      assert(this.splitDegree > 0 && splitDegree > 0 && leafDegree > 0);
+      assert(minLeafDegree <= leafDegree);
+      if (this.splitDegree == splitDegree && this.leafDegree == leafDegree &&
+          this.minLeafDegree == minLeafDegree) {
+        return false;
+      }
+      this.splitDegree = splitDegree;
+      this.leafDegree = leafDegree;
+      this.minLeafDegree = minLeafDegree;
+      markModified();
+      return true;
+    }
+
     public List<RefCount> getStartIncrements() {
       return Collections.unmodifiableList(startIncrements);
     }
 
     public ListIterator<RefCount> startIncrementIterator() {
-      return startIncrements.listIterator();
+      return new TrackedListIterator<RefCount>(
+                                startIncrements.listIterator()) {
+        @Override
+        protected void modified() {
+          markModified();
+        }
+      };
     }
 
     public void addStartIncrement(RefCount incr) {
       startIncrements.add(incr);
+      markModified();
     }
 
     public void addConstantStartIncrement(Var v, RefCountType t, Arg amount) {
@@ -120,12 +208,14 @@ public class ForeachLoops {
                                              && amount.isInt()) {
           Arg newAmount = Arg.newInt(rc.amount.getInt() + amount.getInt());
           it.set(new RefCount(v, t, newAmount));
+          markModified();
           return;
         }
       }
 
       // If we didn't have it already
       constStartIncrements.put(v, new RefCount(v, t, amount));
+      markModified();
     }
 
     public List<RefCount> getEndDecrements() {
@@ -134,6 +224,7 @@ public class ForeachLoops {
 
     public void addEndDecrement(RefCount decr) {
       endDecrements.add(decr);
+      markModified();
     }
 
     public void prettyPrintIncrs(StringBuilder sb) {
@@ -153,6 +244,24 @@ public class ForeachLoops {
         ICUtil.prettyPrintList(sb, endDecrements);
         sb.append("]");
       }
+      if (!accumulateBags.isEmpty()) {
+        sb.append(" #accumulate[");
+        ICUtil.prettyPrintVarList(sb, accumulateBags);
+        sb.append("]");
+      }
+    }
+
+    protected boolean renameAccumulateBags(Map<Var, Arg> renames) {
+      boolean changed = false;
+      ListIterator<Var> it = accumulateBags.listIterator();
+      while (it.hasNext()) {
+        Var bag = it.next();
+        if (renames.containsKey(bag)) {
+          it.set(renames.get(bag).getVar());
+          changed = true;
+        }
+      }
+      return changed;
     }
 
     /**
@@ -252,10 +361,14 @@ public class ForeachLoops {
 
     @Override
     public ForeachLoop clone() {
-      return new ForeachLoop(this.loopBody.clone(), loopName,
+      ForeachLoop res = new ForeachLoop(this.loopBody.clone(), loopName,
         container, loopVar, loopCounterVar, splitDegree, leafDegree,
         containerClosed, passedVars, keepOpenVars, startIncrements,
         constStartIncrements, endDecrements, false);
+      res.autoDegrees = this.autoDegrees;
+      res.minLeafDegree = this.minLeafDegree;
+      res.accumulateBags.addAll(this.accumulateBags);
+      return res;
     }
 
     @Override
@@ -313,9 +426,9 @@ public class ForeachLoops {
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
       gen.startForeachLoop(loopName, container, loopVar, loopCounterVar,
-                splitDegree, leafDegree, containerClosed,
+                splitDegree, leafDegree, minLeafDegree, containerClosed,
                 passedVars, startIncrements, constStartIncrements,
-                endDecrements);
+                endDecrements, accumulateBags);
       this.loopBody.generate(logger, gen, info);
       gen.endForeachLoop(splitDegree, containerClosed, endDecrements);
     }
@@ -344,8 +457,10 @@ public class ForeachLoops {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
+      Var oldContainer = container, oldLoopVar = loopVar,
+          oldCounterVar = loopCounterVar;
       if (renames.containsKey(container)) {
         container = renames.get(container).getVar();
       }
@@ -359,6 +474,11 @@ public class ForeachLoops {
           loopCounterVar = renames.get(loopCounterVar).getVar();
         }
       }
+      boolean bagsChanged = renameAccumulateBags(renames);
+      return ICUtil.varChanged(oldContainer, container) ||
+             ICUtil.varChanged(oldLoopVar, loopVar) ||
+             ICUtil.varChanged(oldCounterVar, loopCounterVar) ||
+             bagsChanged;
     }
 
     @Override
@@ -376,6 +496,7 @@ public class ForeachLoops {
       if (loopCounterVar != null) {
         checkNotRemoved(loopCounterVar, removeVars);
       }
+      accumulateBags.removeAll(removeVars);
     }
 
     @Override
@@ -397,9 +518,10 @@ public class ForeachLoops {
     @Override
     public Block tryInline(Set<Var> closedVars, Set<Var> recClosedVars,
         boolean keepExplicitDependencies) {
-      if (closedVars.contains(container) ||
-          recClosedVars.contains(container)) {
+      if (!containerClosed && (closedVars.contains(container) ||
+                               recClosedVars.contains(container))) {
         this.containerClosed = true;
+        markModified();
       }
       return null;
     }
@@ -425,6 +547,7 @@ public class ForeachLoops {
       o.renameVars(function, renames, RenameMode.REPLACE_VAR, true);
 
       fuseIntoAbstract(o, insertAtTop);
+      markModified();
     }
 
     @Override
@@ -437,7 +560,8 @@ public class ForeachLoops {
     }
 
     /**
-     * Switch to version iterating over local container
+     * Switch to version iterating over local container.  Split loops
+     * stay split, with slices of the local container passed to tasks.
      * @param var
      */
     public void switchToLocalForeach(Var localContainer) {
@@ -445,7 +569,7 @@ public class ForeachLoops {
           Types.retrievedType(this.container, false)));
       this.container = localContainer;
       this.containerClosed = true;
-      this.splitDegree = -1; // Execute locally
+      markModified();
     }
   }
 
@@ -509,11 +633,15 @@ public class ForeachLoops {
       } else {
         newLoopBody = new Block(BlockType.RANGELOOP_BODY, null);
       }
-      return new RangeLoop(newLoopBody, loopName, loopVar, loopCounterVar,
-          start, end, increment,
+      RangeLoop res = new RangeLoop(newLoopBody, loopName, loopVar,
+          loopCounterVar, start, end, increment,
           passedVars, keepOpenVars, desiredUnroll, unrolled,
           splitDegree, leafDegree, startIncrements, constStartIncrements,
           endDecrements, !cloneLoopBody);
+      res.autoDegrees = this.autoDegrees;
+      res.minLeafDegree = this.minLeafDegree;
+      res.accumulateBags.addAll(this.accumulateBags);
+      return res;
     }
 
     @Override
@@ -543,8 +671,9 @@ public class ForeachLoops {
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
       gen.startRangeLoop(loopName, loopVar, loopCounterVar, start, end, increment,
-                         splitDegree, leafDegree, passedVars, startIncrements,
-                         constStartIncrements, endDecrements);
+                         splitDegree, leafDegree, minLeafDegree, passedVars,
+                         startIncrements, constStartIncrements, endDecrements,
+                         accumulateBags);
       this.loopBody.generate(logger, gen, info);
       gen.endRangeLoop(splitDegree, endDecrements);
     }
@@ -574,8 +703,10 @@ public class ForeachLoops {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
+      Arg oldStart = start, oldEnd = end, oldIncrement = increment;
+      Var oldLoopVar = loopVar, oldCounterVar = loopCounterVar;
       start = renameRangeArg(start, renames);
       end = renameRangeArg(end, renames);
       increment = renameRangeArg(increment, renames);
@@ -588,6 +719,13 @@ public class ForeachLoops {
           loopCounterVar = renames.get(loopCounterVar).getVar();
         }
       }
+      boolean bagsChanged = renameAccumulateBags(renames);
+      return ICUtil.argChanged(oldStart, start) ||
+             ICUtil.argChanged(oldEnd, end) ||
+             ICUtil.argChanged(oldIncrement, increment) ||
+             ICUtil.varChanged(oldLoopVar, loopVar) ||
+             ICUtil.varChanged(oldCounterVar, loopCounterVar) ||
+             bagsChanged;
     }
 
     private Arg renameRangeArg(Arg val, Map<Var, Arg> renames) {
@@ -620,6 +758,7 @@ public class ForeachLoops {
       checkNotRemoved(start, removeVars);
       checkNotRemoved(end, removeVars);
       checkNotRemoved(increment, removeVars);
+      accumulateBags.removeAll(removeVars);
     }
 
     @Override
@@ -631,13 +770,27 @@ public class ForeachLoops {
       if (iterCount == 0) {
         return new Block(BlockType.FOREACH_BODY, this);
       } else if (iterCount == 1) {
-        this.loopBody.addVariable(loopVar);
-        this.loopBody.addInstructionFront(ICInstructions.valueSet(loopVar, start));
+        declareFirstIterVars();
         return this.loopBody;
       }
       return null;
     }
 
+    /**
+     * Move loop and counter vars into body with values for first iteration,
+     * so that body can be inlined in place of loop
+     */
+    private void declareFirstIterVars() {
+      this.loopBody.addVariable(loopVar);
+      this.loopBody.addInstructionFront(
+            ICInstructions.valueSet(this.loopVar, start));
+      if (loopCounterVar != null) {
+        this.loopBody.addVariable(loopCounterVar);
+        this.loopBody.addInstructionFront(
+            ICInstructions.valueSet(loopCounterVar, Arg.newInt(0)));
+      }
+    }
+
     /**
      * @return iteration count if known
      */
@@ -649,7 +802,10 @@ public class ForeachLoops {
       if (start.isInt() && end.isInt()) {
         long startV = start.getInt();
         long endV = end.getInt();
-        if (increment.isInt()) {
+        if (startV > endV) {
+          // Loop tests var <= end, so doesn't run even if incr negative
+          iterCount = 0;
+        } else if (increment.isInt()) {
           long incrV = increment.getInt();
           iterCount = Math.max(0, (endV - startV + incrV) / incrV);
         } else {
@@ -660,7 +816,9 @@ public class ForeachLoops {
       } else if (start.isFloat() && end.isFloat()) {
         double startV = start.getFloat();
         double endV = end.getFloat();
-        if (increment.isFloat()) {
+        if (startV > endV) {
+          iterCount = 0;
+        } else if (increment.isFloat()) {
           double incrV = increment.getFloat();
           iterCount = Math.max(0,
                               (long)Math.floor((endV - startV + incrV) / incrV));
@@ -686,14 +844,7 @@ public class ForeachLoops {
     @Override
     public void inlineInto(Block block, Block predictedBranch) {
       // Shift loop variable to body and inline loop body
-      this.loopBody.addVariable(loopVar);
-      this.loopBody.addInstructionFront(
-            ICInstructions.valueSet(this.loopVar, start));
-      if (loopCounterVar != null) {
-        this.loopBody.addVariable(loopCounterVar);
-        this.loopBody.addInstructionFront(
-            ICInstructions.valueSet(loopCounterVar, Arg.newInt(0)));
-      }
+      declareFirstIterVars();
       block.insertInline(loopBody);
       block.removeContinuation(this);
     }
@@ -725,12 +876,16 @@ public class ForeachLoops {
       long iterCount = constIterCount();
 
       if (iterCount >= 0) {
-        if (iterCount <= leafDegree) {
+        if (iterCount <= leafDegree && splitDegree != -1) {
           // Don't need to split
           splitDegree = -1;
+          anyChanged = true;
         }
       }
       assert(start != null); assert(end != null); assert(increment  != null);
+      if (anyChanged) {
+        markModified();
+      }
       return anyChanged;
     }
 
@@ -776,13 +931,17 @@ public class ForeachLoops {
         return NO_UNROLL;
       }
 
-      if (!this.unrolled && this.desiredUnroll > 1) {
-        // Unroll explicitly marked loops
-        if (this.loopCounterVar != null) {
+      if (this.loopCounterVar != null) {
+        // Unrolled copies of body would need to compute counter too
+        if (!this.unrolled && this.desiredUnroll > 1) {
           logger.warn("Can't unroll range loop with counter variable yet," +
                       " ignoring unroll annotation");
-          return NO_UNROLL;
         }
+        return NO_UNROLL;
+      }
+
+      if (!this.unrolled && this.desiredUnroll > 1) {
+        // Unroll explicitly marked loops
         return Pair.create(true, doUnroll(logger, function, outerBlock,
                                           desiredUnroll));
       } else if (expandLoops || fullUnroll) {
@@ -924,6 +1083,10 @@ public class ForeachLoops {
       unrolled.increment = bigIncr.asArg();
       unrolled.unrolled = true;
       unrolled.leafDegree = Math.max(1, unrolled.leafDegree / unrollFactor);
+      if (unrolled.minLeafDegree > 0) {
+        unrolled.minLeafDegree = Math.max(1,
+                              unrolled.minLeafDegree / unrollFactor);
+      }
 
       // clone body of unrolled multiple times
       Block orig = this.loopBody;
@@ -982,6 +1145,7 @@ public class ForeachLoops {
       o.renameVars(function, renames, RenameMode.REPLACE_VAR, true);
 
       this.fuseIntoAbstract(o, insertAtTop);
+      markModified();
     }
 
     @Override
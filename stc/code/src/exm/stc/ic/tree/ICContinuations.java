@@ -107,6 +107,17 @@ public class ICContinuations {
       }
     }
 
+    /**
+     * Record that the continuation was modified in place, see
+     * {@link Block#markModified()}.  Changes made through nested blocks are
+     * recorded by the blocks.
+     */
+    protected void markModified() {
+      if (parent != null) {
+        parent.markModified();
+      }
+    }
+
     public abstract void generate(Logger logger, CompilerBackend gen, GenInfo info);
 
     public abstract void prettyPrint(StringBuilder sb, String currentIndent);
@@ -125,15 +136,21 @@ public class ICContinuations {
      * @param renames
      * @param mode what sort of renaming
      * @param recursive recursively do replacement in inner blocks
+     * @return true if the construct itself was changed.  Changes in
+     *         inner blocks are recorded by those blocks.
      */
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode, boolean recursive) {
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode, boolean recursive) {
       if (renames.isEmpty())
-        return;
+        return false;
       if (recursive) {
         this.replaceVarsInBlocks(function, renames, mode);
       }
-      this.replaceConstructVars(renames, mode);
+      boolean changed = this.replaceConstructVars(renames, mode);
+      if (changed) {
+        markModified();
+      }
+      return changed;
     }
 
     /**
@@ -141,13 +158,16 @@ public class ICContinuations {
      * @param renames
      * @param mode
      */
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
-      renameVars(function, renames, mode, true);
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
+      return renameVars(function, renames, mode, true);
     }
 
-    protected abstract void replaceConstructVars(Map<Var, Arg> renames,
-                                                 RenameMode mode);
+    /**
+     * @return true if any construct variables were replaced
+     */
+    protected abstract boolean replaceConstructVars(Map<Var, Arg> renames,
+                                                    RenameMode mode);
 
     /**
      * For the case where a consturct redefines a variable
@@ -367,6 +387,7 @@ public class ICContinuations {
     private boolean runLast = false;
     public void setRunLast(boolean val) {
       runLast = val;
+      markModified();
     }
     public boolean runLast() {
       return runLast;
@@ -513,12 +534,14 @@ public class ICContinuations {
     public void setPassedVars(Collection<PassedVar> passedVars) {
       this.passedVars.clear();
       this.passedVars.addAll(passedVars);
+      markModified();
     }
 
     @Override
     public void setKeepOpenVars(Collection<Var> keepOpenVars) {
       this.keepOpenVars.clear();
       this.keepOpenVars.addAll(keepOpenVars);
+      markModified();
     }
 
     @Override
@@ -531,13 +554,13 @@ public class ICContinuations {
      * @param renames
      * @param mode
      */
-    public abstract void replaceConstructVars_(Map<Var, Arg> renames,
+    public abstract boolean replaceConstructVars_(Map<Var, Arg> renames,
                   RenameMode mode);
 
     @Override
-    public final void replaceConstructVars(Map<Var, Arg> renames,
+    public final boolean replaceConstructVars(Map<Var, Arg> renames,
                                             RenameMode mode) {
-      this.replaceConstructVars_(renames, mode);
+      return this.replaceConstructVars_(renames, mode);
     }
 
     /**
@@ -549,6 +572,7 @@ public class ICContinuations {
     public final void removeVars(Set<Var> removeVars) {
       removeVars_(removeVars);
       removeVarsInBlocks(removeVars);
+      markModified();
     }
 
     @Override
@@ -770,6 +794,7 @@ public class ICContinuations {
         if (loopVars.get(i).equals(var)) {
           blockingVars.set(i, true);
           this.loopContinue.setBlocking(i, true);
+          markModified();
           break;
         }
       }
@@ -779,10 +804,12 @@ public class ICContinuations {
 
     public void setLoopBreak(LoopBreak loopBreak) {
       this.loopBreak = loopBreak;
+      markModified();
     }
 
     public void setLoopContinue(LoopContinue loopContinue) {
       this.loopContinue = loopContinue;
+      markModified();
     }
 
     @Override
@@ -876,12 +903,13 @@ public class ICContinuations {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
-      ICUtil.replaceArgsInList(renames, initVals, false);
+      boolean changed = ICUtil.replaceArgsInList(renames, initVals, false);
       if (mode == RenameMode.REPLACE_VAR) {
-        ICUtil.replaceVarsInList(renames, loopVars, false);
+        changed |= ICUtil.replaceVarsInList(renames, loopVars, false);
       }
+      return changed;
     }
 
     @Override
@@ -892,6 +920,7 @@ public class ICContinuations {
           assert(!this.definedHere.get(i)) : loopVar;
           this.loopVars.set(i, newV);
           this.definedHere.set(i, true);
+          markModified();
         }
       }
     }
@@ -1037,6 +1066,7 @@ public class ICContinuations {
         if (!closedInitVals.get(i) && init.isVar()
              && closed.contains(init.getVar())) {
           closedInitVals.set(i, true); // Record for later
+          markModified();
         }
         if (!blockingVars.get(i)) {
           if (loopContinue.isLoopVarClosed(i) && closedInitVals.get(i)) {
@@ -1082,6 +1112,7 @@ public class ICContinuations {
       int index = initVals.indexOf(initVal);
       assert(index >= 0) : initVal;
       closedInitVals.set(index, true);
+      markModified();
     }
 
     @Override
@@ -1089,12 +1120,14 @@ public class ICContinuations {
       super.setPassedVars(passedVars);
       this.loopContinue.setLoopUsedVars(PassedVar.extractVars(passedVars));
       this.loopBreak.setLoopUsedVars(passedVars);
+      markModified();
     }
 
     @Override
     public void setKeepOpenVars(Collection<Var> keepOpen) {
       super.setKeepOpenVars(keepOpen);
       this.loopBreak.setKeepOpenVars(keepOpen);
+      markModified();
     }
 
     @Override
@@ -1157,6 +1190,7 @@ public class ICContinuations {
       // Reset closed info to be safe
       closedInitVals.set(index, false);
       loopContinue.setLoopVarClosed(index, false);
+      markModified();
     }
   }
 
@@ -1244,9 +1278,10 @@ public class ICContinuations {
     }
 
     @Override
-    protected void replaceConstructVars(Map<Var, Arg> renames,
+    protected boolean replaceConstructVars(Map<Var, Arg> renames,
                                         RenameMode mode) {
       // Do nothing
+      return false;
     }
 
     @Override
@@ -1390,11 +1425,12 @@ public class ICContinuations {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
-      WaitVar.replaceVars(waitVars, renames);
+      boolean changed = WaitVar.replaceVars(waitVars, renames);
 
-      ICUtil.replaceArgValsInMap(renames, props);
+      changed |= ICUtil.replaceArgValsInMap(renames, props);
+      return changed;
     }
 
 
@@ -1419,11 +1455,17 @@ public class ICContinuations {
 
     public void setTarget(ExecTarget target) {
       assert(target.isAsync());
-      this.target = target;
+      if (!target.equals(this.target)) {
+        this.target = target;
+        markModified();
+      }
     }
 
     public void setMode(WaitMode mode) {
-      this.mode = mode;
+      if (mode != this.mode) {
+        this.mode = mode;
+        markModified();
+      }
     }
 
     @Override
@@ -1505,6 +1547,7 @@ public class ICContinuations {
     public void addWaitVars(Collection<WaitVar> vars) {
       this.waitVars.addAll(vars);
       WaitVar.removeDuplicates(this.waitVars);
+      markModified();
     }
 
     @Override
@@ -1539,6 +1582,7 @@ public class ICContinuations {
         } else if ((closedVars.contains(wv.var) && !recursionRequired(wv.var))
             || recClosedVars.contains(wv.var)) {
           it.remove();
+          markModified();
         } else {
           varsLeft = true;
         }
@@ -1571,6 +1615,7 @@ public class ICContinuations {
       }
 
       updateRecursive();
+      markModified();
     }
 
     /**
@@ -1763,17 +1808,20 @@ public class ICContinuations {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
+      Arg oldCmdName = cmdName;
       cmdName = ICUtil.replaceArg(renames, cmdName, false);
+      boolean changed = ICUtil.argChanged(oldCmdName, cmdName);
 
       if (mode == RenameMode.REFERENCE ||
           mode == RenameMode.REPLACE_VAR)
       {
-        ICUtil.replaceVarsInList(renames, taskOutputs, false);
+        changed |= ICUtil.replaceVarsInList(renames, taskOutputs, false);
       }
-      ICUtil.replaceArgsInList(renames, taskArgs, false);
-      ICUtil.replaceArgValsInMap(renames, taskProps);
+      changed |= ICUtil.replaceArgsInList(renames, taskArgs, false);
+      changed |= ICUtil.replaceArgValsInMap(renames, taskProps);
+      return changed;
     }
     @Override
     public ContinuationType getType() {
@@ -83,11 +83,31 @@ public class ICInstructions {
   public static abstract class Instruction implements Statement {
     public final Opcode op;
 
+    /**
+     * Set when closed info is recorded as a side-effect of analysis,
+     * so that the modification can be recorded with the enclosing block
+     */
+    private boolean closedInfoUpdated = false;
+
     public Instruction(Opcode op) {
       super();
       this.op = op;
     }
 
+    protected void closedInfoUpdated() {
+      this.closedInfoUpdated = true;
+    }
+
+    /**
+     * Check if closed info was updated by canMakeImmediate() since last
+     * call, and reset.
+     */
+    public boolean checkClosedInfoUpdated() {
+      boolean updated = closedInfoUpdated;
+      closedInfoUpdated = false;
+      return updated;
+    }
+
 
     @Override
     public StatementType type() {
@@ -122,10 +142,11 @@ public class ICInstructions {
     /**
      * Replace instruction variables according to mode
      * @param renames
+     * @return true if the instruction was changed
      */
     @Override
-    public abstract void renameVars(FnID function, Map<Var, Arg> renames,
-                                    RenameMode mode);
+    public abstract boolean renameVars(FnID function, Map<Var, Arg> renames,
+                                       RenameMode mode);
 
     @Override
     public abstract String toString();
@@ -700,9 +721,10 @@ public class ICInstructions {
     }
 
     @Override
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
       // Don't do anything
+      return false;
     }
 
     @Override
@@ -1147,15 +1169,17 @@ public class ICInstructions {
     }
 
     @Override
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
+      boolean changed = false;
       if (mode == RenameMode.REPLACE_VAR || mode == RenameMode.REFERENCE) {
-        ICUtil.replaceVarsInList(renames, outputs, false);
+        changed |= ICUtil.replaceVarsInList(renames, outputs, false);
       }
-      ICUtil.replaceArgsInList(renames, inputs, false);
+      changed |= ICUtil.replaceArgsInList(renames, inputs, false);
       if (props != null) {
-        ICUtil.replaceArgValsInMap(renames, props);
+        changed |= ICUtil.replaceArgValsInMap(renames, props);
       }
+      return changed;
     }
 
     private boolean treatUpdInputsAsOutputs() {
@@ -1380,7 +1404,10 @@ public class ICInstructions {
         return true;
       }
       if (closedVars.contains(in.getVar())) {
-        this.closedInputs.set(i, true);
+        if (!this.closedInputs.get(i)) {
+          this.closedInputs.set(i, true);
+          closedInfoUpdated();
+        }
         return true;
       } else {
         return false;
@@ -1680,17 +1707,26 @@ public class ICInstructions {
     }
 
     @Override
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
+      Arg oldCmd = cmd;
+      Arg oldStdin = redirects.stdin;
+      Arg oldStdout = redirects.stdout;
+      Arg oldStderr = redirects.stderr;
       cmd = ICUtil.replaceArg(renames, cmd, false);
-      ICUtil.replaceArgsInList(renames, args);
-      ICUtil.replaceArgsInList(renames, inFiles);
+      boolean changed = ICUtil.argChanged(oldCmd, cmd);
+      changed |= ICUtil.replaceArgsInList(renames, args);
+      changed |= ICUtil.replaceArgsInList(renames, inFiles);
       redirects.stdin = ICUtil.replaceArg(renames, redirects.stdin, true);
       redirects.stdout = ICUtil.replaceArg(renames, redirects.stdout, true);
       redirects.stderr = ICUtil.replaceArg(renames, redirects.stderr, true);
+      changed |= ICUtil.argChanged(oldStdin, redirects.stdin) ||
+                 ICUtil.argChanged(oldStdout, redirects.stdout) ||
+                 ICUtil.argChanged(oldStderr, redirects.stderr);
       if (mode == RenameMode.REFERENCE || mode == RenameMode.REPLACE_VAR) {
-        ICUtil.replaceVarsInList(renames, outFiles, false);
+        changed |= ICUtil.replaceVarsInList(renames, outFiles, false);
       }
+      return changed;
     }
 
     @Override
@@ -1857,12 +1893,13 @@ public class ICInstructions {
     }
 
     @Override
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
-      ICUtil.replaceArgsInList(renames, newLoopVars, false);
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
+      boolean changed = ICUtil.replaceArgsInList(renames, newLoopVars, false);
       if (mode == RenameMode.REFERENCE || mode == RenameMode.REPLACE_VAR) {
-        ICUtil.replaceVarsInList(renames, loopUsedVars, true);
+        changed |= ICUtil.replaceVarsInList(renames, loopUsedVars, true);
       }
+      return changed;
     }
 
     @Override
@@ -1950,9 +1987,11 @@ public class ICInstructions {
 
       for (int i = 0; i < this.newLoopVars.size(); i++) {
         Arg v = this.newLoopVars.get(i);
-        if (v.isConst() || closedVars.contains(v.getVar())) {
+        if ((v.isConst() || closedVars.contains(v.getVar())) &&
+            !this.closedVars.get(i)) {
           // Mark as closed
           this.closedVars.set(i, true);
+          closedInfoUpdated();
         }
 
         if (this.blockingVars.get(i)) {
@@ -2068,9 +2107,10 @@ public class ICInstructions {
     }
 
     @Override
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
       // do nothing
+      return false;
     }
 
     public List<PassedVar> getLoopUsedVars() {
@@ -2241,16 +2281,19 @@ public class ICInstructions {
 
 
     @Override
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
+      boolean changed = false;
       if (mode == RenameMode.REFERENCE || mode == RenameMode.REPLACE_VAR) {
         if (output != null && renames.containsKey(this.output)) {
-          this.output = renames.get(this.output).getVar();
+          Var newOutput = renames.get(this.output).getVar();
+          changed = ICUtil.varChanged(this.output, newOutput);
+          this.output = newOutput;
         }
       }
-      ICUtil.replaceArgsInList(renames, inputs);
+      changed |= ICUtil.replaceArgsInList(renames, inputs);
       if (props != null) {
-        ICUtil.replaceArgValsInMap(renames, props);
+        changed |= ICUtil.replaceArgValsInMap(renames, props);
       }
 
       // After we replace values, see if we can check assert
@@ -2259,6 +2302,7 @@ public class ICInstructions {
           this.subop == BuiltinOpcode.ASSERT_EQ)) {
         compileTimeAssertCheck(subop, this.inputs, function);
       }
+      return changed;
     }
 
     @Override
@@ -38,8 +38,10 @@ import com.google.common.collect.Iterables;
 
 import exm.stc.common.CompilerBackend;
 import exm.stc.common.CompilerBackend.CodeGenOptions;
+import exm.stc.common.CompilerBackend.DirRefCount;
 import exm.stc.common.CompilerBackend.VarDecl;
 import exm.stc.common.Logging;
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
@@ -69,6 +71,7 @@ import exm.stc.ic.ICUtil;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.TurbineOp.RefCountOp;
 
 /**
  * This has the definitions for the top-level constructs in the intermediate
@@ -94,6 +97,70 @@ public class ICTree {
 
   public static final String indent = ICUtil.indent;
 
+  /**
+   * Wrapper around ListIterator that calls {@link #modified()} whenever
+   * the underlying list is changed through the iterator, so that
+   * modifications to the IR can be tracked.
+   */
+  static abstract class TrackedListIterator<T>
+                                    implements ListIterator<T> {
+    private final ListIterator<T> it;
+
+    TrackedListIterator(ListIterator<T> it) {
+      this.it = it;
+    }
+
+    protected abstract void modified();
+
+    @Override
+    public boolean hasNext() {
+      return it.hasNext();
+    }
+
+    @Override
+    public T next() {
+      return it.next();
+    }
+
+    @Override
+    public boolean hasPrevious() {
+      return it.hasPrevious();
+    }
+
+    @Override
+    public T previous() {
+      return it.previous();
+    }
+
+    @Override
+    public int nextIndex() {
+      return it.nextIndex();
+    }
+
+    @Override
+    public int previousIndex() {
+      return it.previousIndex();
+    }
+
+    @Override
+    public void remove() {
+      it.remove();
+      modified();
+    }
+
+    @Override
+    public void set(T e) {
+      it.set(e);
+      modified();
+    }
+
+    @Override
+    public void add(T e) {
+      it.add(e);
+      modified();
+    }
+  }
+
   public static class Program {
 
     private final GlobalConstants constants = new GlobalConstants();
@@ -120,6 +187,18 @@ public class ICTree {
      */
     private boolean checkpointRequired = false;
 
+    /**
+     * Count of modifications to program other than those inside functions
+     * or recorded by constants and global vars.
+     */
+    private long modCount = 0;
+
+    /**
+     * Total count of global modifications at last check for modification.
+     * -1 if not yet checked.
+     */
+    private long checkedModCount = -1;
+
     public Program(ForeignFunctions foreignFunctions) {
       this.foreignFunctions = foreignFunctions;
     }
@@ -188,23 +267,28 @@ public class ICTree {
 
     public void addRequiredPackage(RequiredPackage pkg) {
       required.add(pkg);
+      modCount++;
     }
 
     public void addStructType(StructType newType) {
       structTypes.add(newType);
+      modCount++;
     }
 
     public void addWorkType(WorkContext workType) {
       workTypes.add(workType);
+      modCount++;
     }
 
     public void addBuiltin(BuiltinFunction fn) {
       this.builtinFuns.add(fn);
+      modCount++;
     }
 
     public void addFunction(Function fn) {
       this.functions.add(fn);
       this.functionsByID.put(fn.id(), fn);
+      modCount++;
     }
 
     public void addFunctions(Collection<Function> c) {
@@ -242,12 +326,14 @@ public class ICTree {
           internal.set(e);
           functionsByID.remove(lastReturned.id());
           functionsByID.put(e.id(), e);
+          modCount++;
         }
 
         @Override
         public void remove() {
           internal.remove();
           functionsByID.remove(lastReturned);
+          modCount++;
         }
 
         @Override
@@ -288,12 +374,19 @@ public class ICTree {
         public void add(Function e) {
           internal.add(e);
           functionsByID.put(e.id(), e);
+          modCount++;
         }
       };
     }
 
     public ListIterator<BuiltinFunction> builtinIterator() {
-      return builtinFuns.listIterator();
+      return new TrackedListIterator<BuiltinFunction>(
+                                        builtinFuns.listIterator()) {
+        @Override
+        protected void modified() {
+          modCount++;
+        }
+      };
     }
 
     public GlobalConstants constants() {
@@ -324,6 +417,7 @@ public class ICTree {
      */
     public void requireCheckpointing() {
       this.checkpointRequired = true;
+      modCount++;
     }
 
     @Override
@@ -334,6 +428,18 @@ public class ICTree {
     }
 
     public void prettyPrint(StringBuilder out) {
+      prettyPrintGlobals(out);
+
+      for (Function f: functions) {
+        f.prettyPrint(out);
+        out.append("\n");
+      }
+    }
+
+    /**
+     * Print everything in program except for functions
+     */
+    private void prettyPrintGlobals(StringBuilder out) {
       for (RequiredPackage rp: required) {
         out.append("require " + rp.toString() + "\n");
       }
@@ -356,11 +462,39 @@ public class ICTree {
 
       globalVars.prettyPrint(out);
       out.append("\n");
+    }
+
+    /**
+     * Check which parts of the program were modified since the last call
+     * to this method.  Each function is checked separately and has
+     * its modification epoch updated.  Relies on modifications being
+     * recorded as they happen, so is cheap to call.
+     * @return number of modified functions, plus one if the set of functions
+     *          or anything else at the global level was modified.  The
+     *          first call counts everything as modified.
+     */
+    public int checkModified() {
+      int modified = 0;
 
       for (Function f: functions) {
-        f.prettyPrint(out);
-        out.append("\n");
+        if (f.checkModified()) {
+          modified++;
+        }
       }
+
+      // Counts only ever increase, so sum changes iff any count changed
+      long globalsModCount = modCount + constants.modCount +
+                             globalVars.modCount;
+      if (globalsModCount != checkedModCount) {
+        modified++;
+        // Functions may depend on globals or other functions
+        for (Function f: functions) {
+          f.epoch++;
+        }
+      }
+
+      checkedModCount = globalsModCount;
+      return modified;
     }
 
 
@@ -398,6 +532,9 @@ public class ICTree {
                     new TreeMap<Var, Arg>(), ArrayListMultimap.<Arg, Var>create());
     private final HashSet<String> usedNames = new HashSet<String>();
 
+    /** Count of modifications, see {@link Program#checkModified()} */
+    private long modCount = 0;
+
     public void add(Var var, Arg val) {
       assert(var.storage() == Alloc.GLOBAL_CONST);
       assert(var.defType() == DefType.GLOBAL_CONST);
@@ -408,6 +545,7 @@ public class ICTree {
           new STCRuntimeError("Overwriting global constant " + var.name());
 
       usedNames.add(var.name());
+      modCount++;
     }
 
     /**
@@ -440,6 +578,7 @@ public class ICTree {
 
     public void remove(Var unused) {
       globalConsts.remove(unused);
+      modCount++;
     }
 
     public Collection<Var> lookupByValue(Arg val) {
@@ -488,6 +627,8 @@ public class ICTree {
     protected final HashMap<Var, Arg> initReadRefcounts;
     protected final HashMap<Var, Arg> initWriteRefcounts;
 
+    /** Count of modifications, see {@link Program#checkModified()} */
+    protected long modCount = 0;
 
     public Variables() {
       this (new ArrayList<Var>(), new HashMap<Var, Arg>(),
@@ -517,11 +658,17 @@ public class ICTree {
     }
 
     public ListIterator<Var> variableIterator() {
-      return variables.listIterator();
+      return new TrackedListIterator<Var>(variables.listIterator()) {
+        @Override
+        protected void modified() {
+          modCount++;
+        }
+      };
     }
 
     public void addVariable(Var var) {
       variables.add(var);
+      modCount++;
     }
 
     public void addVariable(Var variable, boolean atTop) {
@@ -530,19 +677,23 @@ public class ICTree {
       } else {
         this.variables.add(variable);
       }
+      modCount++;
     }
 
     public void addAllVariables(List<Var> variables2) {
       variables.addAll(variables2);
+      modCount++;
     }
 
     public void removeVariable(Var var) {
       // Remove all
       while(variables.remove(var));
+      modCount++;
     }
 
     public void removeAllVariables(Set<Var> vars) {
       while(variables.removeAll(vars));
+      modCount++;
     }
 
     public Arg getInitReadRefcount(Var v) {
@@ -573,6 +724,7 @@ public class ICTree {
         "Tried to reassign refcount for var " + blockVar;
 
       refcountMap.put(blockVar, Arg.newInt(val));
+      modCount++;
     }
 
     /**
@@ -740,6 +892,30 @@ public class ICTree {
 
     private final HashSet<String> usedVarNames;
 
+    /**
+     * Modification epoch, incremented every time that
+     * {@link #checkModified()} finds that function was changed.
+     */
+    private long epoch = 0;
+
+    /**
+     * Count of modifications to function IR, see {@link #markModified()}
+     */
+    private long modCount = 0;
+
+    /**
+     * Value of modCount at last check for modification.
+     * -1 if not yet checked.
+     */
+    private long checkedModCount = -1;
+
+    /**
+     * Function-local optimizer passes that ran on this function without
+     * modifying it, mapped to the modification epoch at that time.
+     */
+    private final HashMap<String, Long> passFixpoints =
+                                              new HashMap<String, Long>();
+
     public Function(FnID id, List<Var> iList,
         List<Var> oList, ExecTarget mode) {
       this(id, iList, Collections.<WaitVar>emptyList(), oList,
@@ -812,6 +988,7 @@ public class ICTree {
       Var output = oList.get(i);
       if (!oListWriteOnly.contains(output)) {
         oListWriteOnly.add(output);
+        markModified();
       }
     }
 
@@ -837,6 +1014,7 @@ public class ICTree {
       Block old = this.mainBlock;
       this.mainBlock = newBlock;
       this.mainBlock.setParent(this, false);
+      markModified();
       return old;
     }
 
@@ -878,8 +1056,64 @@ public class ICTree {
       return sb.toString();
     }
 
+    /**
+     * Record that the function's IR was changed.  Blocks, continuations
+     * and the function itself call this when modified, so that
+     * {@link #checkModified()} doesn't need to inspect the IR.
+     */
+    public void markModified() {
+      modCount++;
+    }
+
+    /**
+     * @return count of modifications recorded with {@link #markModified()}
+     */
+    public long modCount() {
+      return modCount;
+    }
+
+    /**
+     * Check if the function was modified since the last check.
+     * Updates the modification epoch if so.
+     * @return true if modified or never checked before
+     */
+    public boolean checkModified() {
+      if (modCount == checkedModCount) {
+        return false;
+      }
+      checkedModCount = modCount;
+      epoch++;
+      return true;
+    }
+
+    /**
+     * @return modification epoch, incremented each time a change is
+     *         detected by {@link #checkModified()}
+     */
+    public long epoch() {
+      return epoch;
+    }
+
+    /**
+     * @param passName
+     * @return true if the named pass previously ran on this function without
+     *         modifying it, and the function wasn't modified since
+     */
+    public boolean atPassFixpoint(String passName) {
+      Long fixpointEpoch = passFixpoints.get(passName);
+      return fixpointEpoch != null && fixpointEpoch == epoch;
+    }
+
+    /**
+     * Record that the named pass ran on this function without modifying it
+     * @param passName
+     */
+    public void setPassFixpoint(String passName) {
+      passFixpoints.put(passName, epoch);
+    }
+
     public List<WaitVar> blockingInputs() {
-      return blockingInputs;
+      return Collections.unmodifiableList(blockingInputs);
     }
 
     public void addBlockingInput(WaitVar newWaitVar) {
@@ -895,11 +1129,13 @@ public class ICTree {
           // already there
           if (newWaitVar.explicit && !i.explicit) {
             it.set(newWaitVar);
+            markModified();
           }
           return;
         }
       }
       blockingInputs.add(newWaitVar);
+      markModified();
     }
 
     public ExecTarget mode() {
@@ -976,11 +1212,15 @@ public class ICTree {
 
       // Only rename if we're fully replacing
       if (mode == RenameMode.REPLACE_VAR) {
+        boolean changed = false;
         for (List<Var> varList: Arrays.asList(iList, oList, oListWriteOnly)) {
-          ICUtil.replaceVarsInList(renames, varList, false);
+          changed |= ICUtil.replaceVarsInList(renames, varList, false);
         }
 
-        WaitVar.replaceVars(blockingInputs, renames);
+        changed |= WaitVar.replaceVars(blockingInputs, renames);
+        if (changed) {
+          markModified();
+        }
       }
 
       if (recursive) {
@@ -1031,15 +1271,20 @@ public class ICTree {
       return false;
     }
 
-    public void renameVars(FnID function, Map<Var, Arg> renames,
-                           RenameMode mode) {
-      action.renameVars(function, renames, mode);
+    /**
+     * @return true if the action was changed
+     */
+    public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                              RenameMode mode) {
+      boolean changed = action.renameVars(function, renames, mode);
 
       if (mode != RenameMode.VALUE && renames.containsKey(var)) {
         Arg replacement = renames.get(var);
         assert(replacement.isVar()) : replacement;
+        changed |= ICUtil.varChanged(var, replacement.getVar());
         this.var = replacement.getVar();
       }
+      return changed;
     }
 
     @Override
@@ -1123,6 +1368,23 @@ public class ICTree {
     private void setParentFunction(Function parentFunction) {
       this.parentFunction = parentFunction;
       parentFunction.addUsedVarNames(this.variables.variables());
+      parentFunction.markModified();
+    }
+
+    /**
+     * Record that this block was modified with the function it belongs to.
+     * Does nothing if the block isn't yet part of a function: the function
+     * will be marked when the block is attached.
+     */
+    public void markModified() {
+      Block curr = this;
+      while (curr.parentFunction == null) {
+        if (curr.parentCont == null || curr.parentCont.parent() == null) {
+          return;
+        }
+        curr = curr.parentCont.parent();
+      }
+      curr.parentFunction.markModified();
     }
 
     /**
@@ -1206,6 +1468,7 @@ public class ICTree {
     public void addStatement(Statement st) {
       st.setParent(this);
       statements.add(st);
+      markModified();
     }
 
     public void addInstruction(Instruction e) {
@@ -1214,6 +1477,7 @@ public class ICTree {
 
     public void addInstructionFront(Instruction e) {
       statements.addFirst(e);
+      markModified();
     }
 
     public void addInstructions(List<Instruction> instructions) {
@@ -1225,11 +1489,13 @@ public class ICTree {
         stmt.setParent(this);
       }
       this.statements.addAll(stmts);
+      markModified();
     }
 
     public void addContinuation(Continuation c) {
       c.setParent(this);
       this.continuations.add(c);
+      markModified();
     }
 
     public List<Continuation> getContinuations() {
@@ -1242,6 +1508,7 @@ public class ICTree {
 
     public void removeContinuation(int i) {
       continuations.remove(i);
+      markModified();
     }
 
     public List<Var> variables() {
@@ -1270,9 +1537,20 @@ public class ICTree {
 
       generateBlockVariables(gen);
 
+      // Pass consecutive refcount operations to backend as batch
+      boolean batchRefCounts = Settings.getBooleanUnchecked(
+                                        Settings.OPT_BATCH_REFCOUNTS);
+      List<DirRefCount> refcounts = new ArrayList<DirRefCount>();
       for (Statement stmt: statements) {
-        stmt.generate(logger, gen, info);
+        if (batchRefCounts && stmt.type() == StatementType.INSTRUCTION &&
+            RefCountOp.isRefcountOp(stmt.instruction().op)) {
+          refcounts.add(RefCountOp.toDirRefCount(stmt.instruction()));
+        } else {
+          flushRefCounts(gen, refcounts);
+          stmt.generate(logger, gen, info);
+        }
       }
+      flushRefCounts(gen, refcounts);
 
       // Can put conditional statements at end of block, making sure
       // Ones which are marked as runLast occur after those not
@@ -1286,12 +1564,27 @@ public class ICTree {
       }
 
       for (CleanupAction cleanup: cleanupActions) {
-        cleanup.action().generate(logger, gen, info);
+        Instruction action = cleanup.action();
+        if (batchRefCounts && RefCountOp.isRefcountOp(action.op)) {
+          refcounts.add(RefCountOp.toDirRefCount(action));
+        } else {
+          flushRefCounts(gen, refcounts);
+          action.generate(logger, gen, info);
+        }
       }
+      flushRefCounts(gen, refcounts);
       logger.trace("Done with code for block of type " + this.type.toString());
 
     }
 
+    private static void flushRefCounts(CompilerBackend gen,
+                                       List<DirRefCount> refcounts) {
+      if (!refcounts.isEmpty()) {
+        gen.modifyRefCounts(new ArrayList<DirRefCount>(refcounts));
+        refcounts.clear();
+      }
+    }
+
     private void generateBlockVariables(CompilerBackend gen) {
       // Pass variable declarations as batch
       gen.declare(variables.getDeclarations());
@@ -1364,11 +1657,13 @@ public class ICTree {
       public void set(Continuation e) {
         e.setParent(Block.this);
         it.set(e);
+        markModified();
       }
 
       @Override
       public void remove() {
         it.remove();
+        markModified();
       }
 
       @Override
@@ -1405,6 +1700,7 @@ public class ICTree {
       public void add(Continuation e) {
         it.add(e);
         e.setParent(Block.this);
+        markModified();
       }
     }
 
@@ -1485,7 +1781,7 @@ public class ICTree {
     }
 
     public ListIterator<Var> variableIterator() {
-      return variables.variableIterator();
+      return track(variables.variableIterator());
     }
 
     public List<Statement> getStatements() {
@@ -1493,19 +1789,31 @@ public class ICTree {
     }
 
     public ListIterator<Statement> statementIterator() {
-      return statements.listIterator();
+      return track(statements.listIterator());
     }
 
     public ListIterator<Statement> statementIterator(int i) {
-      return statements.listIterator(i);
+      return track(statements.listIterator(i));
     }
 
     public ListIterator<Statement> statementEndIterator() {
-      return statements.listIterator(statements.size());
+      return track(statements.listIterator(statements.size()));
     }
 
     public ListIterator<CleanupAction> cleanupIterator() {
-      return cleanupActions.listIterator();
+      return track(cleanupActions.listIterator());
+    }
+
+    /**
+     * Wrap iterator over block contents so modifications are recorded
+     */
+    private <T> ListIterator<T> track(ListIterator<T> it) {
+      return new TrackedListIterator<T>(it) {
+        @Override
+        protected void modified() {
+          markModified();
+        }
+      };
     }
 
     public List<CleanupAction> getCleanups() {
@@ -1514,6 +1822,7 @@ public class ICTree {
 
     public void addCleanup(Var var, Instruction action) {
       this.cleanupActions.add(new CleanupAction(var, action));
+      markModified();
     }
 
     // Remove cleanup actions for variable
@@ -1527,6 +1836,7 @@ public class ICTree {
         CleanupAction ca = it.next();
         if (ca.var().equals(var)) {
           it.remove();
+          markModified();
           if (target != null) {
             target.addCleanup(ca.var, ca.action);
           }
@@ -1551,6 +1861,7 @@ public class ICTree {
     }
 
     private void renameInDefs(Map<Var, Arg> renames, RenameMode mode) {
+      boolean changed = false;
       ListIterator<Var> it = variables.variableIterator();
       while (it.hasNext()) {
         // The original variable and the current one
@@ -1560,27 +1871,37 @@ public class ICTree {
           if (renames.containsKey(var)) {
             Arg replacement = renames.get(var);
             if (replacement.isVar()) {
+              changed |= ICUtil.varChanged(var, replacement.getVar());
               var = replacement.getVar();
               it.set(var);
             } else {
               // value replaced with constant
               it.remove();
+              changed = true;
             }
           }
         }
       }
+      if (changed) {
+        markModified();
+      }
     }
 
     private void renameInCode(FnID function, Map<Var, Arg> renames,
           RenameMode mode, boolean recursive) {
+      boolean changed = false;
       for (Statement stmt: statements) {
         if (stmt.type() == StatementType.INSTRUCTION) {
-          stmt.instruction().renameVars(function, renames, mode);
+          // Instructions are modified in place
+          changed |= stmt.instruction().renameVars(function, renames, mode);
         } else {
           assert(stmt.type() == StatementType.CONDITIONAL);
           stmt.conditional().renameVars(function, renames, mode, recursive);
         }
       }
+      if (changed) {
+        markModified();
+      }
 
       // Rename in nested blocks
       for (Continuation c: continuations) {
@@ -1591,8 +1912,12 @@ public class ICTree {
 
     public void renameCleanupActions(FnID id, Map<Var, Arg> renames,
                                      RenameMode mode) {
+      boolean changed = false;
       for (CleanupAction a: cleanupActions) {
-        a.renameVars(id, renames, mode);
+        changed |= a.renameVars(id, renames, mode);
+      }
+      if (changed) {
+        markModified();
       }
     }
 
@@ -1609,6 +1934,8 @@ public class ICTree {
       }
 
       removeVarDeclarations(removeVars);
+      // Instructions may remove vars in place
+      markModified();
 
       ListIterator<Statement> it = statementIterator();
       while (it.hasNext()) {
@@ -1652,6 +1979,7 @@ public class ICTree {
       if (this.parentFunction != null) {
         this.parentFunction.addUsedVarNames(variables);
       }
+      markModified();
     }
 
     public void addVariable(Var variable) {
@@ -1663,6 +1991,7 @@ public class ICTree {
       if (this.parentFunction != null) {
         parentFunction.addUsedVarName(variable);
       }
+      markModified();
     }
 
     public Var declareUnmapped(Type t, String name, Alloc storage,
@@ -1691,11 +2020,13 @@ public class ICTree {
 
     public void removeContinuation(Continuation c) {
       this.continuations.remove(c);
+      markModified();
     }
 
     public void removeContinuations(
                     Collection<? extends Continuation> c) {
       this.continuations.removeAll(c);
+      markModified();
     }
 
     /**
@@ -1748,6 +2079,7 @@ public class ICTree {
         }
       }
       this.cleanupActions.addAll(b.cleanupActions);
+      markModified();
     }
 
     public void insertInline(Block b) {
@@ -1756,6 +2088,7 @@ public class ICTree {
 
     public void removeVarDeclarations(Set<Var> vars) {
       variables.removeAllVariables(vars);
+      markModified();
       ListIterator<CleanupAction> it = cleanupActions.listIterator();
       while (it.hasNext()) {
         CleanupAction a = it.next();
@@ -1799,6 +2132,7 @@ public class ICTree {
     public void replaceStatements(List<Statement> newStatements) {
       this.statements.clear();
       this.statements.addAll(newStatements);
+      markModified();
     }
 
     @Override
@@ -1882,11 +2216,13 @@ public class ICTree {
     public void modifyInitRefcount(Var blockVar, RefCountType rcType,
                                    long incr) {
       variables.modifyInitRefcount(blockVar, rcType, incr);
+      markModified();
     }
 
     public void setInitRefcount(Var blockVar, RefCountType rcType,
                                    long val) {
       variables.setInitRefcount(blockVar, rcType, val);
+      markModified();
     }
 
   }
@@ -1914,9 +2250,10 @@ public class ICTree {
      * @param function
      * @param replaceInputs
      * @param value
+     * @return true if the statement was changed
      */
-    public void renameVars(FnID function,
-                           Map<Var, Arg> replaceInputs, RenameMode value);
+    public boolean renameVars(FnID function,
+                              Map<Var, Arg> replaceInputs, RenameMode value);
   }
 
   /** State to pass around when doing code generation from SwiftIC */
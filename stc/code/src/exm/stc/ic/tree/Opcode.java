@@ -80,6 +80,8 @@ public enum Opcode {
 
   // Insert into bag
   BAG_INSERT,
+  // Create local bag
+  BAG_LOCAL_BUILD,
 
   // Create local struct
   STRUCT_LOCAL_BUILD,
@@ -225,6 +225,9 @@ public class TurbineOp extends Instruction {
     case BAG_INSERT:
       gen.bagInsert(getOutput(0), getInput(0), getInput(1));
       break;
+    case BAG_LOCAL_BUILD:
+      gen.buildBagLocal(getOutput(0), getInputs());
+      break;
     case STRUCT_CREATE_ALIAS:
       gen.structCreateAlias(getOutput(0), getInput(0).getVar(),
                             Arg.extractStrings(getInputsTail(1)));
@@ -1013,6 +1016,20 @@ public class TurbineOp extends Instruction {
     return new TurbineOp(Opcode.STRUCT_LOCAL_BUILD, struct.asList(), inputs);
   }
 
+  /**
+   * Build local bag value from elements
+   * @param bag local bag
+   * @param elems element values
+   */
+  public static Instruction bagLocalBuild(Var bag, List<Arg> elems) {
+    assert(Types.isBagLocal(bag)) : bag;
+    for (Arg elem: elems) {
+      assert(Types.isElemType(bag, elem)) : bag + " " + elem;
+    }
+    return new TurbineOp(Opcode.BAG_LOCAL_BUILD, bag.asList(),
+                         new ArrayList<Arg>(elems));
+  }
+
   public void unpackStructBuildArgs(Out<List<List<String>>> fieldPaths,
       Out<List<List<Arg>>> fieldPathsArgs,
       Out<List<Arg>> fieldVals) {
@@ -1638,13 +1655,14 @@ public class TurbineOp extends Instruction {
   }
 
   @Override
-  public void renameVars(FnID function, Map<Var, Arg> renames,
-                         RenameMode mode) {
+  public boolean renameVars(FnID function, Map<Var, Arg> renames,
+                            RenameMode mode) {
+    boolean changed = false;
     if (mode == RenameMode.VALUE) {
       // Fall through
     } else if (mode == RenameMode.REPLACE_VAR) {
       // Straightforward replacement
-      ICUtil.replaceVarsInList(renames, outputs, false);
+      changed = ICUtil.replaceVarsInList(renames, outputs, false);
     } else {
       assert(mode == RenameMode.REFERENCE);
       for (int i = 0; i < outputs.size(); i++) {
@@ -1662,16 +1680,18 @@ public class TurbineOp extends Instruction {
             Arg repl = renames.get(output);
             if (repl.isVar()) {
               outputs.set(i, repl.getVar());
+              changed |= ICUtil.varChanged(output, repl.getVar());
             }
           }
         }
       }
     }
-    renameInputs(renames);
+    changed |= renameInputs(renames);
+    return changed;
   }
 
-  public void renameInputs(Map<Var, Arg> renames) {
-     ICUtil.replaceArgsInList(renames, inputs);
+  public boolean renameInputs(Map<Var, Arg> renames) {
+     return ICUtil.replaceArgsInList(renames, inputs);
   }
 
   @Override
@@ -1727,6 +1747,7 @@ public class TurbineOp extends Instruction {
     case LOAD_STRUCT_RECURSIVE:
     case LOAD_BAG_RECURSIVE:
     case STRUCT_LOCAL_BUILD:
+    case BAG_LOCAL_BUILD:
       return false;
 
     case ARR_COPY_OUT_IMM:
@@ -2709,6 +2730,7 @@ public class TurbineOp extends Instruction {
     case ARR_LOCAL_CONTAINS:
     case CONTAINER_LOCAL_SIZE:
     case STRUCT_LOCAL_BUILD:
+    case BAG_LOCAL_BUILD:
       return ExecTarget.syncAny();
 
     case COPY_FILE_CONTENTS:
@@ -2871,6 +2893,7 @@ public class TurbineOp extends Instruction {
       case UNPACK_ARRAY_TO_FLAT:
       case UNPACK_VALUES:
       case STRUCT_LOCAL_BUILD:
+      case BAG_LOCAL_BUILD:
         return true;
 
       case WRITE_CHECKPOINT:
@@ -3024,6 +3047,7 @@ public class TurbineOp extends Instruction {
       case UNPACK_ARRAY_TO_FLAT:
       case UNPACK_VALUES:
       case STRUCT_LOCAL_BUILD:
+      case BAG_LOCAL_BUILD:
         return false;
 
       case WRITE_CHECKPOINT:
@@ -3232,8 +3256,10 @@ public class TurbineOp extends Instruction {
       case ARRAY_BUILD: {
         Var arr = getOutput(0);
         List<ValLoc> res = new ArrayList<ValLoc>();
-        // Computed value for whole array
-        res.add(ValLoc.buildResult(op, getInputs(), arr.asArg(),
+        // Computed value for whole array: include type so that arrays
+        // with same contents but different types, e.g. empty arrays,
+        // aren't merged
+        res.add(ValLoc.buildResult(op, arr.type(), getInputs(), arr.asArg(),
                        Closed.YES_NOT_RECURSIVE, IsAssign.TO_LOCATION));
         // For individual array elements
         assert(getInputs().size() % 2 == 0);
@@ -3336,6 +3362,15 @@ public class TurbineOp extends Instruction {
       case STRUCT_LOCAL_BUILD:
         // Worth optimising?
         return null;
+      case BAG_LOCAL_BUILD: {
+        Var bag = getOutput(0);
+        List<ValLoc> res = new ArrayList<ValLoc>();
+        res.add(ValLoc.buildResult(op, getInputs(), bag.asArg(),
+                       Closed.YES_NOT_RECURSIVE, IsAssign.TO_LOCATION));
+        res.add(ValLoc.makeContainerSizeCV(bag,
+                    Arg.newInt(getInputs().size()), false, IsAssign.NO));
+        return res;
+      }
       default:
         return null;
     }
@@ -4220,12 +4255,19 @@ public class TurbineOp extends Instruction {
       return isIncrement(op) || isDecrement(op);
     }
 
+    /**
+     * @return refcount operation for backend.  Consecutive operations
+     *         are normally passed to the backend as a batch by the
+     *         containing block.
+     */
+    public static DirRefCount toDirRefCount(Instruction inst) {
+      return new DirRefCount(getRCTarget(inst), getRCType(inst.op),
+                             getRefcountDir(inst.op), getRCAmount(inst));
+    }
+
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
-      // TODO: batching for reference counts?
-      gen.modifyRefCounts(Collections.singletonList(new DirRefCount(
-                    getRCTarget(this), getRCType(this.op),
-                    getRefcountDir(this.op), getRCAmount(this))));
+      gen.modifyRefCounts(Collections.singletonList(toDirRefCount(this)));
     }
 
     @Override
@@ -0,0 +1,2591 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.TypeMismatchException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.AsyncExecutor;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.LocalForeignFunction;
+import exm.stc.common.lang.Location;
+import exm.stc.common.lang.Operators;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Redirects;
+import exm.stc.common.lang.RefCounting;
+import exm.stc.common.lang.RefCounting.RefCountType;
+import exm.stc.common.lang.RequiredPackage;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.StructType.StructField;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.Typed;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
+import exm.stc.ui.ExitCode;
+
+/**
+ * Generates Java source for a program that runs in a single JVM process
+ * using the dataflow runtime in exm.stc.jvm.runtime, rather than Tcl
+ * code for Turbine.
+ *
+ * Each Swift function becomes a static method, and each asynchronous
+ * block becomes a task closure.  Shared variables are futures from
+ * exm.stc.jvm.runtime.Vars.  Local values are held in single-element
+ * arrays, so that they can be captured by closures once assigned.
+ * Aliases are held in single-element Object arrays.  As with Turbine,
+ * members of arrays of containers and container fields of structs are
+ * references, so are stored as RefVars that are set to the nested
+ * container.  Fields of nested structs are flattened into the outer
+ * struct.
+ *
+ * Write reference counts are tracked so that futures are closed at the
+ * same points as with Turbine.  Read reference counts are tracked so
+ * that large payloads (blobs and container storage) are released as soon
+ * as the last reader is done.  As with Turbine, references stored in
+ * containers and structs hold a read refcount on the referenced
+ * variable, but it is not released when the container is: those
+ * variables are left to garbage collection.
+ *
+ * Not all constructs are supported yet: unsupported ones cause an
+ * error at compile time.
+ */
+public class JVMGenerator implements CompilerBackend {
+
+  private static final String RUNTIME_PKG = "exm.stc.jvm.runtime";
+
+  private static final int INDENT = 2;
+
+  /**
+   * Library functions implemented by a runtime method with the same
+   * arguments, by Swift function name
+   */
+  private static final Map<String, String> BUILTIN_METHODS =
+                                          new HashMap<String, String>();
+
+  /** Library functions with only a void output, which is set to null */
+  private static final Set<String> VOID_BUILTINS = new HashSet<String>();
+
+  static {
+    String builtins[][] = {
+      {"trace", "Builtins.trace"}, {"printf", "Builtins.printf"},
+      {"sprintf", "Builtins.sprintf"}, {"strcat", "Builtins.strcat"},
+      {"argv", "Builtins.argv"}, {"argv_contains", "Builtins.argvContains"},
+      {"argv_accept", "Builtins.argvAccept"}, {"argc", "Builtins.argc"},
+      {"args", "Builtins.args"}, {"getenv", "Builtins.getenv"},
+      {"sleep", "Builtins.sleep"}, {"sleep_trace", "Builtins.sleepTrace"},
+      {"clock", "Builtins.clock"}, {"clock_seconds", "Builtins.clockSeconds"},
+      {"random", "Builtins.random"}, {"randint", "Builtins.randint"},
+      {"randomWorkerRank", "Builtins.randomWorkerRank"},
+      {"turbine_workers", "JVMRuntime.workers"},
+      {"assertEqual", "Builtins.assertEqual"},
+      {"assertLT", "Builtins.assertLT"}, {"assertLTE", "Builtins.assertLTE"},
+      {"log10", "Math.log10"}, {"sin", "Math.sin"}, {"cos", "Math.cos"},
+      {"tan", "Math.tan"}, {"asin", "Math.asin"}, {"acos", "Math.acos"},
+      {"atan", "Math.atan"}, {"atan2", "Math.atan2"},
+      {"find", "Builtins.find"}, {"string_count", "Builtins.count"},
+      {"isint", "Builtins.isint"}, {"replace", "Builtins.replace"},
+      {"replaceAll", "Builtins.replaceAll"},
+      {"toUpper", "Builtins.toUpper"}, {"toLower", "Builtins.toLower"},
+    };
+    for (String builtin[]: builtins) {
+      BUILTIN_METHODS.put(builtin[0], builtin[1]);
+    }
+    VOID_BUILTINS.addAll(Arrays.asList("trace", "printf", "argv_accept",
+        "sleep", "sleep_trace", "assertEqual", "assertLT", "assertLTE",
+        "make_void", "makeVoid", "propagate"));
+  }
+
+  private final Logger logger;
+  private final String timestamp;
+
+  /** Static fields for global variables */
+  private final StringBuilder globals = new StringBuilder();
+
+  /** Generated methods */
+  private final StringBuilder methods = new StringBuilder();
+
+  /** Where code is currently being added */
+  private StringBuilder point = methods;
+
+  private int indent = 1;
+
+  /**
+   * Code to add upon ending each construct, e.g. closing braces
+   */
+  private final StackLite<String> closers = new StackLite<String>();
+
+  /**
+   * Original name of current function, for error messages
+   */
+  private String currentFunction = null;
+
+  /**
+   * Aliases of array members in current function, mapped to the array.
+   * As with Turbine, read refcount changes on a member alias apply to
+   * the array.
+   */
+  private final Map<Var, Var> memberAliases = new HashMap<Var, Var>();
+
+  /** Counter to generate unique names for locals */
+  private int nextUnique = 0;
+
+  /**
+   * First valid debug symbol is 1 (0 is reserved to represent no debug
+   * symbol), as with Turbine
+   */
+  private static final int FIRST_DEBUG_SYMBOL = 1;
+
+  private int nextDebugSymbol = FIRST_DEBUG_SYMBOL;
+
+  /**
+   * Statements to register debug symbols and assign them to globals,
+   * run when class is initialized
+   */
+  private final StringBuilder debugSymbolInit = new StringBuilder();
+
+  /** Enclosing ordered loops */
+  private final StackLite<LoopInfo> loopStack = new StackLite<LoopInfo>();
+
+  /** Enclosing switch statements */
+  private final StackLite<SwitchInfo> switchStack =
+                                              new StackLite<SwitchInfo>();
+
+  /** Enclosing split range loops, for refcounts at end of leaves */
+  private final StackLite<RangeInfo> rangeStack = new StackLite<RangeInfo>();
+
+  private static class LoopInfo {
+    final String className;
+    final List<Var> loopVars;
+
+    LoopInfo(String className, List<Var> loopVars) {
+      this.className = className;
+      this.loopVars = loopVars;
+    }
+  }
+
+  private static class SwitchInfo {
+    final String switchVal;
+    final List<Integer> caseLabels;
+    final boolean hasDefault;
+    int nextCase = 1;
+
+    SwitchInfo(String switchVal, List<Integer> caseLabels,
+               boolean hasDefault) {
+      this.switchVal = switchVal;
+      this.caseLabels = caseLabels;
+      this.hasDefault = hasDefault;
+    }
+  }
+
+  private static class RangeInfo {
+    final boolean split;
+    /** Expression for iterations in leaf, if split */
+    final String leafIters;
+
+    RangeInfo(boolean split, String leafIters) {
+      this.split = split;
+      this.leafIters = leafIters;
+    }
+  }
+
+  public JVMGenerator(Logger logger, String timestamp) {
+    this.logger = logger;
+    this.timestamp = timestamp;
+  }
+
+  @Override
+  public void initialize(CodeGenOptions options,
+                         ForeignFunctions foreignFuncs) {
+    if (options.checkpointRequired()) {
+      throw unsupported("checkpointing");
+    }
+  }
+
+  @Override
+  public void finalize() {
+    assert(closers.isEmpty()) : closers;
+  }
+
+  @Override
+  public void generate(OutputStream out) throws IOException {
+    String className = className();
+    Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    w.write("// Generated by stc version " +
+            Settings.get(Settings.STC_VERSION) + "\n");
+    w.write("// date                    : " + timestamp + "\n");
+    w.write("// Input filename          : " + Settings.resolveFile(
+              Settings.get(Settings.INPUT_FILENAME)).getAbsolutePath() + "\n");
+    w.write("// Run with " + RUNTIME_PKG + " on the classpath\n\n");
+    w.write("import " + RUNTIME_PKG + ".*;\n");
+    w.write("import " + RUNTIME_PKG + ".Vars.*;\n\n");
+    w.write("@SuppressWarnings(\"unchecked\")\n");
+    w.write("class " + className + " {\n");
+    w.write(globals.toString());
+    w.write("\n");
+    w.write("  static {\n");
+    w.write(debugSymbolInit.toString());
+    w.write("  }\n\n");
+    w.write("  public static void main(String[] args) {\n");
+    w.write("    JVMRuntime.main(args, new Task() {\n");
+    w.write("      public void run() throws LogicException {\n");
+    w.write("        " + methodName(FnID.ENTRY_FUNCTION) + "();\n");
+    w.write("      }\n");
+    w.write("    });\n");
+    w.write("  }\n");
+    w.write(methods.toString());
+    w.write("}\n");
+    w.flush();
+  }
+
+  /**
+   * @return class name based on output file name, which defaults to
+   *         input file name with .java extension
+   */
+  private static String className() {
+    String file = Settings.get(Settings.OUTPUT_FILENAME);
+    if (file.length() == 0) {
+      file = Settings.get(Settings.INPUT_FILENAME);
+    }
+    String name = new File(file).getName();
+    int dot = name.indexOf('.');
+    if (dot > 0) {
+      name = name.substring(0, dot);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+    }
+    if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+      sb.insert(0, "Swift_");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Report that program uses a feature we can't generate code for.
+   * This is a limitation of the backend rather than a compiler bug, so
+   * is reported like other user errors.
+   * @return exception to throw
+   */
+  private static STCFatal unsupported(String feature) {
+    String msg = "JVM backend doesn't support " + feature + " yet";
+    Logging.getSTCLogger().debug(msg, new Throwable());
+    System.err.println("stc error:");
+    System.err.println(msg);
+    return new STCFatal(ExitCode.ERROR_USER.code());
+  }
+
+  /*
+   * Helpers to build output code
+   */
+
+  private void line(String code) {
+    for (int i = 0; i < indent * INDENT; i++) {
+      point.append(' ');
+    }
+    point.append(code).append('\n');
+  }
+
+  /**
+   * Add line that opens a block, with code to close it when popped
+   */
+  private void open(String code, String closer) {
+    line(code);
+    indent++;
+    closers.push(closer);
+  }
+
+  private void close() {
+    indent--;
+    line(closers.pop());
+  }
+
+  private String unique(String prefix) {
+    return prefix + (nextUnique++);
+  }
+
+  private static String escape(String name) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == '$') {
+        sb.append("$$");
+      } else if (c == ':') {
+        sb.append("$c");
+      } else if (c == '-') {
+        sb.append("$d");
+      } else if (c == '.') {
+        sb.append("$p");
+      } else if (Character.isJavaIdentifierPart(c)) {
+        sb.append(c);
+      } else {
+        sb.append("$u").append(Integer.toHexString(c)).append('$');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String methodName(FnID id) {
+    return "f_" + escape(id.uniqueName());
+  }
+
+  private static String varName(Var var) {
+    return "v_" + escape(var.name());
+  }
+
+  private static String stringLit(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            sb.append(String.format("\\u%04x", (int)c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String floatLit(double d) {
+    if (Double.isNaN(d)) {
+      return "Double.NaN";
+    } else if (Double.isInfinite(d)) {
+      return d > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+    }
+    return Double.toString(d);
+  }
+
+  /** Function name literal for error messages */
+  private String fnLit() {
+    return stringLit(currentFunction == null ? "<global>" : currentFunction);
+  }
+
+  private static String nameLit(Var var) {
+    return stringLit(var.name());
+  }
+
+  /*
+   * Type mapping
+   */
+
+  /**
+   * @return Java type of local value
+   */
+  private static String valueType(Type type) {
+    if (Types.isIntVal(type)) {
+      return "long";
+    } else if (Types.isFloatVal(type)) {
+      return "double";
+    } else if (Types.isStringVal(type)) {
+      return "String";
+    } else if (Types.isBoolVal(type)) {
+      return "boolean";
+    } else if (Types.isBlobVal(type)) {
+      return "java.nio.ByteBuffer";
+    } else {
+      // Void, or values not supported yet
+      return "Object";
+    }
+  }
+
+  /**
+   * @return Java class for boxed local value
+   */
+  private static String boxedType(Type type) {
+    if (Types.isIntVal(type)) {
+      return "Long";
+    } else if (Types.isFloatVal(type)) {
+      return "Double";
+    } else if (Types.isBoolVal(type)) {
+      return "Boolean";
+    } else {
+      return valueType(type);
+    }
+  }
+
+  /**
+   * @return Java class of future for shared variable
+   */
+  private static String futureType(Type type) {
+    if (Types.isInt(type) || Types.isBool(type) || Types.isVoid(type)) {
+      return "IntVar";
+    } else if (Types.isFloat(type)) {
+      return "FloatVar";
+    } else if (Types.isString(type)) {
+      return "StringVar";
+    } else if (Types.isBlob(type)) {
+      return "BlobVar";
+    } else if (Types.isFile(type)) {
+      return "FileVar";
+    } else if (Types.isRef(type)) {
+      return "RefVar<BaseVar>";
+    } else if (Types.isStruct(type)) {
+      return "StructVar";
+    } else if (Types.isArray(type)) {
+      checkArrayKey(type);
+      return "ArrayVar<Object>";
+    } else if (Types.isBag(type)) {
+      return "BagVar<Object>";
+    } else {
+      throw unsupported("variables of type " + type.typeName());
+    }
+  }
+
+  /**
+   * ArrayVar only supports integer subscripts
+   */
+  private static void checkArrayKey(Type arrayType) {
+    Type keyType = Types.arrayKeyType(arrayType);
+    if (!Types.isInt(keyType) && !Types.isIntVal(keyType)) {
+      throw unsupported("arrays with " + keyType.typeName() + " keys");
+    }
+  }
+
+  private static boolean isValue(Type type) {
+    return Types.isPrimValue(type) || Types.isContainerLocal(type) ||
+           Types.isStructLocal(type);
+  }
+
+  /**
+   * @return Java type of variable or parameter
+   */
+  private static String javaType(Var var) {
+    if (isValue(var.type())) {
+      return valueType(var.type()) + "[]";
+    } else if (var.storage() == Alloc.ALIAS) {
+      return "Object[]";
+    } else {
+      return futureType(var.type());
+    }
+  }
+
+  /**
+   * @return expression for value of local value variable
+   */
+  private static String valueExpr(Var var) {
+    assert(isValue(var.type())) : var;
+    return varName(var) + "[0]";
+  }
+
+  /**
+   * @return expression for future of shared variable
+   */
+  private static String futureExpr(Var var) {
+    assert(!isValue(var.type())) : var;
+    if (var.storage() == Alloc.ALIAS) {
+      return "((" + futureType(var.type()) + ")" + varName(var) + "[0])";
+    }
+    return varName(var);
+  }
+
+  /**
+   * Local array values are closed arrays, so are represented by the
+   * same class as array futures.
+   * @return expression for array future or local array
+   */
+  private static String arrayExpr(Var var) {
+    if (Types.isArrayLocal(var)) {
+      return "((ArrayVar<Object>)" + valueExpr(var) + ")";
+    }
+    return futureExpr(var);
+  }
+
+  /**
+   * @return expression for argument: value of local, or future
+   */
+  private static String argExpr(Arg arg) {
+    switch (arg.getKind()) {
+      case INTVAL:
+        return arg.getInt() + "L";
+      case FLOATVAL:
+        return floatLit(arg.getFloat());
+      case STRINGVAL:
+        return stringLit(arg.getString());
+      case BOOLVAL:
+        return Boolean.toString(arg.getBool());
+      case VAR:
+        Var var = arg.getVar();
+        return isValue(var.type()) ? valueExpr(var) : futureExpr(var);
+      default:
+        throw new STCRuntimeError("Unexpected arg kind " + arg.getKind());
+    }
+  }
+
+  /**
+   * @return expression for int argument
+   */
+  private static String intArgExpr(Arg arg) {
+    return "(int)(" + argExpr(arg) + ")";
+  }
+
+  /**
+   * Expression for argument to pass to a method: local values are
+   * passed in holder arrays.
+   */
+  private static String paramExpr(Arg arg) {
+    if (arg.isVar()) {
+      return varName(arg.getVar());
+    }
+    return "new " + valueType(arg.type()) + "[] {" + argExpr(arg) + "}";
+  }
+
+  private static String futureList(List<Var> vars) {
+    List<String> exprs = new ArrayList<String>();
+    for (Var var: vars) {
+      exprs.add(futureExpr(var));
+    }
+    return join(exprs);
+  }
+
+  private static String join(List<String> exprs) {
+    StringBuilder sb = new StringBuilder();
+    for (String expr: exprs) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(expr);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return expression that reads value of closed future
+   */
+  private String retrieveExpr(Var future) {
+    return retrieveExpr(future.type(), futureExpr(future), nameLit(future));
+  }
+
+  /**
+   * @param type type of future
+   * @param future expression for future
+   * @param name literal with name of variable for error messages
+   */
+  private String retrieveExpr(Type type, String future, String name) {
+    String get = future + ".get(" + fnLit() + ", " + name + ")";
+    if (Types.isBool(type)) {
+      return "(" + get + " != 0)";
+    } else if (Types.isVoid(type)) {
+      return "null";
+    } else if (Types.isInt(type) || Types.isFloat(type) ||
+               Types.isString(type) || Types.isBlob(type) ||
+               Types.isRef(type)) {
+      return get;
+    } else {
+      throw unsupported("retrieving type " + type.typeName());
+    }
+  }
+
+  /**
+   * @return statement that sets future to value and closes it
+   */
+  private String storeStmt(Var future, String value) {
+    return storeStmt(future.type(), futureExpr(future), nameLit(future),
+                     value);
+  }
+
+  private String storeStmt(Type type, String future, String name,
+                           String value) {
+    String val;
+    if (Types.isBool(type)) {
+      val = "(" + value + ") ? 1L : 0L";
+    } else if (Types.isVoid(type)) {
+      val = "0L";
+    } else if (Types.isInt(type) || Types.isFloat(type) ||
+               Types.isString(type) || Types.isBlob(type) ||
+               Types.isRef(type)) {
+      val = value;
+    } else {
+      throw unsupported("storing type " + type.typeName());
+    }
+    return future + ".set(" + fnLit() + ", " + name + ", " + val + ");";
+  }
+
+  /**
+   * Start task closure that runs once variables are closed.
+   * @param waitVars futures to wait for
+   */
+  private void startTask(List<Var> waitVars, boolean recursive) {
+    startTask(waitVars, recursive, null);
+  }
+
+  /**
+   * Start task closure that runs once variables are closed.
+   * @param waitVars futures to wait for
+   * @param props task properties, or null.  Priority and location are
+   *              honoured.
+   */
+  private void startTask(List<Var> waitVars, boolean recursive,
+                         TaskProps props) {
+    String task = unique("task");
+    line("{");
+    indent++;
+    Arg priority = props == null ? null : props.get(TaskPropKey.PRIORITY);
+    Arg rank = props == null ? null : props.get(TaskPropKey.LOC_RANK);
+    String taskArgs = task;
+    if (!Location.isAnyLocation(rank, true)) {
+      String location = unique("location");
+      line("final Location " + location + " = JVMRuntime.location(" +
+           argExpr(rank) + ", " +
+           argExpr(props.getWithDefault(TaskPropKey.LOC_STRICTNESS)) + ", " +
+           argExpr(props.getWithDefault(TaskPropKey.LOC_ACCURACY)) + ");");
+      taskArgs += ", " + (priority == null ? "Task.DEFAULT_PRIORITY" :
+                                             intArgExpr(priority)) +
+                  ", " + location;
+    } else if (priority != null) {
+      taskArgs += ", " + intArgExpr(priority);
+    }
+    String waitCall;
+    if (waitVars.isEmpty()) {
+      waitCall = "JVMRuntime.spawn(" + taskArgs + ");";
+    } else {
+      waitCall = "JVMRuntime." + (recursive ? "waitForRecursive" : "waitFor")
+               + "(" + taskArgs + ", " + futureList(waitVars) + ");";
+    }
+    closers.push(waitCall);
+    open("Task " + task + " = new Task() {", "};");
+    open("public void run() throws LogicException {", "}");
+  }
+
+  private void endTask() {
+    close(); // run()
+    close(); // class
+    line(closers.pop()); // spawn
+    indent--;
+    line("}");
+  }
+
+  @Override
+  public void requirePackage(RequiredPackage pkg) {
+    // Builtins are part of runtime
+  }
+
+  @Override
+  public void addGlobalConst(Var var, Arg val) {
+    String init;
+    switch (val.getKind()) {
+      case INTVAL:
+        init = "new IntVar(0, " + argExpr(val) + ")";
+        break;
+      case BOOLVAL:
+        init = "new IntVar(0, " + (val.getBool() ? "1L" : "0L") + ")";
+        break;
+      case FLOATVAL:
+        init = "new FloatVar(0, " + argExpr(val) + ")";
+        break;
+      case STRINGVAL:
+        init = "new StringVar(0, " + argExpr(val) + ")";
+        break;
+      default:
+        throw new STCRuntimeError("Non-constant oparg type " + val.getKind());
+    }
+    globals.append("  static final " + futureType(var.type()) + " " +
+                   varName(var) + " = " + init + ";\n");
+  }
+
+  @Override
+  public void declareGlobalVars(List<VarDecl> vars) {
+    for (VarDecl decl: vars) {
+      globals.append("  static final " + javaType(decl.var) + " " +
+                     varName(decl.var) + " = " + createExpr(decl) + ";\n");
+      if (hasDebugSymbol(decl.var)) {
+        int symbol = nextDebugSymbol(decl.var);
+        debugSymbolInit.append("    " + varName(decl.var) +
+                               ".setDebugSymbol(" + symbol + ");\n");
+      }
+    }
+  }
+
+  @Override
+  public void declareStructType(StructType structType) {
+    // Structs are represented generically
+  }
+
+  @Override
+  public void declareWorkType(WorkContext workType) {
+    // All tasks run in same pool of workers
+  }
+
+  @Override
+  public void defineForeignFunction(FnID name, FunctionType type,
+        LocalForeignFunction localImpl, WrappedForeignFunction wrappedImpl) {
+    // Builtins implemented in runtime: checked when called
+  }
+
+  @Override
+  public void startFunction(FnID id, List<Var> outArgs, List<Var> inArgs,
+                            ExecTarget mode) {
+    assert(point == methods);
+    currentFunction = id.originalName();
+    memberAliases.clear();
+    List<String> params = new ArrayList<String>();
+    for (Var v: outArgs) {
+      params.add("final " + javaType(v) + " " + varName(v));
+    }
+    for (Var v: inArgs) {
+      params.add("final " + javaType(v) + " " + varName(v));
+    }
+    line("");
+    line("// " + id.uniqueName());
+    open("static void " + methodName(id) + "(" + join(params) +
+         ") throws LogicException {", "}");
+  }
+
+  @Override
+  public void endFunction() {
+    close();
+    currentFunction = null;
+  }
+
+  @Override
+  public void declare(List<VarDecl> decls) {
+    for (VarDecl decl: decls) {
+      Var var = decl.var;
+      if (var.storage().isGlobal()) {
+        // Already declared as static field
+        continue;
+      }
+      line("final " + javaType(var) + " " + varName(var) + " = " +
+           createExpr(decl) + ";");
+      if (hasDebugSymbol(var)) {
+        line(varName(var) + ".setDebugSymbol(" + nextDebugSymbol(var) +
+             ");");
+      }
+      if (decl.initReaders != null && var.storage() != Alloc.ALIAS &&
+          !(decl.initReaders.isInt() && decl.initReaders.getInt() == 1)) {
+        // Futures start with one reader
+        incrReaders(var, intArgExpr(decl.initReaders) + " - 1");
+      }
+    }
+  }
+
+  private static boolean hasDebugSymbol(Var var) {
+    return !isValue(var.type()) && var.storage() != Alloc.ALIAS;
+  }
+
+  /**
+   * Register a new debug symbol for variable, so that runtime errors such
+   * as deadlocks can name it
+   * @return the symbol
+   */
+  private int nextDebugSymbol(Var var) {
+    int symbol = nextDebugSymbol++;
+    debugSymbolInit.append("    JVMRuntime.addDebugSymbol(" + symbol + ", " +
+        nameLit(var) + ", " +
+        stringLit(var.provenance().conciseFormat()) + ");\n");
+    return symbol;
+  }
+
+  private String createExpr(VarDecl decl) {
+    Var var = decl.var;
+    if (isValue(var.type())) {
+      return "new " + valueType(var.type()) + "[1]";
+    } else if (var.storage() == Alloc.ALIAS) {
+      return "new Object[1]";
+    }
+    String writers = decl.initWriters == null ? "1" :
+                     intArgExpr(decl.initWriters);
+    return newVarExpr(var.type(), writers);
+  }
+
+  /**
+   * @param writers expression for initial writers count
+   * @return expression that creates future of type
+   */
+  private static String newVarExpr(Type type, String writers) {
+    if (Types.isStruct(type)) {
+      return "new StructVar(" + writers + ", " + flatFieldCount(type) + ")";
+    }
+    return "new " + futureType(type) + "(" + writers + ")";
+  }
+
+  @Override
+  public void startNestedBlock() {
+    open("{", "}");
+  }
+
+  @Override
+  public void endNestedBlock() {
+    close();
+  }
+
+  @Override
+  public void addComment(String comment) {
+    for (String l: comment.split("\n")) {
+      line("// " + l);
+    }
+  }
+
+  @Override
+  public void startIfStatement(Arg condition, boolean hasElse) {
+    String cond = argExpr(condition);
+    if (condition.isImmInt()) {
+      cond = cond + " != 0";
+    }
+    open("if (" + cond + ") {", "}");
+  }
+
+  @Override
+  public void startElseBlock() {
+    indent--;
+    line("} else {");
+    indent++;
+  }
+
+  @Override
+  public void endIfStatement() {
+    close();
+  }
+
+  @Override
+  public void startSwitch(Arg switchVar, List<Integer> caseLabels,
+                          boolean hasDefault) {
+    String val = unique("switch");
+    line("{");
+    indent++;
+    line("final long " + val + " = " + argExpr(switchVar) + ";");
+    SwitchInfo info = new SwitchInfo(val, caseLabels, hasDefault);
+    switchStack.push(info);
+    if (caseLabels.isEmpty()) {
+      // Only default
+      open("{", "}");
+    } else {
+      open("if (" + val + " == " + caseLabels.get(0) + "L) {", "}");
+    }
+  }
+
+  @Override
+  public void endCase() {
+    SwitchInfo info = switchStack.peek();
+    int next = info.nextCase++;
+    if (next < info.caseLabels.size()) {
+      indent--;
+      line("} else if (" + info.switchVal + " == " +
+           info.caseLabels.get(next) + "L) {");
+      indent++;
+    } else if (next == info.caseLabels.size() && info.hasDefault &&
+               !info.caseLabels.isEmpty()) {
+      indent--;
+      line("} else {");
+      indent++;
+    }
+  }
+
+  @Override
+  public void endSwitch() {
+    switchStack.pop();
+    close();
+    indent--;
+    line("}");
+  }
+
+  @Override
+  public void startForeachLoop(String loopName, Var container,
+      Var memberVar, Var loopCountVar, int splitDegree, int leafDegree,
+      int minLeafDegree, boolean arrayClosed, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> accumulateBags) {
+    // Bag inserts are cheap in-memory operations: accumulateBags is ignored
+    if (!Types.isArray(container) && !Types.isArrayLocal(container)) {
+      throw unsupported("foreach loop over " + container.type().typeName());
+    }
+    String arr = arrayExpr(container);
+    String keys = unique("keys");
+    line("{");
+    indent++;
+    line("final long[] " + keys + " = " + arr + ".keys();");
+    String iters = keys + ".length";
+    handleRefcounts(constIncrs, perIterIncrs, iters, false);
+
+    String ix = startRange(loopName, "0L", "(" + iters + " - 1L)", "1L",
+                           splitDegree, leafDegree, minLeafDegree);
+    line("final long key_" + ix + " = " + keys + "[(int)" + ix + "];");
+    if (loopCountVar != null) {
+      line("final long[] " + varName(loopCountVar) + " = {key_" + ix + "};");
+    }
+    String member = arr + ".getMember(key_" + ix + ")";
+    if (refMembers(container) && !Types.isRef(memberVar)) {
+      member = derefMember(member, nameLit(container));
+    }
+    line("final " + javaType(memberVar) + " " + varName(memberVar) + " = " +
+         memberParam(memberVar, member) + ";");
+  }
+
+  /**
+   * @return expression to initialize variable from container member
+   */
+  private static String memberParam(Var var, String member) {
+    if (isValue(var.type())) {
+      return "{(" + boxedType(var.type()) + ")" + member + "}";
+    } else if (var.storage() == Alloc.ALIAS) {
+      return "{" + member + "}";
+    } else {
+      return "(" + futureType(var.type()) + ")" + member;
+    }
+  }
+
+  @Override
+  public void endForeachLoop(int splitDegree, boolean arrayClosed,
+                             List<RefCount> perIterDecrs) {
+    endRange(perIterDecrs);
+    indent--;
+    line("}");
+  }
+
+  @Override
+  public void startRangeLoop(String loopName, Var loopVar, Var countVar,
+      Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
+      int minLeafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> accumulateBags) {
+    // Bag inserts are cheap in-memory operations: accumulateBags is ignored
+    String lo = unique("lo"), hi = unique("hi"), inc = unique("inc");
+    String iters = unique("iters");
+    line("{");
+    indent++;
+    if (start.isImmInt()) {
+      line("final long " + lo + " = " + argExpr(start) + ";");
+      line("final long " + hi + " = " + argExpr(end) + ";");
+      line("final long " + inc + " = " + argExpr(increment) + ";");
+      line("final long " + iters + " = JVMRuntime.rangeIters(" + lo + ", " +
+           hi + ", " + inc + ");");
+      handleRefcounts(constIncrs, perIterIncrs, iters, false);
+      String i = startRange(loopName, lo, hi, inc, splitDegree, leafDegree,
+                            minLeafDegree);
+      line("final long[] " + varName(loopVar) + " = {" + i + "};");
+      if (countVar != null) {
+        line("final long[] " + varName(countVar) + " = {(" + i + " - " + lo +
+             ") / " + inc + "};");
+      }
+    } else {
+      assert(start.isImmFloat()) : "Invalid range loop type " + start.type();
+      line("final double " + lo + " = " + argExpr(start) + ";");
+      line("final double " + hi + " = " + argExpr(end) + ";");
+      line("final double " + inc + " = " + argExpr(increment) + ";");
+      // Empty if lo > hi, as for ints
+      line("final long " + iters + " = " + lo + " > " + hi + " ? 0L : " +
+           "Math.max(0L, (long)Math.floor((" + hi + " - " + lo + " + " +
+           inc + ") / " + inc + "));");
+      handleRefcounts(constIncrs, perIterIncrs, iters, false);
+      String i = startRange(loopName, "0L", iters + " - 1L", "1L",
+                            splitDegree, leafDegree, minLeafDegree);
+      line("final double[] " + varName(loopVar) + " = {" + lo + " + " + inc +
+           " * " + i + "};");
+      if (countVar != null) {
+        line("final long[] " + varName(countVar) + " = {" + i + "};");
+      }
+    }
+  }
+
+  @Override
+  public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrs) {
+    endRange(perIterDecrs);
+    indent--;
+    line("}");
+  }
+
+  /**
+   * Start loop over integer range, split into tasks if requested
+   * @return name of iteration variable
+   */
+  private String startRange(String loopName, String lo, String hi,
+      String inc, int splitDegree, int leafDegree, int minLeafDegree) {
+    String i = unique("i");
+    line("// " + loopName);
+    if (splitDegree > 0) {
+      String leafLo = unique("leafLo"), leafHi = unique("leafHi");
+      String leafInc = unique("leafInc");
+      open("JVMRuntime.forRange(" + lo + ", " + hi + ", " + inc + ", " +
+          splitDegree + ", " + leafDegree + ", " + minLeafDegree +
+          ", new JVMRuntime.RangeBody() {",
+          "});");
+      open("public void run(long " + leafLo + ", long " + leafHi + ", long " +
+           leafInc + ") throws LogicException {", "}");
+      open("for (long " + i + " = " + leafLo + "; " + i + " <= " + leafHi +
+           "; " + i + " += " + leafInc + ") {", "}");
+      rangeStack.push(new RangeInfo(true, "JVMRuntime.rangeIters(" + leafLo +
+                                    ", " + leafHi + ", " + leafInc + ")"));
+    } else {
+      open("for (long " + i + " = " + lo + "; " + i + " <= " + hi + "; " +
+           i + " += " + inc + ") {", "}");
+      rangeStack.push(new RangeInfo(false, null));
+    }
+    return i;
+  }
+
+  private void endRange(List<RefCount> perIterDecrs) {
+    RangeInfo info = rangeStack.pop();
+    close(); // for loop
+    if (info.split) {
+      handleRefcounts(null, perIterDecrs, info.leafIters, true);
+      close(); // run()
+      close(); // forRange()
+    }
+  }
+
+  /**
+   * Modify refcounts by multiple of number of iterations.
+   */
+  private void handleRefcounts(ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> multipliedIncrs, String multiplier, boolean decrement) {
+    for (RefCount rc: multipliedIncrs) {
+      String amount = "(" + argExpr(rc.amount) + ") * " + multiplier;
+      if (constIncrs != null) {
+        for (RefCount constRC: constIncrs.get(rc.var)) {
+          if (constRC.type == rc.type) {
+            amount += " + (" + argExpr(constRC.amount) + ")";
+          }
+        }
+      }
+      if (decrement) {
+        amount = "-(" + amount + ")";
+      }
+      if (rc.type == RefCountType.WRITERS) {
+        line(futureExpr(rc.var) + ".incrWriters(" + fnLit() + ", " +
+             nameLit(rc.var) + ", (int)(" + amount + "));");
+      } else {
+        incrReaders(rc.var, "(int)(" + amount + ")");
+      }
+    }
+  }
+
+  /**
+   * Emit change to read refcount, if tracked for variable
+   * @param amount expression for change, negative to decrement
+   */
+  private void incrReaders(Var var, String amount) {
+    if (memberAliases.containsKey(var)) {
+      var = memberAliases.get(var);
+    }
+    if (Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING) &&
+        !isValue(var.type()) && RefCounting.trackReadRefCount(var)) {
+      line(futureExpr(var) + ".incrReaders(" + fnLit() + ", " +
+           nameLit(var) + ", " + amount + ");");
+    }
+  }
+
+  /**
+   * Emit read refcount decrement, unless amount is null or zero
+   */
+  private void decrReaders(Var var, Arg amount) {
+    if (amount != null && !(amount.isInt() && amount.getInt() == 0)) {
+      incrReaders(var, "-" + intArgExpr(amount));
+    }
+  }
+
+  @Override
+  public void startWaitStatement(String procName, List<Var> waitVars,
+      List<Var> usedVars, boolean recursive, ExecTarget target,
+      TaskProps props) {
+    line("// " + procName);
+    if (waitVars.isEmpty() && !target.isAsync()) {
+      open("{", "}");
+      closers.push(null);
+    } else {
+      startTask(waitVars, recursive, props);
+    }
+  }
+
+  @Override
+  public void endWaitStatement() {
+    if (closers.peek() == null) {
+      closers.pop();
+      close();
+    } else {
+      endTask();
+    }
+  }
+
+  @Override
+  public void startAsyncExec(String procName, List<Var> passIn,
+      AsyncExecutor executor, Arg cmdName, List<Var> taskOutputs,
+      List<Arg> taskArgs, Map<String, Arg> taskProps,
+      boolean hasContinuation) {
+    throw unsupported("async executor " + executor);
+  }
+
+  @Override
+  public void endAsyncExec(boolean hasContinuation) {
+    throw unsupported("async executors");
+  }
+
+  @Override
+  public void startLoop(String loopName, List<Var> loopVars,
+      List<Arg> initVals, List<Var> usedVariables,
+      List<Var> initWaitVars, boolean simpleLoop) {
+    // Loop is a local class with a method for each iteration, which can
+    // capture variables from enclosing scope.  Iterations are spawned
+    // as tasks, so that long loops don't grow the stack.
+    String className = unique("Loop_" + escape(loopName) + "_");
+    List<String> params = new ArrayList<String>();
+    for (Var v: loopVars) {
+      params.add("final " + javaType(v) + " " + varName(v));
+    }
+    List<String> initExprs = new ArrayList<String>();
+    for (Arg init: initVals) {
+      initExprs.add(paramExpr(init));
+    }
+
+    line("// " + loopName);
+    open("class " + className + " {", "}");
+    open("void iter(" + join(params) + ") throws LogicException {", "}");
+
+    // Start first iteration after loop class is defined
+    String startTask = unique("task");
+    StringBuilder start = new StringBuilder();
+    start.append("Task " + startTask + " = new Task() { " +
+        "public void run() throws LogicException { new " + className +
+        "().iter(" + join(initExprs) + "); } };\n");
+    if (initWaitVars.isEmpty()) {
+      start.append("JVMRuntime.spawn(" + startTask + ");");
+    } else {
+      start.append("JVMRuntime.waitFor(" + startTask + ", " +
+                   futureList(initWaitVars) + ");");
+    }
+    closers.push(start.toString());
+    loopStack.push(new LoopInfo(className, loopVars));
+  }
+
+  @Override
+  public void loopContinue(List<Arg> newVals, List<Var> usedVariables,
+                           List<Boolean> blockingVars) {
+    LoopInfo loop = loopStack.peek();
+    assert(loop.loopVars.size() == newVals.size());
+    List<String> args = new ArrayList<String>();
+    List<Var> waitVars = new ArrayList<Var>();
+    for (int i = 0; i < newVals.size(); i++) {
+      Arg newVal = newVals.get(i);
+      args.add(paramExpr(newVal));
+      if (blockingVars.get(i) && newVal.isVar()) {
+        waitVars.add(newVal.getVar());
+      }
+    }
+    startTask(waitVars, false);
+    line("new " + loop.className + "().iter(" + join(args) + ");");
+    endTask();
+  }
+
+  @Override
+  public void loopBreak(List<Var> loopUsedVars, List<Var> keepOpenVars) {
+    // Nothing: iteration method returns
+  }
+
+  @Override
+  public void endLoop() {
+    loopStack.pop();
+    String start = closers.pop();
+    close(); // iter()
+    close(); // class
+    line("{");
+    for (String l: start.split("\n")) {
+      line("  " + l);
+    }
+    line("}");
+  }
+
+  @Override
+  public void modifyRefCounts(List<DirRefCount> refcounts) {
+    for (DirRefCount rc: refcounts) {
+      if (rc.type == RefCountType.WRITERS &&
+          RefCounting.trackWriteRefCount(rc.var)) {
+        String amount = intArgExpr(rc.amount);
+        if (rc.dir == RCDir.DECR) {
+          amount = "-" + amount;
+        }
+        line(futureExpr(rc.var) + ".incrWriters(" + fnLit() + ", " +
+             nameLit(rc.var) + ", " + amount + ");");
+      } else if (rc.type == RefCountType.READERS) {
+        String amount = intArgExpr(rc.amount);
+        if (rc.dir == RCDir.DECR) {
+          amount = "-" + amount;
+        }
+        incrReaders(rc.var, amount);
+      }
+    }
+  }
+
+  @Override
+  public void localOp(BuiltinOpcode op, Var out, List<Arg> in) {
+    List<String> inExprs = new ArrayList<String>();
+    for (Arg arg: in) {
+      inExprs.add(argExpr(arg));
+    }
+    emitOp(op, out == null ? null : valueExpr(out),
+           out == null ? null : out.type(), inExprs);
+  }
+
+  @Override
+  public void asyncOp(BuiltinOpcode op, Var out, List<Arg> in,
+                      TaskProps props) {
+    List<Var> waitVars = new ArrayList<Var>();
+    for (Arg arg: in) {
+      if (arg.isVar() && !isValue(arg.getVar().type())) {
+        waitVars.add(arg.getVar());
+      }
+    }
+    startTask(waitVars, false, props);
+    List<String> inExprs = new ArrayList<String>();
+    for (Arg arg: in) {
+      if (arg.isVar() && !isValue(arg.getVar().type())) {
+        inExprs.add(retrieveExpr(arg.getVar()));
+      } else {
+        inExprs.add(argExpr(arg));
+      }
+    }
+    if (out == null) {
+      emitOp(op, null, null, inExprs);
+    } else {
+      Type outVal = Types.retrievedType(out);
+      String result = unique("result");
+      line("final " + valueType(outVal) + "[] " + result + " = new " +
+           valueType(outVal) + "[1];");
+      emitOp(op, result + "[0]", outVal, inExprs);
+      line(storeStmt(out, result + "[0]"));
+    }
+    releaseInputs(in);
+    endTask();
+  }
+
+  /**
+   * Release read refcounts passed in to task for inputs, once read
+   */
+  private void releaseInputs(List<Arg> inputs) {
+    for (Arg arg: inputs) {
+      if (arg.isVar()) {
+        incrReaders(arg.getVar(), "-1");
+      }
+    }
+  }
+
+  /**
+   * Emit code for builtin operation on local values
+   * @param out expression to assign, or null if no output
+   * @param outType type of local value output
+   */
+  private void emitOp(BuiltinOpcode op, String out, Type outType,
+                      List<String> in) {
+    String expr;
+    switch (op) {
+      case PLUS_INT: case PLUS_FLOAT:
+        expr = binOp(in, "+");
+        break;
+      case MINUS_INT: case MINUS_FLOAT:
+        expr = binOp(in, "-");
+        break;
+      case MULT_INT: case MULT_FLOAT:
+        expr = binOp(in, "*");
+        break;
+      case DIV_FLOAT:
+        expr = binOp(in, "/");
+        break;
+      case DIV_INT:
+        expr = call("Builtins.divInt", in);
+        break;
+      case MOD_INT:
+        expr = call("Builtins.modInt", in);
+        break;
+      case DIRCAT:
+        expr = call("Builtins.dircat", in);
+        break;
+      case NEGATE_INT: case NEGATE_FLOAT:
+        expr = "-(" + in.get(0) + ")";
+        break;
+      case POW_INT:
+        expr = "Math.pow((double)(" + in.get(0) + "), (double)(" + in.get(1) +
+               "))";
+        break;
+      case POW_FLOAT:
+        expr = call("Math.pow", in);
+        break;
+      case MAX_INT: case MAX_FLOAT:
+        expr = call("Math.max", in);
+        break;
+      case MIN_INT: case MIN_FLOAT:
+        expr = call("Math.min", in);
+        break;
+      case ABS_INT: case ABS_FLOAT:
+        expr = call("Math.abs", in);
+        break;
+      case EQ_INT: case EQ_FLOAT: case EQ_BOOL:
+        expr = binOp(in, "==");
+        break;
+      case NEQ_INT: case NEQ_FLOAT: case NEQ_BOOL: case XOR:
+        expr = binOp(in, "!=");
+        break;
+      case GT_INT: case GT_FLOAT:
+        expr = binOp(in, ">");
+        break;
+      case LT_INT: case LT_FLOAT:
+        expr = binOp(in, "<");
+        break;
+      case GTE_INT: case GTE_FLOAT:
+        expr = binOp(in, ">=");
+        break;
+      case LTE_INT: case LTE_FLOAT:
+        expr = binOp(in, "<=");
+        break;
+      case EQ_STRING:
+        expr = "(" + in.get(0) + ").equals(" + in.get(1) + ")";
+        break;
+      case NEQ_STRING:
+        expr = "!(" + in.get(0) + ").equals(" + in.get(1) + ")";
+        break;
+      case NOT:
+        expr = "!(" + in.get(0) + ")";
+        break;
+      case AND:
+        expr = binOp(in, "&&");
+        break;
+      case OR:
+        expr = binOp(in, "||");
+        break;
+      case STRCAT:
+        expr = call("Builtins.strcat", in);
+        break;
+      case SUBSTRING:
+        expr = call("Builtins.substring", in);
+        break;
+      case COPY_INT: case COPY_FLOAT: case COPY_BOOL: case COPY_STRING:
+      case COPY_BLOB: case COPY_VOID:
+        expr = in.get(0);
+        break;
+      case FLOOR:
+        expr = call("Math.floor", in);
+        break;
+      case CEIL:
+        expr = call("Math.ceil", in);
+        break;
+      case ROUND:
+        expr = call("Math.rint", in);
+        break;
+      case INTTOFLOAT:
+        expr = "(double)(" + in.get(0) + ")";
+        break;
+      case FLOATTOINT:
+        expr = "(long)(" + in.get(0) + ")";
+        break;
+      case PARSE_INT:
+        expr = "Long.parseLong((" + in.get(0) + ").trim(), " +
+               (in.size() > 1 ? "(int)(" + in.get(1) + ")" : "10") + ")";
+        break;
+      case PARSE_FLOAT:
+        expr = "Double.parseDouble((" + in.get(0) + ").trim())";
+        break;
+      case INTTOSTR: case FLOATTOSTR:
+        expr = "String.valueOf(" + in.get(0) + ")";
+        break;
+      case LOG:
+        expr = call("Math.log", in);
+        break;
+      case EXP:
+        expr = call("Math.exp", in);
+        break;
+      case SQRT:
+        expr = call("Math.sqrt", in);
+        break;
+      case IS_NAN:
+        expr = call("Double.isNaN", in);
+        break;
+      case SPRINTF:
+        expr = call("Builtins.sprintf", in);
+        break;
+      case ASSERT:
+        line(call("Builtins.assertTrue", in) + ";");
+        return;
+      case ASSERT_EQ:
+        line(call("Builtins.assertEqual", in) + ";");
+        return;
+      default:
+        throw unsupported("operation " + op);
+    }
+
+    if (out == null) {
+      throw new STCRuntimeError("No output for " + op);
+    }
+    if (Types.isIntVal(outType) &&
+        (op == BuiltinOpcode.FLOOR || op == BuiltinOpcode.CEIL ||
+         op == BuiltinOpcode.ROUND)) {
+      expr = "(long)" + expr;
+    }
+    line(out + " = " + expr + ";");
+  }
+
+  private static String binOp(List<String> in, String op) {
+    assert(in.size() == 2) : in;
+    return "(" + in.get(0) + ") " + op + " (" + in.get(1) + ")";
+  }
+
+  private static String call(String fn, List<String> args) {
+    return fn + "(" + join(args) + ")";
+  }
+
+  @Override
+  public void callForeignFunctionLocal(FnID id, List<Var> outputs,
+                                       List<Arg> inputs) {
+    List<String> inExprs = new ArrayList<String>();
+    for (Arg arg: inputs) {
+      inExprs.add(argExpr(arg));
+    }
+    List<String> outExprs = new ArrayList<String>();
+    for (Var out: outputs) {
+      outExprs.add(valueExpr(out));
+    }
+    emitBuiltin(id, outExprs, inExprs);
+  }
+
+  @Override
+  public void callForeignFunctionWrapped(FnID id, List<Var> outputs,
+      List<Arg> inputs, TaskProps props) {
+    List<Var> waitVars = new ArrayList<Var>();
+    for (Arg arg: inputs) {
+      if (arg.isVar() && !isValue(arg.getVar().type())) {
+        waitVars.add(arg.getVar());
+      }
+    }
+    startTask(waitVars, false, props);
+    List<String> inExprs = new ArrayList<String>();
+    for (Arg arg: inputs) {
+      if (arg.isVar() && !isValue(arg.getVar().type())) {
+        inExprs.add(retrieveExpr(arg.getVar()));
+      } else {
+        inExprs.add(argExpr(arg));
+      }
+    }
+    List<String> results = new ArrayList<String>();
+    List<String> outExprs = new ArrayList<String>();
+    for (Var out: outputs) {
+      String result = unique("result");
+      String type = valueType(Types.retrievedType(out));
+      line("final " + type + "[] " + result + " = new " + type + "[1];");
+      results.add(result);
+      outExprs.add(result + "[0]");
+    }
+    emitBuiltin(id, outExprs, inExprs);
+    for (int i = 0; i < outputs.size(); i++) {
+      line(storeStmt(outputs.get(i), results.get(i) + "[0]"));
+    }
+    releaseInputs(inputs);
+    endTask();
+  }
+
+  /**
+   * Emit call to builtin function implemented in runtime
+   */
+  private void emitBuiltin(FnID id, List<String> out, List<String> in) {
+    String name = id.originalName();
+    String expr;
+    if (BUILTIN_METHODS.containsKey(name)) {
+      expr = call(BUILTIN_METHODS.get(name), in);
+    } else if (name.equals("log") && in.size() == 2) {
+      expr = call("Builtins.logBase", in);
+    } else if (name.equals("strlen") || name.equals("length")) {
+      expr = "(long)(" + in.get(0) + ").length()";
+    } else if (name.equals("zero")) {
+      expr = "0L";
+    } else if (VOID_BUILTINS.contains(name)) {
+      // Only waits for inputs
+      expr = null;
+    } else {
+      throw unsupported("foreign function " + name);
+    }
+
+    if (out.isEmpty()) {
+      if (expr != null) {
+        line(expr + ";");
+      }
+    } else if (out.size() == 1) {
+      if (VOID_BUILTINS.contains(name)) {
+        // Output is void signal
+        if (expr != null) {
+          line(expr + ";");
+        }
+        line(out.get(0) + " = null;");
+      } else {
+        line(out.get(0) + " = " + expr + ";");
+      }
+    } else {
+      throw unsupported("multiple outputs from " + name);
+    }
+  }
+
+  @Override
+  public void functionCall(FnID id, List<Var> outputs, List<Arg> inputs,
+      List<Boolean> blockOn, ExecTarget mode, TaskProps props) {
+    List<String> args = new ArrayList<String>();
+    for (Var out: outputs) {
+      args.add(varName(out));
+    }
+    for (Arg in: inputs) {
+      args.add(paramExpr(in));
+    }
+    String callStmt = methodName(id) + "(" + join(args) + ");";
+
+    if (mode.isAsync()) {
+      List<Var> waitVars = new ArrayList<Var>();
+      for (int i = 0; i < inputs.size(); i++) {
+        if (inputs.get(i).isVar() && blockOn.get(i)) {
+          waitVars.add(inputs.get(i).getVar());
+        }
+      }
+      startTask(waitVars, false, props);
+      line(callStmt);
+      endTask();
+    } else {
+      line(callStmt);
+    }
+  }
+
+  @Override
+  public void execExternal(Arg cmd, List<Arg> args, List<Var> outFiles,
+      List<Arg> inFiles, Redirects<Arg> redirects, boolean hasSideEffects,
+      boolean deterministic) {
+    throw unsupported("app functions");
+  }
+
+  @Override
+  public void assignScalar(Var dst, Arg src) {
+    if (Types.isBlob(dst)) {
+      // Future owns its buffer, separate from local value
+      line(storeStmt(dst, "BlobPool.copy(" + argExpr(src) + ")"));
+    } else {
+      line(storeStmt(dst, argExpr(src)));
+    }
+  }
+
+  @Override
+  public void retrieveScalar(Var dst, Var src, Arg decr) {
+    if (Types.isBlob(src)) {
+      // Local value must remain valid after buffer is released
+      line(valueExpr(dst) + " = " + futureExpr(src) + ".getCopy(" +
+           fnLit() + ", " + nameLit(src) + ");");
+    } else {
+      line(valueExpr(dst) + " = " + retrieveExpr(src) + ";");
+    }
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void assignFile(Var dst, Arg src, Arg setFilename) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void retrieveFile(Var dst, Var src, Arg decr) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void assignReference(Var dst, Var src, long readRefs,
+                              long writeRefs) {
+    line(futureExpr(dst) + ".set(" + fnLit() + ", " + nameLit(dst) + ", " +
+         futureExpr(src) + ");");
+  }
+
+  @Override
+  public void retrieveReference(Var dst, Var src, Arg acquireRead,
+                                Arg acquireWrite, Arg decr) {
+    // Result is alias to referenced variable
+    line(varName(dst) + "[0] = " + futureExpr(src) + ".get(" + fnLit() +
+         ", " + nameLit(src) + ");");
+    if (!acquireRead.isInt() || acquireRead.getInt() != 0) {
+      incrReaders(dst, intArgExpr(acquireRead));
+    }
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void makeAlias(Var dst, Var src) {
+    line(varName(dst) + "[0] = " + futureExpr(src) + ";");
+  }
+
+  @Override
+  public void dereferenceScalar(Var dst, Var src) {
+    // Wait for reference, then for referenced variable
+    List<Var> refWait = new ArrayList<Var>();
+    refWait.add(src);
+    startTask(refWait, false);
+    String target = unique("target");
+    Type targetType = Types.retrievedType(src);
+    String targetClass = futureType(targetType);
+    line("final " + targetClass + " " + target + " = (" + targetClass + ")" +
+         futureExpr(src) + ".get(" + fnLit() + ", " + nameLit(src) + ");");
+    open("JVMRuntime.waitFor(new Task() {", "}, " + target + ");");
+    open("public void run() throws LogicException {", "}");
+    line(storeStmt(dst, retrieveExpr(targetType, target, nameLit(src))));
+    close();
+    close();
+    endTask();
+  }
+
+  @Override
+  public void dereferenceFile(Var dst, Var src) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void asyncCopy(Var dst, Var src) {
+    if (!Types.isScalarFuture(src)) {
+      throw unsupported("copying type " + src.type().typeName());
+    }
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(src);
+    startTask(waitVars, false);
+    line(storeStmt(dst, retrieveExpr(src)));
+    endTask();
+  }
+
+  @Override
+  public void syncCopy(Var dst, Var src) {
+    if (!Types.isScalarFuture(src)) {
+      throw unsupported("copying type " + src.type().typeName());
+    }
+    line(storeStmt(dst, retrieveExpr(src)));
+  }
+
+  @Override
+  public void arrayCreateAlias(Var dst, Var array, Arg key) {
+    Var owner = memberAliases.get(array);
+    memberAliases.put(dst, owner == null ? array : owner);
+    boolean isRef = Types.isRef(dst);
+    if (!Types.isScalarFuture(dst) && !isRef) {
+      // Member is future or container
+      line(varName(dst) + "[0] = " + futureExpr(array) + ".getMember(" +
+           argExpr(key) + ");");
+      return;
+    }
+
+    memberProxy(dst, futureExpr(array), nameLit(array), argExpr(key), 0);
+  }
+
+  /**
+   * Scalar members are stored as values, and references may not be
+   * inserted yet, so an alias to a member is a proxy future, which is set
+   * once the member is inserted, or which inserts the member if set
+   * through the alias.
+   * @param dst alias to scalar or reference member
+   * @param arr expression for array or struct
+   * @param key expression for key of member
+   * @param writersDecr writers to decrement from container if member is
+   *                    inserted through the alias
+   */
+  private void memberProxy(Var dst, String arr, String name, String key,
+                           long writersDecr) {
+    Type type = dst.type();
+    boolean isRef = Types.isRef(type);
+    String proxyType = futureType(type);
+    String proxy = unique("proxy"), k = unique("key");
+    line("final " + proxyType + " " + proxy + " = new " + proxyType +
+         "(1);");
+    line("final long " + k + " = " + key + ";");
+    line(varName(dst) + "[0] = " + proxy + ";");
+    // Set proxy immediately if member is present, so that it can be read
+    // straight away like a Turbine subscript alias
+    String present = unique("member");
+    line("final Object " + present + " = " + arr + ".getMember(" + k + ");");
+    open("if (" + present + " != null) {", "}");
+    line(storeStmt(type, proxy, name, memberValExpr(type, present, name)));
+    indent--;
+    line("} else {");
+    indent++;
+    open("JVMRuntime.waitForMember(" + arr + ", " + k + ", new Task() {",
+         "});");
+    open("public void run() throws LogicException {", "}");
+    String member = unique("member");
+    line("final Object " + member + " = " + arr + ".getMember(" + k + ");");
+    open("if (" + member + " != null && !" + proxy + ".isSet()) {", "}");
+    line(storeStmt(type, proxy, name, memberValExpr(type, member, name)));
+    close();
+    close();
+    close();
+    close();
+    open("JVMRuntime.waitFor(new Task() {", "}, " + proxy + ");");
+    open("public void run() throws LogicException {", "}");
+    // Members are dropped once released, by which point the proxy must
+    // have been set from the member
+    open("if (!" + arr + ".isReleased() && " + arr + ".getMember(" + k +
+         ") == null) {", "}");
+    // Proxy for reference is a RefVar, so can be the member itself
+    line(arr + ".insert(" + fnLit() + ", " + name + ", " + k + ", " +
+         (isRef ? proxy : retrieveExpr(type, proxy, name)) + ", " +
+         writersDecr + ");");
+    close();
+    close();
+    close();
+  }
+
+  /**
+   * @param type type of scalar or reference future
+   * @param member expression for array member
+   * @return expression for value to set future to
+   */
+  private String memberValExpr(Type type, String member, String name) {
+    if (Types.isRef(type)) {
+      return derefMember(member, name);
+    }
+    return "(" + boxedType(Types.retrievedType(type)) + ")" + member;
+  }
+
+  /**
+   * Members that are containers or structs are references, so are stored
+   * as RefVars.  This includes members of local arrays, which share
+   * storage with the shared array.
+   */
+  private static boolean refMembers(Var container) {
+    Type elem = Types.containerElemType(container);
+    return Types.isRef(elem) || Types.isContainer(elem) ||
+           Types.isStruct(elem);
+  }
+
+  /**
+   * @param member expression for member stored as RefVar
+   * @return expression for referenced variable
+   */
+  private String derefMember(String member, String name) {
+    return "((RefVar<BaseVar>)" + member + ").get(" + fnLit() + ", " +
+           name + ")";
+  }
+
+  /**
+   * @param value expression for value to insert into container
+   * @param valType type of value
+   * @return expression for member to insert
+   */
+  private static String memberStoreExpr(Var container, String value,
+                                        Type valType) {
+    if (refMembers(container) && !Types.isRef(valType)) {
+      return "RefVar.member(" + value + ")";
+    }
+    return value;
+  }
+
+  @Override
+  public void arrayRetrieve(Var dst, Var array, Arg key, Arg decr,
+                            Arg acquire) {
+    String member = futureExpr(array) + ".get(" + fnLit() + ", " +
+                    nameLit(array) + ", " + argExpr(key) + ")";
+    if (refMembers(array) && !Types.isRef(dst)) {
+      member = derefMember(member, nameLit(array));
+    }
+    if (isValue(dst.type())) {
+      line(valueExpr(dst) + " = (" + boxedType(dst.type()) + ")" + member +
+           ";");
+    } else {
+      line(varName(dst) + "[0] = " + member + ";");
+      if (acquire != null && (!acquire.isInt() || acquire.getInt() != 0)) {
+        incrReaders(dst, intArgExpr(acquire));
+      }
+    }
+    decrReaders(array, decr);
+  }
+
+  @Override
+  public void arrayCopyOutImm(Var dst, Var array, Arg key) {
+    String keyExpr = argExpr(key);
+    if (key.isVar()) {
+      String k = unique("key");
+      line("final long " + k + " = " + keyExpr + ";");
+      keyExpr = k;
+    }
+    copyOutMember(dst, array, keyExpr);
+  }
+
+  @Override
+  public void arrayCopyOutFuture(Var dst, Var array, Var key) {
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(key);
+    startTask(waitVars, false);
+    String k = unique("key");
+    line("final long " + k + " = " + retrieveExpr(key) + ";");
+    copyOutMember(dst, array, k);
+    endTask();
+  }
+
+  private void copyOutMember(Var dst, Var array, String key) {
+    copyOutMember(dst, futureExpr(array), nameLit(array), key);
+  }
+
+  /**
+   * Copy member to future once assigned
+   * @param arr expression for array or struct
+   */
+  private void copyOutMember(Var dst, String arr, String name, String key) {
+    if (!Types.isScalarFuture(dst) && !Types.isRef(dst)) {
+      throw unsupported("copying out member of type " +
+                        dst.type().typeName());
+    }
+    open("JVMRuntime.waitForMember(" + arr + ", " + key +
+         ", new Task() {", "});");
+    open("public void run() throws LogicException {", "}");
+    String member = arr + ".get(" + fnLit() + ", " + name + ", " + key + ")";
+    line(storeStmt(dst, memberValExpr(dst.type(), member, name)));
+    close();
+    close();
+  }
+
+  @Override
+  public void arrayContains(Var dst, Var array, Arg key) {
+    line(valueExpr(dst) + " = " + futureExpr(array) + ".getMember(" +
+         argExpr(key) + ") != null;");
+  }
+
+  @Override
+  public void containerSize(Var dst, Var container) {
+    String size;
+    if (Types.isArray(container)) {
+      size = futureExpr(container) + ".size()";
+    } else {
+      throw unsupported("size of " + container.type().typeName());
+    }
+    line(valueExpr(dst) + " = " + size + ";");
+  }
+
+  @Override
+  public void arrayStore(Var array, Arg key, Arg member, Arg writeDecr) {
+    line(futureExpr(array) + ".insert(" + fnLit() + ", " + nameLit(array) +
+         ", " + argExpr(key) + ", " +
+         memberStoreExpr(array, argExpr(member), member.type()) + ", " +
+         writeDecrExpr(writeDecr) + ");");
+  }
+
+  private static String writeDecrExpr(Arg writeDecr) {
+    return writeDecr == null ? "0" : intArgExpr(writeDecr);
+  }
+
+  @Override
+  public void arrayStoreFuture(Var array, Var key, Arg member,
+                               Arg writeDecr) {
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(key);
+    startTask(waitVars, false);
+    line(futureExpr(array) + ".insert(" + fnLit() + ", " + nameLit(array) +
+         ", " + retrieveExpr(key) + ", " +
+         memberStoreExpr(array, argExpr(member), member.type()) + ", " +
+         writeDecrExpr(writeDecr) + ");");
+    endTask();
+  }
+
+  @Override
+  public void arrayCopyInImm(Var array, Arg key, Var member,
+                             Arg writeDecr) {
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(member);
+    String keyExpr = argExpr(key);
+    if (key.isVar()) {
+      String k = unique("key");
+      line("final long " + k + " = " + keyExpr + ";");
+      keyExpr = k;
+    }
+    startTask(waitVars, false);
+    line(futureExpr(array) + ".insert(" + fnLit() + ", " + nameLit(array) +
+         ", " + keyExpr + ", " + copyInExpr(array, member) + ", " +
+         writeDecrExpr(writeDecr) + ");");
+    endTask();
+  }
+
+  @Override
+  public void arrayCopyInFuture(Var array, Var key, Var member,
+                                Arg writeDecr) {
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(key);
+    waitVars.add(member);
+    startTask(waitVars, false);
+    line(futureExpr(array) + ".insert(" + fnLit() + ", " + nameLit(array) +
+         ", " + retrieveExpr(key) + ", " + copyInExpr(array, member) + ", " +
+         writeDecrExpr(writeDecr) + ");");
+    endTask();
+  }
+
+  /**
+   * @param member closed future to copy into container
+   * @return expression for member to insert
+   */
+  private String copyInExpr(Var container, Var member) {
+    return memberStoreExpr(container, retrieveExpr(member),
+                           Types.retrievedType(member));
+  }
+
+  @Override
+  public void arrayBuild(Var array, List<Arg> keys, List<Arg> vals) {
+    assert(keys.size() == vals.size());
+    for (int i = 0; i < keys.size(); i++) {
+      Arg val = vals.get(i);
+      line(futureExpr(array) + ".insert(" + fnLit() + ", " + nameLit(array)
+           + ", " + argExpr(keys.get(i)) + ", " +
+           memberStoreExpr(array, argExpr(val), val.type()) + ");");
+    }
+    line(futureExpr(array) + ".incrWriters(" + fnLit() + ", " +
+         nameLit(array) + ", -1);");
+  }
+
+  @Override
+  public void arrayCreateNestedImm(Var result, Var outerArray, Arg key,
+      Arg callerReadRefs, Arg callerWriteRefs, Arg readDecr,
+      Arg writeDecr) {
+    if (!Types.isArray(result) && !Types.isBag(result) &&
+        !Types.isStruct(result)) {
+      throw unsupported("nested " + result.type().typeName());
+    }
+    createNested(result, outerArray, argExpr(key),
+        Types.isRef(Types.containerElemType(outerArray)), callerReadRefs,
+        callerWriteRefs, readDecr, writeDecr);
+  }
+
+  /**
+   * Get or create nested container or struct in array or struct
+   * @param outer array or struct
+   * @param key expression for key of member in outer
+   * @param refMember whether the member is stored as a RefVar
+   */
+  private void createNested(Var result, Var outer, String key,
+      boolean refMember, Arg callerReadRefs, Arg callerWriteRefs,
+      Arg readDecr, Arg writeDecr) {
+    // Nested container keeps writers for caller
+    String create = newVarExpr(result.type(), intArgExpr(callerWriteRefs));
+    if (refMember) {
+      create = "new RefVar<BaseVar>(0, " + create + ")";
+    }
+    String nested = unique("nested");
+    line("final Object " + nested + " = " + futureExpr(outer) +
+         ".createNested(" + fnLit() + ", " + nameLit(outer) + ", " +
+         key + ", new VarFactory<Object>() {");
+    line("    public Object create() { return " + create + "; }");
+    line("  });");
+    if (refMember) {
+      line(varName(result) + "[0] = ((RefVar<BaseVar>)" + nested + ").get(" +
+           fnLit() + ", " + nameLit(outer) + ");");
+    } else {
+      line(varName(result) + "[0] = " + nested + ";");
+    }
+    if (!callerReadRefs.isInt() || callerReadRefs.getInt() != 0) {
+      // New container starts with one reader for outer container
+      incrReaders(result, intArgExpr(callerReadRefs));
+    }
+    decrReaders(outer, readDecr);
+    if (!writeDecr.isInt() || writeDecr.getInt() != 0) {
+      line(futureExpr(outer) + ".incrWriters(" + fnLit() + ", " +
+           nameLit(outer) + ", -" + intArgExpr(writeDecr) + ");");
+    }
+  }
+
+  @Override
+  public void bagInsert(Var bag, Arg value, Arg writeDecr) {
+    line(futureExpr(bag) + ".insert(" + fnLit() + ", " + nameLit(bag) +
+         ", " + memberStoreExpr(bag, argExpr(value), value.type()) + ", " +
+         writeDecrExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void freeBlob(Var blobval) {
+    line("BlobPool.release(" + valueExpr(blobval) + ");");
+    line(valueExpr(blobval) + " = null;");
+  }
+
+  @Override
+  public void checkpointLookupEnabled(Var out) {
+    line(valueExpr(out) + " = false;");
+  }
+
+  @Override
+  public void checkpointWriteEnabled(Var out) {
+    line(valueExpr(out) + " = false;");
+  }
+
+  /*
+   * Constructs not supported yet
+   */
+
+  @Override
+  public void assignArray(Var dst, Arg src) {
+    String arr = arrayExpr(src.getVar());
+    String key = unique("key");
+    open("for (long " + key + ": " + arr + ".keys()) {", "}");
+    line(futureExpr(dst) + ".insert(" + fnLit() + ", " + nameLit(dst) +
+         ", " + key + ", " + arr + ".getMember(" + key + "));");
+    close();
+    line(futureExpr(dst) + ".incrWriters(" + fnLit() + ", " +
+         nameLit(dst) + ", -1);");
+  }
+
+  @Override
+  public void retrieveArray(Var dst, Var src, Arg decr) {
+    // Array is closed, so can't be modified further.  Local value shares
+    // storage with future, so read refcount is not decremented.
+    line(valueExpr(dst) + " = " + futureExpr(src) + ";");
+  }
+
+  @Override
+  public void assignBag(Var dst, Arg src) {
+    line(futureExpr(dst) + ".insertAll(" + fnLit() + ", " + nameLit(dst) +
+         ", (java.util.List<?>)" + argExpr(src) + ", 1);");
+  }
+
+  @Override
+  public void retrieveBag(Var dst, Var src, Arg decr) {
+    throw unsupported("local bags");
+  }
+
+  @Override
+  public void assignArrayRecursive(Var dst, Arg src) {
+    throw unsupported("local arrays");
+  }
+
+  @Override
+  public void assignStructRecursive(Var dst, Arg src) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void assignBagRecursive(Var dst, Arg src) {
+    throw unsupported("local bags");
+  }
+
+  @Override
+  public void retrieveArrayRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("local arrays");
+  }
+
+  @Override
+  public void retrieveStructRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("structs");
+  }
+
+  @Override
+  public void retrieveBagRecursive(Var dst, Var src, Arg decr) {
+    throw unsupported("local bags");
+  }
+
+  @Override
+  public void unpackArrayToFlat(Var flatLocalArray, Arg inputArray) {
+    throw unsupported("local arrays");
+  }
+
+  @Override
+  public void buildBagLocal(Var bag, List<Arg> elems) {
+    List<String> exprs = new ArrayList<String>();
+    for (Arg elem: elems) {
+      exprs.add(argExpr(elem));
+    }
+    line(valueExpr(bag) + " = java.util.Arrays.asList(new Object[] {" +
+         join(exprs) + "});");
+  }
+
+  @Override
+  public void decrLocalFileRefCount(Var fileVal) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void getFileNameAlias(Var filename, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void copyInFilename(Var file, Var filename) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void getLocalFileName(Var filename, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void isMapped(Var isMapped, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void chooseTmpFilename(Var filenameVal) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void initLocalOutputFile(Var localFile, Arg filenameVal,
+                                  Arg isMapped) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void getFilenameVal(Var filenameVal, Var file) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void setFilenameVal(Var file, Arg filenameVal) {
+    throw unsupported("files");
+  }
+
+  @Override
+  public void copyFileContents(Var dst, Var src) {
+    throw unsupported("files");
+  }
+
+  /*
+   * Structs.  Fields of nested structs are flattened into the outer
+   * StructVar, so a field path refers to one field, or to a range of
+   * fields for a nested struct.  Local struct values are arrays of the
+   * flattened fields.
+   */
+
+  /**
+   * @param type struct, local struct or nested struct field
+   * @return number of fields once nested structs are flattened
+   */
+  private static int flatFieldCount(Type type) {
+    int count = 0;
+    for (StructField field: ((StructType)type.getImplType()).fields()) {
+      count += Types.isStruct(field.type()) ?
+               flatFieldCount(field.type()) : 1;
+    }
+    return count;
+  }
+
+  /**
+   * @param struct struct, local struct or reference to struct
+   * @return index of first flattened field for field path
+   */
+  private static int flatFieldIndex(Typed struct, List<String> fields) {
+    Type type = struct.type();
+    if (Types.isRef(type)) {
+      type = type.memberType();
+    }
+    int index = 0;
+    for (String name: fields) {
+      StructType structType = (StructType)type.getImplType();
+      for (StructField field: structType.fields()) {
+        if (field.name().equals(name)) {
+          type = field.type();
+          break;
+        }
+        index += Types.isStruct(field.type()) ?
+                 flatFieldCount(field.type()) : 1;
+      }
+    }
+    return index;
+  }
+
+  private static Type structFieldType(Typed struct, List<String> fields) {
+    try {
+      return Types.structFieldType(struct, fields);
+    } catch (TypeMismatchException e) {
+      throw new STCRuntimeError(e.getMessage());
+    }
+  }
+
+  /**
+   * @return writers to decrement from struct when field is assigned, as
+   *         with Turbine
+   */
+  private static long fieldWriteDecr(Type fieldType) {
+    return RefCounting.baseRefCount(fieldType, DefType.LOCAL_COMPILER,
+                                    RefCountType.WRITERS, true, true);
+  }
+
+  /**
+   * Fields that are references are stored as RefVars, like members of
+   * containers
+   * @param value expression for value to assign to field
+   * @param valType type of value
+   * @return expression for field
+   */
+  private static String fieldStoreExpr(Type fieldType, String value,
+                                       Type valType) {
+    if (Types.isRef(fieldType) && !Types.isRef(valType)) {
+      return "RefVar.member(" + value + ")";
+    }
+    return value;
+  }
+
+  /**
+   * @param ref reference to struct
+   * @return expression for referenced struct
+   */
+  private String derefStruct(Var ref) {
+    return "((StructVar)" + futureExpr(ref) + ".get(" + fnLit() + ", " +
+           nameLit(ref) + "))";
+  }
+
+  @Override
+  public void assignStruct(Var dst, Arg src) {
+    // Assigning whole struct consumes writers for all untracked fields
+    long writeDecr = RefCounting.baseStructWriteRefCount(dst.type(),
+                                            dst.defType(), false, true);
+    line(futureExpr(dst) + ".setFields(" + fnLit() + ", " + nameLit(dst) +
+         ", 0, (Object[])" + argExpr(src) + ", " + writeDecr + ");");
+  }
+
+  @Override
+  public void retrieveStruct(Var target, Var src, Arg decr) {
+    line(valueExpr(target) + " = " + futureExpr(src) + ".getFields(" +
+         fnLit() + ", " + nameLit(src) + ", 0, " +
+         flatFieldCount(src.type()) + ");");
+    decrReaders(src, decr);
+  }
+
+  @Override
+  public void buildStructLocal(Var struct, List<List<String>> fieldPaths,
+                               List<Arg> fieldVals) {
+    assert(fieldPaths.size() == fieldVals.size());
+    String fields = unique("fields");
+    line("final Object[] " + fields + " = new Object[" +
+         flatFieldCount(struct.type()) + "];");
+    for (int i = 0; i < fieldPaths.size(); i++) {
+      List<String> path = fieldPaths.get(i);
+      Arg val = fieldVals.get(i);
+      Type fieldType = structFieldType(struct, path);
+      int first = flatFieldIndex(struct, path);
+      if (Types.isStruct(fieldType)) {
+        line("System.arraycopy((Object[])" + argExpr(val) + ", 0, " +
+             fields + ", " + first + ", " + flatFieldCount(fieldType) +
+             ");");
+      } else {
+        line(fields + "[" + first + "] = " +
+             fieldStoreExpr(fieldType, argExpr(val), val.type()) + ";");
+      }
+    }
+    line(valueExpr(struct) + " = " + fields + ";");
+  }
+
+  @Override
+  public void structCreateAlias(Var dst, Var struct, List<String> fields) {
+    Var owner = memberAliases.get(struct);
+    memberAliases.put(dst, owner == null ? struct : owner);
+    Type fieldType = structFieldType(struct, fields);
+    if (!Types.isScalarFuture(dst) && !Types.isRef(dst)) {
+      throw unsupported("aliases to struct fields of type " +
+                        fieldType.typeName());
+    }
+    memberProxy(dst, futureExpr(struct), nameLit(struct),
+                Integer.toString(flatFieldIndex(struct, fields)),
+                fieldWriteDecr(fieldType));
+  }
+
+  @Override
+  public void structRetrieveSub(Var dst, Var struct, List<String> fields,
+                                Arg readDecr) {
+    Type fieldType = structFieldType(struct, fields);
+    int first = flatFieldIndex(struct, fields);
+    String s = futureExpr(struct), name = nameLit(struct);
+    if (Types.isStruct(fieldType)) {
+      line(valueExpr(dst) + " = " + s + ".getFields(" + fnLit() + ", " +
+           name + ", " + first + ", " + flatFieldCount(fieldType) + ");");
+    } else {
+      String field = s + ".get(" + fnLit() + ", " + name + ", " + first +
+                     ")";
+      if (Types.isRef(fieldType) && !Types.isRef(dst)) {
+        field = derefMember(field, name);
+      }
+      if (isValue(dst.type())) {
+        line(valueExpr(dst) + " = (" + boxedType(dst.type()) + ")" + field +
+             ";");
+      } else {
+        // Turbine acquires a read refcount for the field
+        line(varName(dst) + "[0] = " + field + ";");
+        incrReaders(dst, "1");
+      }
+    }
+    decrReaders(struct, readDecr);
+  }
+
+  @Override
+  public void structCopyOut(Var dst, Var struct, List<String> fields) {
+    copyOutField(dst, futureExpr(struct), nameLit(struct), struct, fields);
+  }
+
+  @Override
+  public void structRefCopyOut(Var dst, Var structRef, List<String> fields) {
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(structRef);
+    startTask(waitVars, false);
+    String target = unique("struct");
+    line("final StructVar " + target + " = " + derefStruct(structRef) + ";");
+    copyOutField(dst, target, nameLit(structRef), structRef, fields);
+    endTask();
+  }
+
+  /**
+   * Copy field to future once assigned, or nested struct to struct once
+   * all of its fields are assigned
+   * @param s expression for struct
+   * @param struct struct or reference to struct
+   */
+  private void copyOutField(Var dst, String s, String name, Var struct,
+                            List<String> fields) {
+    Type fieldType = structFieldType(struct, fields);
+    int first = flatFieldIndex(struct, fields);
+    if (!Types.isStruct(fieldType)) {
+      copyOutMember(dst, s, name, Integer.toString(first));
+      return;
+    }
+    int count = flatFieldCount(fieldType);
+    long writeDecr = RefCounting.baseRefCount(dst.type(),
+                DefType.LOCAL_COMPILER, RefCountType.WRITERS, false, true);
+    open("JVMRuntime.waitForFields(" + s + ", " + first + ", " + count +
+         ", new Task() {", "});");
+    open("public void run() throws LogicException {", "}");
+    line(futureExpr(dst) + ".setFields(" + fnLit() + ", " + nameLit(dst) +
+         ", 0, " + s + ".getFields(" + fnLit() + ", " + name + ", " + first +
+         ", " + count + "), " + writeDecr + ");");
+    close();
+    close();
+  }
+
+  @Override
+  public void structStore(Var struct, List<String> fields, Arg src) {
+    storeField(futureExpr(struct), nameLit(struct), struct, fields,
+               argExpr(src), src.type());
+  }
+
+  @Override
+  public void structCopyIn(Var struct, List<String> fields, Var src) {
+    startCopyIn(src, null);
+    storeField(futureExpr(struct), nameLit(struct), struct, fields,
+               copyInValueExpr(src), Types.retrievedType(src));
+    endTask();
+  }
+
+  @Override
+  public void structRefStoreSub(Var structRef, List<String> fields,
+                                Arg src) {
+    List<Var> waitVars = new ArrayList<Var>();
+    waitVars.add(structRef);
+    startTask(waitVars, false);
+    storeField(derefStruct(structRef), nameLit(structRef), structRef,
+               fields, argExpr(src), src.type());
+    endTask();
+  }
+
+  @Override
+  public void structRefCopyIn(Var structRef, List<String> fields,
+                              Var src) {
+    startCopyIn(src, structRef);
+    storeField(derefStruct(structRef), nameLit(structRef), structRef,
+               fields, copyInValueExpr(src), Types.retrievedType(src));
+    endTask();
+  }
+
+  /**
+   * Start task that waits for value to copy into struct field
+   * @param structRef reference to struct to also wait for, or null
+   */
+  private void startCopyIn(Var src, Var structRef) {
+    List<Var> waitVars = new ArrayList<Var>();
+    if (structRef != null) {
+      waitVars.add(structRef);
+    }
+    if (!Types.isContainer(src)) {
+      // Containers are stored by reference, so needn't be closed
+      waitVars.add(src);
+    }
+    startTask(waitVars, false);
+  }
+
+  /**
+   * @param src closed future, or container, to copy into struct field
+   * @return expression for value of field
+   */
+  private String copyInValueExpr(Var src) {
+    if (Types.isStruct(src)) {
+      return futureExpr(src) + ".getFields(" + fnLit() + ", " +
+             nameLit(src) + ", 0, " + flatFieldCount(src.type()) + ")";
+    } else if (Types.isContainer(src)) {
+      return futureExpr(src);
+    }
+    return retrieveExpr(src);
+  }
+
+  /**
+   * Assign struct field, or fields of nested struct, and decrement
+   * writers as Turbine does
+   * @param s expression for struct
+   * @param struct struct or reference to struct
+   * @param value expression for value, or array of values for nested
+   *              struct
+   * @param valType type of value
+   */
+  private void storeField(String s, String name, Var struct,
+      List<String> fields, String value, Type valType) {
+    Type fieldType = structFieldType(struct, fields);
+    int first = flatFieldIndex(struct, fields);
+    long writeDecr = fieldWriteDecr(fieldType);
+    if (Types.isStruct(fieldType)) {
+      line(s + ".setFields(" + fnLit() + ", " + name + ", " + first +
+           ", (Object[])" + value + ", " + writeDecr + ");");
+    } else {
+      line(s + ".insert(" + fnLit() + ", " + name + ", " + first + ", " +
+           fieldStoreExpr(fieldType, value, valType) + ", " + writeDecr +
+           ");");
+    }
+  }
+
+  @Override
+  public void structCreateNested(Var result, Var struct,
+      List<String> fields, Arg callerReadRefs, Arg callerWriteRefs,
+      Arg readDecr, Arg writeDecr) {
+    if (!Types.isArray(result) && !Types.isBag(result) &&
+        !Types.isStruct(result)) {
+      throw unsupported("nested " + result.type().typeName());
+    }
+    // Container fields are references
+    createNested(result, struct,
+        Integer.toString(flatFieldIndex(struct, fields)), true,
+        callerReadRefs, callerWriteRefs, readDecr, writeDecr);
+  }
+
+  @Override
+  public void arrayRefCopyOutImm(Var dst, Var array, Arg key) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayRefCopyOutFuture(Var dst, Var array, Var key) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayLocalContains(Var dst, Var array, Arg key) {
+    line(valueExpr(dst) + " = " + arrayExpr(array) + ".getMember(" +
+         argExpr(key) + ") != null;");
+  }
+
+  @Override
+  public void containerLocalSize(Var dst, Var container) {
+    if (!Types.isArrayLocal(container)) {
+      throw unsupported("size of " + container.type().typeName());
+    }
+    line(valueExpr(dst) + " = " + arrayExpr(container) + ".size();");
+  }
+
+  @Override
+  public void arrayRefStoreImm(Var array, Arg key, Arg member) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayRefStoreFuture(Var array, Var key, Arg member) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayRefCopyInImm(Var array, Arg ix, Var member) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayRefCopyInFuture(Var array, Var ix, Var member) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayCreateNestedFuture(Var result, Var outerArray,
+                                      Var key) {
+    throw unsupported("nested arrays with future keys");
+  }
+
+  @Override
+  public void arrayRefCreateNestedImm(Var result, Var array, Arg ix) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void arrayRefCreateNestedFuture(Var result, Var array, Var ix) {
+    throw unsupported("array references");
+  }
+
+  @Override
+  public void initScalarUpdateable(Var updateable, Arg val) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void latestValue(Var result, Var updateable) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void updateScalarFuture(Var updateable, Operators.UpdateMode updateMode,
+                                 Var val) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void updateScalarImm(Var updateable, Operators.UpdateMode updateMode,
+                              Arg val) {
+    throw unsupported("updateable variables");
+  }
+
+  @Override
+  public void writeCheckpoint(Arg key, Arg val) {
+    throw unsupported("checkpointing");
+  }
+
+  @Override
+  public void lookupCheckpoint(Var checkpointExists, Var val, Arg key) {
+    throw unsupported("checkpointing");
+  }
+
+  @Override
+  public void packValues(Var packed, List<Arg> unpacked) {
+    throw unsupported("checkpointing");
+  }
+
+  @Override
+  public void unpackValues(List<Var> unpacked, Arg packed) {
+    throw unsupported("checkpointing");
+  }
+}
@@ -0,0 +1,174 @@
+package exm.stc.jvm.runtime;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct (off-heap) buffers for blob data.  Large blobs are
+ * allocated off-heap in power-of-two size classes, and are returned to
+ * the pool when blob variables are released, so that big intermediate
+ * blobs don't sit on the heap until the next full collection.  Small
+ * blobs are allocated on the heap and left to the garbage collector.
+ */
+public class BlobPool {
+
+  /** Environment variable with maximum megabytes of pooled buffers */
+  public static final String POOL_SIZE_ENV = "SWIFT_JVM_BLOB_POOL_MB";
+
+  public static final long DEFAULT_POOL_SIZE = 256L * 1024 * 1024;
+
+  /** Log2 of smallest pooled size class */
+  private static final int MIN_CLASS = 12;
+
+  /** Log2 of largest pooled size class */
+  private static final int MAX_CLASS = 26;
+
+  private static final long maxPooled = poolSize();
+
+  /** Bytes currently held in free lists */
+  private static final AtomicLong pooled = new AtomicLong();
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static final ConcurrentLinkedQueue<ByteBuffer> free[] =
+                  new ConcurrentLinkedQueue[MAX_CLASS - MIN_CLASS + 1];
+  static {
+    for (int i = 0; i < free.length; i++) {
+      free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  /**
+   * Pooled buffers that are currently allocated.  Only these can be
+   * returned to the pool: other buffers, including views of pooled
+   * buffers, may share memory that is still in use.  Weakly referenced
+   * so that buffers that are never released can be garbage collected.
+   */
+  private static final ConcurrentHashMap<BufferRef, Boolean> allocated =
+                              new ConcurrentHashMap<BufferRef, Boolean>();
+
+  /** Collected buffers to remove from allocated */
+  private static final ReferenceQueue<ByteBuffer> collected =
+                                      new ReferenceQueue<ByteBuffer>();
+
+  /**
+   * Weak reference that compares buffers by identity: ByteBuffer.equals
+   * compares contents.
+   */
+  private static class BufferRef extends WeakReference<ByteBuffer> {
+    private final int hash;
+
+    public BufferRef(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue) {
+      super(buf, queue);
+      this.hash = System.identityHashCode(buf);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      } else if (!(o instanceof BufferRef)) {
+        return false;
+      }
+      ByteBuffer buf = get();
+      return buf != null && buf == ((BufferRef)o).get();
+    }
+  }
+
+  private static long poolSize() {
+    String size = System.getenv(POOL_SIZE_ENV);
+    if (size != null && size.length() > 0) {
+      try {
+        long mb = Long.parseLong(size);
+        if (mb >= 0) {
+          return mb * 1024 * 1024;
+        }
+      } catch (NumberFormatException e) {
+        // Fall through to warning
+      }
+      JVMRuntime.getLogger().warn("Invalid " + POOL_SIZE_ENV + ": " + size);
+    }
+    return DEFAULT_POOL_SIZE;
+  }
+
+  /**
+   * @param size size in bytes
+   * @return buffer with position zero and limit size, from the pool if
+   *         possible
+   */
+  public static ByteBuffer allocate(int size) {
+    int sizeClass = sizeClass(size);
+    if (sizeClass < MIN_CLASS) {
+      return ByteBuffer.allocate(size);
+    } else if (sizeClass > MAX_CLASS) {
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    ByteBuffer buf = free[sizeClass - MIN_CLASS].poll();
+    if (buf == null) {
+      buf = ByteBuffer.allocateDirect(1 << sizeClass);
+    } else {
+      pooled.addAndGet(-buf.capacity());
+      buf.clear();
+    }
+    buf.limit(size);
+
+    Reference<? extends ByteBuffer> ref;
+    while ((ref = collected.poll()) != null) {
+      allocated.remove(ref);
+    }
+    allocated.put(new BufferRef(buf, collected), Boolean.TRUE);
+    return buf;
+  }
+
+  /**
+   * @return copy of remaining data in buffer, with position zero
+   */
+  public static ByteBuffer copy(ByteBuffer src) {
+    ByteBuffer data = src.duplicate();
+    ByteBuffer result = allocate(data.remaining());
+    result.put(data);
+    result.flip();
+    return result;
+  }
+
+  /**
+   * Return buffer to pool.  The caller must not access the buffer, or
+   * any views of it, afterwards.  Buffers that weren't allocated from
+   * the pool, or that would exceed the pool size, are left to the
+   * garbage collector.
+   * @param buf buffer, or null
+   */
+  public static void release(ByteBuffer buf) {
+    if (buf == null ||
+        allocated.remove(new BufferRef(buf, null)) == null) {
+      return;
+    }
+    int cap = buf.capacity();
+    int sizeClass = sizeClass(cap);
+    if (pooled.addAndGet(cap) > maxPooled) {
+      pooled.addAndGet(-cap);
+      return;
+    }
+    free[sizeClass - MIN_CLASS].add(buf);
+  }
+
+  /**
+   * @return log2 of smallest power of two >= size
+   */
+  private static int sizeClass(int size) {
+    if (size <= 1) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+}
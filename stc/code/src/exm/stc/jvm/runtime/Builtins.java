@@ -0,0 +1,383 @@
+package exm.stc.jvm.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Implementations of builtin Swift library functions for the JVM
+ * runtime.  Output formats follow the Turbine implementations.
+ */
+public class Builtins {
+
+  /** Named arguments, e.g. --n=5 */
+  private static final Map<String, String> argv =
+                                    new HashMap<String, String>();
+
+  /** Positional arguments */
+  private static final List<String> positional = new ArrayList<String>();
+
+  /** All arguments, space separated */
+  private static String args = "";
+
+  static synchronized void setArgs(String[] cmdArgs) {
+    argv.clear();
+    positional.clear();
+    StringBuilder all = new StringBuilder();
+    for (String arg: cmdArgs) {
+      if (all.length() > 0) {
+        all.append(' ');
+      }
+      all.append(arg);
+
+      if (arg.startsWith("-")) {
+        String flag = arg.startsWith("--") ? arg.substring(2) :
+                                             arg.substring(1);
+        int eq = flag.indexOf('=');
+        if (eq >= 0) {
+          argv.put(flag.substring(0, eq), flag.substring(eq + 1));
+        } else {
+          argv.put(flag, "");
+        }
+      } else {
+        positional.add(arg);
+      }
+    }
+    args = all.toString();
+  }
+
+  public static synchronized String argv(String key)
+      throws InvalidReadException {
+    String val = lookupArg(key);
+    if (val == null) {
+      throw new InvalidReadException("Could not find argv key: " + key);
+    }
+    return val;
+  }
+
+  public static synchronized String argv(String key, String base) {
+    String val = lookupArg(key);
+    return val == null ? base : val;
+  }
+
+  public static synchronized boolean argvContains(String key) {
+    return lookupArg(key) != null;
+  }
+
+  /**
+   * @return named argument or positional argument (numbered from 1)
+   */
+  private static String lookupArg(String key) {
+    String val = argv.get(key);
+    if (val == null) {
+      try {
+        int pos = Integer.parseInt(key);
+        if (pos >= 1 && pos <= positional.size()) {
+          val = positional.get(pos - 1);
+        }
+      } catch (NumberFormatException e) {
+        // Not positional
+      }
+    }
+    return val;
+  }
+
+  public static synchronized long argc() {
+    return positional.size();
+  }
+
+  public static synchronized String args() {
+    return args;
+  }
+
+  public static void trace(Object ...vals) {
+    StringBuilder sb = new StringBuilder("trace: ");
+    for (int i = 0; i < vals.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(toString(vals[i]));
+    }
+    println(sb.toString());
+  }
+
+  public static void printf(String fmt, Object ...vals)
+      throws LogicException {
+    println(sprintf(fmt, vals));
+  }
+
+  /**
+   * Format with Tcl format syntax, as Turbine does
+   */
+  public static String sprintf(String fmt, Object ...vals)
+      throws LogicException {
+    try {
+      return TclFormat.format(fmt, vals);
+    } catch (IllegalArgumentException e) {
+      throw new LogicException("error in printf(): format: \"" + fmt +
+                               "\" details: " + e.getMessage());
+    }
+  }
+
+  public static String strcat(Object ...vals) {
+    StringBuilder sb = new StringBuilder();
+    for (Object val: vals) {
+      sb.append(toString(val));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Convert value to string as Turbine would
+   */
+  public static String toString(Object val) {
+    if (val instanceof Boolean) {
+      return ((Boolean)val) ? "1" : "0";
+    }
+    return String.valueOf(val);
+  }
+
+  private static void println(String s) {
+    // Avoid interleaving output from different workers
+    synchronized (System.out) {
+      System.out.println(s);
+    }
+  }
+
+  /**
+   * Integer division rounding towards negative infinity, as in Tcl
+   */
+  public static long divInt(long a, long b) {
+    long q = a / b;
+    if ((a % b != 0) && ((a < 0) != (b < 0))) {
+      q--;
+    }
+    return q;
+  }
+
+  /**
+   * Integer modulus with sign of divisor, as in Tcl
+   */
+  public static long modInt(long a, long b) {
+    long m = a % b;
+    if (m != 0 && ((m < 0) != (b < 0))) {
+      m += b;
+    }
+    return m;
+  }
+
+  public static String dircat(String dir, String file) {
+    if (dir.length() == 0) {
+      return file;
+    }
+    return dir.endsWith("/") ? dir + file : dir + "/" + file;
+  }
+
+  public static String substring(String s, long start, long length) {
+    int lo = (int)Math.max(0, Math.min(start, s.length()));
+    int hi = (int)Math.max(lo, Math.min(lo + length, s.length()));
+    return s.substring(lo, hi);
+  }
+
+  public static void assertTrue(boolean cond, String msg)
+      throws LogicException {
+    if (!cond) {
+      throw new LogicException("Assertion failed: " + msg);
+    }
+  }
+
+  public static void assertEqual(Object a, Object b, String msg)
+      throws LogicException {
+    if (!a.equals(b)) {
+      throw new LogicException("Assertion failed: " + msg + ": " +
+                               toString(a) + " != " + toString(b));
+    }
+  }
+
+  public static void assertLT(long a, long b, String msg)
+      throws LogicException {
+    assertTrue(a < b, msg + ": " + a + " >= " + b);
+  }
+
+  public static void assertLT(double a, double b, String msg)
+      throws LogicException {
+    assertTrue(a < b, msg + ": " + a + " >= " + b);
+  }
+
+  public static void assertLTE(long a, long b, String msg)
+      throws LogicException {
+    assertTrue(a <= b, msg + ": " + a + " > " + b);
+  }
+
+  public static void assertLTE(double a, double b, String msg)
+      throws LogicException {
+    assertTrue(a <= b, msg + ": " + a + " > " + b);
+  }
+
+  /**
+   * Check that all named arguments are in accepted list
+   */
+  public static synchronized void argvAccept(String ...accepted)
+      throws LogicException {
+    List<String> acceptedList = Arrays.asList(accepted);
+    for (String key: argv.keySet()) {
+      if (!acceptedList.contains(key)) {
+        throw new LogicException("argv_accept: not accepted: " + key);
+      }
+    }
+  }
+
+  /**
+   * @return environment variable, or empty string if not set
+   */
+  public static String getenv(String key) {
+    String val = System.getenv(key);
+    return val == null ? "" : val;
+  }
+
+  /**
+   * Sleep in worker thread, as Turbine does
+   */
+  public static void sleep(double secs) {
+    if (secs > 0) {
+      try {
+        Thread.sleep(Math.round(secs * 1000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public static void sleepTrace(double secs, Object ...vals) {
+    sleep(secs);
+    trace(vals);
+  }
+
+  /**
+   * @return time in seconds, with millisecond precision
+   */
+  public static double clock() {
+    return System.currentTimeMillis() / 1000.0;
+  }
+
+  public static long clockSeconds() {
+    return System.currentTimeMillis() / 1000;
+  }
+
+  public static double random() {
+    return Math.random();
+  }
+
+  /**
+   * @return random integer in [lo, hi)
+   */
+  public static long randint(long lo, long hi) throws LogicException {
+    if (lo >= hi) {
+      throw new LogicException("randint: illegal range [" + lo + ", " +
+                               hi + ")");
+    }
+    return lo + (long)(Math.random() * (hi - lo));
+  }
+
+  public static long randomWorkerRank() {
+    return (long)(Math.random() * JVMRuntime.workers());
+  }
+
+  public static double logBase(double x, double base) {
+    return Math.log(x) / Math.log(base);
+  }
+
+  /**
+   * @param end end index, or -1 for end of string
+   * @return index of first occurrence of substring that ends at or before
+   *         end, or -1 if none
+   */
+  public static long find(String s, String subs, long start, long end) {
+    if (end == -1) {
+      end = s.length();
+    }
+    int ix = s.indexOf(subs, (int)Math.max(0, start));
+    if (ix < 0 || ix + subs.length() > end) {
+      return -1;
+    }
+    return ix;
+  }
+
+  /**
+   * @return number of non-overlapping occurrences of substring
+   */
+  public static long count(String s, String subs, long start, long end) {
+    if (end == -1) {
+      end = s.length();
+    }
+    long found = 0;
+    long ix = start;
+    while (ix <= end) {
+      long r = find(s, subs, ix, end);
+      if (r < 0) {
+        break;
+      }
+      found++;
+      ix = r + Math.max(subs.length(), 1);
+    }
+    return found;
+  }
+
+  /**
+   * @return true if string is a decimal integer in range of long
+   */
+  public static boolean isint(String s) {
+    try {
+      Long.parseLong(s.trim());
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Replace first occurrence of substring after start
+   */
+  public static String replace(String s, String subs, String rep,
+                               long start) {
+    long r = find(s, subs, start, s.length());
+    if (r < 0) {
+      return s;
+    }
+    return s.substring(0, (int)r) + rep +
+           s.substring((int)r + subs.length());
+  }
+
+  /**
+   * Replace all occurrences of substring between start and end
+   */
+  public static String replaceAll(String s, String subs, String rep,
+                                  long start, long end) {
+    int lo = (int)Math.max(0, Math.min(start, s.length()));
+    StringBuilder sb = new StringBuilder(s.substring(0, lo));
+    int ix = lo;
+    while (ix <= s.length()) {
+      long r = find(s, subs, ix, end);
+      if (r < 0 || subs.length() == 0) {
+        break;
+      }
+      sb.append(s, ix, (int)r).append(rep);
+      ix = (int)r + subs.length();
+    }
+    if (ix < s.length()) {
+      sb.append(s, ix, s.length());
+    }
+    return sb.toString();
+  }
+
+  public static String toUpper(String s) {
+    return s.toUpperCase(Locale.ROOT);
+  }
+
+  public static String toLower(String s) {
+    return s.toLowerCase(Locale.ROOT);
+  }
+}
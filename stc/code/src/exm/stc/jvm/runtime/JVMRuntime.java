@@ -1,10 +1,573 @@
 package exm.stc.jvm.runtime;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+
+import exm.stc.jvm.runtime.Vars.ArrayVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+import exm.stc.jvm.runtime.Vars.StructVar;
+import exm.stc.jvm.runtime.Vars.SubscriptTarget;
 
+/**
+ * Entry point and scheduling functions for programs compiled to run
+ * in-process on the JVM.  The runtime is static, since there is one
+ * program running per JVM.
+ */
 public class JVMRuntime {
 
+  /** Environment variable with number of worker threads */
+  public static final String THREADS_ENV = "SWIFT_JVM_THREADS";
+
+  /**
+   * Environment variable with microseconds before soft-targeted tasks
+   * can be stolen
+   */
+  public static final String SOFT_STEAL_ENV = "SWIFT_JVM_SOFT_STEAL_US";
+
+  /** Exit code for a program that failed */
+  public static final int EXIT_ERROR = 1;
+
+  /** Maximum number of unclosed variables listed for a deadlock */
+  private static final int MAX_DEADLOCK_REPORT = 20;
+
+  private static TaskQueue queue = null;
+
+  /**
+   * Variables that tasks subscribed to, registered by each worker when
+   * the first task subscribes, plus one list for other threads.  Any that
+   * still have subscribers once the task queue is quiescent can never be
+   * closed: the program is deadlocked.
+   */
+  private static WaitList waitLists[] = null;
+
+  /**
+   * Names and contexts of variables, by debug symbol
+   */
+  private static final ConcurrentHashMap<Integer, String> debugSymbols =
+                                  new ConcurrentHashMap<Integer, String>();
+
+  /** Worker number of current thread, or null if not a worker */
+  private static final ThreadLocal<Integer> workerNum =
+                                              new ThreadLocal<Integer>();
+
+  /** First error from a task, if any */
+  private static volatile Throwable error = null;
+
   public static Logger getLogger() {
     return Logger.getLogger(JVMRuntime.class);
   }
+
+  /**
+   * Run program and exit process with its exit code.
+   * @param args command line arguments, available through argv
+   * @param entry main task of program
+   */
+  public static void main(String[] args, Task entry) {
+    if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+      // Avoid log4j warnings if program wasn't configured to log
+      Logger.getRootLogger().addAppender(new NullAppender());
+    }
+    System.exit(run(args, defaultThreads(), entry));
+  }
+
+  /**
+   * @return threads configured in environment, or number of processors
+   */
+  public static int defaultThreads() {
+    String threads = System.getenv(THREADS_ENV);
+    if (threads != null && threads.length() > 0) {
+      try {
+        return Integer.parseInt(threads);
+      } catch (NumberFormatException e) {
+        getLogger().warn("Invalid " + THREADS_ENV + ": " + threads);
+      }
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @return soft steal delay in nanoseconds from environment, or default
+   */
+  private static long softStealDelay() {
+    String delay = System.getenv(SOFT_STEAL_ENV);
+    if (delay != null && delay.length() > 0) {
+      try {
+        long us = Long.parseLong(delay);
+        if (us > 0) {
+          return us * 1000L;
+        }
+      } catch (NumberFormatException e) {
+        // Fall through to warning
+      }
+      getLogger().warn("Invalid " + SOFT_STEAL_ENV + ": " + delay);
+    }
+    return TaskQueue.DEFAULT_SOFT_STEAL_DELAY;
+  }
+
+  /**
+   * Run program until all tasks have finished.
+   * @param args command line arguments, available through argv
+   * @param numThreads number of worker threads
+   * @param entry main task of program
+   * @return exit code
+   */
+  public static int run(String[] args, int numThreads, Task entry) {
+    Builtins.setArgs(args);
+    error = null;
+    waitLists = new WaitList[numThreads + 1];
+    for (int i = 0; i < waitLists.length; i++) {
+      waitLists[i] = new WaitList();
+    }
+    queue = new TaskQueue(numThreads, softStealDelay());
+    queue.addTask(0, entry);
+
+    Thread workers[] = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] = new Worker(i);
+      workers[i].start();
+    }
+
+    for (Thread worker: workers) {
+      boolean joined = false;
+      while (!joined) {
+        try {
+          worker.join();
+          joined = true;
+        } catch (InterruptedException e) {
+          // Keep waiting
+        }
+      }
+    }
+    queue = null;
+    List<BaseVar> stuck = new ArrayList<BaseVar>();
+    for (WaitList list: waitLists) {
+      list.addWaitedOn(stuck);
+    }
+    waitLists = null;
+
+    if (error != null) {
+      System.err.println("Swift program failed: " + error.getMessage());
+      getLogger().debug("Error in task", error);
+      return EXIT_ERROR;
+    } else if (!stuck.isEmpty()) {
+      reportDeadlock(stuck);
+      return EXIT_ERROR;
+    }
+    return 0;
+  }
+
+  /**
+   * Register name and context of variable for error messages
+   * @param symbol debug symbol, greater than zero
+   */
+  public static void addDebugSymbol(int symbol, String name,
+                                    String context) {
+    debugSymbols.put(symbol, name + " (" + context + ")");
+  }
+
+  /**
+   * @return description of variable for error messages
+   */
+  public static String describe(BaseVar var) {
+    String desc = debugSymbols.get(var.getDebugSymbol());
+    if (desc == null) {
+      return var.getClass().getSimpleName() + " with no debug symbol";
+    }
+    return desc;
+  }
+
+  /**
+   * Report variables that tasks are still waiting for once no tasks
+   * can run
+   */
+  private static void reportDeadlock(List<BaseVar> stuck) {
+    Set<NotifyTarget> waiting = Collections.newSetFromMap(
+                              new IdentityHashMap<NotifyTarget, Boolean>());
+    for (BaseVar var: stuck) {
+      var.getWaiters(waiting);
+    }
+    System.err.println("Swift program deadlocked: " + waiting.size() +
+        " task(s) waiting on " + stuck.size() +
+        " variable(s) that were never closed:");
+    int reported = 0;
+    for (BaseVar var: stuck) {
+      if (reported == MAX_DEADLOCK_REPORT) {
+        System.err.println("  ... and " + (stuck.size() - reported) +
+                           " more");
+        break;
+      }
+      System.err.println("  " + describe(var));
+      reported++;
+    }
+  }
+
+  private static class Worker extends Thread {
+    private final int threadNum;
+
+    Worker(int threadNum) {
+      super("swift-worker-" + threadNum);
+      this.threadNum = threadNum;
+    }
+
+    @Override
+    public void run() {
+      workerNum.set(threadNum);
+      Task task;
+      while ((task = queue.getTask(threadNum)) != null) {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          if (error == null) {
+            error = t;
+          }
+          queue.shutdown();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of worker threads
+   */
+  public static int workers() {
+    return queue.numThreads();
+  }
+
+  /**
+   * Add task to be run when a worker is available
+   */
+  public static void spawn(Task task) {
+    spawn(task, Task.DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Add task to be run when a worker is available
+   * @param priority higher priority tasks are run first
+   */
+  public static void spawn(Task task, int priority) {
+    Integer thread = workerNum.get();
+    queue.addTask(thread == null ? 0 : thread, task, priority);
+  }
+
+  /**
+   * Add task to be run at location when a worker is available
+   * @param location where to run task, or null for anywhere
+   */
+  public static void spawn(Task task, int priority, Location location) {
+    if (location == null) {
+      spawn(task, priority);
+    } else {
+      // Ranks beyond number of workers wrap around
+      int target = location.rank % queue.numThreads();
+      if (location.hard) {
+        queue.addTargeted(target, task, priority);
+      } else {
+        queue.addSoftTargeted(target, task, priority);
+      }
+    }
+  }
+
+  /**
+   * @see Location#make(long, String, String)
+   */
+  public static Location location(long rank, String strictness,
+                          String accuracy) throws LogicException {
+    return Location.make(rank, strictness, accuracy);
+  }
+
+  /**
+   * Run task once all variables are closed
+   */
+  public static void waitFor(Task task, BaseVar ...vars) {
+    waitFor(task, Task.DEFAULT_PRIORITY, vars);
+  }
+
+  /**
+   * Run task with priority once all variables are closed
+   */
+  public static void waitFor(Task task, int priority, BaseVar ...vars) {
+    waitFor(task, priority, (Location)null, vars);
+  }
+
+  /**
+   * Run task with priority at location once all variables are closed
+   */
+  public static void waitFor(Task task, int priority, Location location,
+                             BaseVar ...vars) {
+    WaitTask wait = new WaitTask(task, priority, location, false);
+    for (BaseVar var: vars) {
+      wait.add(var);
+    }
+    wait.ready();
+  }
+
+  /**
+   * Run task once all variables are closed, including members of
+   * containers, recursively
+   */
+  public static void waitForRecursive(Task task, BaseVar ...vars) {
+    waitForRecursive(task, Task.DEFAULT_PRIORITY, vars);
+  }
+
+  /**
+   * Run task with priority once all variables are closed, including
+   * members of containers, recursively
+   */
+  public static void waitForRecursive(Task task, int priority,
+                                      BaseVar ...vars) {
+    waitForRecursive(task, priority, (Location)null, vars);
+  }
+
+  /**
+   * Run task with priority at location once all variables are closed,
+   * including members of containers, recursively
+   */
+  public static void waitForRecursive(Task task, int priority,
+      Location location, BaseVar ...vars) {
+    WaitTask wait = new WaitTask(task, priority, location, true);
+    for (BaseVar var: vars) {
+      wait.add(var);
+    }
+    wait.ready();
+  }
+
+  /**
+   * Run task once array member is assigned or array is closed
+   */
+  public static void waitForMember(ArrayVar<?> arr, long key,
+                                   final Task task) {
+    boolean subscribed = arr.subscribe(key, new SubscriptTarget() {
+      @Override
+      public void notifySubscript(ArrayVar<?> arr, long key) {
+        spawn(task);
+      }
+    });
+    if (!subscribed) {
+      spawn(task);
+    }
+  }
+
+  /**
+   * Run task once all fields in range are assigned or struct is closed
+   */
+  public static void waitForFields(StructVar struct, int first, int count,
+                                   final Task task) {
+    if (count == 0) {
+      spawn(task);
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger(count);
+    SubscriptTarget countdown = new SubscriptTarget() {
+      @Override
+      public void notifySubscript(ArrayVar<?> arr, long key) {
+        if (remaining.decrementAndGet() == 0) {
+          spawn(task);
+        }
+      }
+    };
+    for (int i = 0; i < count; i++) {
+      if (!struct.subscribe(first + i, countdown)) {
+        countdown.notifySubscript(struct, first + i);
+      }
+    }
+  }
+
+  /**
+   * List of variables registered by one thread.  Variables are not
+   * removed when closed, to avoid contention: instead closed variables
+   * are dropped whenever the list doubles in size.
+   */
+  private static class WaitList {
+    private static final int MIN_COMPACT = 1024;
+
+    private final ArrayList<BaseVar> vars = new ArrayList<BaseVar>();
+    private int compactAt = MIN_COMPACT;
+
+    void add(BaseVar var) {
+      vars.add(var);
+      if (vars.size() >= compactAt) {
+        int live = 0;
+        for (BaseVar v: vars) {
+          if (v.isWaitedOn()) {
+            vars.set(live++, v);
+          }
+        }
+        vars.subList(live, vars.size()).clear();
+        compactAt = Math.max(MIN_COMPACT, live * 2);
+      }
+    }
+
+    void addWaitedOn(List<BaseVar> result) {
+      for (BaseVar v: vars) {
+        if (v.isWaitedOn()) {
+          result.add(v);
+        }
+      }
+    }
+  }
+
+  /**
+   * Register variable for deadlock detection.  Called by the thread that
+   * added the first subscriber to the variable.
+   */
+  static void registerWaitedOn(BaseVar var) {
+    WaitList lists[] = waitLists;
+    if (lists == null) {
+      // Not running a program
+      return;
+    }
+    Integer thread = workerNum.get();
+    if (thread != null) {
+      lists[thread].add(var);
+    } else {
+      WaitList other = lists[lists.length - 1];
+      synchronized (other) {
+        other.add(var);
+      }
+    }
+  }
+
+  /**
+   * Spawn task once count of pending variables drops to zero.
+   * Count starts at one so that task can't be spawned until all
+   * variables are added.
+   */
+  private static class WaitTask implements NotifyTarget {
+    private final Task task;
+    private final int priority;
+    private final Location location;
+    private final boolean recursive;
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    WaitTask(Task task, int priority, Location location, boolean recursive) {
+      this.task = task;
+      this.priority = priority;
+      this.location = location;
+      this.recursive = recursive;
+    }
+
+    void add(BaseVar var) {
+      pending.incrementAndGet();
+      if (!var.subscribe(this)) {
+        notifyFinal(var);
+      }
+    }
+
+    void ready() {
+      decr();
+    }
+
+    @Override
+    public void notifyFinal(BaseVar var) {
+      if (recursive) {
+        // Wait for members of containers, structs and references
+        List<BaseVar> members = new ArrayList<BaseVar>();
+        var.addMemberVars(members);
+        for (BaseVar member: members) {
+          add(member);
+        }
+      }
+      decr();
+    }
+
+    private void decr() {
+      if (pending.decrementAndGet() == 0) {
+        spawn(task, priority, location);
+      }
+    }
+  }
+
+  /**
+   * Body of a range loop, run for a chunk of the range.
+   */
+  public static interface RangeBody {
+    /**
+     * @param lo first iteration
+     * @param hi last iteration (inclusive)
+     * @param inc increment
+     */
+    public void run(long lo, long hi, long inc) throws LogicException;
+  }
+
+  /**
+   * Loops run while the loop variable is <= hi, so the range is empty if
+   * lo > hi, even if the increment is negative.
+   * @return number of iterations in range, or 0 if empty
+   */
+  public static long rangeIters(long lo, long hi, long inc) {
+    if (hi < lo) {
+      return 0;
+    }
+    return Math.max(0, (hi - lo) / inc + 1);
+  }
+
+  /**
+   * Run range loop, choosing leaf degree from the number of iterations
+   * if minLeafDegree is positive, so that there are enough leaves for
+   * two levels of splitting.
+   * @param leafDegree maximum leaf degree
+   * @param minLeafDegree minimum leaf degree, or 0 to use leafDegree
+   */
+  public static void forRange(long lo, long hi, long inc, int splitDegree,
+      int leafDegree, int minLeafDegree, RangeBody body)
+          throws LogicException {
+    forRange(lo, hi, inc, splitDegree, leafDegree(rangeIters(lo, hi, inc),
+             splitDegree, leafDegree, minLeafDegree), body);
+  }
+
+  /**
+   * @return leaf degree for loop with iters iterations
+   */
+  static int leafDegree(long iters, int splitDegree, int leafDegree,
+                        int minLeafDegree) {
+    if (minLeafDegree <= 0 || minLeafDegree >= leafDegree) {
+      return leafDegree;
+    }
+    long leaves = (long)splitDegree * splitDegree;
+    long leaf = (iters + leaves - 1) / leaves;
+    return (int)Math.max(minLeafDegree, Math.min(leafDegree, leaf));
+  }
+
+  /**
+   * Run range loop, recursively splitting range into tasks until there
+   * are at most leafDegree iterations in a chunk.
+   * @param splitDegree number of pieces to split range into
+   * @param leafDegree maximum iterations to run in a task
+   */
+  public static void forRange(long lo, long hi, final long inc,
+      final int splitDegree, final int leafDegree, final RangeBody body)
+          throws LogicException {
+    long iters = rangeIters(lo, hi, inc);
+    if (iters <= 0) {
+      return;
+    }
+    if (iters <= leafDegree || splitDegree < 2) {
+      body.run(lo, hi, inc);
+      return;
+    }
+
+    long chunk = (iters + splitDegree - 1) / splitDegree;
+    // Spawn all but first chunk, then run first chunk here
+    for (long start = chunk; start < iters; start += chunk) {
+      final long chunkLo = lo + start * inc;
+      final long chunkHi = lo + (Math.min(iters, start + chunk) - 1) * inc;
+      spawn(new Task() {
+        @Override
+        public void run() throws LogicException {
+          forRange(chunkLo, chunkHi, inc, splitDegree, leafDegree, body);
+        }
+      });
+    }
+    forRange(lo, lo + (chunk - 1) * inc, inc, splitDegree, leafDegree,
+             body);
+  }
 }
@@ -0,0 +1,62 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Placement of a task on a worker thread, from the location, strictness
+ * and accuracy task properties.  Ranks are mapped onto worker threads.
+ * All threads are on the same node, so node accuracy places no
+ * constraint on a task.
+ */
+public class Location {
+  /** Rank meaning any location: should match Turbine's value */
+  public static final int ANY_RANK = -100;
+
+  public static final String STRICTNESS_HARD = "HARD";
+  public static final String STRICTNESS_SOFT = "SOFT";
+  public static final String ACCURACY_RANK = "RANK";
+  public static final String ACCURACY_NODE = "NODE";
+
+  /** Target rank, non-negative */
+  public final int rank;
+
+  /** If false, task can be run by other threads if target is busy */
+  public final boolean hard;
+
+  private Location(int rank, boolean hard) {
+    this.rank = rank;
+    this.hard = hard;
+  }
+
+  /**
+   * @return location, or null if task can run on any thread
+   * @throws LogicException if strictness or accuracy are invalid
+   */
+  public static Location make(long rank, String strictness,
+                              String accuracy) throws LogicException {
+    boolean hard;
+    if (strictness.equals(STRICTNESS_HARD)) {
+      hard = true;
+    } else if (strictness.equals(STRICTNESS_SOFT)) {
+      hard = false;
+    } else {
+      throw new LogicException("Invalid location strictness: " + strictness);
+    }
+
+    if (accuracy.equals(ACCURACY_NODE)) {
+      return null;
+    } else if (!accuracy.equals(ACCURACY_RANK)) {
+      throw new LogicException("Invalid location accuracy: " + accuracy);
+    }
+
+    if (rank == ANY_RANK) {
+      return null;
+    } else if (rank < 0 || rank > Integer.MAX_VALUE) {
+      throw new LogicException("Invalid location rank: " + rank);
+    }
+    return new Location((int)rank, hard);
+  }
+
+  @Override
+  public String toString() {
+    return "rank " + rank + (hard ? " (hard)" : " (soft)");
+  }
+}
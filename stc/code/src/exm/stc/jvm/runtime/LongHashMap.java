@@ -0,0 +1,141 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Hash map from primitive long keys to values, using open addressing
+ * to avoid boxing keys and allocating entries.  Individual entries can't
+ * be removed since container members are only written once, but all
+ * entries can be cleared at once when the container is released.
+ *
+ * Not thread-safe: callers must synchronize.
+ */
+public class LongHashMap<V> {
+  private static final int INIT_CAPACITY = 8;
+
+  private long keys[];
+  private Object vals[];
+  private int size;
+
+  public LongHashMap() {
+    this(INIT_CAPACITY);
+  }
+
+  /**
+   * @param capacity initial capacity, will be rounded up to power of two
+   */
+  public LongHashMap(int capacity) {
+    int cap = INIT_CAPACITY;
+    while (cap < capacity * 2) {
+      cap *= 2;
+    }
+    this.keys = new long[cap];
+    this.vals = new Object[cap];
+    this.size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int i = find(keys, vals, key);
+    return (V)vals[i];
+  }
+
+  /**
+   * @param key
+   * @param val non-null value
+   * @return previous value, or null if none
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V val) {
+    assert(val != null);
+    int i = find(keys, vals, key);
+    Object prev = vals[i];
+    if (prev == null) {
+      keys[i] = key;
+      vals[i] = val;
+      size++;
+      if (size * 2 > keys.length) {
+        grow();
+      }
+    } else {
+      vals[i] = val;
+    }
+    return (V)prev;
+  }
+
+  /**
+   * Remove all entries, releasing storage
+   */
+  public void clear() {
+    this.keys = new long[INIT_CAPACITY];
+    this.vals = new Object[INIT_CAPACITY];
+    this.size = 0;
+  }
+
+  /**
+   * Call visitor for all entries
+   */
+  @SuppressWarnings("unchecked")
+  public void visit(Visitor<V> visitor) {
+    for (int i = 0; i < keys.length; i++) {
+      if (vals[i] != null) {
+        visitor.visit(keys[i], (V)vals[i]);
+      }
+    }
+  }
+
+  public static interface Visitor<V> {
+    public void visit(long key, V val);
+  }
+
+  /**
+   * @return index of key, or empty slot where it would be inserted
+   */
+  private static int find(long keys[], Object vals[], long key) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (vals[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void grow() {
+    long oldKeys[] = keys;
+    Object oldVals[] = vals;
+    keys = new long[oldKeys.length * 2];
+    vals = new Object[oldVals.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldVals[i] != null) {
+        int j = find(keys, vals, oldKeys[i]);
+        keys[j] = oldKeys[i];
+        vals[j] = oldVals[i];
+      }
+    }
+  }
+
+  /**
+   * Mix bits so that sequential keys spread across table
+   */
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("{");
+    visit(new Visitor<V>() {
+      @Override
+      public void visit(long key, V val) {
+        if (sb.length() > 1) {
+          sb.append(", ");
+        }
+        sb.append(key).append('=').append(val);
+      }
+    });
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,147 @@
+package exm.stc.jvm.runtime;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Concurrent deque of tasks ordered by integer priority, for use as a
+ * work-stealing queue.  Tasks with higher priority are always taken
+ * first.  Among tasks with equal priority, the owner takes the most
+ * recently added (LIFO) and thieves take the least recently added (FIFO).
+ *
+ * Most tasks have the default priority, so they are kept in a separate
+ * lock-free bucket, and there is little overhead if priorities are not
+ * used.  Tasks with other priorities are kept in a sorted map of
+ * buckets, one per distinct priority, protected by a lock.  Buckets are
+ * removed as soon as they are empty, so with computed priorities taking
+ * a task costs O(log n) in the number of distinct priorities queued,
+ * and memory is freed once tasks have run.
+ */
+class PriorityDeque {
+
+  private final ConcurrentLinkedDeque<Task> defaultBucket =
+                                        new ConcurrentLinkedDeque<Task>();
+
+  /**
+   * Non-empty buckets for priorities other than the default, highest
+   * first.  Guarded by this.
+   */
+  private final TreeMap<Integer, ArrayDeque<Task>> buckets =
+      new TreeMap<Integer, ArrayDeque<Task>>(
+                        Collections.<Integer>reverseOrder());
+
+  /**
+   * Number of tasks in buckets.  Only modified while holding lock, but
+   * can be read without it to skip locking when there are none.
+   */
+  private volatile int prioritized = 0;
+
+  public void add(Task task, int priority) {
+    if (priority == Task.DEFAULT_PRIORITY) {
+      defaultBucket.addLast(task);
+    } else {
+      synchronized (this) {
+        bucket(priority).addLast(task);
+        prioritized++;
+      }
+    }
+  }
+
+  /**
+   * Return a task taken with pollThief() to the thief's end
+   */
+  public void putBack(Task task, int priority) {
+    if (priority == Task.DEFAULT_PRIORITY) {
+      defaultBucket.addFirst(task);
+    } else {
+      synchronized (this) {
+        bucket(priority).addFirst(task);
+        prioritized++;
+      }
+    }
+  }
+
+  /**
+   * Take task from owner's end
+   * @return a task, or null if empty
+   */
+  public Task pollOwner() {
+    return poll(true);
+  }
+
+  /**
+   * Take task from thief's end
+   * @return a task, or null if empty
+   */
+  public Task pollThief() {
+    return poll(false);
+  }
+
+  public boolean isEmpty() {
+    return prioritized == 0 && defaultBucket.isEmpty();
+  }
+
+  private Task poll(boolean owner) {
+    if (prioritized == 0) {
+      // Fast path: no tasks with other priorities
+      return pollDefault(owner);
+    }
+
+    Task res = pollPrioritized(owner, true);
+    if (res != null) {
+      return res;
+    }
+    res = pollDefault(owner);
+    if (res != null) {
+      return res;
+    }
+    return pollPrioritized(owner, false);
+  }
+
+  private Task pollDefault(boolean owner) {
+    return owner ? defaultBucket.pollLast() : defaultBucket.pollFirst();
+  }
+
+  /**
+   * Take task from highest priority bucket
+   * @param higherOnly only take tasks with priority above default
+   * @return a task, or null if none
+   */
+  private synchronized Task pollPrioritized(boolean owner,
+                                            boolean higherOnly) {
+    Map.Entry<Integer, ArrayDeque<Task>> first = buckets.firstEntry();
+    if (first == null ||
+        (higherOnly && first.getKey() < Task.DEFAULT_PRIORITY)) {
+      return null;
+    }
+    ArrayDeque<Task> bucket = first.getValue();
+    Task res = owner ? bucket.pollLast() : bucket.pollFirst();
+    if (bucket.isEmpty()) {
+      buckets.remove(first.getKey());
+    }
+    prioritized--;
+    return res;
+  }
+
+  /**
+   * @return number of non-default priority buckets, for testing
+   */
+  synchronized int bucketCount() {
+    return buckets.size();
+  }
+
+  /**
+   * Get bucket for priority, creating if needed.  Must hold lock.
+   */
+  private ArrayDeque<Task> bucket(int priority) {
+    ArrayDeque<Task> bucket = buckets.get(priority);
+    if (bucket == null) {
+      bucket = new ArrayDeque<Task>();
+      buckets.put(priority, bucket);
+    }
+    return bucket;
+  }
+}
@@ -4,5 +4,11 @@ package exm.stc.jvm.runtime;
  * Task interface.  Idea is currently to implement as closure
  */
 public interface Task {
-  public void run();
+  /**
+   * Priority of tasks spawned without an explicit priority.  Tasks
+   * with a higher priority are run first.
+   */
+  public static final int DEFAULT_PRIORITY = 0;
+
+  public void run() throws LogicException;
 }
@@ -1,81 +1,454 @@
 package exm.stc.jvm.runtime;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * The global task queue
- * TODO: priorities
+ * The global task queue, implemented as a work-stealing scheduler.
  *
+ * Each worker thread owns a deque of regular tasks: it pushes and pops
+ * at the tail, while other workers steal from the head.  Each worker
+ * also has a queue of tasks targeted to it, which are run before
+ * regular tasks and cannot be stolen.  Both kinds of queue are ordered
+ * by task priority, so the owner and thieves always take the highest
+ * priority task available in a queue.  Priorities are not enforced
+ * across workers: a worker runs its own tasks before stealing higher
+ * priority tasks from others, much as ADLB servers only order their
+ * own work queues.
+ *
+ * Tasks can also be soft-targeted to a worker: the target runs them
+ * before its regular tasks, but once a soft-targeted task has waited for
+ * longer than the soft steal delay, other workers may steal it.  This
+ * gives cache locality when the target keeps up, without leaving tasks
+ * stranded behind a busy worker.  Idle workers poll for stealable
+ * soft-targeted tasks while any are queued.
+ *
+ * Workers that find no work park until a new task is added.  Once all
+ * workers are idle and all queues are empty, no more tasks can be
+ * created, so the queue is terminated and getTask() returns null to all
+ * workers.  Tasks must therefore only be added by worker threads, or by
+ * other threads before the workers start.  Any tasks still waiting for
+ * variables at that point can never run, and are reported as a deadlock
+ * by JVMRuntime.
  */
 public class TaskQueue {
-  
+
+  private static final int IDLE = 1;
+  private static final int BUSY = 0;
+
+  /** Default soft steal delay in nanoseconds */
+  public static final long DEFAULT_SOFT_STEAL_DELAY = 1000000L;
+
   /**
-   * TODO: allow passing in of queues so that each thread
-   * can have in own local heap
-   * @param numThreads
+   * @param numThreads number of worker threads, numbered from 0
    */
   public TaskQueue(int numThreads) {
+    this(numThreads, DEFAULT_SOFT_STEAL_DELAY);
+  }
+
+  /**
+   * @param numThreads number of worker threads, numbered from 0
+   * @param softStealDelay nanoseconds before other threads can steal
+   *                       a soft-targeted task
+   */
+  public TaskQueue(int numThreads, long softStealDelay) {
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException("Need at least one thread: " +
+                                          numThreads);
+    }
+    if (softStealDelay <= 0) {
+      throw new IllegalArgumentException("Soft steal delay must be " +
+                                         "positive: " + softStealDelay);
+    }
     this.numThreads = numThreads;
-    this.targeted = new ArrayList<ConcurrentLinkedDeque<Task>>(numThreads);
-    this.regular = new ArrayList<ArrayDeque<Task>>(numThreads);
+    this.softStealDelay = softStealDelay;
+    this.targeted = new ArrayList<PriorityDeque>(numThreads);
+    this.soft = new ArrayList<PriorityDeque>(numThreads);
+    this.regular = new ArrayList<PriorityDeque>(numThreads);
+    this.random = new ArrayList<Random>(numThreads);
     for (int i = 0; i < numThreads; i++) {
-      this.targeted.add(new ConcurrentLinkedDeque<Task>());
-      this.regular.add(new ArrayDeque<Task>());
+      this.targeted.add(new PriorityDeque());
+      this.soft.add(new PriorityDeque());
+      this.regular.add(new PriorityDeque());
+      this.random.add(new Random(i));
     }
+    this.workers = new AtomicReferenceArray<Thread>(numThreads);
+    this.idle = new AtomicIntegerArray(numThreads);
   }
-  
+
   private final int numThreads;
-  
+
+  private final long softStealDelay;
+
   /**
    * Targeted task queues (one per thread)
    */
-  private final ArrayList<ConcurrentLinkedDeque<Task>> targeted;
-  
+  private final ArrayList<PriorityDeque> targeted;
+
   /**
-   * Personal non-targeted task queue (one per thread) 
-   * TODO: priorities
+   * Soft-targeted task queues (one per thread), containing SoftTasks.
+   * Owner uses tail, thieves use head.
    */
-  private final ArrayList<ArrayDeque<Task>> regular;
-  
-  
+  private final ArrayList<PriorityDeque> soft;
+
   /**
-   * TODO: each thread should hold local reference to own deque
-   * @return a task, or null if nothing available
+   * Number of tasks in soft-targeted queues
+   */
+  private final AtomicInteger softCount = new AtomicInteger(0);
+
+  /**
+   * Personal non-targeted task queue (one per thread).  Owner uses
+   * tail, thieves use head.
+   */
+  private final ArrayList<PriorityDeque> regular;
+
+  /**
+   * Per-thread random number generators for choosing victims.  Only
+   * accessed by owner thread.
+   */
+  private final ArrayList<Random> random;
+
+  /**
+   * Worker threads, registered on first call to getTask()
+   */
+  private final AtomicReferenceArray<Thread> workers;
+
+  /**
+   * IDLE if thread is parked or about to park, BUSY otherwise.
+   * Only the thread that changes IDLE to BUSY may decrement idleCount.
+   */
+  private final AtomicIntegerArray idle;
+
+  private final AtomicInteger idleCount = new AtomicInteger(0);
+
+  /**
+   * Incremented every time a worker goes from idle to busy, so that
+   * quiescence detection can check that no worker became busy while
+   * it was scanning queues.
+   */
+  private final AtomicLong wakeups = new AtomicLong(0);
+
+  private final AtomicBoolean terminated = new AtomicBoolean(false);
+
+  /**
+   * Add a task that can be run by any thread.
+   * @param threadNum the current thread, which will run it if no other
+   *                  thread steals it first
+   * @param task
+   */
+  public void addTask(int threadNum, Task task) {
+    addTask(threadNum, task, Task.DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Add a task that can be run by any thread.
+   * @param threadNum the current thread
+   * @param task
+   * @param priority higher priority tasks are run first
+   */
+  public void addTask(int threadNum, Task task, int priority) {
+    regular.get(threadNum).add(task, priority);
+    wakeAny();
+  }
+
+  /**
+   * Add a task that must be run by a particular thread
+   * @param targetThread
+   * @param task
+   */
+  public void addTargeted(int targetThread, Task task) {
+    addTargeted(targetThread, task, Task.DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Add a task that must be run by a particular thread
+   * @param targetThread
+   * @param task
+   * @param priority higher priority tasks are run first
+   */
+  public void addTargeted(int targetThread, Task task, int priority) {
+    targeted.get(targetThread).add(task, priority);
+    wake(targetThread);
+  }
+
+  /**
+   * Add a task that should preferably be run by a particular thread,
+   * but that other threads can run if it isn't run promptly.
+   * @param targetThread
+   * @param task
+   * @param priority higher priority tasks are run first
+   */
+  public void addSoftTargeted(int targetThread, Task task, int priority) {
+    softCount.incrementAndGet();
+    soft.get(targetThread).add(new SoftTask(task, priority, System.nanoTime()),
+                               priority);
+    if (!wake(targetThread)) {
+      // Make sure some thread will be polling in case target stays busy
+      wakeAny();
+    }
+  }
+
+  /**
+   * Get next task for thread, blocking until one is available.
+   * @param threadNum
+   * @return a task, or null if all work is done
    */
   public Task getTask(int threadNum) {
+    if (workers.get(threadNum) == null) {
+      workers.set(threadNum, Thread.currentThread());
+    }
+
+    while (true) {
+      Task res = findTask(threadNum);
+      if (res != null) {
+        return res;
+      }
+
+      if (terminated.get()) {
+        return null;
+      }
+
+      // Advertise that we're idle before checking queues a final time,
+      // so that any task added afterwards will wake us
+      idle.set(threadNum, IDLE);
+      idleCount.incrementAndGet();
+
+      if (checkQuiescent()) {
+        return null;
+      }
+
+      if (anyTasks(threadNum)) {
+        // Must not take tasks while counted as idle
+        markBusy(threadNum);
+        continue;
+      }
+
+      while (idle.get(threadNum) == IDLE && !terminated.get()) {
+        if (softCount.get() > 0) {
+          // Recheck once soft-targeted tasks may be stealable
+          LockSupport.parkNanos(this, softStealDelay);
+          if (markBusy(threadNum)) {
+            break;
+          }
+        } else {
+          LockSupport.park(this);
+        }
+      }
+      if (terminated.get()) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Terminate queue even if work remains, e.g. after an error.
+   * Workers will get null from getTask()
+   */
+  public void shutdown() {
+    if (terminated.compareAndSet(false, true)) {
+      unparkAll();
+    }
+  }
+
+  public int numThreads() {
+    return numThreads;
+  }
+
+  /**
+   * @return true if the queue was terminated
+   */
+  public boolean isTerminated() {
+    return terminated.get();
+  }
+
+  /**
+   * Try to find work without blocking
+   * @return a task, or null if nothing available
+   */
+  private Task findTask(int threadNum) {
     // Targeted have highest priority
-    Task res = targeted.get(threadNum).pollLast();
+    Task res = targeted.get(threadNum).pollOwner();
     if (res != null)
       return res;
-    
-    // Next, try to see if something in local deque
-    ArrayDeque<Task> myDeque = regular.get(threadNum);
-    synchronized (myDeque) {
-      res = myDeque.pollLast();
+
+    // Then tasks soft-targeted to us
+    if (softCount.get() > 0) {
+      res = soft.get(threadNum).pollOwner();
+      if (res != null) {
+        softCount.decrementAndGet();
+        return ((SoftTask)res).task;
+      }
     }
+
+    // Next, try to see if something in local deque
+    res = regular.get(threadNum).pollOwner();
     if (res != null)
       return res;
-    
-    // Finally, search other deques to steal work
-    // TODO: exit condition - detect idle, or go to sleep
-    Random r = new Random();
-    while (true) {
-      int deque = r.nextInt(numThreads - 1);
-      if (deque >= threadNum)
-        deque++;
-      
-      ArrayDeque<Task> otherDeque = regular.get(threadNum);
+
+    // Finally, visit other deques in random order to steal work
+    if (numThreads == 1)
+      return null;
+    int start = random.get(threadNum).nextInt(numThreads - 1);
+    for (int i = 0; i < numThreads - 1; i++) {
+      int victim = (start + i) % (numThreads - 1);
+      if (victim >= threadNum)
+        victim++;
+
       // Task from other end
-      synchronized (otherDeque) {
-        res = otherDeque.pollFirst();
-      }
+      res = regular.get(victim).pollThief();
       if (res != null)
-        return res;      
+        return res;
+    }
+
+    // Only steal soft-targeted tasks if no other work
+    if (softCount.get() > 0) {
+      long now = System.nanoTime();
+      for (int i = 0; i < numThreads - 1; i++) {
+        int victim = (start + i) % (numThreads - 1);
+        if (victim >= threadNum)
+          victim++;
+
+        res = stealSoft(victim, now);
+        if (res != null)
+          return res;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Steal soft-targeted task from victim if it waited long enough
+   * @return the task, or null if none
+   */
+  private Task stealSoft(int victim, long now) {
+    PriorityDeque deque = soft.get(victim);
+    SoftTask res = (SoftTask)deque.pollThief();
+    if (res == null)
+      return null;
+
+    if (now - res.enqueued < softStealDelay) {
+      // Too early: return it.  Wake victim in case it went idle while
+      // we held the task.
+      deque.putBack(res, res.priority);
+      wake(victim);
+      return null;
+    }
+    softCount.decrementAndGet();
+    return res.task;
+  }
+
+  /**
+   * @return true if any task is visible to this thread
+   */
+  private boolean anyTasks(int threadNum) {
+    if (!targeted.get(threadNum).isEmpty() ||
+        !soft.get(threadNum).isEmpty())
+      return true;
+    for (PriorityDeque deque: regular) {
+      if (!deque.isEmpty())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check for global quiescence, and terminate if quiescent.
+   * Must be called after marking current thread idle.
+   * @return true if terminated
+   */
+  private boolean checkQuiescent() {
+    long startWakeups = wakeups.get();
+    if (idleCount.get() < numThreads)
+      return false;
+
+    // All workers idle.  Workers only take tasks while busy, so if the
+    // queues are empty and no worker woke up while we checked, then no
+    // tasks can be added.
+    for (int i = 0; i < numThreads; i++) {
+      if (!targeted.get(i).isEmpty() || !soft.get(i).isEmpty() ||
+          !regular.get(i).isEmpty())
+        return false;
+    }
+    if (wakeups.get() != startWakeups || idleCount.get() < numThreads)
+      return false;
+
+    if (terminated.compareAndSet(false, true)) {
+      JVMRuntime.getLogger().debug("Task queue quiescent: terminating");
+      unparkAll();
+    }
+    return true;
+  }
+
+  private void unparkAll() {
+    for (int i = 0; i < numThreads; i++) {
+      Thread t = workers.get(i);
+      if (t != null)
+        LockSupport.unpark(t);
+    }
+  }
+
+  /**
+   * Change thread from idle to busy.
+   * @return true if we changed it, false if already busy
+   */
+  private boolean markBusy(int threadNum) {
+    if (idle.compareAndSet(threadNum, IDLE, BUSY)) {
+      wakeups.incrementAndGet();
+      idleCount.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Wake a particular thread if idle
+   * @return true if the thread was idle
+   */
+  private boolean wake(int threadNum) {
+    if (markBusy(threadNum)) {
+      LockSupport.unpark(workers.get(threadNum));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Wake an idle thread, if there are any
+   */
+  private void wakeAny() {
+    if (idleCount.get() == 0)
+      return;
+    for (int i = 0; i < numThreads; i++) {
+      if (markBusy(i)) {
+        LockSupport.unpark(workers.get(i));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Wrapper for soft-targeted tasks, recording when they were queued
+   */
+  private static class SoftTask implements Task {
+    final Task task;
+    final int priority;
+    final long enqueued;
+
+    SoftTask(Task task, int priority, long enqueued) {
+      this.task = task;
+      this.priority = priority;
+      this.enqueued = enqueued;
+    }
+
+    @Override
+    public void run() throws LogicException {
+      task.run();
     }
   }
-  
-  
 }
@@ -0,0 +1,491 @@
+package exm.stc.jvm.runtime;
+
+import java.math.BigInteger;
+import java.util.Locale;
+
+/**
+ * Implementation of Tcl's format command, which Turbine uses for printf
+ * and sprintf.  Tcl format specifiers are close to C's, but differ from
+ * java.util.Formatter in ways that matter for Swift programs, e.g. %i,
+ * %u, %0.2f, precision for integers, %g stripping trailing zeros, and
+ * integers being truncated to 32 bits unless a size modifier is given.
+ *
+ * Arguments are converted as Tcl would convert their string values:
+ * integer conversions accept integers, booleans and strings holding
+ * integers, and floating point conversions also accept floats.
+ */
+class TclFormat {
+
+  private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+  private final String fmt;
+  private final Object args[];
+  private final StringBuilder out = new StringBuilder();
+
+  /** Position in format string */
+  private int pos = 0;
+  /** Next argument for sequential specifiers */
+  private int nextArg = 0;
+  /** Whether %n$ specifiers are used, or null if not yet known */
+  private Boolean positional = null;
+
+  private TclFormat(String fmt, Object args[]) {
+    this.fmt = fmt;
+    this.args = args;
+  }
+
+  /**
+   * @param fmt Tcl format string
+   * @param args values to format
+   * @return formatted string
+   * @throws IllegalArgumentException with Tcl's message if format string
+   *        is invalid or arguments don't match it
+   */
+  static String format(String fmt, Object ...args) {
+    return new TclFormat(fmt, args).run();
+  }
+
+  private String run() {
+    while (pos < fmt.length()) {
+      char c = fmt.charAt(pos++);
+      if (c != '%') {
+        out.append(c);
+      } else if (pos < fmt.length() && fmt.charAt(pos) == '%') {
+        out.append('%');
+        pos++;
+      } else {
+        specifier();
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Handle specifier after %
+   */
+  private void specifier() {
+    // XPG3 position, e.g. %2$s
+    int argIx = -1;
+    int digitsEnd = skipDigits(pos);
+    if (digitsEnd > pos && digitsEnd < fmt.length() &&
+        fmt.charAt(digitsEnd) == '$') {
+      argIx = Integer.parseInt(fmt.substring(pos, digitsEnd)) - 1;
+      pos = digitsEnd + 1;
+      checkPositional(true);
+      if (argIx < 0 || argIx >= args.length) {
+        throw new IllegalArgumentException(
+            "\"%n$\" argument index out of range");
+      }
+    } else {
+      checkPositional(false);
+    }
+
+    boolean left = false, plus = false, space = false, zero = false,
+            hash = false;
+    flags: while (true) {
+      switch (peek()) {
+        case '-': left = true; break;
+        case '+': plus = true; break;
+        case ' ': space = true; break;
+        case '0': zero = true; break;
+        case '#': hash = true; break;
+        default: break flags;
+      }
+      pos++;
+    }
+
+    int width = 0;
+    if (peek() == '*') {
+      pos++;
+      width = (int)toLong(takeArg(-1));
+      if (width < 0) {
+        left = true;
+        width = -width;
+      }
+    } else {
+      width = parseNumber();
+    }
+
+    int precision = -1;
+    if (peek() == '.') {
+      pos++;
+      if (peek() == '*') {
+        pos++;
+        precision = Math.max(0, (int)toLong(takeArg(-1)));
+      } else {
+        precision = parseNumber();
+      }
+    }
+
+    // Size modifier: 0 for int, 1 for short, 2 for wide or bignum
+    int size = 0;
+    char m = peek();
+    if (m == 'h') {
+      size = 1;
+      pos++;
+    } else if (m == 'l') {
+      size = 2;
+      pos++;
+      if (peek() == 'l') {
+        pos++;
+      }
+    } else if (m == 'L' || m == 'q' || m == 'j' || m == 'z' || m == 't') {
+      size = 2;
+      pos++;
+    }
+
+    if (pos >= fmt.length()) {
+      throw new IllegalArgumentException(
+          "format string ended in middle of field specifier");
+    }
+    char conv = fmt.charAt(pos++);
+
+    Spec spec = new Spec(left, plus, space, zero, hash, width, precision);
+    switch (conv) {
+      case 'd':
+      case 'i':
+        formatSigned(spec, truncate(toLong(takeArg(argIx)), size));
+        break;
+      case 'u':
+        formatUnsigned(spec, truncate(toLong(takeArg(argIx)), size), size,
+                       10, "");
+        break;
+      case 'o':
+        formatUnsigned(spec, truncate(toLong(takeArg(argIx)), size), size,
+                       8, "0");
+        break;
+      case 'x':
+        formatUnsigned(spec, truncate(toLong(takeArg(argIx)), size), size,
+                       16, "0x");
+        break;
+      case 'X':
+        formatUnsigned(spec, truncate(toLong(takeArg(argIx)), size), size,
+                       16, "0X");
+        break;
+      case 'b':
+        formatUnsigned(spec, truncate(toLong(takeArg(argIx)), size), size,
+                       2, "0b");
+        break;
+      case 'c': {
+        int codePoint = (int)toLong(takeArg(argIx));
+        pad(spec, "", new String(Character.toChars(codePoint)), false);
+        break;
+      }
+      case 's': {
+        String s = Builtins.toString(takeArg(argIx));
+        if (precision >= 0 && precision < s.length()) {
+          s = s.substring(0, precision);
+        }
+        pad(spec, "", s, false);
+        break;
+      }
+      case 'f':
+      case 'e':
+      case 'E':
+      case 'g':
+      case 'G':
+      case 'a':
+      case 'A':
+        formatFloat(spec, conv, toDouble(takeArg(argIx)));
+        break;
+      default:
+        throw new IllegalArgumentException("bad field specifier \"" +
+                                            conv + "\"");
+    }
+  }
+
+  private static class Spec {
+    final boolean left, plus, space, zero, hash;
+    final int width, precision;
+
+    Spec(boolean left, boolean plus, boolean space, boolean zero,
+         boolean hash, int width, int precision) {
+      this.left = left;
+      this.plus = plus;
+      this.space = space;
+      this.zero = zero;
+      this.hash = hash;
+      this.width = width;
+      this.precision = precision;
+    }
+  }
+
+  private char peek() {
+    return pos < fmt.length() ? fmt.charAt(pos) : '\0';
+  }
+
+  private int skipDigits(int i) {
+    while (i < fmt.length() && Character.isDigit(fmt.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private int parseNumber() {
+    int end = skipDigits(pos);
+    if (end == pos) {
+      return 0;
+    }
+    int val = Integer.parseInt(fmt.substring(pos, end));
+    pos = end;
+    return val;
+  }
+
+  private void checkPositional(boolean isPositional) {
+    if (positional == null) {
+      positional = isPositional;
+    } else if (positional != isPositional) {
+      throw new IllegalArgumentException(
+          "cannot mix \"%\" and \"%n$\" conversion specifiers");
+    }
+  }
+
+  /**
+   * @param argIx index for positional specifier, or -1 for next
+   */
+  private Object takeArg(int argIx) {
+    if (argIx >= 0) {
+      return args[argIx];
+    }
+    if (nextArg >= args.length) {
+      throw new IllegalArgumentException(
+          "not enough arguments for all format specifiers");
+    }
+    return args[nextArg++];
+  }
+
+  private static long toLong(Object val) {
+    if (val instanceof Long || val instanceof Integer ||
+        val instanceof Short || val instanceof Byte) {
+      return ((Number)val).longValue();
+    } else if (val instanceof Boolean) {
+      return ((Boolean)val) ? 1 : 0;
+    } else if (val instanceof String) {
+      Long parsed = parseTclInt((String)val);
+      if (parsed != null) {
+        return parsed;
+      }
+    }
+    throw new IllegalArgumentException("expected integer but got \"" +
+                                       Builtins.toString(val) + "\"");
+  }
+
+  /**
+   * Parse integer in Tcl syntax
+   * @return value, or null if not an integer
+   */
+  private static Long parseTclInt(String s) {
+    String t = s.trim();
+    boolean negative = false;
+    if (t.startsWith("-") || t.startsWith("+")) {
+      negative = t.charAt(0) == '-';
+      t = t.substring(1);
+    }
+    int radix = 10;
+    if (t.length() > 2 && t.charAt(0) == '0') {
+      char r = Character.toLowerCase(t.charAt(1));
+      if (r == 'x' || r == 'o' || r == 'b') {
+        radix = r == 'x' ? 16 : (r == 'o' ? 8 : 2);
+        t = t.substring(2);
+      }
+    }
+    if (t.length() == 0 || !Character.isLetterOrDigit(t.charAt(0))) {
+      return null;
+    }
+    try {
+      BigInteger v = new BigInteger(t, radix);
+      return negative ? v.negate().longValue() : v.longValue();
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static double toDouble(Object val) {
+    if (val instanceof Number) {
+      return ((Number)val).doubleValue();
+    } else if (val instanceof Boolean) {
+      return ((Boolean)val) ? 1 : 0;
+    } else if (val instanceof String) {
+      String s = ((String)val).trim();
+      Long i = parseTclInt(s);
+      if (i != null) {
+        return i;
+      }
+      if (s.equalsIgnoreCase("inf") || s.equalsIgnoreCase("+inf")) {
+        return Double.POSITIVE_INFINITY;
+      } else if (s.equalsIgnoreCase("-inf")) {
+        return Double.NEGATIVE_INFINITY;
+      } else if (s.equalsIgnoreCase("nan")) {
+        return Double.NaN;
+      }
+      try {
+        return Double.parseDouble(s);
+      } catch (NumberFormatException e) {
+        // Fall through to error
+      }
+    }
+    throw new IllegalArgumentException(
+        "expected floating-point number but got \"" +
+        Builtins.toString(val) + "\"");
+  }
+
+  /**
+   * Truncate as Tcl does for size modifier
+   */
+  private static long truncate(long val, int size) {
+    if (size == 0) {
+      return (int)val;
+    } else if (size == 1) {
+      return (short)val;
+    } else {
+      return val;
+    }
+  }
+
+  private void formatSigned(Spec spec, long val) {
+    String sign = val < 0 ? "-" : (spec.plus ? "+" : (spec.space ? " " : ""));
+    String digits = val < 0 ? BigInteger.valueOf(val).negate().toString() :
+                              Long.toString(val);
+    padInt(spec, sign, digits);
+  }
+
+  private void formatUnsigned(Spec spec, long val, int size, int radix,
+                              String prefix) {
+    BigInteger v = BigInteger.valueOf(val);
+    if (val < 0) {
+      int bits = size == 0 ? 32 : (size == 1 ? 16 : 64);
+      v = v.add(bits == 64 ? TWO_64 : BigInteger.ONE.shiftLeft(bits));
+    }
+    String digits = v.toString(radix);
+    if (radix == 16 && prefix.equals("0X")) {
+      digits = digits.toUpperCase();
+    }
+    padInt(spec, spec.hash ? prefix : "", digits);
+  }
+
+  /**
+   * Apply integer precision, then pad
+   */
+  private void padInt(Spec spec, String prefix, String digits) {
+    if (spec.precision >= 0) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = digits.length(); i < spec.precision; i++) {
+        sb.append('0');
+      }
+      if (spec.precision == 0 && digits.equals("0")) {
+        digits = "";
+      }
+      digits = sb.append(digits).toString();
+    }
+    // Zero flag is ignored if precision is given, as in C
+    pad(spec, prefix, digits, spec.zero && spec.precision < 0);
+  }
+
+  private void formatFloat(Spec spec, char conv, double val) {
+    String sign = (val < 0 || (val == 0 && 1 / val < 0)) ? "-" :
+                  (spec.plus ? "+" : (spec.space ? " " : ""));
+    double abs = Math.abs(val);
+    if (Double.isNaN(val)) {
+      pad(spec, "", "NaN", false);
+      return;
+    } else if (Double.isInfinite(val)) {
+      pad(spec, sign, "Inf", false);
+      return;
+    }
+
+    int precision = spec.precision < 0 ? 6 : spec.precision;
+    String body;
+    switch (conv) {
+      case 'f':
+        body = javaFormat("%." + precision + "f", abs);
+        break;
+      case 'e':
+      case 'E':
+        body = javaFormat("%." + precision + conv, abs);
+        break;
+      case 'g':
+      case 'G':
+        body = formatG(abs, precision, spec.hash);
+        if (conv == 'G') {
+          body = body.toUpperCase();
+        }
+        break;
+      default:
+        // Hex float
+        body = spec.precision < 0 ? javaFormat("%" + conv, abs) :
+                            javaFormat("%." + precision + conv, abs);
+        break;
+    }
+    if (spec.hash && precision == 0 && (conv == 'f' || conv == 'e' ||
+                                        conv == 'E') &&
+        body.indexOf('.') < 0) {
+      // Always include decimal point
+      int exp = body.indexOf(conv);
+      body = exp < 0 ? body + "." : body.substring(0, exp) + "." +
+                                    body.substring(exp);
+    }
+    pad(spec, sign, body, spec.zero);
+  }
+
+  /**
+   * Format non-negative value as C's %g: shortest of %e and %f for the
+   * number of significant digits, without trailing zeros unless # flag
+   */
+  private static String formatG(double abs, int precision, boolean hash) {
+    int p = precision == 0 ? 1 : precision;
+    String e = javaFormat("%." + (p - 1) + "e", abs);
+    int exp = Integer.parseInt(e.substring(e.indexOf('e') + 1));
+    String body;
+    if (exp < -4 || exp >= p) {
+      body = e;
+    } else {
+      body = javaFormat("%." + (p - 1 - exp) + "f", abs);
+    }
+    if (!hash) {
+      int expStart = body.indexOf('e');
+      String mantissa = expStart < 0 ? body : body.substring(0, expStart);
+      String suffix = expStart < 0 ? "" : body.substring(expStart);
+      if (mantissa.indexOf('.') >= 0) {
+        mantissa = mantissa.replaceAll("0+$", "");
+        if (mantissa.endsWith(".")) {
+          mantissa = mantissa.substring(0, mantissa.length() - 1);
+        }
+      }
+      body = mantissa + suffix;
+    }
+    return body;
+  }
+
+  /**
+   * Format single number with Java formatter, independent of locale
+   */
+  private static String javaFormat(String javaFmt, double val) {
+    return String.format(Locale.ROOT, javaFmt, val);
+  }
+
+  /**
+   * Pad to width
+   * @param prefix sign or radix prefix, which goes before zero padding
+   * @param zeroPad pad with zeros rather than spaces
+   */
+  private void pad(Spec spec, String prefix, String body, boolean zeroPad) {
+    int padding = spec.width - prefix.length() - body.length();
+    if (spec.left) {
+      out.append(prefix).append(body);
+      appendRepeated(' ', padding);
+    } else if (zeroPad) {
+      out.append(prefix);
+      appendRepeated('0', padding);
+      out.append(body);
+    } else {
+      appendRepeated(' ', padding);
+      out.append(prefix).append(body);
+    }
+  }
+
+  private void appendRepeated(char c, int n) {
+    for (int i = 0; i < n; i++) {
+      out.append(c);
+    }
+  }
+}
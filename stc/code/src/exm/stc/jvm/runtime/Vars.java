@@ -1,16 +1,82 @@
 package exm.stc.jvm.runtime;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Vars {
   public static abstract class BaseVar {
     private final AtomicInteger writers;
-    
+
+    /**
+     * Read refcount.  Starts at one, so variables whose read refcount is
+     * never decremented are left to the garbage collector.
+     */
+    private volatile int readers = 1;
+
+    /** Set to one when payload is released */
+    private volatile int released = 0;
+
+    /**
+     * Debug symbol registered with {@link JVMRuntime#addDebugSymbol},
+     * or 0 if none
+     */
+    private int debugSymbol = 0;
+
+    private static final AtomicIntegerFieldUpdater<BaseVar> readersUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(BaseVar.class, "readers");
+
+    private static final AtomicIntegerFieldUpdater<BaseVar> releasedUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(BaseVar.class, "released");
+
     public BaseVar(int writers) {
       this.writers = new AtomicInteger(writers);
+      this.waiters = writers <= 0 ? WaiterNode.CLOSED : null;
     }
-    
+
+    public int getDebugSymbol() {
+      return debugSymbol;
+    }
+
+    public void setDebugSymbol(int debugSymbol) {
+      this.debugSymbol = debugSymbol;
+    }
+
+    /**
+     * Add variables that this variable's value refers to, e.g. container
+     * members, for recursive waits.  Only valid once closed.
+     */
+    void addMemberVars(List<BaseVar> members) {
+      // No members by default
+    }
+
+    protected static void addIfVar(List<BaseVar> members, Object val) {
+      if (val instanceof BaseVar) {
+        members.add((BaseVar)val);
+      }
+    }
+
+    /**
+     * Modify read refcount.  Once both read and write refcounts reach
+     * zero, no task can read the variable, so its payload is released.
+     */
+    public void incrReaders(String fn, String varName, int amount) {
+      if (amount == 0)
+        return;
+      int curr = readersUpdater.addAndGet(this, amount);
+      if (curr < 0) {
+        JVMRuntime.getLogger().warn("Decremented read refcount of " +
+            varName + " below 0 in function " + fn + ": " + curr);
+      }
+      if (curr <= 0 && writers.get() <= 0) {
+        release();
+      }
+    }
+
     public void incrWriters(String fn, String varName, int amount) 
         throws DoubleWriteException {
       if (amount == 0)
@@ -20,45 +86,139 @@ public class Vars {
         throw new DoubleWriteException("Variable " + varName + 
             " written after close in function " + fn + "!");
       }
-      long curr = prev - amount;
+      long curr = prev + amount;
       if (curr < 0) {
         JVMRuntime.getLogger().warn("Decremented " + varName + " below 0 "
-                    + " in function " + fn + " " + prev + " - " + amount);
+                    + " in function " + fn + " " + prev + " + " + amount);
       }
       if (curr <= 0) {
+        onClose();
         notifyWaiters();
+        if (readers <= 0) {
+          release();
+        }
       }
     }
 
-    // TODO: more memory-efficient way?
-    // TODO: lock-free way?  AtomicReference?
-    ArrayList<NotifyTarget> notifications = null;
     /**
-     * 
+     * Called when writers count drops to zero, before waiters are
+     * notified.  May be called more than once.
+     */
+    protected void onClose() {
+      // Do nothing by default
+    }
+
+    private void release() {
+      if (releasedUpdater.compareAndSet(this, 0, 1)) {
+        onRelease();
+      }
+    }
+
+    public boolean isReleased() {
+      return released != 0;
+    }
+
+    /**
+     * Called once when the variable is closed and the read refcount drops
+     * to zero.  Subclasses with large payloads should drop or recycle
+     * them here rather than waiting for the variable to be collected.
+     */
+    protected void onRelease() {
+      // Do nothing by default
+    }
+
+    /**
+     * Check payload was not released
+     * @throws InvalidReadException if released
+     */
+    protected void checkNotReleased(String fn, String varName)
+        throws InvalidReadException {
+      if (released != 0) {
+        throw new InvalidReadException(varName + " was read after its " +
+            "read refcount dropped to zero in function " + fn);
+      }
+    }
+
+    /**
+     * Waiters, as an immutable chain of nodes that is pushed onto
+     * with compare-and-set.  Replaced with CLOSED when notified: after
+     * that point subscribers are told that the variable is closed.
+     */
+    private volatile WaiterNode waiters;
+
+    private static final AtomicReferenceFieldUpdater<BaseVar, WaiterNode>
+      waitersUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                          BaseVar.class, WaiterNode.class, "waiters");
+
+    /**
+     *
      * @param target
      * @return true if subscribed, false if closed
      */
-    public synchronized boolean subscribe(NotifyTarget target) {
-      // TODO: I think this avoids race condition with notifications
-      if (writers.get() <= 0) {
-        return false;
+    public boolean subscribe(NotifyTarget target) {
+      WaiterNode head;
+      WaiterNode node = null;
+      do {
+        head = waiters;
+        if (head == WaiterNode.CLOSED) {
+          return false;
+        }
+        if (node == null) {
+          node = new WaiterNode(target, head);
+        } else {
+          node.next = head;
+        }
+      } while (!waitersUpdater.compareAndSet(this, head, node));
+      if (head == null) {
+        JVMRuntime.registerWaitedOn(this);
       }
-      
-      if (notifications == null)
-        notifications = new ArrayList<NotifyTarget>();
-      notifications.add(target);
-      
       return true;
     }
-    
-    private synchronized void notifyWaiters() {
-      for (NotifyTarget t: notifications)
-        t.notifyFinal(this);
-      
-      notifications = null;
+
+    /**
+     * @return true if tasks are subscribed and variable isn't closed
+     */
+    boolean isWaitedOn() {
+      WaiterNode head = waiters;
+      return head != null && head != WaiterNode.CLOSED;
+    }
+
+    /**
+     * Add current subscribers to collection
+     */
+    void getWaiters(Collection<NotifyTarget> result) {
+      WaiterNode head = waiters;
+      while (head != null && head != WaiterNode.CLOSED) {
+        result.add(head.target);
+        head = head.next;
+      }
+    }
+
+    private void notifyWaiters() {
+      // Anyone who subscribed before this point will be notified, and
+      // anyone after will see that the variable is closed
+      WaiterNode head = waitersUpdater.getAndSet(this, WaiterNode.CLOSED);
+      while (head != null && head != WaiterNode.CLOSED) {
+        head.target.notifyFinal(this);
+        head = head.next;
+      }
     }
   }
-  
+
+  private static class WaiterNode {
+    /** Sentinel for variable that has been closed */
+    static final WaiterNode CLOSED = new WaiterNode(null, null);
+
+    final NotifyTarget target;
+    /** Only modified before node is published */
+    WaiterNode next;
+
+    WaiterNode(NotifyTarget target, WaiterNode next) {
+      this.target = target;
+      this.next = next;
+    }
+  }
+
   public static interface NotifyTarget {
     /**
      * Notify that var has been finalized
@@ -77,6 +237,45 @@ public class Vars {
      * Whether value is available
      */
     protected boolean isSet = false;
+
+    public boolean isSet() {
+      return isSet;
+    }
+
+    /**
+     * Check value can be read
+     * @throws InvalidReadException if not yet set
+     */
+    protected void checkSet(String fn, String varName)
+        throws InvalidReadException {
+      // Should subscribe before reading, creating memory barrier
+      if (!isSet) {
+        throw new InvalidReadException(varName + " was read before writing " 
+            + " in function " + fn);
+      }
+    }
+
+    /**
+     * Check value was not already written.  Call before storing value.
+     * @throws DoubleWriteException
+     */
+    protected void checkNotSet(String fn, String varName)
+        throws DoubleWriteException {
+      if (isSet) {
+        throw new DoubleWriteException("Variable " + varName +
+            " written twice in function " + fn + "!");
+      }
+    }
+
+    /**
+     * Mark value as available, then decrement writers.  Call after
+     * storing value.
+     */
+    protected void markSet(String fn, String varName, int writersDecr)
+        throws DoubleWriteException {
+      this.isSet = true;
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
   }
   
   public static class IntVar extends ScalarVar {
@@ -92,13 +291,8 @@ public class Vars {
     private long value;
     
     public long get(String fn, String varName) throws InvalidReadException {
-      // Should subscribe before reading, creating memory barrier
-      if (isSet) {
-        return value;
-      } else {
-        throw new InvalidReadException(varName + " was read before writing " 
-            + " in function " + fn);
-      }
+      checkSet(fn, varName);
+      return value;
     }
     
     /**
@@ -115,8 +309,729 @@ public class Vars {
 
     public void set(String fn, String varName, long value,
                      int writersDecr) throws DoubleWriteException {
+      checkNotSet(fn, varName);
       this.value = value;
-      this.incrWriters(fn, varName, -1 * writersDecr);
+      markSet(fn, varName, writersDecr);
+    }
+  }
+
+  public static class FloatVar extends ScalarVar {
+    public FloatVar(int writers) {
+      super(writers, false);
+    }
+
+    public FloatVar(int writers, double value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private double value;
+
+    public double get(String fn, String varName) throws InvalidReadException {
+      checkSet(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, double value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, double value,
+                     int writersDecr) throws DoubleWriteException {
+      checkNotSet(fn, varName);
+      this.value = value;
+      markSet(fn, varName, writersDecr);
+    }
+  }
+
+  public static class StringVar extends ScalarVar {
+    public StringVar(int writers) {
+      super(writers, false);
+    }
+
+    public StringVar(int writers, String value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private String value;
+
+    public String get(String fn, String varName) throws InvalidReadException {
+      checkSet(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, String value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, String value,
+                     int writersDecr) throws DoubleWriteException {
+      checkNotSet(fn, varName);
+      this.value = value;
+      markSet(fn, varName, writersDecr);
+    }
+  }
+
+  /**
+   * Binary data.  The buffer may be direct, i.e. allocated off-heap.
+   * The variable owns the buffer: once it is released, the buffer is
+   * returned to the {@link BlobPool}.
+   */
+  public static class BlobVar extends ScalarVar {
+    public BlobVar(int writers) {
+      super(writers, false);
+    }
+
+    public BlobVar(int writers, ByteBuffer value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private ByteBuffer value;
+
+    /**
+     * @return read-only view of data, with independent position so that
+     *         multiple readers don't interfere.  Only valid while caller
+     *         holds a read refcount.
+     */
+    public ByteBuffer get(String fn, String varName)
+        throws InvalidReadException {
+      checkSet(fn, varName);
+      checkNotReleased(fn, varName);
+      return value.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return copy of data owned by caller, which remains valid after
+     *         read refcount is released.  Can be returned to the pool with
+     *         {@link BlobPool#release(ByteBuffer)}.
+     */
+    public ByteBuffer getCopy(String fn, String varName)
+        throws InvalidReadException {
+      return BlobPool.copy(get(fn, varName));
+    }
+
+    /**
+     * Set value.  Caller should not access buffer afterwards.
+     */
+    public void set(String fn, String varName, ByteBuffer value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, ByteBuffer value,
+                     int writersDecr) throws DoubleWriteException {
+      checkNotSet(fn, varName);
+      this.value = value;
+      markSet(fn, varName, writersDecr);
+    }
+
+    @Override
+    protected void onRelease() {
+      ByteBuffer buf = value;
+      value = null;
+      BlobPool.release(buf);
+    }
+  }
+
+  /**
+   * File future.  The filename may be assigned before the file is
+   * closed, e.g. for mapped files, so it is tracked separately from
+   * the closed status of the variable.
+   */
+  public static class FileVar extends ScalarVar {
+    public FileVar(int writers) {
+      super(writers, false);
+      this.mapped = false;
+    }
+
+    /**
+     * Create with filename already assigned, e.g. for mapped file
+     */
+    public FileVar(int writers, String filename, boolean mapped) {
+      super(writers, false);
+      this.filename = filename;
+      this.mapped = mapped;
+    }
+
+    private volatile String filename = null;
+    private final boolean mapped;
+
+    public boolean isMapped() {
+      return mapped;
+    }
+
+    /**
+     * @return filename if assigned, or null if not yet assigned
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Assign filename, without closing file
+     * @throws DoubleWriteException if filename already assigned
+     */
+    public void setFilename(String fn, String varName, String filename)
+        throws DoubleWriteException {
+      if (this.filename != null) {
+        throw new DoubleWriteException("Filename of " + varName +
+            " assigned twice in function " + fn + "!");
+      }
+      this.filename = filename;
+    }
+
+    /**
+     * @return filename of closed file
+     */
+    public String get(String fn, String varName) throws InvalidReadException {
+      checkSet(fn, varName);
+      return filename;
+    }
+
+    /**
+     * Close file, assigning filename if not already assigned
+     * @param filename filename, or null if already assigned
+     */
+    public void set(String fn, String varName, String filename)
+                                      throws DoubleWriteException {
+      set(fn, varName, filename, 1);
+    }
+
+    public void set(String fn, String varName, String filename,
+                     int writersDecr) throws DoubleWriteException {
+      checkNotSet(fn, varName);
+      if (filename != null) {
+        setFilename(fn, varName, filename);
+      } else if (this.filename == null) {
+        throw new IllegalStateException("Closed file " + varName + " without filename"
+                                  + " in function " + fn);
+      }
+      markSet(fn, varName, writersDecr);
+    }
+  }
+
+  /**
+   * Reference to another variable
+   */
+  public static class RefVar<T extends BaseVar> extends ScalarVar {
+    public RefVar(int writers) {
+      super(writers, false);
+    }
+
+    public RefVar(int writers, T value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    /**
+     * Create reference to store in container or struct.  As with Turbine,
+     * the container holds a read refcount on the referenced variable, so
+     * that it isn't released while it can still be looked up.
+     */
+    public static RefVar<BaseVar> member(BaseVar value) {
+      value.incrReaders("<member>", "<member>", 1);
+      return new RefVar<BaseVar>(0, value);
+    }
+
+    private T value;
+
+    public T get(String fn, String varName) throws InvalidReadException {
+      checkSet(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, T value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, T value,
+                     int writersDecr) throws DoubleWriteException {
+      checkNotSet(fn, varName);
+      this.value = value;
+      markSet(fn, varName, writersDecr);
+    }
+
+    @Override
+    void addMemberVars(List<BaseVar> members) {
+      addIfVar(members, value);
+    }
+  }
+
+  /**
+   * Struct with fixed number of fields.  Fields of nested structs are
+   * flattened, so that each field holds a value or a reference, and are
+   * keyed by index, so that fields can be assigned and waited for
+   * individually like array members.  The struct is closed once all
+   * writers are done, like Turbine structs.
+   */
+  public static class StructVar extends ArrayVar<Object> {
+    public StructVar(int writers, int numFields) {
+      super(writers);
+      this.numFields = numFields;
+    }
+
+    private final int numFields;
+
+    public int numFields() {
+      return numFields;
+    }
+
+    /**
+     * @return values of fields in range, null for unassigned fields
+     */
+    public Object[] getFields(String fn, String varName, int first,
+                              int count) throws InvalidReadException {
+      checkNotReleased(fn, varName);
+      Object result[] = new Object[count];
+      for (int i = 0; i < count; i++) {
+        result[i] = getMember(first + i);
+      }
+      return result;
+    }
+
+    /**
+     * Assign fields in range from values, skipping null values, and
+     * decrement writers
+     */
+    public void setFields(String fn, String varName, int first,
+        Object fieldVals[], int writersDecr) throws DoubleWriteException {
+      if (first + fieldVals.length > numFields) {
+        throw new IllegalArgumentException("Struct " + varName + " has " +
+            numFields + " fields but was assigned " + fieldVals.length +
+            " from field " + first + " in function " + fn);
+      }
+      for (int i = 0; i < fieldVals.length; i++) {
+        if (fieldVals[i] != null) {
+          insert(fn, varName, first + i, fieldVals[i]);
+        }
+      }
+      incrWriters(fn, varName, -1 * writersDecr);
+    }
+  }
+
+  /**
+   * Notification target for a single container subscript
+   */
+  public static interface SubscriptTarget {
+    /**
+     * Notify that subscript was assigned, or that the array was closed
+     * without it being assigned
+     * @param arr
+     * @param key
+     */
+    public void notifySubscript(ArrayVar<?> arr, long key);
+  }
+
+  /**
+   * Create a variable on demand
+   */
+  public static interface VarFactory<T> {
+    public T create();
+  }
+
+  /**
+   * Array with integer keys.  Members are stored in a number of
+   * independently locked stripes, so that concurrent inserts and
+   * subscriptions to different subscripts don't contend.
+   */
+  public static class ArrayVar<T> extends BaseVar {
+    private static final int NUM_STRIPES = 16;
+
+    public ArrayVar(int writers) {
+      super(writers);
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      LongHashMap<Slot<T>> stripes[] = new LongHashMap[NUM_STRIPES];
+      for (int i = 0; i < NUM_STRIPES; i++) {
+        stripes[i] = new LongHashMap<Slot<T>>();
+      }
+      this.stripes = stripes;
+    }
+
+    private final LongHashMap<Slot<T>> stripes[];
+
+    /**
+     * Set once all writers are done, before waiters on unassigned
+     * subscripts are collected.  Not set under the stripe locks:
+     * onClose() takes each stripe lock after setting it, so any
+     * subscriber that missed it is already in a slot and gets notified.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Member value, or waiters for subscript not yet assigned
+     */
+    private static class Slot<T> {
+      T value = null;
+      SubscriptWaiter waiters = null;
+    }
+
+    private static class SubscriptWaiter {
+      final SubscriptTarget target;
+      final SubscriptWaiter next;
+
+      SubscriptWaiter(SubscriptTarget target, SubscriptWaiter next) {
+        this.target = target;
+        this.next = next;
+      }
+    }
+
+    private LongHashMap<Slot<T>> stripe(long key) {
+      return stripes[(int)((key ^ (key >>> 32)) & (NUM_STRIPES - 1))];
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * @return member, or null if not yet assigned
+     */
+    public T getMember(long key) {
+      LongHashMap<Slot<T>> stripe = stripe(key);
+      synchronized (stripe) {
+        Slot<T> slot = stripe.get(key);
+        return slot == null ? null : slot.value;
+      }
+    }
+
+    /**
+     * @return member
+     * @throws InvalidReadException if closed without member assigned
+     */
+    public T get(String fn, String varName, long key)
+        throws InvalidReadException {
+      checkNotReleased(fn, varName);
+      T result = getMember(key);
+      if (result == null) {
+        throw new InvalidReadException(varName + "[" + key + "] was read " +
+            "but not assigned in function " + fn);
+      }
+      return result;
+    }
+
+    /**
+     * Subscribe to a single subscript.  Locks only that subscript's
+     * stripe.
+     * @return true if subscribed, false if already assigned or array is
+     *         closed
+     */
+    public boolean subscribe(long key, SubscriptTarget target) {
+      LongHashMap<Slot<T>> stripe = stripe(key);
+      synchronized (stripe) {
+        Slot<T> slot = stripe.get(key);
+        if (slot != null && slot.value != null) {
+          return false;
+        }
+        if (closed) {
+          return false;
+        }
+        if (slot == null) {
+          slot = new Slot<T>();
+          stripe.put(key, slot);
+        }
+        slot.waiters = new SubscriptWaiter(target, slot.waiters);
+        return true;
+      }
+    }
+
+    /**
+     * Assign member, without changing writers count
+     */
+    public void insert(String fn, String varName, long key, T value)
+        throws DoubleWriteException {
+      SubscriptWaiter waiters;
+      LongHashMap<Slot<T>> stripe = stripe(key);
+      synchronized (stripe) {
+        checkNotClosed(fn, varName, key);
+        Slot<T> slot = stripe.get(key);
+        if (slot == null) {
+          slot = new Slot<T>();
+          stripe.put(key, slot);
+        } else if (slot.value != null) {
+          throw new DoubleWriteException(varName + "[" + key + "] " +
+              "written twice in function " + fn + "!");
+        }
+        slot.value = value;
+        waiters = slot.waiters;
+        slot.waiters = null;
+      }
+      notifySubscript(waiters, key);
+    }
+
+    /**
+     * Assign member and decrement writers
+     */
+    public void insert(String fn, String varName, long key, T value,
+                      int writersDecr) throws DoubleWriteException {
+      insert(fn, varName, key, value);
+      incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    /**
+     * Get nested container at subscript, creating it if not present.
+     * @param factory called to create nested container if needed
+     * @return existing or new container
+     */
+    public T createNested(String fn, String varName, long key,
+              VarFactory<? extends T> factory) throws DoubleWriteException {
+      SubscriptWaiter waiters;
+      T result;
+      LongHashMap<Slot<T>> stripe = stripe(key);
+      synchronized (stripe) {
+        Slot<T> slot = stripe.get(key);
+        if (slot != null && slot.value != null) {
+          return slot.value;
+        }
+        checkNotClosed(fn, varName, key);
+        if (slot == null) {
+          slot = new Slot<T>();
+          stripe.put(key, slot);
+        }
+        result = factory.create();
+        slot.value = result;
+        waiters = slot.waiters;
+        slot.waiters = null;
+      }
+      notifySubscript(waiters, key);
+      return result;
+    }
+
+    /**
+     * @return subscripts of assigned members, in no particular order
+     */
+    public long[] keys() {
+      final ArrayList<Long> keys = new ArrayList<Long>();
+      for (LongHashMap<Slot<T>> stripe: stripes) {
+        synchronized (stripe) {
+          stripe.visit(new LongHashMap.Visitor<Slot<T>>() {
+            @Override
+            public void visit(long key, Slot<T> slot) {
+              if (slot.value != null) {
+                keys.add(key);
+              }
+            }
+          });
+        }
+      }
+      long result[] = new long[keys.size()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = keys.get(i);
+      }
+      return result;
+    }
+
+    @Override
+    void addMemberVars(List<BaseVar> members) {
+      for (long key: keys()) {
+        addIfVar(members, getMember(key));
+      }
+    }
+
+    /**
+     * @return number of assigned members
+     */
+    public int size() {
+      int size = 0;
+      for (LongHashMap<Slot<T>> stripe: stripes) {
+        synchronized (stripe) {
+          size += countAssigned(stripe);
+        }
+      }
+      return size;
+    }
+
+    private static <T> int countAssigned(LongHashMap<Slot<T>> stripe) {
+      final int count[] = new int[1];
+      stripe.visit(new LongHashMap.Visitor<Slot<T>>() {
+        @Override
+        public void visit(long key, Slot<T> slot) {
+          if (slot.value != null) {
+            count[0]++;
+          }
+        }
+      });
+      return count[0];
+    }
+
+    private void checkNotClosed(String fn, String varName, long key)
+        throws DoubleWriteException {
+      if (closed) {
+        throw new DoubleWriteException(varName + "[" + key + "] " +
+            "written after close in function " + fn + "!");
+      }
+    }
+
+    private void notifySubscript(SubscriptWaiter waiters, long key) {
+      while (waiters != null) {
+        waiters.target.notifySubscript(this, key);
+        waiters = waiters.next;
+      }
+    }
+
+    /**
+     * Wake any subscribers to subscripts that were never assigned
+     */
+    @Override
+    protected void onClose() {
+      closed = true;
+      for (LongHashMap<Slot<T>> stripe: stripes) {
+        final LongHashMap<SubscriptWaiter> unassigned =
+                                        new LongHashMap<SubscriptWaiter>();
+        synchronized (stripe) {
+          stripe.visit(new LongHashMap.Visitor<Slot<T>>() {
+            @Override
+            public void visit(long key, Slot<T> slot) {
+              if (slot.waiters != null) {
+                unassigned.put(key, slot.waiters);
+                slot.waiters = null;
+              }
+            }
+          });
+        }
+        unassigned.visit(new LongHashMap.Visitor<SubscriptWaiter>() {
+          @Override
+          public void visit(long key, SubscriptWaiter waiters) {
+            notifySubscript(waiters, key);
+          }
+        });
+      }
+    }
+
+    /**
+     * Drop storage for members.  All subscribers were notified on close.
+     */
+    @Override
+    protected void onRelease() {
+      for (LongHashMap<Slot<T>> stripe: stripes) {
+        synchronized (stripe) {
+          stripe.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Unordered bag.  Inserts go to one of a number of independently
+   * locked buffers, chosen by thread, so that concurrent writers don't
+   * contend.  Contents can only be read as a whole after the bag is
+   * closed.
+   */
+  public static class BagVar<T> extends BaseVar {
+    private static final int NUM_STRIPES = 8;
+
+    public BagVar(int writers) {
+      super(writers);
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      ArrayList<T> stripes[] = new ArrayList[NUM_STRIPES];
+      for (int i = 0; i < NUM_STRIPES; i++) {
+        stripes[i] = new ArrayList<T>();
+      }
+      this.stripes = stripes;
+    }
+
+    private final ArrayList<T> stripes[];
+
+    private volatile boolean closed = false;
+
+    public void insert(String fn, String varName, T elem)
+        throws DoubleWriteException {
+      ArrayList<T> stripe = currentStripe();
+      synchronized (stripe) {
+        checkOpen(fn, varName);
+        stripe.add(elem);
+      }
+    }
+
+    public void insert(String fn, String varName, T elem, int writersDecr)
+        throws DoubleWriteException {
+      insert(fn, varName, elem);
+      incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    /**
+     * Insert several elements at once, then decrement writers
+     */
+    public void insertAll(String fn, String varName,
+        Collection<? extends T> elems, int writersDecr)
+        throws DoubleWriteException {
+      ArrayList<T> stripe = currentStripe();
+      synchronized (stripe) {
+        checkOpen(fn, varName);
+        stripe.addAll(elems);
+      }
+      incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    private ArrayList<T> currentStripe() {
+      return stripes[(int)(Thread.currentThread().getId()
+                           & (NUM_STRIPES - 1))];
+    }
+
+    /**
+     * Must be called holding stripe lock
+     */
+    private void checkOpen(String fn, String varName)
+        throws DoubleWriteException {
+      if (closed) {
+        throw new DoubleWriteException(varName + " written after close "
+            + "in function " + fn + "!");
+      }
+    }
+
+    /**
+     * @return all elements, in no particular order
+     * @throws InvalidReadException if not closed yet
+     */
+    public List<T> getAll(String fn, String varName)
+        throws InvalidReadException {
+      if (!closed) {
+        throw new InvalidReadException(varName + " was read before " +
+            "closing in function " + fn);
+      }
+      checkNotReleased(fn, varName);
+      ArrayList<T> result = new ArrayList<T>();
+      for (ArrayList<T> stripe: stripes) {
+        synchronized (stripe) {
+          result.addAll(stripe);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    void addMemberVars(List<BaseVar> members) {
+      for (ArrayList<T> stripe: stripes) {
+        synchronized (stripe) {
+          for (T elem: stripe) {
+            addIfVar(members, elem);
+          }
+        }
+      }
+    }
+
+    @Override
+    protected void onClose() {
+      // Take each lock so no insert is in progress
+      for (ArrayList<T> stripe: stripes) {
+        synchronized (stripe) {
+          closed = true;
+        }
+      }
+    }
+
+    @Override
+    protected void onRelease() {
+      for (ArrayList<T> stripe: stripes) {
+        synchronized (stripe) {
+          stripe.clear();
+          stripe.trimToSize();
+        }
+      }
     }
   }
 }
@@ -209,6 +209,8 @@ class Turbine {
           adlbFn("write_refcount_incr");
   private static final Token WRITE_REFCOUNT_DECR =
           adlbFn("write_refcount_decr");
+  private static final Token REFCOUNT_INCR_MULTI =
+          adlbFn("refcount_incr_multi");
   private static final Token FREE_LOCAL_BLOB = turbFn("free_local_blob");
 
   // Files
@@ -1338,6 +1340,18 @@ class Turbine {
     return new Command(WRITE_REFCOUNT_DECR, arr, decr);
   }
 
+  /**
+   * Modify read and write reference counts of several variables
+   *
+   * @param changes for each variable: the ADLB id, then read and write
+   *                refcount changes
+   * @return
+   */
+  public static TclTree incrRefMulti(List<Expression> changes) {
+    assert(changes.size() % 3 == 0);
+    return new Command(REFCOUNT_INCR_MULTI, changes);
+  }
+
   public static Command enableReferenceCounting() {
     return new Command(ENABLE_READ_REFCOUNT);
   }
@@ -1410,6 +1424,23 @@ class Turbine {
     return containerSize;
   }
 
+  /**
+   * @param first first index (inclusive)
+   * @param last last index (inclusive)
+   */
+  public static Expression listRange(Value tclList, Expression first,
+                                     Expression last) {
+    return Square.fnCall("lrange", tclList, first, last);
+  }
+
+  public static Command listAppend(String tclList, Expression elem) {
+    return new Command(new Token("lappend"), new Token(tclList), elem);
+  }
+
+  public static Command incrVar(String tclVar, Expression amount) {
+    return new Command(new Token("incr"), new Token(tclVar), amount);
+  }
+
   public static Expression dictExists(Value tclDict, Expression key) {
     return Square.fnCall("dict", new Token("exists"), tclDict, key);
   }
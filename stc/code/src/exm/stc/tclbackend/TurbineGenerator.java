@@ -20,16 +20,19 @@
  */
 package exm.stc.tclbackend;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -132,10 +135,16 @@ public class TurbineGenerator implements CompilerBackend {
    */
   private final List<String> autoPaths = new ArrayList<String>();
 
+  /**
+   * Size of buffer for writing output code
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
   private static final String TCLTMP_SPLITLEN = "tcltmp:splitlen";
   private static final String TCLTMP_SPLITEND = "tcltmp:splitend";
   private static final String TCLTMP_CONTAINER_SIZE = "tcltmp:container_sz";
   private static final String TCLTMP_ARRAY_CONTENTS = "tcltmp:contents";
+  private static final String TCLTMP_SPLIT_CONTENTS = "tcltmp:splitcontents";
   private static final String TCLTMP_RETRIEVED = "tcltmp:retrieved";
   private static final String TCLTMP_RANGE_LO = "tcltmp:lo";
   private static final Value TCLTMP_RANGE_LO_V = new Value(TCLTMP_RANGE_LO);
@@ -148,9 +157,13 @@ public class TurbineGenerator implements CompilerBackend {
   private static final String TCLTMP_ITERS = "tcltmp:iters";
   private static final String TCLTMP_FLOAT_RANGE_ITER = "tcltmp:float_range_iter";
   private static final String TCLTMP_FLOAT_RANGE_ITERMAX = "tcltmp:float_range_itermax";
+  private static final String TCLTMP_RANGE_ITERMAX = "tcltmp:range_itermax";
   private static final String TCLTMP_INIT_REFCOUNT = "tcltmp:init_rc";
   private static final String TCLTMP_SPLIT_START = "tcltmp:splitstart";
   private static final String TCLTMP_SKIP = "tcltmp:skip";
+  private static final String TCLTMP_LEAF_DEGREE = "tcltmp:leafdegree";
+  private static final String TCLTMP_BAG_ELEMS = "tcltmp:bagelems";
+  private static final String TCLTMP_BAG_DECR = "tcltmp:bagdecr";
   private static final String TCLTMP_IGNORE = "tcltmp:ignore";
 
   private static final String ENTRY_FUNCTION_NAME = "swift:main";
@@ -221,6 +234,13 @@ public class TurbineGenerator implements CompilerBackend {
    */
   private final StackLite<EnclosingLoop> loopStack = new StackLite<EnclosingLoop>();
 
+  /**
+   * Stack for bags accumulated by enclosing foreach loops.  Inserts into
+   * these bags in the innermost loop body are collected in a Tcl list.
+   */
+  private final StackLite<List<Var>> bagAccumulatorStack =
+      new StackLite<List<Var>>();
+
   /**
    * Stack for function ids
    */
@@ -305,8 +325,10 @@ public class TurbineGenerator implements CompilerBackend {
     this.foreignFuncs = foreignFuncs;
 
     //String[] rpaths = Settings.getRpaths();
-    File input_file   = new File(Settings.get(Settings.INPUT_FILENAME));
-    File output_file  = new File(Settings.get(Settings.OUTPUT_FILENAME));
+    File input_file   = Settings.resolveFile(
+                                Settings.get(Settings.INPUT_FILENAME));
+    File output_file  = Settings.resolveFile(
+                                Settings.get(Settings.OUTPUT_FILENAME));
     tree.add(new Text(""));
     tree.add(new Comment("Generated by stc version " + Settings.get(Settings.STC_VERSION)));
     tree.add(new Comment("date                    : " + timestamp));
@@ -445,28 +467,31 @@ public class TurbineGenerator implements CompilerBackend {
   }
 
   /**
-     Generate and output Tcl from  our internal TclTree
+     Generate and output Tcl from  our internal TclTree.
+     Code is streamed to output through a buffer, rather than built
+     up in memory.
    * @throws IOException
    */
   @Override
   public void generate(OutputStream output) throws IOException {
-    StringBuilder sb = new StringBuilder(10*1024);
+    Writer w = new BufferedWriter(new OutputStreamWriter(output),
+                                  OUTPUT_BUFFER_SIZE);
     try
     {
-      tree.appendTo(sb);
+      tree.appendTo(w);
+    }
+    catch (IOException e)
+    {
+      throw e;
     }
     catch (Exception e)
     {
       System.out.println("CODE GENERATOR INTERNAL ERROR");
       System.out.println(e.getMessage());
       e.printStackTrace();
-      System.out.println("code generated before error:");
-      System.out.println(sb);
       System.out.println("exiting");
       throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
-    OutputStreamWriter w = new OutputStreamWriter(output);
-    w.write(sb.toString());
     // Check everything is flushed to underlying stream
     w.flush();
   }
@@ -651,10 +676,76 @@ public class TurbineGenerator implements CompilerBackend {
 
   @Override
   public void modifyRefCounts(List<DirRefCount> refcounts) {
-    // TODO: could combine read/write refcounts for same variable
+    // Net read and write refcount changes per variable, in order
+    Map<Var, long[]> changes = new LinkedHashMap<Var, long[]>();
     for (DirRefCount refcount: refcounts) {
-      modifyRefCount(refcount.var, refcount.type,
-                     refcount.dir, refcount.amount);
+      assert(refcount.amount.isImmInt());
+      int changeIx;
+      if (refcount.type == RefCountType.READERS) {
+        if (!RefCounting.trackReadRefCount(refcount.var) ||
+            !Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
+          continue;
+        }
+        changeIx = 0;
+      } else {
+        assert(refcount.type == RefCountType.WRITERS);
+        if (!RefCounting.trackWriteRefCount(refcount.var)) {
+          continue;
+        }
+        changeIx = 1;
+      }
+
+      long[] change = changes.get(refcount.var);
+      if (change == null) {
+        change = new long[2];
+        changes.put(refcount.var, change);
+      }
+      long amount = refcount.amount.getInt();
+      change[changeIx] += (refcount.dir == RCDir.INCR) ? amount : -amount;
+    }
+
+    // Do increments first so that a decrement can't free data still
+    // referenced through an alias incremented later in the batch
+    List<Entry<Var, long[]>> ordered = new ArrayList<Entry<Var, long[]>>();
+    List<Entry<Var, long[]>> decrements = new ArrayList<Entry<Var, long[]>>();
+    for (Entry<Var, long[]> e: changes.entrySet()) {
+      long change[] = e.getValue();
+      if (change[0] == 0 && change[1] == 0) {
+        continue;
+      } else if (change[0] >= 0 && change[1] >= 0) {
+        ordered.add(e);
+      } else {
+        decrements.add(e);
+      }
+    }
+    ordered.addAll(decrements);
+
+    if (ordered.size() == 1 &&
+        (ordered.get(0).getValue()[0] == 0 ||
+         ordered.get(0).getValue()[1] == 0)) {
+      // Single change: use simpler command
+      Var var = ordered.get(0).getKey();
+      long change[] = ordered.get(0).getValue();
+      RefCountType rcType = change[0] != 0 ? RefCountType.READERS :
+                                             RefCountType.WRITERS;
+      long amount = change[0] != 0 ? change[0] : change[1];
+      modifyRefCount(var, rcType, amount > 0 ? RCDir.INCR : RCDir.DECR,
+                     Arg.newInt(Math.abs(amount)));
+    } else if (!ordered.isEmpty()) {
+      // Combine into single command to avoid separate round trip to
+      // server for read and write refcounts of same variable
+      List<Expression> args = new ArrayList<Expression>();
+      for (Entry<Var, long[]> e: ordered) {
+        Var var = e.getKey();
+        if (Types.isFile(var)) {
+          args.add(Turbine.getFileID(varToExpr(var)));
+        } else {
+          args.add(varToExpr(var));
+        }
+        args.add(new LiteralInt(e.getValue()[0]));
+        args.add(new LiteralInt(e.getValue()[1]));
+      }
+      pointAdd(Turbine.incrRefMulti(args));
     }
   }
 
@@ -982,6 +1073,18 @@ public class TurbineGenerator implements CompilerBackend {
     pointAdd(new SetVariable(prefixVar(struct), dictExpr));
   }
 
+  @Override
+  public void buildBagLocal(Var bag, List<Arg> elems) {
+    assert(Types.isBagLocal(bag));
+    List<Expression> elemExprs = new ArrayList<Expression>(elems.size());
+    for (Arg elem: elems) {
+      assert(Types.isElemType(bag, elem));
+      elemExprs.add(argToExpr(elem));
+    }
+
+    pointAdd(new SetVariable(prefixVar(bag), new TclList(elemExprs)));
+  }
+
   @Override
   public void assignStruct(Var target, Arg src) {
     assert(Types.isStruct(target));
@@ -2062,9 +2165,58 @@ public class TurbineGenerator implements CompilerBackend {
   @Override
   public void bagInsert(Var bag, Arg elem, Arg writersDecr) {
     assert(Types.isElemValType(bag, elem));
-    pointAdd(Turbine.bagAppend(varToExpr(bag),
-          TurbineTypes.arrayValueType(bag, false), argToExpr(elem),
-          argToExpr(writersDecr)));
+    if (!bagAccumulatorStack.isEmpty() &&
+        bagAccumulatorStack.peek().contains(bag)) {
+      // Store along with rest of leaf's elements at end of loop
+      pointAdd(Turbine.listAppend(bagElemsVar(bag), argToExpr(elem)));
+      if (!writersDecr.isInt() || writersDecr.getInt() != 0) {
+        pointAdd(Turbine.incrVar(bagDecrVar(bag), argToExpr(writersDecr)));
+      }
+    } else {
+      pointAdd(Turbine.bagAppend(varToExpr(bag),
+            TurbineTypes.arrayValueType(bag, false), argToExpr(elem),
+            argToExpr(writersDecr)));
+    }
+  }
+
+  private static String bagElemsVar(Var bag) {
+    return TCLTMP_BAG_ELEMS + ":" + prefixVar(bag);
+  }
+
+  private static String bagDecrVar(Var bag) {
+    return TCLTMP_BAG_DECR + ":" + prefixVar(bag);
+  }
+
+  /**
+   * Start collecting inserts into bags for loop body.  Must be called
+   * before the Tcl loop is added.
+   */
+  private void startBagAccumulators(List<Var> bags) {
+    for (Var bag: bags) {
+      pointAdd(new SetVariable(bagElemsVar(bag), new TclList()));
+      pointAdd(new SetVariable(bagDecrVar(bag), LiteralInt.ZERO));
+    }
+    bagAccumulatorStack.push(bags);
+  }
+
+  /**
+   * Store collected elements for each bag in one operation.  Must be
+   * called after the Tcl loop ends, but before the per-iteration
+   * decrements for the leaf.
+   */
+  private void endBagAccumulators() {
+    for (Var bag: bagAccumulatorStack.pop()) {
+      TypeName elemType = TurbineTypes.reprType(Types.containerElemType(bag));
+      Value elems = new Value(bagElemsVar(bag));
+
+      // Inserts may be conditional, so leaf may have nothing to store
+      If nonEmpty = new If(new TclExpr(Turbine.listLength(elems),
+                                  TclExpr.GT, new LiteralInt(0)), false);
+      nonEmpty.thenBlock().add(Turbine.multisetBuild(varToExpr(bag), elems,
+          Value.numericValue(bagDecrVar(bag)),
+          Collections.singletonList(elemType)));
+      pointAdd(nonEmpty);
+    }
   }
 
   @Override
@@ -2589,9 +2741,10 @@ public class TurbineGenerator implements CompilerBackend {
 
   @Override
   public void startForeachLoop(String loopName, Var container, Var memberVar,
-        Var loopCountVar, int splitDegree, int leafDegree, boolean arrayClosed,
-        List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-        ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+        Var loopCountVar, int splitDegree, int leafDegree, int minLeafDegree,
+        boolean arrayClosed, List<PassedVar> passedVars,
+        List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+        List<RefCount> perIterDecrs, List<Var> accumulateBags) {
     boolean haveKeys = loopCountVar != null;
 
     boolean isKVContainer;
@@ -2609,9 +2762,9 @@ public class TurbineGenerator implements CompilerBackend {
     boolean localContainer = Types.isContainerLocal(container);
 
     if (localContainer) {
-      if (!arrayClosed || splitDegree >= 0) {
+      if (!arrayClosed) {
         throw new STCRuntimeError(
-            "Can't do async foreach with local container currently;");
+            "Can't do foreach over open local container");
       }
 
       assert(Types.isElemType(container, memberVar));
@@ -2646,17 +2799,21 @@ public class TurbineGenerator implements CompilerBackend {
         containerSize = Turbine.listLength(tclContainer);
       }
       handleForeachContainerRefcounts(perIterIncrs, constIncrs, containerSize);
+    } else if (localContainer) {
+      isDict = isKVContainer;
+      tclContainer = startLocalForeachSplit(loopName, container, isDict,
+          splitDegree, leafDegree, minLeafDegree, passedVars, perIterIncrs,
+          constIncrs, perIterDecrs);
     } else {
-      assert(!localContainer);
-
       tclContainer = new Value(TCLTMP_ARRAY_CONTENTS);
       startForeachSplit(loopName, container, tclContainer.variable(),
-          splitDegree, leafDegree, haveKeys, passedVars, perIterIncrs,
-          constIncrs, perIterDecrs);
+          splitDegree, leafDegree, minLeafDegree, haveKeys, passedVars,
+          perIterIncrs, constIncrs, perIterDecrs);
       isDict = haveKeys;
     }
 
-    startForeachInner(tclContainer, memberVar, loopCountVar, isDict);
+    startForeachInner(tclContainer, memberVar, loopCountVar, isDict,
+                      accumulateBags);
   }
 
   private void handleForeachContainerRefcounts(List<RefCount> perIterIncrs,
@@ -2670,8 +2827,8 @@ public class TurbineGenerator implements CompilerBackend {
   }
 
   private void startForeachSplit(String procName, Var arrayVar,
-      String contentsVar, int splitDegree, int leafDegree, boolean haveKeys,
-      List<PassedVar> usedVars, List<RefCount> perIterIncrs,
+      String contentsVar, int splitDegree, int leafDegree, int minLeafDegree,
+      boolean haveKeys, List<PassedVar> usedVars, List<RefCount> perIterIncrs,
       ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
     // load array size
     pointAdd(Turbine.containerSize(TCLTMP_CONTAINER_SIZE,
@@ -2688,8 +2845,8 @@ public class TurbineGenerator implements CompilerBackend {
       splitUsedVars.add(new PassedVar(arrayVar, false));
     }
     startRangeSplit(procName, splitUsedVars, perIterIncrs, splitDegree,
-                    leafDegree, LiteralInt.ZERO, lastIndex, LiteralInt.ONE,
-                    perIterDecrs);
+                    leafDegree, minLeafDegree, LiteralInt.ZERO, lastIndex,
+                    LiteralInt.ONE, perIterDecrs);
 
     // need to find the length of this split since that is what the turbine
     //  call wants
@@ -2703,8 +2860,37 @@ public class TurbineGenerator implements CompilerBackend {
         haveKeys, TCLTMP_RANGE_LO_V, Value.numericValue(TCLTMP_SPLITLEN)));
   }
 
-  private void startForeachInner(
-      Value arrayContents, Var memberVar, Var loopCountVar, boolean isDict) {
+  /**
+   * Split loop over local container.  Each task gets the slice of the
+   * container contents that it is responsible for, rather than the
+   * whole container.
+   * @return value with the contents of this task's slice
+   */
+  private Value startLocalForeachSplit(String procName, Var container,
+      boolean isDict, int splitDegree, int leafDegree, int minLeafDegree,
+      List<PassedVar> usedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+    Value contents = varToExpr(container);
+    Expression size = isDict ? Turbine.dictSize(contents)
+                             : Turbine.listLength(contents);
+    pointAdd(new SetVariable(TCLTMP_CONTAINER_SIZE, size));
+    Value containerSize = Value.numericValue(TCLTMP_CONTAINER_SIZE);
+
+    handleForeachContainerRefcounts(perIterIncrs, constIncrs, containerSize);
+
+    // Dicts are sliced as lists of alternating keys and values
+    int entryWidth = isDict ? 2 : 1;
+    Expression lastIndex = TclExpr.minus(containerSize, LiteralInt.ONE);
+    startRangeSplit(procName, usedVars, perIterIncrs, splitDegree,
+                    leafDegree, minLeafDegree, LiteralInt.ZERO, lastIndex,
+                    LiteralInt.ONE, perIterDecrs, contents, entryWidth);
+
+    return new Value(TCLTMP_ARRAY_CONTENTS, true, false);
+  }
+
+  private void startForeachInner(Value arrayContents, Var memberVar,
+      Var loopCountVar, boolean isDict, List<Var> accumulateBags) {
+    startBagAccumulators(accumulateBags);
     Sequence curr = point();
     Sequence loopBody = new Sequence();
 
@@ -2730,6 +2916,7 @@ public class TurbineGenerator implements CompilerBackend {
                   List<RefCount> perIterDecrements) {
     assert(pointStack.size() >= 2);
     pointPop(); // tclloop body
+    endBagAccumulators();
     if (splitDegree > 0) {
       endRangeSplit(perIterDecrements);
     }
@@ -2738,33 +2925,35 @@ public class TurbineGenerator implements CompilerBackend {
   @Override
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
-      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
-    if (countVar != null) {
-      // TODO
-      throw new STCRuntimeError("Backend doesn't support counter var in range " +
-                                "loop yet");
-    }
-
+      int minLeafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> accumulateBags) {
     if (start.isImmInt()) {
       assert(Types.isIntVal(loopVar));
-      String loopVarName = prefixVar(loopVar);
-      startIntRangeLoop(loopName, loopVarName, start, end, increment,
-          splitDegree, leafDegree, passedVars, perIterIncrs, constIncrs,
-          perIterDecrs);
+      if (countVar == null) {
+        String loopVarName = prefixVar(loopVar);
+        startIntRangeLoop(loopName, loopVarName, start, end, increment,
+            splitDegree, leafDegree, minLeafDegree, passedVars, perIterIncrs,
+            constIncrs, perIterDecrs, accumulateBags);
+      } else {
+        startCountedIntRangeLoop(loopName, loopVar, countVar, start, end,
+            increment, splitDegree, leafDegree, minLeafDegree, passedVars,
+            perIterIncrs, constIncrs, perIterDecrs, accumulateBags);
+      }
     } else {
       assert(start.isImmFloat()) : "Invalid range loop type " + start.type();
-      startFloatRangeLoop(loopName, loopVar, start, end, increment,
-          splitDegree, leafDegree, passedVars, perIterIncrs, constIncrs,
-          perIterDecrs);
+      startFloatRangeLoop(loopName, loopVar, countVar, start, end, increment,
+          splitDegree, leafDegree, minLeafDegree, passedVars, perIterIncrs,
+          constIncrs, perIterDecrs, accumulateBags);
     }
 
   }
 
-  private void startFloatRangeLoop(String loopName, Var loopVar,
+  private void startFloatRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
-      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+      int minLeafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> accumulateBags) {
     assert(start.isImmFloat());
     assert(end.isImmFloat());
     assert(increment.isImmFloat());
@@ -2775,55 +2964,105 @@ public class TurbineGenerator implements CompilerBackend {
     Expression endE = argToExpr(end);
     Expression incrE = argToExpr(increment);
 
-    // Iterate over integers to get the index of each float
+    // Iterate over integers to get the index of each float.  Last index
+    // is -1 if range is empty: loop tests var <= end, as for ints
     Value iterLimitVar = new Value(TCLTMP_FLOAT_RANGE_ITERMAX);
 
-    pointAdd(new SetVariable(iterLimitVar.variable(),
-        new TclExpr(
+    Expression lastIndex = TclExpr.group(
             TclExpr.exprFn(TclExpr.INT_CONV, TclExpr.group(
                 TclExpr.exprFn(TclExpr.FLOOR, TclExpr.group(
                     TclExpr.paren(endE, TclExpr.MINUS, startE,
                                   TclExpr.PLUS, incrE),
                     TclExpr.DIV, incrE)
                  )
-             )), TclExpr.MINUS, LiteralInt.ONE)));
+             )), TclExpr.MINUS, LiteralInt.ONE);
+    pointAdd(new SetVariable(iterLimitVar.variable(),
+        TclExpr.ternary(TclExpr.group(startE, TclExpr.GT, endE),
+                        new LiteralInt(-1), lastIndex)));
 
-    Value dummyLoopVar = new Value(TCLTMP_FLOAT_RANGE_ITER);
+    // Index is the counter variable, if needed
+    String indexVarName = (countVar != null) ?
+              prefixVar(countVar) : TCLTMP_FLOAT_RANGE_ITER;
 
+    startIndexedRangeLoop(loopName, loopVar, indexVarName, start, increment,
+        iterLimitVar, splitDegree, leafDegree, minLeafDegree, passedVars,
+        perIterIncrs, constIncrs, perIterDecrs, accumulateBags);
+  }
+
+  /**
+   * Range loop with counter variable: iterate over the counter and
+   * compute the loop variable from it, so that split loops don't need
+   * to know the start of the whole range.
+   */
+  private void startCountedIntRangeLoop(String loopName, Var loopVar,
+      Var countVar, Arg start, Arg end, Arg increment,
+      int splitDegree, int leafDegree, int minLeafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> accumulateBags) {
+    assert(start.isImmInt());
+    assert(end.isImmInt());
+    assert(increment.isImmInt());
+    assert(Types.isIntVal(countVar));
+
+    // Last index: -1 if range is empty
+    Value iterLimitVar = Value.numericValue(TCLTMP_RANGE_ITERMAX);
+    pointAdd(new SetVariable(iterLimitVar.variable(),
+        new TclExpr(rangeItersLeft(argToExpr(start), argToExpr(end),
+                                   argToExpr(increment)),
+                    TclExpr.MINUS, LiteralInt.ONE)));
+
+    startIndexedRangeLoop(loopName, loopVar, prefixVar(countVar), start,
+        increment, iterLimitVar, splitDegree, leafDegree, minLeafDegree,
+        passedVars, perIterIncrs, constIncrs, perIterDecrs, accumulateBags);
+  }
+
+  /**
+   * Iterate over index from 0 to iterLimit inclusive, and compute loop
+   * variable as start + index * increment in loop body
+   */
+  private void startIndexedRangeLoop(String loopName, Var loopVar,
+      String indexVarName, Arg start, Arg increment, Expression iterLimit,
+      int splitDegree, int leafDegree, int minLeafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> accumulateBags) {
     // Passed vars plus variables used in calculation
     List<PassedVar> passedVars2 = PassedVar.mergeLists(passedVars,
                       PassedVar.fromArgs(false, start, increment));
 
-    startIntRangeLoop2(loopName, dummyLoopVar.variable(),
-        LiteralInt.ZERO, iterLimitVar, LiteralInt.ONE,
-        splitDegree, leafDegree, passedVars2, perIterIncrs, constIncrs,
-        perIterDecrs);
+    startIntRangeLoop2(loopName, indexVarName,
+        LiteralInt.ZERO, iterLimit, LiteralInt.ONE,
+        splitDegree, leafDegree, minLeafDegree, passedVars2, perIterIncrs,
+        constIncrs, perIterDecrs, accumulateBags);
 
-    // TODO: need pass in values?
-    // Compute real float loop var
+    // Compute real loop var
     pointAdd(new SetVariable(prefixVar(loopVar),
-        new TclExpr(startE, TclExpr.PLUS, incrE, TclExpr.TIMES, dummyLoopVar)));
+        new TclExpr(argToExpr(start), TclExpr.PLUS, argToExpr(increment),
+                    TclExpr.TIMES, new Value(indexVarName))));
   }
 
   private void startIntRangeLoop(String loopName, String loopVarName,
       Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
-      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
-      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+      int minLeafDegree, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs, List<Var> accumulateBags) {
     assert(start.isImmInt());
     assert(end.isImmInt());
     assert(increment.isImmInt());
 
     startIntRangeLoop2(loopName, loopVarName,
         argToExpr(start), argToExpr(end), argToExpr(increment),
-        splitDegree, leafDegree, passedVars, perIterIncrs, constIncrs,
-        perIterDecrs);
+        splitDegree, leafDegree, minLeafDegree, passedVars, perIterIncrs,
+        constIncrs, perIterDecrs, accumulateBags);
   }
 
   private void startIntRangeLoop2(String loopName, String loopVarName,
       Expression start, Expression end, Expression incr,
-      int splitDegree, int leafDegree, List<PassedVar> passedVars,
-      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
-      List<RefCount> perIterDecrs) {
+      int splitDegree, int leafDegree, int minLeafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs,
+      List<Var> accumulateBags) {
     if (!perIterIncrs.isEmpty()) {
       // Increment references by # of iterations
       pointAdd(new SetVariable(TCLTMP_ITERSTOTAL,
@@ -2835,11 +3074,13 @@ public class TurbineGenerator implements CompilerBackend {
 
     if (splitDegree > 0) {
       startRangeSplit(loopName, passedVars, perIterIncrs,
-              splitDegree, leafDegree, start, end, incr, perIterDecrs);
-      startRangeLoopInner(loopName, loopVarName,
-          TCLTMP_RANGE_LO_V, TCLTMP_RANGE_HI_V, TCLTMP_RANGE_INC_V);
+              splitDegree, leafDegree, minLeafDegree, start, end, incr,
+              perIterDecrs);
+      startRangeLoopInner(loopName, loopVarName, TCLTMP_RANGE_LO_V,
+          TCLTMP_RANGE_HI_V, TCLTMP_RANGE_INC_V, accumulateBags);
     } else {
-      startRangeLoopInner(loopName, loopVarName, start, end, incr);
+      startRangeLoopInner(loopName, loopVarName, start, end, incr,
+                          accumulateBags);
     }
   }
 
@@ -2847,6 +3088,7 @@ public class TurbineGenerator implements CompilerBackend {
   public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrements) {
     assert(pointStack.size() >= 2);
     pointPop(); // for loop body
+    endBagAccumulators();
 
     if (splitDegree > 0) {
       endRangeSplit(perIterDecrements);
@@ -2854,7 +3096,9 @@ public class TurbineGenerator implements CompilerBackend {
   }
 
   private void startRangeLoopInner(String loopName, String loopVarName,
-          Expression startE, Expression endE, Expression incrE) {
+          Expression startE, Expression endE, Expression incrE,
+          List<Var> accumulateBags) {
+    startBagAccumulators(accumulateBags);
     Sequence loopBody = new Sequence();
     ForLoop tclLoop = new ForLoop(loopVarName, startE, endE, incrE, loopBody);
     pointAdd(tclLoop);
@@ -2868,6 +3112,8 @@ public class TurbineGenerator implements CompilerBackend {
    * @param loopName
    * @param splitDegree
    * @param leafDegree
+   * @param minLeafDegree if positive, leaf degree is computed from the
+   *          size of the whole range and passed down to recursive calls
    * @param startE start of range (inclusive)
    * @param endE end of range (inclusive)
    * @param incrE
@@ -2876,8 +3122,26 @@ public class TurbineGenerator implements CompilerBackend {
    */
   private void startRangeSplit(String loopName,
           List<PassedVar> passedVars, List<RefCount> perIterIncrs, int splitDegree,
-          int leafDegree, Expression startE, Expression endE,
+          int leafDegree, int minLeafDegree, Expression startE, Expression endE,
           Expression incrE, List<RefCount> perIterDecrs) {
+    startRangeSplit(loopName, passedVars, perIterIncrs, splitDegree,
+        leafDegree, minLeafDegree, startE, endE, incrE, perIterDecrs, null, 0);
+  }
+
+  /**
+   * As above, but also split a list along with the range.  Entries
+   * of the list correspond to iterations of the range, which must have
+   * increment one.  The slice of the list for the split will be available
+   * in TCLTMP_ARRAY_CONTENTS.
+   * @param contents list to slice, or null if none
+   * @param entryWidth number of list elements per iteration
+   */
+  private void startRangeSplit(String loopName,
+          List<PassedVar> passedVars, List<RefCount> perIterIncrs, int splitDegree,
+          int leafDegree, int minLeafDegree, Expression startE, Expression endE,
+          Expression incrE, List<RefCount> perIterDecrs,
+          Expression contents, int entryWidth) {
+    assert(contents == null || LiteralInt.ONE.equals(incrE));
 
     List<Var> mustPass = RefCount.extractVars(perIterDecrs);
 
@@ -2896,12 +3160,33 @@ public class TurbineGenerator implements CompilerBackend {
     Value loVal = Value.numericValue(TCLTMP_RANGE_LO);
     Value hiVal = Value.numericValue(TCLTMP_RANGE_HI);
     Value incVal = Value.numericValue(TCLTMP_RANGE_INC);
+    Value sliceVal = null;
+    if (contents != null) {
+      sliceVal = new Value(TCLTMP_ARRAY_CONTENTS, true, false);
+      commonFormalArgs.add(sliceVal.variable());
+    }
 
     commonFormalArgs.add(loVal.variable());
     commonFormalArgs.add(hiVal.variable());
     commonFormalArgs.add(incVal.variable());
     List<String> outerFormalArgs = new ArrayList<String>(commonFormalArgs);
 
+    Expression leafE = new LiteralInt(leafDegree);
+    Expression rootLeafE = null;
+    if (minLeafDegree > 0 && minLeafDegree < leafDegree) {
+      // Enough leaves for two levels of splitting
+      Value leafVal = Value.numericValue(TCLTMP_LEAF_DEGREE);
+      outerFormalArgs.add(leafVal.variable());
+      leafE = leafVal;
+      rootLeafE = new TclExpr(TclExpr.max(new LiteralInt(minLeafDegree),
+          TclExpr.min(new LiteralInt(leafDegree),
+            TclExpr.group(
+              TclExpr.paren(rangeItersLeft(startE, endE, incrE),
+                            TclExpr.MINUS, LiteralInt.ONE),
+              TclExpr.DIV, new LiteralInt((long)splitDegree * splitDegree),
+              TclExpr.PLUS, LiteralInt.ONE))));
+    }
+
 
     List<Expression> commonArgs = new ArrayList<Expression>();
     for (PassedVar pv: passedVars) {
@@ -2912,11 +3197,20 @@ public class TurbineGenerator implements CompilerBackend {
     }
 
     List<Expression> outerCallArgs = new ArrayList<Expression>(commonArgs);
+    if (contents != null) {
+      outerCallArgs.add(contents);
+    }
     outerCallArgs.add(startE);
     outerCallArgs.add(endE);
     outerCallArgs.add(incrE);
+    if (rootLeafE != null) {
+      outerCallArgs.add(rootLeafE);
+    }
 
     List<Expression> innerCallArgs = new ArrayList<Expression>(commonArgs);
+    if (contents != null) {
+      innerCallArgs.add(sliceVal);
+    }
     innerCallArgs.add(loVal);
     innerCallArgs.add(hiVal);
     innerCallArgs.add(incVal);
@@ -2951,7 +3245,7 @@ public class TurbineGenerator implements CompilerBackend {
               rangeItersLeft(loVal, hiVal, incVal)));
 
     Expression doneSplitting = new TclExpr(itersLeft,
-            TclExpr.LTE, new LiteralInt(leafDegree));
+            TclExpr.LTE, leafE);
     If splitIf = new If(doneSplitting, true);
     iter.loopBody().add(splitIf);
 
@@ -2960,8 +3254,8 @@ public class TurbineGenerator implements CompilerBackend {
     splitIf.thenBlock().add(new Command(innerProcName, innerCallArgs));
     splitIf.thenBlock().add(Command.returnCommand());
 
-    splitIf.elseBlock().append(rangeDoSplit(splitDegree, leafDegree,
-            loVal, hiVal, incVal,
+    splitIf.elseBlock().append(rangeDoSplit(splitDegree, leafE,
+            loVal, hiVal, incVal, sliceVal, entryWidth,
             outerProcName, commonArgs, itersLeft));
 
 
@@ -2973,21 +3267,25 @@ public class TurbineGenerator implements CompilerBackend {
    *    the size of the remaining split to be executed here.
    *
    * @param splitDegree
-   * @param leafDegree
+   * @param leafDegree literal or variable with leaf degree
    * @param loVar var containing low index of loop upon entry to generated code.
    *          Will be reassigned by this code to a lower split range
    * @param hiVar var containing high index of loop upon entry to generated code.
    *          Will be reassigned by this code to a lower split range
    * @param incVar var containing increment of loop upon entry to generated code.
+   * @param slice var containing list to split along with range, or null.
+   *          Will be reassigned by this code to the lower split
+   * @param entryWidth number of list elements per iteration
    * @param itersLeft Number of iterations left for loop
    * @param outerProcName proc to call for loop body
    * @param commonArgs first args for function call.  Also append
    *                    lo, hi and inc for inner loop
    * @return
    */
-  private Sequence rangeDoSplit(int splitDegree, int leafDegree,
-          Value lo, Value hi, Value inc, String outerProcName,
-          List<Expression> commonArgs, Value itersLeft) {
+  private Sequence rangeDoSplit(int splitDegree, Expression leafDegree,
+          Value lo, Value hi, Value inc, Value slice, int entryWidth,
+          String outerProcName, List<Expression> commonArgs,
+          Value itersLeft) {
     Value splitStart = Value.numericValue(TCLTMP_SPLIT_START);
     Value skip = Value.numericValue(TCLTMP_SKIP);
     Value splitEnd = Value.numericValue(TCLTMP_SPLITEND);
@@ -2999,7 +3297,7 @@ public class TurbineGenerator implements CompilerBackend {
     // skip = max(splitFactor,  ((iters - 1) /(int) splitfactor) + 1)
     result.add(new SetVariable(skip.variable(),
         TclExpr.mult(inc,
-          TclExpr.max(new LiteralInt(leafDegree),
+          TclExpr.max(leafDegree,
             TclExpr.group(
                 TclExpr.paren(
                     TclExpr.paren(itersLeft, TclExpr.MINUS,
@@ -3016,6 +3314,10 @@ public class TurbineGenerator implements CompilerBackend {
     result.add(new SetVariable(hi.variable(), new TclExpr(true,
             TclExpr.group(lo, TclExpr.PLUS, skip,
                             TclExpr.MINUS, LiteralInt.ONE))));
+    if (slice != null) {
+      result.add(new SetVariable(slice.variable(),
+          sliceRange(slice, lo, lo, hi, entryWidth)));
+    }
 
     // splitEnd = min(hi, start + skip - 1)
     TclExpr splitEndExpr = new TclExpr(
@@ -3028,9 +3330,19 @@ public class TurbineGenerator implements CompilerBackend {
     ArrayList<Expression> outerRecCall = new ArrayList<Expression>();
     outerRecCall.add(new Token(outerProcName));
     outerRecCall.addAll(commonArgs);
+    if (slice != null) {
+      // Only pass this split's entries to task
+      Value splitSlice = new Value(TCLTMP_SPLIT_CONTENTS, true, false);
+      splitLoop.loopBody().add(new SetVariable(splitSlice.variable(),
+          sliceRange(slice, lo, splitStart, splitEnd, entryWidth)));
+      outerRecCall.add(splitSlice);
+    }
     outerRecCall.add(splitStart);
     outerRecCall.add(splitEnd);
     outerRecCall.add(inc);
+    if (!(leafDegree instanceof LiteralInt)) {
+      outerRecCall.add(leafDegree);
+    }
 
     splitLoop.loopBody().add(Turbine.rule(outerProcName, new ArrayList<Value>(0),
                     outerRecCall, ExecTarget.dispatchedControl(),
@@ -3042,6 +3354,33 @@ public class TurbineGenerator implements CompilerBackend {
     return result;
   }
 
+  /**
+   * @param slice list with entries for iterations starting at sliceLo
+   * @param entryWidth number of list elements per iteration
+   * @return expression for entries of iterations lo to hi inclusive
+   */
+  private Expression sliceRange(Value slice, Value sliceLo,
+      Expression lo, Expression hi, int entryWidth) {
+    Expression first, last;
+    if (lo == sliceLo) {
+      first = LiteralInt.ZERO;
+      last = new TclExpr(TclExpr.paren(hi, TclExpr.MINUS, sliceLo,
+                  TclExpr.PLUS, LiteralInt.ONE), TclExpr.TIMES,
+                  new LiteralInt(entryWidth), TclExpr.MINUS, LiteralInt.ONE);
+    } else if (entryWidth == 1) {
+      first = TclExpr.minus(lo, sliceLo);
+      last = TclExpr.minus(hi, sliceLo);
+    } else {
+      LiteralInt width = new LiteralInt(entryWidth);
+      first = new TclExpr(TclExpr.paren(lo, TclExpr.MINUS, sliceLo),
+                          TclExpr.TIMES, width);
+      last = new TclExpr(TclExpr.paren(hi, TclExpr.MINUS, sliceLo),
+                          TclExpr.TIMES, width, TclExpr.PLUS,
+                          new LiteralInt(entryWidth - 1));
+    }
+    return Turbine.listRange(slice, first, last);
+  }
+
   /**
    * Generate refcounting code from RefCount list
    * @param constIncrs constant increments.  Assume that every constant incr
@@ -3109,6 +3448,11 @@ public class TurbineGenerator implements CompilerBackend {
     }
   }
 
+  /**
+   * Number of iterations of range loop.  Loops run while the loop
+   * variable is <= hi, so there are none if lo > hi, even if the
+   * increment is negative.
+   */
   private TclExpr rangeItersLeft(Expression lo, Expression hi, Expression inc) {
     Expression calcLeft; // Expression to calculate how many left (may be neg.)
     if (LiteralInt.ONE.equals(inc)) {
@@ -3120,7 +3464,13 @@ public class TurbineGenerator implements CompilerBackend {
             TclExpr.paren(hi, TclExpr.MINUS, lo), TclExpr.DIV,
             inc, TclExpr.PLUS, LiteralInt.ONE);
     }
-    return new TclExpr(TclExpr.max(LiteralInt.ZERO, calcLeft));
+    Expression iters = TclExpr.max(LiteralInt.ZERO, calcLeft);
+    if (inc instanceof LiteralInt && ((LiteralInt)inc).value() > 0) {
+      // Division gives negative result if lo > hi
+      return new TclExpr(iters);
+    }
+    return TclExpr.ternary(TclExpr.group(lo, TclExpr.GT, hi),
+                           LiteralInt.ZERO, iters);
   }
 
   private void endRangeSplit(List<RefCount> perIterDecrements) {
@@ -16,6 +16,7 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -67,7 +68,7 @@ public class Command extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
     indent(sb);
     Iterator<TclTree> it = tokens.iterator();
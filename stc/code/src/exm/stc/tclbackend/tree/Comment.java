@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Tcl single-line comment
  * */
@@ -29,7 +31,7 @@ public class Comment extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
     indent(sb);
     sb.append("# ");
@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 public class Eval extends Sequence
 {
   public Eval()
@@ -24,7 +26,7 @@ public class Eval extends Sequence
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
     indent(sb);
     sb.append("::eval {\n");
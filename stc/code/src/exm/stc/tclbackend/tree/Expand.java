@@ -15,6 +15,8 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 import exm.stc.common.exceptions.STCRuntimeError;
 
 /**
@@ -30,7 +32,7 @@ public class Expand extends Expression {
   }
   
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode) {
+  public void appendTo(Appendable sb, ExprContext mode) throws IOException {
     if (mode != ExprContext.TCL_CODE) {
       throw new STCRuntimeError("Expand can't be used in " + mode);
     }
@@ -16,10 +16,12 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 public abstract class Expression extends TclTree
 {
   @Override
-  public final void appendTo(StringBuilder sb) {
+  public final void appendTo(Appendable sb) throws IOException {
     appendTo(sb, ExprContext.TCL_CODE);
   }
   
@@ -34,7 +36,7 @@ public abstract class Expression extends TclTree
    * @param sb
    * @param mode how to escape expression  
    */
-  public abstract void appendTo(StringBuilder sb, ExprContext mode);
+  public abstract void appendTo(Appendable sb, ExprContext mode) throws IOException;
 
   /**
    * @return true if we can include in a string that is valid tcl list
@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Foreach construct
  * 
@@ -36,7 +38,7 @@ public class ForEach extends Sequence
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
     indent(sb);
     sb.append("foreach ");
@@ -15,6 +15,8 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Loop over a range
  *
@@ -55,7 +57,7 @@ public class ForLoop extends TclTree {
   }
   
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   { 
     Value loopVarVal = new Value(loopVar);
     indent(sb);
@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 
 /**
  * If-then construct
@@ -59,7 +61,7 @@ public class If extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
 
     indent(sb);
@@ -15,6 +15,8 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 public class LiteralFloat extends Expression {
   public static final String TCL_INF = "inf";
   public static final String TCL_NEGINF = "-inf";
@@ -27,7 +29,7 @@ public class LiteralFloat extends Expression {
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode) {
+  public void appendTo(Appendable sb, ExprContext mode) throws IOException {
     String tclLiteral; 
     if (Double.isInfinite(value)) {
       if (value > 0.0) {
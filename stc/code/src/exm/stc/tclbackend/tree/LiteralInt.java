@@ -15,6 +15,8 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 public class LiteralInt extends Expression {
 
   public static final Expression TRUE = new LiteralInt(1);
@@ -31,7 +33,7 @@ public class LiteralInt extends Expression {
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode) {
+  public void appendTo(Appendable sb, ExprContext mode) throws IOException {
     sb.append(Long.toString(value));
   }
 
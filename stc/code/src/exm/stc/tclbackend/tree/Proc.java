@@ -16,6 +16,7 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
@@ -79,7 +80,7 @@ public class Proc extends TclTree
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
     indent(sb);
     sb.append("\nproc ");
@@ -16,6 +16,7 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -67,7 +68,7 @@ public class Sequence extends TclTree {
   }
 
   @Override
-  public void appendTo(StringBuilder sb) {
+  public void appendTo(Appendable sb) throws IOException {
     for (TclTree member: members) {
       member.setIndentation(indentation);
       member.appendTo(sb);
@@ -16,6 +16,7 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -81,7 +82,7 @@ public class Square extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode)
+  public void appendTo(Appendable sb, ExprContext mode) throws IOException
   {
     boolean brace = treatAsList && mode == ExprContext.LIST_STRING;
 
@@ -15,6 +15,7 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.List;
 
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -45,7 +46,7 @@ public class Switch extends TclTree {
    * and a default case if needed
    */
   @Override
-  public void appendTo(StringBuilder sb) {
+  public void appendTo(Appendable sb) throws IOException {
     
     indent(sb);
     // Open switch block
@@ -1,5 +1,6 @@
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -16,7 +17,7 @@ public class TclExpr extends Square {
     }
 
     @Override
-    public void appendTo(StringBuilder sb, ExprContext mode) {
+    public void appendTo(Appendable sb, ExprContext mode) throws IOException {
       sb.append(fn);
       sb.append("(");
       boolean first = true;
@@ -47,7 +48,7 @@ public class TclExpr extends Square {
     }
 
     @Override
-    public void appendTo(StringBuilder sb, ExprContext mode) {
+    public void appendTo(Appendable sb, ExprContext mode) throws IOException {
       if (parenthesise)
         sb.append("(");
       boolean first = true;
@@ -168,7 +169,7 @@ public class TclExpr extends Square {
     return new TclExprParen(false, es);
   }
 
-  public static Expression ternary(Expression condition,
+  public static TclExpr ternary(Expression condition,
                             Expression e1, Expression e2) {
     return new TclExpr(Arrays.asList(paren(condition), new Token("?"),
                                 paren(e1), new Token(":"), paren(e2)));
@@ -15,6 +15,7 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -64,7 +65,12 @@ public class TclString extends Expression
       if (mode == ExprContext.LIST_STRING) {
         assert(e.supportsStringList()) : e;
       }
-      e.appendTo(sb, mode);
+      try {
+        e.appendTo(sb, mode);
+      } catch (IOException ex) {
+        // StringBuilder doesn't throw IOException
+        throw new STCRuntimeError(ex.getMessage());
+      }
     }
   }
 
@@ -74,25 +80,29 @@ public class TclString extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder outSb, ExprContext mode)
+  public void appendTo(Appendable outSb, ExprContext mode) throws IOException
   {
-    CharSequence str;
-    if (this.escape) {
-      str = tclEscapeString(this.sb.toString());
-    } else {
-      str = this.sb;
-    }
-
     if (mode == ExprContext.TCL_CODE) {
       outSb.append('\"');
-      outSb.append(str);
+      appendValue(outSb);
       outSb.append('\"');
     } else if (mode == ExprContext.LIST_STRING) {
       throw new STCRuntimeError("Don't support string escaping for inclusion " +
       		                      "within string");
     } else {
       assert(mode == ExprContext.VALUE_STRING);
-      outSb.append(str);
+      appendValue(outSb);
+    }
+  }
+
+  /**
+   * Append string, escaping directly into output if needed
+   */
+  private void appendValue(Appendable outSb) throws IOException {
+    if (this.escape) {
+      tclEscapeString(this.sb, outSb);
+    } else {
+      outSb.append(this.sb);
     }
   }
 
@@ -117,11 +127,17 @@ public class TclString extends Expression
    */
   public static String tclEscapeString(String unescaped) {
     StringBuilder escaped = new StringBuilder();
-    tclEscapeString(unescaped, escaped);
+    try {
+      tclEscapeString(unescaped, escaped);
+    } catch (IOException e) {
+      // StringBuilder doesn't throw IOException
+      throw new STCRuntimeError(e.getMessage());
+    }
     return escaped.toString();
   }
 
-  private static void tclEscapeString(String unescaped, StringBuilder escaped) {
+  private static void tclEscapeString(CharSequence unescaped,
+                          Appendable escaped) throws IOException {
     for (int i = 0; i < unescaped.length(); i++) {
       char c = unescaped.charAt(i);
       switch (c) {
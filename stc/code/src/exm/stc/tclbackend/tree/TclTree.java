@@ -16,8 +16,12 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 import org.apache.commons.lang3.StringUtils;
 
+import exm.stc.common.exceptions.STCRuntimeError;
+
 /**
  * The TclTree class hierarchy represents all Tcl constructs
  * necessary for Turbine code generation
@@ -31,14 +35,24 @@ public abstract class TclTree
   int indentation = 0;
   static int indentWidth = 4;
 
-  public abstract void appendTo(StringBuilder sb);
+  /**
+   * Cached strings of spaces, indexed by indentation
+   */
+  private static final String INDENTS[] = new String[128];
+  static {
+    for (int i = 0; i < INDENTS.length; i++) {
+      INDENTS[i] = StringUtils.repeat(' ', i);
+    }
+  }
+
+  public abstract void appendTo(Appendable sb) throws IOException;
 
   /**
-   * Append the body to the StringBuilder inside
+   * Append the body to the output inside
    * curly braces.
    * @param sb
    */
-  public void appendToAsBlock(StringBuilder sb) {
+  public void appendToAsBlock(Appendable sb) throws IOException {
     sb.append("{\n");
     increaseIndent();
     appendTo(sb);
@@ -47,9 +61,13 @@ public abstract class TclTree
     sb.append("}");
   }
 
-  public void indent(StringBuilder sb)
+  public void indent(Appendable sb) throws IOException
   {
-    sb.append(StringUtils.repeat(' ', indentation));
+    if (indentation < INDENTS.length) {
+      sb.append(INDENTS[indentation]);
+    } else {
+      sb.append(StringUtils.repeat(' ', indentation));
+    }
   }
 
   public void setIndentation(int i)
@@ -71,7 +89,12 @@ public abstract class TclTree
   public String toString()
   {
     StringBuilder sb = new StringBuilder(2048);
-    appendTo(sb);
+    try {
+      appendTo(sb);
+    } catch (IOException e) {
+      // StringBuilder doesn't throw IOException
+      throw new STCRuntimeError(e.getMessage());
+    }
     return sb.toString();
   }
 }
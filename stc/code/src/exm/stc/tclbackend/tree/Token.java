@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Represents a simple Tcl token (e.g., word)
  * @author wozniak
@@ -35,7 +37,7 @@ public class Token extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode)
+  public void appendTo(Appendable sb, ExprContext mode) throws IOException
   {
     sb.append(token);
   }
@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Simply dereference variable as $variable
  * @author wozniak
@@ -59,7 +61,7 @@ public class Value extends Expression
   }
 
   @Override
-  public void appendTo(StringBuilder sb, ExprContext mode) {
+  public void appendTo(Appendable sb, ExprContext mode) throws IOException {
     boolean brace = mode == ExprContext.LIST_STRING && treatAsList;
     
     if (mode == ExprContext.LIST_STRING) {
@@ -15,6 +15,8 @@
  */
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Loop over a range
  *
@@ -43,7 +45,7 @@ public class WhileLoop extends TclTree {
   }
 
   @Override
-  public void appendTo(StringBuilder sb)
+  public void appendTo(Appendable sb) throws IOException
   {
     indent(sb);
     
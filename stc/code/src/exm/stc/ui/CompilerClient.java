@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Thin client for CompilerServer.  Takes the same arguments and stc.*
+ * properties as Main, sends them to the server and relays output and
+ * exit code.
+ *
+ * The server does not share our working directory, so we send it
+ * along with the request for relative file names to be resolved
+ * against.  We authenticate with the secret that the server wrote to
+ * its token file, which only the user running the server can read.
+ *
+ * This still starts a JVM for every compile, but a small one that does
+ * not load the compiler: the saving comes from the server having
+ * already loaded and warmed up the compiler and parsed common modules.
+ */
+public class CompilerClient {
+
+  public static void main(String[] args) {
+    String currentDir = new File("").getAbsolutePath();
+    int port = CompilerServer.port();
+    try {
+      System.exit(compile(port, currentDir, stcProperties(),
+                          Arrays.asList(args)));
+    } catch (IOException e) {
+      System.err.println("Could not compile with STC server on port " +
+                         port + ": " + e.getMessage());
+      System.exit(ExitCode.ERROR_IO.code());
+    }
+  }
+
+  private static int compile(int port, String currentDir, Properties props,
+                     List<String> args) throws IOException {
+    String token = CompilerServer.readToken(port);
+    Socket socket = new Socket(InetAddress.getByName(null), port);
+    try {
+      DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+      out.writeInt(CompilerServer.MAGIC);
+      out.writeInt(CompilerServer.PROTOCOL_VERSION);
+      out.writeUTF(token);
+      out.writeUTF(currentDir);
+      out.writeInt(props.size());
+      for (String key: props.stringPropertyNames()) {
+        out.writeUTF(key);
+        out.writeUTF(props.getProperty(key));
+      }
+      out.writeInt(args.size());
+      for (String arg: args) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+
+      DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+      while (true) {
+        byte frameType = in.readByte();
+        byte data[] = new byte[in.readInt()];
+        in.readFully(data);
+        if (frameType == CompilerServer.FRAME_STDOUT) {
+          relay(System.out, data);
+        } else if (frameType == CompilerServer.FRAME_STDERR) {
+          relay(System.err, data);
+        } else if (frameType == CompilerServer.FRAME_EXIT) {
+          return new DataInputStream(
+                      new ByteArrayInputStream(data)).readInt();
+        } else {
+          throw new IOException("Unexpected frame type " + frameType);
+        }
+      }
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void relay(PrintStream stream, byte data[]) {
+    stream.write(data, 0, data.length);
+    stream.flush();
+  }
+
+  /**
+   * @return stc.* system properties
+   */
+  private static Properties stcProperties() {
+    Properties result = new Properties();
+    Properties sysProps = System.getProperties();
+    for (String key: sysProps.stringPropertyNames()) {
+      if (key.startsWith("stc.") &&
+          !key.equals(CompilerServer.PORT_PROPERTY) &&
+          !key.equals(CompilerServer.TOKEN_FILE_PROPERTY) &&
+          !key.equals(CompilerServer.READ_TIMEOUT_PROPERTY)) {
+        result.setProperty(key, sysProps.getProperty(key));
+      }
+    }
+    return result;
+  }
+}
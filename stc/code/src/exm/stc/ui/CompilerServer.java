@@ -0,0 +1,412 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+import exm.stc.frontend.ModuleCache;
+
+/**
+ * Long-running compiler process that compiles programs on behalf of
+ * CompilerClient, avoiding JVM startup and warmup for each compile.
+ *
+ * Usage: CompilerServer [port]
+ *
+ * Listens on the loopback interface only.  Compiles are run one at a
+ * time because the compiler keeps settings in static state: this is
+ * reset at the start of each compile by Main.run().  Parsed modules
+ * are kept in memory, so that e.g. builtins are only parsed once.
+ * Clients that stall while sending a request are disconnected after
+ * a timeout so that they don't block later requests.
+ *
+ * Compiles read and write files with the permissions of the server
+ * process, so only clients run by the same user may use the server.
+ * On startup the server writes a random secret to a token file that
+ * only the owner can read (see {@link #tokenFile(int)}).  Clients must
+ * send the secret with each request.
+ *
+ * Protocol: the client sends a request (see CompilerClient), then the
+ * server sends a sequence of frames, each a type byte followed by a
+ * length-prefixed payload, with output for stdout and stderr, ending
+ * with a frame containing the exit code.
+ */
+public class CompilerServer {
+
+  public static final String PORT_PROPERTY = "stc.server.port";
+  public static final int DEFAULT_PORT = 36363;
+
+  /**
+   * Property to override location of token file, shared by client and
+   * server.
+   */
+  public static final String TOKEN_FILE_PROPERTY = "stc.server.token-file";
+
+  /**
+   * Property for milliseconds to wait for data from client before
+   * disconnecting it
+   */
+  public static final String READ_TIMEOUT_PROPERTY =
+                                        "stc.server.read-timeout";
+  public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+  static final int MAGIC = 0x53544353;
+  static final int PROTOCOL_VERSION = 2;
+
+  /** Length of secret in bytes */
+  private static final int TOKEN_BYTES = 32;
+
+  static final byte FRAME_STDOUT = 1;
+  static final byte FRAME_STDERR = 2;
+  static final byte FRAME_EXIT = 3;
+
+  /** Maximum number of parsed modules to keep in memory */
+  private static final int MODULE_CACHE_SIZE = 256;
+
+  private final int port;
+
+  /** Milliseconds to wait for data from client */
+  private final int readTimeout;
+
+  /** Secret that clients must present */
+  private String token;
+
+  public CompilerServer(int port, int readTimeout) {
+    this.port = port;
+    this.readTimeout = readTimeout;
+  }
+
+  public static void main(String[] args) {
+    int port;
+    int readTimeout;
+    try {
+      port = args.length > 0 ? Integer.parseInt(args[0]) : port();
+      readTimeout = readTimeout();
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid port or read timeout: " + e.getMessage());
+      System.exit(ExitCode.ERROR_COMMAND.code());
+      return;
+    }
+
+    try {
+      new CompilerServer(port, readTimeout).serve();
+    } catch (IOException e) {
+      System.err.println("Compiler server failed: " + e.getMessage());
+      System.exit(ExitCode.ERROR_IO.code());
+    }
+  }
+
+  /**
+   * @return port from system properties, or default
+   */
+  static int port() {
+    return Integer.parseInt(System.getProperty(PORT_PROPERTY,
+                                        Integer.toString(DEFAULT_PORT)));
+  }
+
+  /**
+   * @return read timeout from system properties, or default
+   */
+  static int readTimeout() {
+    return Integer.parseInt(System.getProperty(READ_TIMEOUT_PROPERTY,
+                                Integer.toString(DEFAULT_READ_TIMEOUT)));
+  }
+
+  /**
+   * @param port
+   * @return file that server writes secret for port to
+   */
+  static File tokenFile(int port) {
+    String path = System.getProperty(TOKEN_FILE_PROPERTY);
+    if (path != null && path.length() > 0) {
+      return new File(path);
+    }
+    File dir = new File(System.getProperty("user.home"), ".stc");
+    return new File(dir, "server-" + port + ".token");
+  }
+
+  /**
+   * Read secret written by server
+   * @param port
+   * @return the secret
+   * @throws IOException if token file could not be read
+   */
+  static String readToken(int port) throws IOException {
+    File file = tokenFile(port);
+    BufferedReader r = new BufferedReader(new InputStreamReader(
+                                  new FileInputStream(file), "UTF-8"));
+    try {
+      String line = r.readLine();
+      if (line == null) {
+        throw new IOException("Empty token file " + file);
+      }
+      return line.trim();
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * Create new secret and write it to the token file.  The file is
+   * restricted to the owner before the secret is written to it.
+   * @throws IOException
+   */
+  private void writeToken() throws IOException {
+    byte bytes[] = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b: bytes) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    token = sb.toString();
+
+    File file = tokenFile(port);
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory()) {
+      if (!dir.mkdirs()) {
+        throw new IOException("Could not create directory " + dir);
+      }
+      restrictToOwner(dir, true);
+    }
+
+    // Replace any existing file so that we create it with our permissions
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not remove old token file " + file);
+    }
+    if (!file.createNewFile()) {
+      throw new IOException("Token file " + file + " created concurrently");
+    }
+    restrictToOwner(file, false);
+
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write((token + "\n").getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    file.deleteOnExit();
+  }
+
+  /**
+   * Remove permissions for all users apart from owner
+   * @param file
+   * @param dir true if file is a directory that needs to be searchable
+   * @throws IOException
+   */
+  private static void restrictToOwner(File file, boolean dir)
+      throws IOException {
+    boolean ok = file.setReadable(false, false) &&
+                 file.setWritable(false, false) &&
+                 file.setExecutable(false, false) &&
+                 file.setReadable(true, true) &&
+                 file.setWritable(true, true);
+    if (dir) {
+      ok = ok && file.setExecutable(true, true);
+    }
+    if (!ok) {
+      throw new IOException("Could not restrict permissions of " + file);
+    }
+  }
+
+  /**
+   * Compare secrets in constant time
+   */
+  private boolean checkToken(String clientToken) throws IOException {
+    return MessageDigest.isEqual(token.getBytes("UTF-8"),
+                                 clientToken.getBytes("UTF-8"));
+  }
+
+  /**
+   * Accept and run compile requests until killed
+   * @throws IOException if we could not listen on the port or write
+   *        the token file
+   */
+  public void serve() throws IOException {
+    serve(listen());
+  }
+
+  /**
+   * Listen on port and write token file
+   * @return the server socket
+   * @throws IOException if we could not listen on the port or write
+   *        the token file
+   */
+  ServerSocket listen() throws IOException {
+    ModuleCache.enableMemoryCache(MODULE_CACHE_SIZE);
+
+    ServerSocket server = new ServerSocket(port, 50,
+                                      InetAddress.getByName(null));
+    try {
+      writeToken();
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    System.err.println("STC compiler server listening on port " +
+                       server.getLocalPort() + ", token in " +
+                       tokenFile(port));
+    return server;
+  }
+
+  /**
+   * Accept and run compile requests until server socket is closed
+   * @throws IOException if accepting clients failed
+   */
+  void serve(ServerSocket server) throws IOException {
+    try {
+      while (true) {
+        Socket client = server.accept();
+        try {
+          // Don't let a stalled client block other clients
+          client.setSoTimeout(readTimeout);
+          handle(client);
+        } catch (SocketTimeoutException e) {
+          System.err.println("Disconnected stalled client: no data for " +
+                             readTimeout + "ms");
+        } catch (IOException e) {
+          System.err.println("Error handling compile request: " +
+                             e.getMessage());
+        } finally {
+          client.close();
+        }
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  private void handle(Socket client) throws IOException {
+    DataInputStream in = new DataInputStream(
+                  new BufferedInputStream(client.getInputStream()));
+    DataOutputStream out = new DataOutputStream(
+                  new BufferedOutputStream(client.getOutputStream()));
+
+    if (in.readInt() != MAGIC || in.readInt() != PROTOCOL_VERSION) {
+      throw new IOException("Unexpected request header from client");
+    }
+    if (!checkToken(in.readUTF())) {
+      // Don't read rest of request
+      byte msg[] = ("STC compiler server: invalid token, check " +
+                    tokenFile(port) + "\n").getBytes("UTF-8");
+      out.writeByte(FRAME_STDERR);
+      out.writeInt(msg.length);
+      out.write(msg);
+      out.writeByte(FRAME_EXIT);
+      out.writeInt(4);
+      out.writeInt(ExitCode.ERROR_COMMAND.code());
+      out.flush();
+      throw new IOException("Rejected client with invalid token");
+    }
+    String currentDir = in.readUTF();
+    Properties props = new Properties();
+    int propCount = in.readInt();
+    for (int i = 0; i < propCount; i++) {
+      String key = in.readUTF();
+      props.setProperty(key, in.readUTF());
+    }
+    String args[] = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = in.readUTF();
+    }
+
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    PrintStream clientOut = new PrintStream(
+                  new FrameOutputStream(out, FRAME_STDOUT), true);
+    PrintStream clientErr = new PrintStream(
+                  new FrameOutputStream(out, FRAME_STDERR), true);
+    int exitCode;
+    System.setOut(clientOut);
+    System.setErr(clientErr);
+    try {
+      exitCode = Main.run(args, props, currentDir);
+    } catch (Throwable t) {
+      // Keep server alive for next request
+      t.printStackTrace();
+      exitCode = ExitCode.ERROR_INTERNAL.code();
+    } finally {
+      clientOut.flush();
+      clientErr.flush();
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+
+    synchronized (out) {
+      out.writeByte(FRAME_EXIT);
+      out.writeInt(4);
+      out.writeInt(exitCode);
+      out.flush();
+    }
+
+    if (clientOut.checkError() || clientErr.checkError()) {
+      throw new IOException("Error sending output to client");
+    }
+  }
+
+  /**
+   * Send all data written to client in frames of the given type.
+   */
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final byte frameType;
+
+    FrameOutputStream(DataOutputStream out, byte frameType) {
+      this.out = out;
+      this.frameType = frameType;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      synchronized (out) {
+        out.writeByte(frameType);
+        out.writeInt(len);
+        out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (out) {
+        out.flush();
+      }
+    }
+  }
+}
@@ -23,7 +23,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -37,9 +36,6 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.SystemUtils;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.Logging;
@@ -48,6 +44,8 @@ import exm.stc.common.exceptions.InvalidOptionException;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.frontend.Preprocessor;
+import exm.stc.frontend.VarRepr;
 
 /**
  * Command line interface to STC compiler.  Some compiler options
@@ -63,21 +61,58 @@ public class Main {
 
 
   public static void main(String[] args) {
+    int exitCode = run(args, System.getProperties(), null);
+    if (exitCode != ExitCode.SUCCESS.code()) {
+      System.exit(exitCode);
+    }
+  }
+
+  /**
+   * Run a compile with fresh global state, so that many compiles can
+   * be run one after another in the same JVM.
+   * @param args command line arguments
+   * @param sysProps properties to take settings from
+   * @param currentDir directory to resolve relative file names against,
+   *              or null to use the working directory of this process
+   * @return exit code
+   */
+  public static int run(String[] args, Properties sysProps,
+                        String currentDir) {
+    resetState();
+    try {
+      return compile(args, sysProps, currentDir);
+    } catch (STCFatal ex) {
+      return ex.exitCode;
+    } finally {
+      cleanupTemporaries();
+    }
+  }
+
+  private static void resetState() {
+    Settings.reset();
+    CompileTimeArgs.reset();
+    Logging.reset();
+    VarRepr.clearCache();
+    temporaries.clear();
+  }
 
+  private static int compile(String[] args, Properties sysProps,
+                             String currentDir) {
+    Settings.setBaseDir(currentDir == null ? null : new File(currentDir));
     Args stcArgs = processArgs(args);
 
     try {
-      Settings.initSTCProperties();
+      Settings.initSTCProperties(sysProps);
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up options: " + ex.getMessage());
-      System.exit(1);
+      return 1;
     }
     Logger logger = null;
     try {
       logger = setupLogging();
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up logging: " + ex.getMessage());
-      System.exit(1);
+      return 1;
     }
 
 
@@ -87,7 +122,7 @@ public class Main {
     File finalOutput = selectOutputFile(stcArgs);
 
     if (skipCompile(stcArgs, finalOutput)) {
-      System.exit(ExitCode.SUCCESS.code());
+      return ExitCode.SUCCESS.code();
     }
 
     // Use intermediate file so we don't create invalid output in case of
@@ -109,11 +144,11 @@ public class Main {
     } catch (STCFatal ex) {
       // Cleanup output file if present
       cleanupFiles(false, stcArgs);
-      System.exit(ex.exitCode);
+      return ex.exitCode;
     }
+    return ExitCode.SUCCESS.code();
   }
 
-
   private static Options initOptions() {
     Options opts = new Options();
 
@@ -147,15 +182,14 @@ public class Main {
       // Use Apache CLI-provided messages
       System.err.println(ex.getMessage());
       usage(opts);
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
 
     boolean updateOutput = cmd.hasOption(UPDATE_FLAG);
 
     if (cmd.hasOption(INCLUDE_FLAG)) {
       for (String dir: cmd.getOptionValues(INCLUDE_FLAG)) {
-        Settings.addModulePath(dir);
+        Settings.addModulePath(Settings.resolveFile(dir).getPath());
       }
     }
 
@@ -173,7 +207,7 @@ public class Main {
       System.out.println("Expected input file and optional output file, but got "
               + remainingArgs.length + " arguments");
       usage(opts);
-      System.exit(ExitCode.ERROR_COMMAND.code());
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
     }
 
     String input = remainingArgs[0];
@@ -196,7 +230,7 @@ public class Main {
    */
   private static boolean skipCompile(Args args, File outfile) {
     if (args.updateOutput &&
-        !olderThan(outfile, new File(args.inputFilename))) {
+        !olderThan(outfile, Settings.resolveFile(args.inputFilename))) {
       Logging.getSTCLogger().debug("Output up to date. Done.");
       return true;
     }
@@ -217,15 +251,7 @@ public class Main {
   }
 
   private static boolean preprocessEnabled(Logger logger) {
-    try {
-      if (Settings.getBoolean(Settings.USE_C_PREPROCESSOR)) {
-        return true;
-      }
-    } catch (InvalidOptionException e) {
-      STCompiler.reportInternalError(logger, e);
-      System.exit(1);
-    }
-    return false;
+    return Preprocessor.mode() != Preprocessor.Mode.NONE;
   }
 
   /**
@@ -253,6 +279,9 @@ public class Main {
 
   private static Logger setupLogging() throws InvalidOptionException {
     String logfile = Settings.get(Settings.LOG_FILE);
+    if (logfile != null && logfile.length() > 0) {
+      logfile = Settings.resolveFile(logfile).getPath();
+    }
     boolean trace = Settings.getBoolean(Settings.LOG_TRACE);
     return Logging.setupLogging(logfile, trace);
   }
@@ -267,7 +296,8 @@ public class Main {
   }
 
   /**
-   * Setup input file.  If necessary, run through CPP
+   * Setup input file.  If necessary, run through CPP.  The builtin
+   * preprocessor is run later, when the file is parsed.
    * @param logger
    * @param preprocess
    * @param args
@@ -276,34 +306,36 @@ public class Main {
   private static File setupInputFile(Logger logger, boolean preprocess, Args args) {
     File result;
     try {
-      if (preprocess) {
-        File input = new File(args.inputFilename);
+      if (preprocess && (preprocessOnly() ||
+                         Preprocessor.mode() == Preprocessor.Mode.EXTERNAL)) {
+        File input = Settings.resolveFile(args.inputFilename);
         if (!input.isFile() || !input.canRead()) {
           System.out.println("Input file \"" + input + "\" is not readable");
-          System.exit(1);
+          throw new STCFatal(1);
         }
 
         result = File.createTempFile("stc-preproc", ".swift");
         temporaries.add(result);
-        runPreprocessor(logger, args.inputFilename, result.getPath(),
-                        args.preprocessorMacros);
+        Preprocessor.runExternal(logger, args.inputFilename, result.getPath(),
+                                 args.preprocessorMacros);
       } else {
-        result = new File(args.inputFilename);
+        result = Settings.resolveFile(args.inputFilename);
       }
       if (!result.isFile() || !result.canRead()) {
         System.out.println("Input file \"" + result + "\" is not readable");
-        System.exit(1);
+        throw new STCFatal(1);
       }
       return result;
     } catch (IOException ex) {
       System.out.println("Error while setting up input file: " +
               ex.toString());
-      System.exit(1);
+      throw new STCFatal(1);
+    } catch (STCFatal ex) {
+      throw ex;
     } catch (Throwable t) {
       STCompiler.reportInternalError(logger, t);
-      System.exit(1);
+      throw new STCFatal(1);
     }
-    return null;
   }
 
   private static File selectOutputFile(Args args) {
@@ -319,9 +351,13 @@ public class Main {
       } else {
         prefix = infile;
       }
-      outputFilename = prefix + ".tic";
+      if (Settings.get(Settings.CODEGEN_TARGET).equals(Settings.CODEGEN_JVM)) {
+        outputFilename = prefix + ".java";
+      } else {
+        outputFilename = prefix + ".tic";
+      }
     }
-    return new File(outputFilename);
+    return Settings.resolveFile(outputFilename);
   }
 
   private static File setupTmpOutput() {
@@ -332,8 +368,7 @@ public class Main {
     } catch (IOException e) {
       System.out.println("Error while setting up temporary output: "
           + e.getMessage());
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
   }
 
@@ -345,90 +380,7 @@ public class Main {
       e.printStackTrace();
       System.err.println("Unexpected error opening " +
                          outfile.getAbsolutePath() + " for output.") ;
-      System.exit(1);
-      return null;
-    }
-  }
-
-
-  private static void runPreprocessor(Logger logger, String input, String output,
-                                      List<String> preprocArgs) {
-    List<String> cmd = new ArrayList<String>();
-    /*
-      -undef flag is provided to disable non-standard macros
-     */
-    if (useGCCProcessor()) {
-      // We use gcc -E because cpp is broken on Mac GCC 4.2.1
-      //    Cf. http://stackoverflow.com/questions/4137923
-      cmd.addAll(Arrays.asList("gcc", "-E", "-undef", "-x", "c", input,
-                               "-o", output));
-    } else {
-      cmd.addAll(Arrays.asList("cpp", "-undef", input, output));
-    }
-
-    for (String dir: Settings.getModulePath()) {
-      cmd.add("-I");
-      cmd.add(dir);
-    }
-
-    for (String macro: preprocArgs) {
-      cmd.add("-D");
-      cmd.add(macro);
-    }
-
-    String cmdString = StringUtils.join(cmd, ' ');
-    try {
-      logger.debug("Running cpp: " + cmdString);
-      Process cpp = Runtime.getRuntime().exec(cmd.toArray(new String[]{}));
-      int cppExitCode = -1;
-      boolean done = false;
-      do {
-        try {
-          cppExitCode = cpp.waitFor();
-          done = true;
-        } catch (InterruptedException ex) {
-          // Continue on after spurious interrupt
-        }
-      } while (!done);
-
-      StringWriter sw = new StringWriter();
-      IOUtils.copy(cpp.getErrorStream(), sw, "UTF-8");
-      String cppStderr = sw.toString();
-
-      logger.debug("Preprocessor exit code: " + cppExitCode);
-      logger.debug("Preprocessor stderr: " + cppStderr);
-
-      if (cppExitCode != 0) {
-        // Print stderr message first, then clarify that failure was in preprocessor
-        System.out.println(cppStderr);
-        System.out.println("Aborting due to failure in cpp preprocessor invoked as: " +
-            cmdString + ". " + ("Exit code was " + cppExitCode + ". "));
-        System.exit(1);
-      } else if (cppStderr.length() != 0){
-        logger.warn("Preprocessor warnings:\n" + cppStderr);
-      }
-    } catch (IOException e) {
-      System.out.println("I/O error while launching preprocessor with command line:" +
-                          cmdString + ": " + e.getMessage());
-      System.exit(1);
-    }
-  }
-
-
-  public static boolean useGCCProcessor() {
-    try {
-      if ((SystemUtils.IS_OS_MAC_OSX &&
-          !Settings.getBoolean(Settings.PREPROCESSOR_FORCE_CPP))) {
-        return true;
-      } else if (Settings.getBoolean(Settings.PREPROCESSOR_FORCE_GCC)) {
-        return true;
-      } else {
-        return false;
-      }
-    } catch (InvalidOptionException e) {
-      System.out.println("Internal error with settings: " + e.getMessage());
-      System.exit(ExitCode.ERROR_INTERNAL.code());
-      return false;
+      throw new STCFatal(1);
     }
   }
 
@@ -466,7 +418,8 @@ public class Main {
     try
     {
       @SuppressWarnings("resource")
-      FileOutputStream stream = new FileOutputStream(icFileName);
+      FileOutputStream stream = new FileOutputStream(
+                                      Settings.resolveFile(icFileName));
       BufferedOutputStream buffer = new BufferedOutputStream(stream);
       output = new PrintStream(buffer);
     }
@@ -474,23 +427,28 @@ public class Main {
     {
       System.out.println("Error opening IC output file " + icFileName
                       + ": " + e.getMessage());
-      System.exit(ExitCode.ERROR_IO.code());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
     }
     return output;
   }
 
   private static void cleanupFiles(boolean success, Args stcArgs) {
     if (!success && stcArgs.outputFilename != null) {
-      File outFile = new File(stcArgs.outputFilename);
+      File outFile = Settings.resolveFile(stcArgs.outputFilename);
       if (outFile.exists()) {
         outFile.delete();
       }
     }
+    cleanupTemporaries();
+  }
+
+  private static void cleanupTemporaries() {
     for (File temp: temporaries) {
       if (temp.exists()) {
         temp.delete();
       }
     }
+    temporaries.clear();
   }
 
   private static class Args {
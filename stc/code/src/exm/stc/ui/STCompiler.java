@@ -21,6 +21,8 @@ import java.io.PrintStream;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.UserException;
@@ -28,6 +30,7 @@ import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.Misc;
 import exm.stc.frontend.ASTWalker;
 import exm.stc.ic.STCMiddleEnd;
+import exm.stc.jvm.JVMGenerator;
 import exm.stc.tclbackend.TurbineGenerator;
 
 /**
@@ -115,8 +118,15 @@ public class STCompiler {
      */
     intermediate.optimize();
 
-    /* Generate output tcl code from intermediate representation */
-    TurbineGenerator codeGen = new TurbineGenerator(logger, Misc.timestamp());
+    /* Generate output code from intermediate representation */
+    CompilerBackend codeGen;
+    if (Settings.get(Settings.CODEGEN_TARGET).equals(Settings.CODEGEN_JVM)) {
+      Logging.uniqueWarn("The JVM code generation target is experimental " +
+                         "and does not support all language features");
+      codeGen = new JVMGenerator(logger, Misc.timestamp());
+    } else {
+      codeGen = new TurbineGenerator(logger, Misc.timestamp());
+    }
     intermediate.regenerate(codeGen);
     try {
       codeGen.generate(output);
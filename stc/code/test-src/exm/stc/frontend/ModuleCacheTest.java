@@ -0,0 +1,112 @@
+package exm.stc.frontend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.ast.SwiftAST;
+import exm.stc.common.Settings;
+
+public class ModuleCacheTest {
+
+  private static final String PROGRAM_1 = "main {\n  trace(1);\n}\n";
+  private static final String PROGRAM_2 = "main {\n  trace(2);\n}\n";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File cacheDir;
+  private File module;
+
+  @Before
+  public void setup() throws Exception {
+    Settings.reset();
+    cacheDir = tmp.newFolder("cache");
+    module = tmp.newFile("module.swift");
+    FileUtils.writeStringToFile(module, PROGRAM_1, "UTF-8");
+    Settings.set(Settings.MODULE_CACHE_DIR, cacheDir.getPath());
+  }
+
+  @After
+  public void cleanup() {
+    Settings.reset();
+  }
+
+  @Test
+  public void testMiss() throws Exception {
+    ModuleCache cache = new ModuleCache(cacheDir);
+    assertNull(cache.lookup(key(cache, PROGRAM_1)));
+  }
+
+  /**
+   * Entry stored by one compile can be loaded by another
+   */
+  @Test
+  public void testHit() throws Exception {
+    ParsedModule parsed = ParsedModule.parse("module", module.getPath(),
+                                             false);
+
+    ModuleCache cache = new ModuleCache(cacheDir);
+    String key = key(cache, PROGRAM_1);
+    SwiftAST cached = cache.lookup(key);
+    assertNotNull(cached);
+    assertEquals(parsed.ast.toStringTree(), cached.toStringTree());
+    assertEquals(parsed.ast.getLine(), cached.getLine());
+
+    ParsedModule again = ParsedModule.parse("module", module.getPath(),
+                                            false);
+    assertEquals(parsed.ast.toStringTree(), again.ast.toStringTree());
+    assertEquals(1, cacheDir.list().length);
+  }
+
+  /**
+   * Changing the file contents must not load the old tree
+   */
+  @Test
+  public void testContentsChanged() throws Exception {
+    ParsedModule parsed1 = ParsedModule.parse("module", module.getPath(),
+                                              false);
+    FileUtils.writeStringToFile(module, PROGRAM_2, "UTF-8");
+    ParsedModule parsed2 = ParsedModule.parse("module", module.getPath(),
+                                              false);
+
+    assertFalse(parsed1.ast.toStringTree().equals(
+                parsed2.ast.toStringTree()));
+    assertTrue(parsed2.ast.toStringTree().contains("2"));
+    assertEquals(2, cacheDir.list().length);
+  }
+
+  /**
+   * Macros may change the meaning of the module, so must be in the key
+   */
+  @Test
+  public void testMacrosChanged() throws Exception {
+    ModuleCache cache = new ModuleCache(cacheDir);
+    String key1 = key(cache, PROGRAM_1);
+    ParsedModule.parse("module", module.getPath(), false);
+    assertNotNull(cache.lookup(key1));
+
+    Settings.addMetadata("Macro", "DEBUG");
+    String key2 = key(cache, PROGRAM_1);
+    assertFalse(key1.equals(key2));
+    assertNull(cache.lookup(key2));
+
+    Settings.addMetadata("Macro", "LEVEL=2");
+    assertFalse(key2.equals(key(cache, PROGRAM_1)));
+  }
+
+  private String key(ModuleCache cache, String contents) throws Exception {
+    return cache.key(module.getCanonicalPath(), contents.getBytes("UTF-8"));
+  }
+}
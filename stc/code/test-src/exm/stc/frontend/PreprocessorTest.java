@@ -0,0 +1,304 @@
+package exm.stc.frontend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.ast.FilePosition;
+import exm.stc.common.Settings;
+
+public class PreprocessorTest {
+
+  private static final Logger logger =
+                          Logger.getLogger(PreprocessorTest.class);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testObjectMacro() throws Exception {
+    assertEquals(lines("", "int x = 10;", "y = 10 * 10;"),
+        run("#define N 10\n" +
+            "int x = N;\n" +
+            "y = N * N;\n"));
+  }
+
+  @Test
+  public void testFunctionMacro() throws Exception {
+    assertEquals(lines("", "z = ((f(1, 2)) + (3));", "ADD;"),
+        run("#define ADD(a, b) ((a) + (b))\n" +
+            "z = ADD(f(1, 2), 3);\n" +
+            // Not expanded without arguments
+            "ADD;\n"));
+  }
+
+  @Test
+  public void testNestedExpansion() throws Exception {
+    assertEquals(lines("", "", "", "foo + 1 + 2;", "x = \"N\";"),
+        run("#define foo foo + 1\n" +
+            "#define bar foo + 2\n" +
+            "#define N 1\n" +
+            // Self-reference is not expanded again
+            "bar;\n" +
+            // Nor are string literals
+            "x = \"N\";\n"));
+  }
+
+  @Test
+  public void testCommentsKept() throws Exception {
+    // Comments are left for lexer, but not expanded
+    assertEquals(lines("", "1 // N", "/* N", "N */ 1"),
+        run("#define N 1\n" +
+            "N // N\n" +
+            "/* N\n" +
+            "N */ N\n"));
+  }
+
+  @Test
+  public void testCommandLineMacros() throws Exception {
+    assertEquals(lines("", "yes 2", "", "", ""),
+        run(Arrays.asList("DEBUG", "LEVEL=2"),
+            "#if defined(DEBUG) && LEVEL > 1\n" +
+            "yes LEVEL\n" +
+            "#else\n" +
+            "no\n" +
+            "#endif\n"));
+  }
+
+  @Test
+  public void testConditionals() throws Exception {
+    String input = "#define A 2\n" +
+                   "#ifdef A\n" +
+                   "#  if A == 1\n" +
+                   "one\n" +
+                   "#  elif A == 2\n" +
+                   "two\n" +
+                   "#  else\n" +
+                   "other\n" +
+                   "#  endif\n" +
+                   "#else\n" +
+                   "#  define B\n" +
+                   "#endif\n" +
+                   "#ifndef B\n" +
+                   "noB\n" +
+                   "#endif\n";
+    List<String> out = run(input);
+    // One line of output per line of input
+    assertEquals(15, out.size());
+    assertEquals(lines("", "", "", "", "", "two", "", "", "", "", "", "",
+                       "", "noB", ""), out);
+  }
+
+  @Test
+  public void testUndef() throws Exception {
+    assertEquals(lines("", "1", "", "N"),
+        run("#define N 1\n" +
+            "N\n" +
+            "#undef N\n" +
+            "N\n"));
+  }
+
+  @Test
+  public void testIncludeLineMapping() throws Exception {
+    File dir = tmp.newFolder("inc");
+    FileUtils.writeStringToFile(new File(dir, "header.swift"),
+        "#define H 3\n" +
+        "int h = H;\n" +
+        "\n");
+    File main = tmp.newFile("main.swift");
+    FileUtils.writeStringToFile(main,
+        "int a = 1;\n" +
+        "#include <header.swift>\n" +
+        "int b = H;\n");
+
+    Preprocessor.Result r = Preprocessor.preprocess(logger, main.getPath(),
+            Arrays.asList(dir.getPath()),
+            Collections.<String>emptyList());
+    assertEquals(lines("int a = 1;", "", "int h = 3;", "", "int b = 3;"),
+                 split(r.text));
+
+    String header = dir.getPath() + "/header.swift";
+    checkPosition(r, 1, main.getPath(), 1);
+    checkPosition(r, 2, header, 1);
+    checkPosition(r, 3, header, 2);
+    checkPosition(r, 4, header, 3);
+    checkPosition(r, 5, main.getPath(), 3);
+  }
+
+  @Test
+  public void testQuotedIncludeRelative() throws Exception {
+    File dir = tmp.newFolder("rel");
+    FileUtils.writeStringToFile(new File(dir, "a.swift"), "A\n");
+    File main = new File(dir, "main.swift");
+    FileUtils.writeStringToFile(main, "#include \"a.swift\"\nB\n");
+
+    Preprocessor.Result r = Preprocessor.preprocess(logger, main.getPath(),
+            Collections.<String>emptyList(),
+            Collections.<String>emptyList());
+    assertEquals(lines("A", "B"), split(r.text));
+    checkPosition(r, 1, dir.getPath() + "/a.swift", 1);
+    checkPosition(r, 2, main.getPath(), 2);
+  }
+
+  @Test
+  public void testUnsupported() throws Exception {
+    checkUnsupported("#define P(a, b) a ## b\n");
+    checkUnsupported("#define S(a) #a\n");
+    checkUnsupported("#pragma once\n");
+    checkUnsupported("#error stop\n");
+    checkUnsupported("int x = \\\n 1;\n");
+    checkUnsupported("#if __LINE__\n#endif\n");
+    checkUnsupported("#ifdef __FILE__\n#endif\n");
+    checkUnsupported("#define N 1\n#define N 2\n");
+    checkUnsupported("#include <no-such-file.swift>\n");
+    checkUnsupported("#if 1\n");
+    checkUnsupported("#endif\n");
+    checkUnsupported("#define F(a) a\nF(1, 2)\n");
+  }
+
+  /**
+   * Builtin and external preprocessors should agree on supported input
+   */
+  @Test
+  public void testMatchesExternal() throws Exception {
+    assumeExternalAvailable();
+    String input = "#define ADD(a, b) ((a) + (b))\n" +
+                   "#define N 3\n" +
+                   "#if N > 2 && !defined(M)\n" +
+                   "int x = ADD(N, f(1, N));\n" +
+                   "#else\n" +
+                   "int x = 0;\n" +
+                   "#endif\n" +
+                   "string s = \"N\";\n";
+    File in = tmp.newFile("ext.swift");
+    FileUtils.writeStringToFile(in, input);
+    File out = tmp.newFile("ext.out");
+    Preprocessor.runExternal(logger, in.getPath(), out.getPath(),
+                             Collections.<String>emptyList());
+
+    assertEquals(normalize(FileUtils.readFileToString(out)),
+                 normalize(join(run(input))));
+  }
+
+  /**
+   * Unsupported input should be parsed via external preprocessor
+   */
+  @Test
+  public void testFallbackToExternal() throws Exception {
+    assumeExternalAvailable();
+    File in = tmp.newFile("fallback.swift");
+    FileUtils.writeStringToFile(in,
+        "#define PASTE(a, b) a ## b\n" +
+        "\n" +
+        "main {\n" +
+        "  int PASTE(x, 1) = 1;\n" +
+        "}\n");
+
+    String prev = Settings.get(Settings.USE_C_PREPROCESSOR);
+    Settings.set(Settings.USE_C_PREPROCESSOR, "true");
+    try {
+      assertEquals(Preprocessor.Mode.BUILTIN, Preprocessor.mode());
+      ParsedModule m = ParsedModule.parse("fallback", in.getPath(), true);
+      assertNotNull(m.ast);
+      // Line numbers come from cpp line markers: main block is on line 3
+      int outLine = m.ast.getChild(0).getLine();
+      FilePosition pos = m.lineMapping.getFilePosition(outLine);
+      assertEquals(in.getPath(), pos.file);
+      assertEquals(3, pos.line);
+    } finally {
+      Settings.set(Settings.USE_C_PREPROCESSOR, prev);
+    }
+  }
+
+  private void checkPosition(Preprocessor.Result r, int outLine,
+                             String file, int line) {
+    FilePosition pos = r.lineMapping.getFilePosition(outLine);
+    assertEquals(file, pos.file);
+    assertEquals(line, pos.line);
+  }
+
+  private void checkUnsupported(String input) throws IOException {
+    try {
+      List<String> out = run(input);
+      fail("Expected UnsupportedException for: " + input + " got " + out);
+    } catch (Preprocessor.UnsupportedException e) {
+      // Expected: caller will fall back to external preprocessor
+    }
+  }
+
+  private static void assumeExternalAvailable() {
+    boolean found = false;
+    String cmd = Preprocessor.useGCCProcessor() ? "gcc" : "cpp";
+    String path = System.getenv("PATH");
+    if (path != null) {
+      for (String dir: path.split(File.pathSeparator)) {
+        if (new File(dir, cmd).canExecute()) {
+          found = true;
+        }
+      }
+    }
+    Assume.assumeTrue(found);
+  }
+
+  private List<String> run(String input)
+      throws IOException, Preprocessor.UnsupportedException {
+    return run(Collections.<String>emptyList(), input);
+  }
+
+  private List<String> run(List<String> macros, String input)
+      throws IOException, Preprocessor.UnsupportedException {
+    File f = tmp.newFile();
+    FileUtils.writeStringToFile(f, input);
+    Preprocessor.Result r = Preprocessor.preprocess(logger, f.getPath(),
+                          Collections.<String>emptyList(), macros);
+    return split(r.text);
+  }
+
+  private static List<String> lines(String ...lines) {
+    return Arrays.asList(lines);
+  }
+
+  private static List<String> split(String text) {
+    List<String> result = new ArrayList<String>(
+                              Arrays.asList(text.split("\n", -1)));
+    // Drop empty string after final newline
+    assertEquals("", result.remove(result.size() - 1));
+    return result;
+  }
+
+  private static String join(List<String> lines) {
+    StringBuilder sb = new StringBuilder();
+    for (String line: lines) {
+      sb.append(line).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Drop line markers and blank lines, and collapse whitespace
+   */
+  private static String normalize(String text) {
+    StringBuilder sb = new StringBuilder();
+    for (String line: text.split("\n")) {
+      String trimmed = line.trim();
+      if (trimmed.length() > 0 && !trimmed.startsWith("#")) {
+        sb.append(trimmed.replaceAll("\\s+", " ")).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}
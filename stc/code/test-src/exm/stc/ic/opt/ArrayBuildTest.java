@@ -0,0 +1,100 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.Logging;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.BagType;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.ForeachLoops.RangeLoop;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.TurbineOp;
+import exm.stc.ic.tree.TurbineOp.RefCountOp;
+
+public class ArrayBuildTest {
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging("ArrayBuildTest.stc.log", true);
+  }
+
+  /**
+   * Bag only inserted into by loop body is accumulated
+   */
+  @Test
+  public void testAccumulate() throws Exception {
+    Program prog = newProgram();
+    Block main = prog.lookupFunction(FnID.ENTRY_FUNCTION).mainBlock();
+    Var bag = declareBag(main);
+    RangeLoop loop = insertLoop(main, bag);
+
+    new ArrayBuild(true).optimize(Logging.getSTCLogger(), prog);
+
+    assertEquals(Collections.singletonList(bag), loop.accumulateBags());
+  }
+
+  /**
+   * Write decrement in cleanup of loop body runs before accumulated
+   * elements would be stored
+   */
+  @Test
+  public void testCleanupDecrement() throws Exception {
+    Program prog = newProgram();
+    Block main = prog.lookupFunction(FnID.ENTRY_FUNCTION).mainBlock();
+    Var bag = declareBag(main);
+    RangeLoop loop = insertLoop(main, bag);
+    loop.getLoopBody().addCleanup(bag,
+        RefCountOp.decrWriters(bag, Arg.newInt(1)));
+
+    new ArrayBuild(true).optimize(Logging.getSTCLogger(), prog);
+
+    assertEquals(Collections.emptyList(), loop.accumulateBags());
+  }
+
+  private static Program newProgram() {
+    Program prog = new Program(new ForeignFunctions());
+    prog.addFunction(new Function(FnID.ENTRY_FUNCTION, Var.NONE, Var.NONE,
+                                  ExecTarget.syncControl()));
+    return prog;
+  }
+
+  private static Var declareBag(Block block) {
+    return block.declare(BagType.sharedBag(Types.F_INT), "b", Alloc.STACK,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+  }
+
+  /**
+   * Loop from 1 to 10 inserting loop variable into bag
+   */
+  private static RangeLoop insertLoop(Block block, Var bag) {
+    Var i = block.declare(Types.V_INT, "i", Alloc.LOCAL,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    RangeLoop loop = new RangeLoop("loop", i, null, Arg.newInt(1),
+        Arg.newInt(10), Arg.newInt(1), PassedVar.NONE, Var.NONE, -1, false,
+        16, 64, RefCount.NONE, ArrayListMultimap.<Var, RefCount>create(),
+        RefCount.NONE);
+    block.addContinuation(loop);
+
+    loop.getLoopBody().addInstruction(
+        TurbineOp.bagInsert(bag, i.asArg(), Arg.newInt(1)));
+    return loop;
+  }
+}
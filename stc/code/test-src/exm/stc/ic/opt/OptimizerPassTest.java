@@ -0,0 +1,80 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import exm.stc.common.Logging;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Var;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+public class OptimizerPassTest {
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging("OptimizerPassTest.stc.log", true);
+  }
+
+  /**
+   * Function at fixed point is skipped by pass with same configuration,
+   * but not by pass with different configuration
+   */
+  @Test
+  public void testFixpointConfig() throws Exception {
+    Program prog = new Program(new ForeignFunctions());
+    prog.addFunction(new Function(FnID.ENTRY_FUNCTION, Var.NONE, Var.NONE,
+                                  ExecTarget.syncControl()));
+    Logger logger = Logging.getSTCLogger();
+
+    // New function counts as modified, so fixed point reached on second run
+    CountingPass plain = new CountingPass(false);
+    for (int i = 0; i < 3; i++) {
+      plain.optimizeFunctions(logger, prog, null);
+    }
+    assertEquals(2, plain.runs);
+
+    CountingPass plain2 = new CountingPass(false);
+    plain2.optimizeFunctions(logger, prog, null);
+    assertEquals(0, plain2.runs);
+
+    CountingPass configured = new CountingPass(true);
+    configured.optimizeFunctions(logger, prog, null);
+    assertEquals(1, configured.runs);
+  }
+
+  private static class CountingPass extends FunctionOptimizerPass {
+    private final boolean flag;
+    private int runs = 0;
+
+    public CountingPass(boolean flag) {
+      this.flag = flag;
+    }
+
+    @Override
+    public String getPassName() {
+      return "Counting";
+    }
+
+    @Override
+    protected String fixpointKey() {
+      return getPassName() + ":" + flag;
+    }
+
+    @Override
+    public String getConfigEnabledKey() {
+      return null;
+    }
+
+    @Override
+    public void optimize(Logger logger, Function f) {
+      runs++;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.Logging;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.ForeachLoops.RangeLoop;
+import exm.stc.ic.tree.ICInstructions.Builtin;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+
+public class SplitDegreesTest {
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging("SplitDegreesTest.stc.log", true);
+  }
+
+  /**
+   * Cheap body with known iteration count: leaf degree chosen at compile
+   * time so all workers get leaves
+   */
+  @Test
+  public void testConstIters() throws Exception {
+    Function f = newFunction();
+    RangeLoop loop = cheapLoop(f.mainBlock(), Arg.newInt(1000));
+    new SplitDegrees().optimize(Logging.getSTCLogger(), f);
+
+    assertEquals(16, loop.splitDegree());
+    assertEquals(ProgressOpcodes.SPAWN_COST, loop.leafDegree());
+    assertEquals(0, loop.minLeafDegree());
+  }
+
+  /**
+   * Cheap body with unknown iteration count: range of leaf degrees
+   * left for runtime to choose from
+   */
+  @Test
+  public void testSymbolicIters() throws Exception {
+    Function f = newFunction();
+    Var n = f.mainBlock().declare(Types.V_INT, "n", Alloc.LOCAL,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    RangeLoop loop = cheapLoop(f.mainBlock(), n.asArg());
+    new SplitDegrees().optimize(Logging.getSTCLogger(), f);
+
+    assertEquals(16, loop.splitDegree());
+    assertEquals(ProgressOpcodes.SPAWN_COST, loop.minLeafDegree());
+    assertTrue(loop.leafDegree() > loop.minLeafDegree());
+  }
+
+  /**
+   * User-specified degrees are not changed
+   */
+  @Test
+  public void testUserDegrees() throws Exception {
+    Function f = newFunction();
+    Var n = f.mainBlock().declare(Types.V_INT, "n", Alloc.LOCAL,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    RangeLoop loop = cheapLoop(f.mainBlock(), n.asArg());
+    loop.setAutoDegrees(false);
+    new SplitDegrees().optimize(Logging.getSTCLogger(), f);
+
+    assertEquals(16, loop.splitDegree());
+    assertEquals(64, loop.leafDegree());
+    assertEquals(0, loop.minLeafDegree());
+  }
+
+  private static Function newFunction() {
+    return new Function(FnID.ENTRY_FUNCTION, Var.NONE, Var.NONE,
+                        ExecTarget.syncControl());
+  }
+
+  /**
+   * Split loop from 1 to end with a single cheap instruction in body
+   */
+  private static RangeLoop cheapLoop(Block block, Arg end) {
+    Var i = block.declare(Types.V_INT, "i", Alloc.LOCAL,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    RangeLoop loop = new RangeLoop("loop", i, null, Arg.newInt(1), end,
+        Arg.newInt(1), PassedVar.NONE, Var.NONE, -1, false, 16, 64,
+        RefCount.NONE, ArrayListMultimap.<Var, RefCount>create(),
+        RefCount.NONE);
+    loop.setAutoDegrees(true);
+    block.addContinuation(loop);
+
+    Block body = loop.getLoopBody();
+    Var j = body.declare(Types.V_INT, "j", Alloc.LOCAL,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    body.addInstruction(Builtin.createLocal(BuiltinOpcode.PLUS_INT, j,
+                        Arrays.asList(i.asArg(), Arg.newInt(1))));
+    return loop;
+  }
+}
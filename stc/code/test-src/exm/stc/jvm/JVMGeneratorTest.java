@@ -0,0 +1,285 @@
+package exm.stc.jvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.common.Settings;
+import exm.stc.jvm.runtime.JVMRuntime;
+import exm.stc.ui.ExitCode;
+import exm.stc.ui.Main;
+
+/**
+ * Compile small programs with the JVM backend
+ */
+public class JVMGeneratorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File stcHome;
+  private File turbineHome;
+
+  @Before
+  public void findHomes() throws IOException {
+    // Tests run from the stc/code directory of a source tree
+    stcHome = new File(".").getCanonicalFile();
+    turbineHome = new File(stcHome, "../../turbine/code").getCanonicalFile();
+    Assume.assumeTrue(new File(turbineHome,
+                               "export/builtins.swift").isFile());
+  }
+
+  /**
+   * Tcl format strings are passed through to the runtime unchanged
+   */
+  @Test
+  public void testPrintf() throws Exception {
+    File java = compile("printf_test",
+        "import io;\n" +
+        "main {\n" +
+        "  int i = 14;\n" +
+        "  float pi = 3.1415;\n" +
+        "  string format = \"%i, %0.2f, %s\\nnextline\";\n" +
+        "  printf(format, i, pi, \"hello\");\n" +
+        "}\n", ExitCode.SUCCESS);
+    String code = FileUtils.readFileToString(java);
+    assertTrue(code, code.contains(
+        "Builtins.printf(\"%i, %0.2f, %s\\nnextline\""));
+    checkJavaCompiles(java);
+  }
+
+  /**
+   * The runtime only supports integer array keys, so other key types
+   * must be rejected at compile time as a user error.
+   */
+  @Test
+  public void testStringKeysUnsupported() throws Exception {
+    compile("string_keys",
+        "import sys;\n" +
+        "main {\n" +
+        "  int A[string];\n" +
+        "  A[argv(\"key\", \"hello\")] = 1;\n" +
+        "  foreach x, k in A {\n" +
+        "    trace(k, x);\n" +
+        "  }\n" +
+        "}\n", ExitCode.ERROR_USER);
+  }
+
+  @Test
+  public void testIntKeys() throws Exception {
+    File java = compile("int_keys",
+        "main {\n" +
+        "  int A[];\n" +
+        "  A[3] = 1;\n" +
+        "  foreach x, i in A {\n" +
+        "    trace(i, x);\n" +
+        "  }\n" +
+        "}\n", ExitCode.SUCCESS);
+    checkJavaCompiles(java);
+  }
+
+  /**
+   * Members of arrays of arrays are references: nested arrays created
+   * by writes must be readable through aliases to the outer array's
+   * members, which may be created before the member is.
+   */
+  @Test
+  public void testNestedArrayAlias() throws Exception {
+    File java = compile("nested_alias",
+        "import sys;\n" +
+        "main {\n" +
+        "  int N = toint(argv(\"N\"));\n" +
+        "  int A[][];\n" +
+        "  foreach j in [0:N-1] {\n" +
+        "    A[0][j] = j;\n" +
+        "  }\n" +
+        "  foreach i in [1:N-1] {\n" +
+        "    foreach j in [0:N-1] {\n" +
+        "      A[i][j] = A[i-1][j] + 10;\n" +
+        "    }\n" +
+        "  }\n" +
+        "  foreach j in [0:N-1] {\n" +
+        "    trace(j, A[N-1][j]);\n" +
+        "  }\n" +
+        "}\n", ExitCode.SUCCESS);
+    File classes = checkJavaCompiles(java);
+    Assume.assumeNotNull(classes);
+    String out = run(classes, "nested_alias", "--N=4");
+    for (int j = 0; j < 4; j++) {
+      assertTrue(out, out.contains("trace: " + j + "," + (30 + j) + "\n"));
+    }
+  }
+
+  /**
+   * Arrays stored into an array of arrays are read back as the same
+   * references as nested arrays created in place
+   */
+  @Test
+  public void testNestedArrayStore() throws Exception {
+    File java = compile("nested_store",
+        "import sys;\n" +
+        "main {\n" +
+        "  int N = toint(argv(\"N\"));\n" +
+        "  int A[][];\n" +
+        "  int B[];\n" +
+        "  B[0] = N;\n" +
+        "  A[0] = B;\n" +
+        "  A[1] = [N, N + 1];\n" +
+        "  A[2][0] = N + 2;\n" +
+        "  foreach row, i in A {\n" +
+        "    foreach x, j in row {\n" +
+        "      trace(i, j, x);\n" +
+        "    }\n" +
+        "  }\n" +
+        "}\n", ExitCode.SUCCESS);
+    File classes = checkJavaCompiles(java);
+    Assume.assumeNotNull(classes);
+    String out = run(classes, "nested_store", "--N=4");
+    assertTrue(out, out.contains("trace: 0,0,4\n"));
+    assertTrue(out, out.contains("trace: 1,0,4\n"));
+    assertTrue(out, out.contains("trace: 1,1,5\n"));
+    assertTrue(out, out.contains("trace: 2,0,6\n"));
+  }
+
+  /**
+   * Nested structs, container fields and arrays of structs
+   */
+  @Test
+  public void testStructs() throws Exception {
+    File java = compile("structs",
+        "import sys;\n" +
+        "type inner {\n" +
+        "  int a;\n" +
+        "  string b;\n" +
+        "}\n" +
+        "type outer {\n" +
+        "  inner x;\n" +
+        "  int A[];\n" +
+        "  float f;\n" +
+        "}\n" +
+        "main {\n" +
+        "  int N = toint(argv(\"N\"));\n" +
+        "  outer o;\n" +
+        "  o.x.a = N;\n" +
+        "  o.x.b = \"b\";\n" +
+        "  o.A[0] = N + 1;\n" +
+        "  o.A[1] = N + 2;\n" +
+        "  o.f = 1.5;\n" +
+        "  inner copy = o.x;\n" +
+        "  inner arr[];\n" +
+        "  arr[N] = copy;\n" +
+        "  trace(o.x.a, o.x.b, o.A[1], o.f, arr[N].a, arr[N].b);\n" +
+        "}\n", ExitCode.SUCCESS);
+    File classes = checkJavaCompiles(java);
+    Assume.assumeNotNull(classes);
+    String out = run(classes, "structs", "--N=4");
+    assertTrue(out, out.contains("trace: 4,b,6,1.5,4,b\n"));
+  }
+
+  /**
+   * Assertions and library functions implemented in runtime
+   */
+  @Test
+  public void testLibraryFunctions() throws Exception {
+    File java = compile("library",
+        "import assert;\n" +
+        "import math;\n" +
+        "import random;\n" +
+        "import string;\n" +
+        "import sys;\n" +
+        "main {\n" +
+        "  int N = toint(argv(\"N\"));\n" +
+        "  assertEqual(N + 1, 5, \"add\");\n" +
+        "  assertLT(N, 5, \"lt\");\n" +
+        "  int k = randint(N, N + 2);\n" +
+        "  assert(k >= N && k < N + 2, \"randint\");\n" +
+        "  sleep(0.01) => trace(\"slept\");\n" +
+        "  trace(find(\"hello\", \"l\", 0, -1), toUpper(\"ab\"), log10(100.0));\n" +
+        "}\n", ExitCode.SUCCESS);
+    File classes = checkJavaCompiles(java);
+    Assume.assumeNotNull(classes);
+    String out = run(classes, "library", "--N=4");
+    assertTrue(out, out.contains("trace: slept\n"));
+    assertTrue(out, out.contains("trace: 2,AB,2.0\n"));
+  }
+
+  /**
+   * Compile program with JVM backend
+   * @return generated Java file
+   */
+  private File compile(String name, String program, ExitCode expected)
+      throws IOException {
+    File swift = new File(tmp.getRoot(), name + ".swift");
+    FileUtils.writeStringToFile(swift, program);
+    File java = new File(tmp.getRoot(), name + ".java");
+
+    Properties props = new Properties();
+    props.setProperty(Settings.CODEGEN_TARGET, "jvm");
+    props.setProperty(Settings.STC_HOME, stcHome.getPath());
+    props.setProperty(Settings.TURBINE_HOME, turbineHome.getPath());
+    int rc = Main.run(new String[] {swift.getPath(), java.getPath()},
+                      props, null);
+    assertEquals(expected.code(), rc);
+    assertEquals(expected == ExitCode.SUCCESS, java.exists());
+    return java;
+  }
+
+  /**
+   * @return directory with compiled classes, or null if no compiler
+   */
+  private File checkJavaCompiles(File java) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      // Running on JRE
+      return null;
+    }
+    File out = new File(tmp.getRoot(), "classes");
+    assertFalse(out.exists());
+    assertTrue(out.mkdir());
+    int rc = compiler.run(null, null, null, Arrays.asList(
+          "-nowarn", "-cp", System.getProperty("java.class.path"),
+          "-d", out.getPath(), java.getPath()).toArray(new String[0]));
+    assertEquals("javac " + java, 0, rc);
+    return out;
+  }
+
+  /**
+   * Run compiled program in a new JVM
+   * @return standard output
+   */
+  private String run(File classes, String className, String ...args)
+      throws IOException, InterruptedException {
+    List<String> cmd = new ArrayList<String>();
+    cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    cmd.add("-cp");
+    cmd.add(classes.getPath() + File.pathSeparator +
+            System.getProperty("java.class.path"));
+    cmd.add(className);
+    cmd.addAll(Arrays.asList(args));
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    pb.environment().put(JVMRuntime.THREADS_ENV, "4");
+    Process proc = pb.start();
+    String out = IOUtils.toString(proc.getInputStream());
+    assertEquals(out, 0, proc.waitFor());
+    return out;
+  }
+}
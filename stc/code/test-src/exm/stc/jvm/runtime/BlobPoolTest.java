@@ -0,0 +1,62 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Each test uses a different size class so that free lists start empty
+ */
+public class BlobPoolTest {
+
+  @Test
+  public void testReuse() {
+    ByteBuffer buf = BlobPool.allocate(5000);
+    assertTrue(buf.isDirect());
+    assertEquals(5000, buf.remaining());
+    BlobPool.release(buf);
+
+    ByteBuffer buf2 = BlobPool.allocate(6000);
+    assertSame(buf, buf2);
+    assertEquals(6000, buf2.remaining());
+  }
+
+  /**
+   * Slice shares memory with a buffer that is still in use
+   */
+  @Test
+  public void testSliceNotPooled() {
+    ByteBuffer buf = BlobPool.allocate(10000);
+    ByteBuffer slice = buf.slice();
+    BlobPool.release(slice);
+    BlobPool.release(buf.duplicate());
+
+    ByteBuffer buf2 = BlobPool.allocate(10000);
+    assertNotSame(slice, buf2);
+    assertNotSame(buf, buf2);
+  }
+
+  @Test
+  public void testForeignNotPooled() {
+    ByteBuffer buf = ByteBuffer.allocateDirect(32768);
+    BlobPool.release(buf);
+    assertNotSame(buf, BlobPool.allocate(20000));
+  }
+
+  /**
+   * Buffer released twice is only pooled once
+   */
+  @Test
+  public void testDoubleRelease() {
+    ByteBuffer buf = BlobPool.allocate(40000);
+    BlobPool.release(buf);
+    BlobPool.release(buf);
+    assertSame(buf, BlobPool.allocate(40000));
+    assertNotSame(buf, BlobPool.allocate(40000));
+  }
+}
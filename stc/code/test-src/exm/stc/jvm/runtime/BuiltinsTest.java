@@ -0,0 +1,73 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Check library functions match the Tcl implementations in string.tcl, etc
+ */
+public class BuiltinsTest {
+
+  @Test
+  public void testFind() {
+    assertEquals(2, Builtins.find("hello", "l", 0, -1));
+    assertEquals(3, Builtins.find("hello", "l", 3, -1));
+    assertEquals(-1, Builtins.find("hello", "l", 0, 2));
+    assertEquals(2, Builtins.find("hello", "l", 0, 3));
+    assertEquals(-1, Builtins.find("hello", "x", 0, -1));
+  }
+
+  @Test
+  public void testCount() {
+    assertEquals(2, Builtins.count("hello", "l", 0, -1));
+    assertEquals(2, Builtins.count("aaaa", "aa", 0, -1));
+    assertEquals(1, Builtins.count("aaaa", "aa", 1, -1));
+    assertEquals(0, Builtins.count("hello", "x", 0, -1));
+  }
+
+  @Test
+  public void testReplace() {
+    assertEquals("aYbX", Builtins.replace("aXbX", "X", "Y", 0));
+    assertEquals("aXbY", Builtins.replace("aXbX", "X", "Y", 2));
+    assertEquals("aXbX", Builtins.replace("aXbX", "Z", "Y", 0));
+    assertEquals("aYbY", Builtins.replaceAll("aXbX", "X", "Y", 0, 4));
+    assertEquals("aXbY", Builtins.replaceAll("aXbX", "X", "Y", 2, 4));
+    assertEquals("aYbX", Builtins.replaceAll("aXbX", "X", "Y", 0, 3));
+    assertEquals("--", Builtins.replaceAll("aaaa", "aa", "-", 0, 4));
+  }
+
+  @Test
+  public void testIsint() {
+    assertTrue(Builtins.isint("42"));
+    assertTrue(Builtins.isint("-42"));
+    assertFalse(Builtins.isint("4.2"));
+    assertFalse(Builtins.isint("x"));
+  }
+
+  @Test
+  public void testRandint() throws LogicException {
+    for (int i = 0; i < 100; i++) {
+      long r = Builtins.randint(3, 5);
+      assertTrue(r >= 3 && r < 5);
+    }
+  }
+
+  @Test(expected=LogicException.class)
+  public void testRandintEmpty() throws LogicException {
+    Builtins.randint(5, 5);
+  }
+
+  @Test
+  public void testAssertLT() throws LogicException {
+    Builtins.assertLT(1L, 2L, "lt");
+    Builtins.assertLTE(2.0, 2.0, "lte");
+  }
+
+  @Test(expected=LogicException.class)
+  public void testAssertLTFails() throws LogicException {
+    Builtins.assertLT(2L, 2L, "lt");
+  }
+}
@@ -0,0 +1,103 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import exm.stc.jvm.runtime.Vars.BagVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+
+public class JVMRuntimeTest {
+
+  @Test
+  public void testRangeIters() {
+    assertEquals(5, JVMRuntime.rangeIters(1, 5, 1));
+    assertEquals(1, JVMRuntime.rangeIters(5, 5, 1));
+    assertEquals(2, JVMRuntime.rangeIters(0, 4, 3));
+    assertEquals(0, JVMRuntime.rangeIters(0, -1, 1));
+    assertEquals(0, JVMRuntime.rangeIters(0, -1, 3));
+    // Loops test lo <= hi, as in Swift
+    assertEquals(0, JVMRuntime.rangeIters(5, 1, -1));
+    assertEquals(0, JVMRuntime.rangeIters(1, 5, -1));
+  }
+
+  /**
+   * Leaf degree chosen at runtime gives about splitDegree^2 leaves,
+   * within the given bounds
+   */
+  @Test
+  public void testLeafDegree() {
+    // Fixed leaf degree
+    assertEquals(500, JVMRuntime.leafDegree(1000, 16, 500, 0));
+    assertEquals(500, JVMRuntime.leafDegree(1000, 16, 500, 500));
+
+    // Moderate loops get more leaves than with fixed leaf degree
+    assertEquals(50, JVMRuntime.leafDegree(1000, 16, 500, 50));
+    assertEquals(79, JVMRuntime.leafDegree(20000, 16, 500, 50));
+
+    // Big loops capped at leaf degree
+    assertEquals(500, JVMRuntime.leafDegree(10000000, 16, 500, 50));
+
+    // Empty loop
+    assertEquals(50, JVMRuntime.leafDegree(0, 16, 500, 50));
+  }
+
+  /**
+   * Recursive wait on a closed bag also waits for the futures in it
+   */
+  @Test
+  public void testWaitRecursiveBag() {
+    AtomicBoolean ran = new AtomicBoolean(false);
+    AtomicBoolean memberSet = new AtomicBoolean(false);
+    int rc = JVMRuntime.run(new String[0], 1,
+                            new BagWaitTask(false, ran, memberSet));
+    // Member is never set
+    assertEquals(JVMRuntime.EXIT_ERROR, rc);
+    assertFalse(ran.get());
+
+    rc = JVMRuntime.run(new String[0], 1,
+                        new BagWaitTask(true, ran, memberSet));
+    assertEquals(0, rc);
+    assertTrue(ran.get());
+    assertTrue(memberSet.get());
+  }
+
+  /**
+   * Close bag containing unset future, then wait for it recursively
+   */
+  private static class BagWaitTask implements Task {
+    private final boolean setMember;
+    private final AtomicBoolean ran;
+    private final AtomicBoolean memberSet;
+
+    BagWaitTask(boolean setMember, AtomicBoolean ran,
+                AtomicBoolean memberSet) {
+      this.setMember = setMember;
+      this.ran = ran;
+      this.memberSet = memberSet;
+    }
+
+    @Override
+    public void run() throws LogicException {
+      final IntVar x = new IntVar(1);
+      BagVar<IntVar> bag = new BagVar<IntVar>(1);
+      bag.insert("test", "bag", x, 1);
+
+      JVMRuntime.waitForRecursive(new Task() {
+        @Override
+        public void run() {
+          memberSet.set(x.isSet());
+          ran.set(true);
+        }
+      }, bag);
+
+      if (setMember) {
+        x.set("test", "x", 1);
+      }
+    }
+  }
+}
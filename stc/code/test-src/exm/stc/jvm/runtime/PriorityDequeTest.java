@@ -0,0 +1,152 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class PriorityDequeTest {
+
+  @Test
+  public void testOrder() {
+    PriorityDeque deque = new PriorityDeque();
+    Task low1 = new NumberedTask(0), low2 = new NumberedTask(1);
+    Task def1 = new NumberedTask(2), def2 = new NumberedTask(3);
+    Task high1 = new NumberedTask(4), high2 = new NumberedTask(5);
+    deque.add(low1, -1);
+    deque.add(def1, Task.DEFAULT_PRIORITY);
+    deque.add(high1, 10);
+    deque.add(low2, -1);
+    deque.add(def2, Task.DEFAULT_PRIORITY);
+    deque.add(high2, 10);
+
+    // Highest priority first, owner LIFO and thief FIFO within priority
+    assertSame(high2, deque.pollOwner());
+    assertSame(high1, deque.pollThief());
+    assertSame(def1, deque.pollThief());
+    assertSame(def2, deque.pollOwner());
+    assertSame(low2, deque.pollOwner());
+    assertFalse(deque.isEmpty());
+    assertSame(low1, deque.pollOwner());
+    assertTrue(deque.isEmpty());
+    assertNull(deque.pollOwner());
+    assertNull(deque.pollThief());
+  }
+
+  @Test
+  public void testPutBack() {
+    PriorityDeque deque = new PriorityDeque();
+    Task a = new NumberedTask(0), b = new NumberedTask(1);
+    deque.add(a, 3);
+    deque.add(b, 3);
+    Task stolen = deque.pollThief();
+    assertSame(a, stolen);
+    deque.putBack(stolen, 3);
+    assertSame(a, deque.pollThief());
+    assertSame(b, deque.pollThief());
+    assertTrue(deque.isEmpty());
+  }
+
+  /**
+   * Buckets for computed priorities are freed once empty
+   */
+  @Test
+  public void testBucketsRemoved() {
+    PriorityDeque deque = new PriorityDeque();
+    for (int i = 0; i < 1000; i++) {
+      deque.add(new NumberedTask(i), i - 500);
+    }
+    assertEquals(999, deque.bucketCount());
+    for (int i = 999; i >= 0; i--) {
+      assertEquals(i, ((NumberedTask)deque.pollOwner()).num);
+    }
+    assertTrue(deque.isEmpty());
+    assertEquals(0, deque.bucketCount());
+  }
+
+  /**
+   * Owner adding and taking while thieves steal: every task is taken
+   * exactly once and no buckets are left behind.
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    final int count = 100000;
+    final int thieves = 3;
+    final PriorityDeque deque = new PriorityDeque();
+    final AtomicIntegerArray taken = new AtomicIntegerArray(count);
+    final AtomicReference<Throwable> error =
+                                      new AtomicReference<Throwable>();
+    final CountDownLatch ownerDone = new CountDownLatch(1);
+
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          deque.add(new NumberedTask(i), i % 7 == 0 ? 0 : i % 97 - 48);
+          if (i % 3 == 0) {
+            take(deque.pollOwner(), taken, error);
+          }
+        }
+        ownerDone.countDown();
+      }
+    });
+    for (int i = 0; i < thieves; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          while (true) {
+            boolean done = ownerDone.getCount() == 0;
+            Task t = deque.pollThief();
+            if (t == null && done) {
+              return;
+            }
+            take(t, taken, error);
+          }
+        }
+      });
+    }
+    for (Thread t: threads) {
+      t.start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+
+    assertNull(error.get());
+    for (int i = 0; i < count; i++) {
+      assertEquals("task " + i, 1, taken.get(i));
+    }
+    assertTrue(deque.isEmpty());
+    assertEquals(0, deque.bucketCount());
+  }
+
+  private static void take(Task t, AtomicIntegerArray taken,
+                           AtomicReference<Throwable> error) {
+    if (t != null && taken.incrementAndGet(((NumberedTask)t).num) != 1) {
+      error.compareAndSet(null, new AssertionError("Task taken twice"));
+    }
+  }
+
+  private static class NumberedTask implements Task {
+    final int num;
+
+    NumberedTask(int num) {
+      this.num = num;
+    }
+
+    @Override
+    public void run() {
+      // Not run
+    }
+  }
+}
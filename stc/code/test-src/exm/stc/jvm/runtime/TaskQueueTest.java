@@ -0,0 +1,314 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Stress tests for quiescence detection and work stealing
+ */
+public class TaskQueueTest {
+
+  /** Time limit for each run of the workers */
+  private static final long TIMEOUT_MS = 30000;
+
+  /** Worker number of current thread */
+  private static final ThreadLocal<Integer> workerNum =
+                                          new ThreadLocal<Integer>();
+
+  /**
+   * Tree of tasks spawned by running tasks: all must run before the
+   * queue terminates.
+   */
+  @Test
+  public void testQuiescenceTree() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      int threads = 1 + round % 8;
+      final TaskQueue queue = new TaskQueue(threads);
+      final AtomicInteger ran = new AtomicInteger(0);
+      final int depth = 10;
+      queue.addTask(0, new TreeTask(queue, ran, depth));
+      runWorkers(queue);
+      assertEquals((1 << (depth + 1)) - 1, ran.get());
+    }
+  }
+
+  /**
+   * A chain of tasks, each spawning its successor, keeps only one
+   * worker busy at a time.  Idle workers check for quiescence while
+   * the chain is running, and must not terminate early.
+   */
+  @Test
+  public void testQuiescenceChain() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      final TaskQueue queue = new TaskQueue(4);
+      final AtomicInteger ran = new AtomicInteger(0);
+      final int length = 2000;
+      queue.addTask(0, new ChainTask(queue, ran, length, round % 3));
+      runWorkers(queue);
+      assertEquals(length, ran.get());
+    }
+  }
+
+  /**
+   * Two tasks that can only finish if they run at the same time:
+   * the second worker must steal one of them from the first.
+   */
+  @Test
+  public void testStealing() throws Exception {
+    final TaskQueue queue = new TaskQueue(2);
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    final List<Integer> ranOn = Collections.synchronizedList(
+                                              new ArrayList<Integer>());
+    final AtomicReference<Throwable> error =
+                                      new AtomicReference<Throwable>();
+    for (int i = 0; i < 2; i++) {
+      queue.addTask(0, new Task() {
+        @Override
+        public void run() {
+          ranOn.add(workerNum.get());
+          try {
+            barrier.await(TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            error.set(e);
+          } catch (BrokenBarrierException e) {
+            error.set(e);
+          } catch (TimeoutException e) {
+            error.set(e);
+          }
+        }
+      });
+    }
+    runWorkers(queue);
+    assertNull("Task was not stolen", error.get());
+    assertEquals(2, ranOn.size());
+    assertFalse(ranOn.get(0).equals(ranOn.get(1)));
+  }
+
+  /**
+   * Targeted tasks are only run by their target, even if it is busy
+   */
+  @Test
+  public void testTargeted() throws Exception {
+    final int threads = 4;
+    final TaskQueue queue = new TaskQueue(threads);
+    final AtomicInteger wrongThread = new AtomicInteger(0);
+    final AtomicInteger ran = new AtomicInteger(0);
+    for (int i = 0; i < 400; i++) {
+      final int target = i % threads;
+      queue.addTargeted(target, new Task() {
+        @Override
+        public void run() {
+          if (workerNum.get() != target) {
+            wrongThread.incrementAndGet();
+          }
+          ran.incrementAndGet();
+        }
+      });
+    }
+    runWorkers(queue);
+    assertEquals(400, ran.get());
+    assertEquals(0, wrongThread.get());
+  }
+
+  /**
+   * Soft-targeted task is stolen once its target is stuck for longer
+   * than the steal delay
+   */
+  @Test
+  public void testSoftTargetedStolen() throws Exception {
+    final TaskQueue queue = new TaskQueue(2, 1000000L);
+    final CountDownLatch softRan = new CountDownLatch(1);
+    final AtomicInteger softThread = new AtomicInteger(-1);
+    final AtomicReference<Throwable> error =
+                                      new AtomicReference<Throwable>();
+    // Keeps worker 0 busy until soft task runs elsewhere
+    queue.addTargeted(0, new Task() {
+      @Override
+      public void run() {
+        try {
+          if (!softRan.await(TIMEOUT_MS / 2, TimeUnit.MILLISECONDS)) {
+            error.set(new TimeoutException("soft task not stolen"));
+          }
+        } catch (InterruptedException e) {
+          error.set(e);
+        }
+      }
+    });
+    queue.addSoftTargeted(0, new Task() {
+      @Override
+      public void run() {
+        softThread.set(workerNum.get());
+        softRan.countDown();
+      }
+    }, Task.DEFAULT_PRIORITY);
+    runWorkers(queue);
+    assertNull(error.get());
+    assertEquals(1, softThread.get());
+  }
+
+  /**
+   * Single worker runs its tasks in priority order
+   */
+  @Test
+  public void testPriorityOrder() throws Exception {
+    final TaskQueue queue = new TaskQueue(1);
+    final List<Integer> order = Collections.synchronizedList(
+                                            new ArrayList<Integer>());
+    int priorities[] = {0, 5, -3, 5, 100, -3, 0, 7};
+    for (final int priority: priorities) {
+      queue.addTask(0, new Task() {
+        @Override
+        public void run() {
+          order.add(priority);
+        }
+      }, priority);
+    }
+    runWorkers(queue);
+    assertEquals(priorities.length, order.size());
+    for (int i = 1; i < order.size(); i++) {
+      assertTrue(order.toString(), order.get(i - 1) >= order.get(i));
+    }
+  }
+
+  /**
+   * Many distinct priorities spawned from running tasks, as with
+   * computed priorities.
+   */
+  @Test
+  public void testManyPriorities() throws Exception {
+    final TaskQueue queue = new TaskQueue(4);
+    final AtomicInteger ran = new AtomicInteger(0);
+    final int count = 20000;
+    queue.addTask(0, new Task() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          queue.addTask(workerNum.get(), new Task() {
+            @Override
+            public void run() {
+              ran.incrementAndGet();
+            }
+          }, i);
+        }
+      }
+    });
+    runWorkers(queue);
+    assertEquals(count, ran.get());
+  }
+
+  private static class TreeTask implements Task {
+    private final TaskQueue queue;
+    private final AtomicInteger ran;
+    private final int depth;
+
+    TreeTask(TaskQueue queue, AtomicInteger ran, int depth) {
+      this.queue = queue;
+      this.ran = ran;
+      this.depth = depth;
+    }
+
+    @Override
+    public void run() {
+      ran.incrementAndGet();
+      if (depth > 0) {
+        int thread = workerNum.get();
+        queue.addTask(thread, new TreeTask(queue, ran, depth - 1));
+        queue.addTask(thread, new TreeTask(queue, ran, depth - 1),
+                      depth % 3 - 1);
+      }
+    }
+  }
+
+  private static class ChainTask implements Task {
+    private final TaskQueue queue;
+    private final AtomicInteger ran;
+    private final int remaining;
+    /** 0: regular, 1: targeted to other thread, 2: soft-targeted */
+    private final int mode;
+
+    ChainTask(TaskQueue queue, AtomicInteger ran, int remaining, int mode) {
+      this.queue = queue;
+      this.ran = ran;
+      this.remaining = remaining;
+      this.mode = mode;
+    }
+
+    @Override
+    public void run() {
+      ran.incrementAndGet();
+      if (remaining <= 1) {
+        return;
+      }
+      int thread = workerNum.get();
+      int other = (thread + 1) % queue.numThreads();
+      Task next = new ChainTask(queue, ran, remaining - 1, mode);
+      if (mode == 0) {
+        queue.addTask(thread, next);
+      } else if (mode == 1) {
+        queue.addTargeted(other, next);
+      } else {
+        queue.addSoftTargeted(other, next, Task.DEFAULT_PRIORITY);
+      }
+    }
+  }
+
+  /**
+   * Run worker threads until queue terminates
+   */
+  private static void runWorkers(final TaskQueue queue)
+      throws InterruptedException {
+    final AtomicReference<Throwable> error =
+                                      new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < queue.numThreads(); i++) {
+      final int threadNum = i;
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          workerNum.set(threadNum);
+          try {
+            Task task;
+            while ((task = queue.getTask(threadNum)) != null) {
+              task.run();
+            }
+          } catch (Throwable e) {
+            error.set(e);
+            queue.shutdown();
+          }
+        }
+      };
+      t.setDaemon(true);
+      threads.add(t);
+      t.start();
+    }
+
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    for (Thread t: threads) {
+      t.join(Math.max(1, deadline - System.currentTimeMillis()));
+      if (t.isAlive()) {
+        queue.shutdown();
+        fail("Workers did not terminate");
+      }
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    assertTrue(queue.isTerminated());
+  }
+}
@@ -0,0 +1,140 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Check printf formatting matches Tcl's format command
+ */
+public class TclFormatTest {
+
+  @Test
+  public void testPrintfTest730() throws LogicException {
+    assertEquals("14, 3.14, hello\nnextline",
+        Builtins.sprintf("%i, %0.2f, %s\nnextline", 14L, 3.1415, "hello"));
+  }
+
+  @Test
+  public void testIntegers() {
+    check("42", "%d", 42L);
+    check("42", "%i", 42L);
+    check("-42", "%d", -42L);
+    check("+42", "%+d", 42L);
+    check(" 42", "% d", 42L);
+    check("   42", "%5d", 42L);
+    check("42   |", "%-5d|", 42L);
+    check("00042", "%05d", 42L);
+    check("-0042", "%05d", -42L);
+    check("  007", "%5.3d", 7L);
+    check("", "%.0d", 0L);
+    check("ff", "%x", 255L);
+    check("FF", "%X", 255L);
+    check("0xff", "%#x", 255L);
+    check("17", "%o", 15L);
+    check("101", "%b", 5L);
+    check("A", "%c", 65L);
+    // Booleans are integers in Tcl
+    check("1 0", "%d %d", true, false);
+    // Strings holding integers
+    check("12 255", "%d %d", "12", "0xff");
+  }
+
+  @Test
+  public void testIntegerSize() {
+    // Truncated to 32 bits without size modifier, as in Tcl
+    check("1410065407", "%d", 9999999999L);
+    check("9999999999", "%ld", 9999999999L);
+    check("ffffffff", "%x", -1L);
+    check("ffffffffffffffff", "%lx", -1L);
+    check("4294967295", "%u", -1L);
+    check("-1", "%hd", 65535L);
+  }
+
+  @Test
+  public void testFloats() {
+    check("3.141500", "%f", 3.1415);
+    check("3.14", "%.2f", 3.1415);
+    check("3.14", "%0.2f", 3.1415);
+    check("  3.14", "%6.2f", 3.1415);
+    check("003.14", "%06.2f", 3.1415);
+    check("-03.14", "%06.2f", -3.1415);
+    check("+3.1", "%+.1f", 3.1415);
+    check("3.", "%#.0f", 3.0);
+    check("3.141500e+00", "%e", 3.1415);
+    check("3.14E+00", "%.2E", 3.1415);
+    check("2.0", "%.1f", 2L);
+    check("1.5", "%.1f", "1.5");
+    check("Inf -Inf NaN", "%f %f %f", Double.POSITIVE_INFINITY,
+          Double.NEGATIVE_INFINITY, Double.NaN);
+  }
+
+  @Test
+  public void testG() {
+    check("3.1415", "%g", 3.1415);
+    check("100000", "%g", 100000.0);
+    check("1e+06", "%g", 1000000.0);
+    check("0.0001", "%g", 0.0001);
+    check("1e-05", "%g", 0.00001);
+    check("3.1", "%.2g", 3.1415);
+    check("3.14150", "%#g", 3.1415);
+    check("1E+06", "%G", 1000000.0);
+    check("0", "%g", 0.0);
+  }
+
+  @Test
+  public void testStrings() {
+    check("hello", "%s", "hello");
+    check("  hi|", "%4s|", "hi");
+    check("hi  |", "%-4s|", "hi");
+    check("he", "%.2s", "hello");
+    check("1", "%s", true);
+    check("100%", "%d%%", 100L);
+    check("  x", "%*s", 3L, "x");
+    check("x  |", "%*s|", -3L, "x");
+  }
+
+  @Test
+  public void testPositional() {
+    check("b a", "%2$s %1$s", "a", "b");
+    check("a a", "%1$s %1$s", "a");
+  }
+
+  @Test
+  public void testErrors() {
+    checkError("not enough arguments", "%d %d", 1L);
+    checkError("expected integer", "%d", 3.5);
+    checkError("expected integer", "%d", "abc");
+    checkError("expected floating-point number", "%f", "abc");
+    checkError("bad field specifier", "%y", 1L);
+    checkError("ended in middle", "%5", 1L);
+    checkError("cannot mix", "%1$s %s", "a", "b");
+    checkError("out of range", "%3$s", "a");
+  }
+
+  @Test
+  public void testErrorReported() {
+    try {
+      Builtins.sprintf("%d", "x");
+      fail("Expected error");
+    } catch (LogicException e) {
+      assertTrue(e.getMessage(),
+                 e.getMessage().startsWith("error in printf()"));
+    }
+  }
+
+  private static void check(String expected, String fmt, Object ...args) {
+    assertEquals("format " + fmt, expected, TclFormat.format(fmt, args));
+  }
+
+  private static void checkError(String msg, String fmt, Object ...args) {
+    try {
+      String result = TclFormat.format(fmt, args);
+      fail("Expected error for " + fmt + " but got " + result);
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(msg));
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import exm.stc.jvm.runtime.Vars.ArrayVar;
+import exm.stc.jvm.runtime.Vars.BagVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+import exm.stc.jvm.runtime.Vars.SubscriptTarget;
+
+/**
+ * Stress tests for races between subscribing to, writing and closing
+ * variables.
+ */
+public class VarsTest {
+
+  private static final int THREADS = 4;
+  private static final int ROUNDS = 2000;
+
+  /**
+   * Each successful subscription is notified exactly once, and failed
+   * subscriptions only happen after the value is visible.
+   */
+  @Test
+  public void testSubscribeCloseRace() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final IntVar var = new IntVar(1);
+      final AtomicInteger subscribed = new AtomicInteger(0);
+      final AtomicInteger notified = new AtomicInteger(0);
+      final AtomicInteger badReads = new AtomicInteger(0);
+      final NotifyTarget target = new NotifyTarget() {
+        @Override
+        public void notifyFinal(BaseVar v) {
+          notified.incrementAndGet();
+        }
+      };
+
+      runConcurrently(THREADS + 1, new Body() {
+        @Override
+        public void run(int thread) throws Exception {
+          if (thread == 0) {
+            var.set("test", "v", 42);
+            return;
+          }
+          for (int i = 0; i < 10; i++) {
+            if (var.subscribe(target)) {
+              subscribed.incrementAndGet();
+            } else if (!var.isSet() || var.get("test", "v") != 42) {
+              badReads.incrementAndGet();
+            }
+          }
+        }
+      });
+
+      assertEquals(0, badReads.get());
+      assertEquals(subscribed.get(), notified.get());
+      assertFalse(var.subscribe(target));
+    }
+  }
+
+  /**
+   * Closing by concurrent writer decrements notifies once
+   */
+  @Test
+  public void testConcurrentWriterDecrements() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final IntVar var = new IntVar(THREADS + 1);
+      final AtomicInteger notified = new AtomicInteger(0);
+      final AtomicInteger released = new AtomicInteger(0);
+      final CountingVar counted = new CountingVar(THREADS, released);
+      assertTrue(var.subscribe(new NotifyTarget() {
+        @Override
+        public void notifyFinal(BaseVar v) {
+          notified.incrementAndGet();
+        }
+      }));
+      counted.incrReaders("test", "c", -1);
+
+      runConcurrently(THREADS, new Body() {
+        @Override
+        public void run(int thread) throws Exception {
+          var.incrWriters("test", "v", -1);
+          counted.incrWriters("test", "c", -1);
+        }
+      });
+      assertEquals(0, notified.get());
+      var.set("test", "v", 1);
+      assertEquals(1, notified.get());
+      assertEquals(1, released.get());
+      assertTrue(counted.isReleased());
+    }
+  }
+
+  /**
+   * Subscribers to array members are notified exactly once, either by
+   * insert or by close, however subscriptions, inserts and close
+   * interleave.
+   */
+  @Test
+  public void testArraySubscribeInsertCloseRace() throws Exception {
+    final int keys = 64;
+    for (int round = 0; round < ROUNDS / 4; round++) {
+      final ArrayVar<Integer> arr = new ArrayVar<Integer>(1);
+      final AtomicIntegerArray subscribed = new AtomicIntegerArray(keys);
+      final AtomicIntegerArray notified = new AtomicIntegerArray(keys);
+      final SubscriptTarget target = new SubscriptTarget() {
+        @Override
+        public void notifySubscript(ArrayVar<?> a, long key) {
+          notified.incrementAndGet((int)key);
+        }
+      };
+
+      runConcurrently(THREADS + 1, new Body() {
+        @Override
+        public void run(int thread) throws Exception {
+          if (thread == 0) {
+            // Insert even keys, then close
+            for (int k = 0; k < keys; k += 2) {
+              arr.insert("test", "A", k, k);
+            }
+            arr.incrWriters("test", "A", -1);
+            return;
+          }
+          for (int k = 0; k < keys; k++) {
+            if (arr.subscribe(k, target)) {
+              subscribed.incrementAndGet(k);
+            } else if (k % 2 == 0 ? arr.getMember(k) == null
+                                  : !arr.isClosed()) {
+              fail("Subscription to " + k + " refused too early");
+            }
+          }
+        }
+      });
+
+      assertTrue(arr.isClosed());
+      assertEquals(keys / 2, arr.size());
+      for (int k = 0; k < keys; k++) {
+        assertEquals("key " + k, subscribed.get(k), notified.get(k));
+      }
+    }
+  }
+
+  /**
+   * Concurrent inserts to bag are all kept, and inserts after close
+   * are rejected.
+   */
+  @Test
+  public void testBagInsertClose() throws Exception {
+    final int perThread = 1000;
+    for (int round = 0; round < 50; round++) {
+      final BagVar<Integer> bag = new BagVar<Integer>(THREADS);
+      runConcurrently(THREADS, new Body() {
+        @Override
+        public void run(int thread) throws Exception {
+          for (int i = 0; i < perThread; i++) {
+            bag.insert("test", "B", thread * perThread + i);
+          }
+          bag.incrWriters("test", "B", -1);
+        }
+      });
+
+      List<Integer> all = bag.getAll("test", "B");
+      assertEquals(THREADS * perThread, all.size());
+      try {
+        bag.insert("test", "B", -1);
+        fail("Insert after close");
+      } catch (DoubleWriteException e) {
+        // Expected
+      }
+    }
+  }
+
+  /**
+   * Variable that counts releases
+   */
+  private static class CountingVar extends BaseVar {
+    private final AtomicInteger released;
+
+    CountingVar(int writers, AtomicInteger released) {
+      super(writers);
+      this.released = released;
+    }
+
+    @Override
+    protected void onRelease() {
+      released.incrementAndGet();
+    }
+  }
+
+  private static interface Body {
+    public void run(int thread) throws Exception;
+  }
+
+  /**
+   * Run body in threads, starting them together to maximize
+   * interleaving
+   */
+  private static void runConcurrently(int threads, final Body body)
+      throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> error =
+                                      new AtomicReference<Throwable>();
+    List<Thread> started = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            body.run(thread);
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      started.add(t);
+      t.start();
+    }
+    start.countDown();
+    for (Thread t: started) {
+      t.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
+}
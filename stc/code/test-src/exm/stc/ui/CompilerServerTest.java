@@ -0,0 +1,96 @@
+package exm.stc.ui;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompilerServerTest {
+
+  /** Timeout for test client reads: much longer than server timeout */
+  private static final int CLIENT_TIMEOUT = 10000;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ServerSocket server;
+
+  @Before
+  public void startServer() throws IOException {
+    File tokenFile = new File(tmp.getRoot(), "server.token");
+    System.setProperty(CompilerServer.TOKEN_FILE_PROPERTY,
+                       tokenFile.getPath());
+    final CompilerServer compilerServer = new CompilerServer(0, 200);
+    server = compilerServer.listen();
+
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          compilerServer.serve(server);
+        } catch (IOException e) {
+          // Server socket closed
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @After
+  public void stopServer() throws IOException {
+    server.close();
+    System.clearProperty(CompilerServer.TOKEN_FILE_PROPERTY);
+  }
+
+  /**
+   * Client that connects and sends nothing is disconnected, and
+   * doesn't block the next client
+   */
+  @Test
+  public void testIdleClient() throws IOException {
+    Socket idle = connect();
+    Socket client = connect();
+    try {
+      DataOutputStream out = new DataOutputStream(client.getOutputStream());
+      out.writeInt(CompilerServer.MAGIC);
+      out.writeInt(CompilerServer.PROTOCOL_VERSION);
+      out.writeUTF("not the token");
+      out.flush();
+
+      // Rejected, but served
+      DataInputStream in = new DataInputStream(
+                      new BufferedInputStream(client.getInputStream()));
+      assertEquals(CompilerServer.FRAME_STDERR, in.readByte());
+      in.skipBytes(in.readInt());
+      assertEquals(CompilerServer.FRAME_EXIT, in.readByte());
+      assertEquals(4, in.readInt());
+      assertEquals(ExitCode.ERROR_COMMAND.code(), in.readInt());
+
+      // Server closed idle connection
+      assertEquals(-1, idle.getInputStream().read());
+    } finally {
+      idle.close();
+      client.close();
+    }
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getByName(null),
+                               server.getLocalPort());
+    socket.setSoTimeout(CLIENT_TIMEOUT);
+    return socket;
+  }
+}
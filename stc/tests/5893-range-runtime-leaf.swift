@@ -0,0 +1,43 @@
+import assert;
+import stats;
+import sys;
+
+// Split loops with cheap bodies and bounds only known at runtime:
+// leaf degree is chosen at runtime from the number of iterations
+
+main {
+  int n = toint(argv("n"));
+
+  int A[];
+  foreach i in [1:n] {
+    A[i] = i;
+  }
+  assertEqual(size(A), n, "size(A)");
+  assertEqual(sum_integer(A), n * (n + 1) %/ 2, "sum(A)");
+
+  // Iterate over container of runtime size
+  int B[];
+  foreach x, i in A {
+    B[i] = x * 2;
+  }
+  assertEqual(sum_integer(B), n * (n + 1), "sum(B)");
+
+  // Increment other than one
+  int C[];
+  foreach i in [0:n-1:3] {
+    C[i] = 1;
+  }
+  assertEqual(size(C), (n + 2) %/ 3, "size(C)");
+
+  // Empty and one-iteration ranges
+  int D[];
+  foreach i in [n:n-1] {
+    D[i] = 1;
+  }
+  foreach i in [n:n] {
+    D[i] = 2;
+  }
+  assertEqual(size(D), 1, "size(D)");
+  assertEqual(D[n], 2, "D[n]");
+  trace("DONE");
+}
@@ -0,0 +1,119 @@
+import assert;
+import sys;
+
+// Range loops with counter variable, split and unsplit.
+// Ranges are empty if start > end, whatever the step, for int and
+// float ranges.
+
+main {
+  int n = toint(argv("n"));
+
+  // Unsplit
+  int A[];
+  @nosplit
+  foreach x, i in [1:n] {
+    A[i] = x;
+  }
+  assertEqual(size(A), n, "size(A)");
+  assertEqual(A[0], 1, "A[0]");
+  assertEqual(A[n-1], n, "A[n-1]");
+
+  int B[];
+  @nosplit
+  foreach x, i in [2:n:3] {
+    B[i] = x;
+  }
+  assertEqual(size(B), (n + 1) %/ 3, "size(B)");
+  assertEqual(B[1], 5, "B[1]");
+
+  int C[];
+  @nosplit
+  foreach x, i in [n:1:-1] {
+    C[i] = x;
+  }
+  assertEqual(size(C), 0, "size(C)");
+
+  // Split into small pieces
+  int D[];
+  @splitdegree=2
+  @leafdegree=2
+  foreach x, i in [1:n] {
+    D[i] = x;
+  }
+  assertEqual(size(D), n, "size(D)");
+  assertEqual(D[0], 1, "D[0]");
+  assertEqual(D[n-1], n, "D[n-1]");
+
+  int E[];
+  @splitdegree=2
+  @leafdegree=2
+  foreach x, i in [2:n:3] {
+    E[i] = x;
+  }
+  assertEqual(size(E), (n + 1) %/ 3, "size(E)");
+  assertEqual(E[2], 8, "E[2]");
+
+  int F[];
+  @splitdegree=2
+  @leafdegree=2
+  foreach x, i in [n:1:-1] {
+    F[i] = x;
+  }
+  assertEqual(size(F), 0, "size(F)");
+
+  // Constant bounds
+  int G[];
+  foreach x, i in [5:1:-1] {
+    G[i] = x;
+  }
+  assertEqual(size(G), 0, "size(G)");
+
+  int H[];
+  foreach x, i in [0:9:2] {
+    H[i] = x;
+  }
+  assertEqual(size(H), 5, "size(H)");
+  assertEqual(H[4], 8, "H[4]");
+
+  // Empty and one-iteration ranges
+  int I[];
+  foreach x, i in [n:n-1] {
+    I[i] = x;
+  }
+  foreach x, i in [n:n] {
+    I[i + 1] = x;
+  }
+  assertEqual(size(I), 1, "size(I)");
+  assertEqual(I[1], n, "I[1]");
+
+  // Float ranges, with bounds computed at runtime and constant
+  float N = itof(n);
+  float J[];
+  foreach x, i in [1.0:N:2.5] {
+    J[i] = x;
+  }
+  assertEqual(size(J), 4, "size(J)");
+  assertEqual(J[3], 8.5, "J[3]");
+
+  float K[];
+  @splitdegree=2
+  @leafdegree=2
+  foreach x, i in [0.5:N:0.5] {
+    K[i] = x;
+  }
+  assertEqual(size(K), 2 * n, "size(K)");
+  assertEqual(K[2 * n - 1], N, "K[2n-1]");
+
+  float L[];
+  foreach x, i in [N:1.0:-1.0] {
+    L[i] = x;
+  }
+  assertEqual(size(L), 0, "size(L)");
+
+  float M[];
+  foreach x, i in [5.0:1.0:-1.0] {
+    M[i] = x;
+  }
+  assertEqual(size(M), 0, "size(M)");
+  trace("DONE");
+}
@@ -0,0 +1,90 @@
+import assert;
+import sys;
+
+// Split foreach loops over local containers: the container value is
+// already fetched for count_a and count_b, so the loops iterate over
+// slices of the local value.
+
+(int o) count_a(int A[]) "turbine" "0.0" [
+  "set <<o>> [ dict size <<A>> ]"
+];
+
+(int o) count_b(bag<int> B) "turbine" "0.0" [
+  "set <<o>> [ llength <<B>> ]"
+];
+
+(int s) array_loop(int n) {
+  int A[];
+  foreach i in [1:n] {
+    A[i] = i;
+  }
+  int d = n + 1;
+  wait deep (A) {
+    int c = count_a(A);
+    assertEqual(c, n, "count_a");
+
+    // Each iteration writes to outer array and reads future
+    int B[];
+    int C[];
+    foreach x, k in A {
+      B[k] = x * 2;
+      C[k] = d;
+    }
+    assertEqual(size(B), n, "size(B)");
+    assertEqual(size(C), n, "size(C)");
+    if (n > 0) {
+      assertEqual(B[n], 2 * n, "B[n]");
+      assertEqual(C[1], n + 1, "C[1]");
+    }
+
+    // Split down to single iterations
+    int D[];
+    @splitdegree=2
+    @leafdegree=1
+    foreach x, k in A {
+      D[k] = x + c;
+    }
+    assertEqual(size(D), n, "size(D)");
+    if (n > 0) {
+      assertEqual(D[1], n + 1, "D[1]");
+    }
+    s = size(D);
+  }
+}
+
+(int s) bag_loop(int n) {
+  bag<int> G;
+  foreach i in [1:n] {
+    G += i;
+  }
+  wait deep (G) {
+    int c = count_b(G);
+    assertEqual(c, n, "count_b");
+
+    int S[];
+    foreach x in G {
+      S[x] = x;
+    }
+    assertEqual(size(S), n, "size(S)");
+
+    int T[];
+    @splitdegree=2
+    @leafdegree=1
+    foreach x in G {
+      T[x] = c;
+    }
+    assertEqual(size(T), n, "size(T)");
+    if (n > 0) {
+      assertEqual(T[n], n, "T[n]");
+    }
+    s = size(T);
+  }
+}
+
+main {
+  foreach n in [toint(argv("zero")), toint(argv("one")), toint(argv("n"))] {
+    assertEqual(array_loop(n), n, "array_loop");
+    assertEqual(bag_loop(n), n, "bag_loop");
+  }
+  trace("DONE");
+}
@@ -0,0 +1,45 @@
+import assert;
+import sys;
+
+// Inserts that fill a bag in one block are merged into a single store.
+
+(int o) bag_sum(bag<int> B) "turbine" "0.0" [
+  "set <<o>> [ tcl::mathop::+ {*}<<B>> ]"
+];
+
+main {
+  int n = toint(argv("n"));
+
+  bag<int> A;
+  A += 1;
+  A += 2;
+  A += 2;
+  A += n;
+  assertEqual(bag_size(A), 4, "size(A)");
+  assertEqual(bag_sum(A), 5 + n, "sum(A)");
+  // Pass bag to function that can't be inlined
+  assertEqual(nested_size(A, n), 4, "nested_size(A)");
+
+  bag<float> B;
+  B += 0.5;
+  B += itof(n) * 2.0;
+  assertEqual(bag_size(B), 2, "size(B)");
+
+  bag<string> C = words();
+  assertEqual(bag_size(C), 3, "size(C)");
+  trace("DONE");
+}
+
+(bag<string> o) words() {
+  o += "hello";
+  o += "world";
+  o += "hello";
+}
+
+(int o) nested_size(bag<int> B, int k) {
+  if (k <= 0) {
+    o = bag_size(B);
+  } else {
+    o = nested_size(B, k - 1);
+  }
+}
@@ -0,0 +1,53 @@
+import assert;
+import sys;
+
+// Bags filled in one of several branches
+
+(int o) bag_sum(bag<int> B) "turbine" "0.0" [
+  "set <<o>> [ tcl::mathop::+ {*}<<B>> ]"
+];
+
+main {
+  int n = toint(argv("n"));
+
+  bag<int> A;
+  if (n > 5) {
+    A += 1;
+    A += n;
+  } else {
+    A += 3;
+  }
+  assertEqual(bag_size(A), 2, "size(A)");
+  assertEqual(bag_sum(A), 1 + n, "sum(A)");
+
+  // Inserts in block and in branch that isn't taken
+  bag<int> B;
+  B += n;
+  B += 2;
+  if (n < 5) {
+    B += 1;
+  }
+  assertEqual(bag_size(B), 2, "size(B)");
+  assertEqual(bag_sum(B), n + 2, "sum(B)");
+
+  // Inserts in block and in branch that is taken
+  bag<int> C;
+  C += n;
+  if (n > 5) {
+    C += 1;
+    C += 1;
+  }
+  assertEqual(bag_size(C), 3, "size(C)");
+  assertEqual(bag_sum(C), n + 2, "sum(C)");
+
+  bag<int> D;
+  switch (n) {
+    case 10:
+      D += 1;
+      D += 2;
+    default:
+      D += 4;
+  }
+  assertEqual(bag_sum(D), 3, "sum(D)");
+  trace("DONE");
+}
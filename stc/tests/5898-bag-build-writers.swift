@@ -0,0 +1,38 @@
+import assert;
+import sys;
+
+// Bags with inserts in block and other writers that can't be merged
+
+(int o) bag_sum(bag<int> B) "turbine" "0.0" [
+  "set <<o>> [ tcl::mathop::+ {*}<<B>> ]"
+];
+
+(int o) f(int i) {
+  o = i;
+}
+
+main {
+  int n = toint(argv("n"));
+
+  bag<int> A;
+  A += 1;
+  A += 2;
+  int y = f(1000);
+  A += y;
+  int x = f(100);
+  wait (x) {
+    A += x;
+  }
+  foreach i in [1:n] {
+    A += i;
+  }
+  assertEqual(bag_size(A), n + 4, "size(A)");
+  assertEqual(bag_sum(A), 1103 + (n * (n + 1)) %/ 2, "sum(A)");
+
+  // Element type with refcounts
+  bag<int[]> B;
+  B += [1, 2];
+  B += [n];
+  assertEqual(bag_size(B), 2, "size(B)");
+  trace("DONE");
+}
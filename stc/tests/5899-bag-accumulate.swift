@@ -0,0 +1,63 @@
+import assert;
+import sys;
+
+// Inserts into bags from foreach loop bodies: each leaf of a split loop
+// stores all of its elements at once.
+
+(int o) bag_sum(bag<int> B) "turbine" "0.0" [
+  "set <<o>> [ tcl::mathop::+ {*}<<B>> ]"
+];
+
+main {
+  int n = toint(argv("n"));
+
+  bag<int> A;
+  @splitdegree=2
+  @leafdegree=3
+  foreach i in [1:n] {
+    A += i * 2;
+  }
+  assertEqual(bag_size(A), n, "size(A)");
+  assertEqual(bag_sum(A), n * (n + 1), "sum(A)");
+
+  // Conditional inserts: some leaves store nothing
+  bag<int> B;
+  bag<int> C;
+  @splitdegree=2
+  @leafdegree=2
+  foreach i in [1:n] {
+    if (i > 3 && i <= 5) {
+      B += i;
+    } else {
+      C += 1;
+      C += 1;
+    }
+  }
+  assertEqual(bag_sum(B), 9, "sum(B)");
+  assertEqual(bag_size(C), 2 * (n - 2), "size(C)");
+
+  // Loop over array, and nested loops
+  int X[];
+  foreach i in [1:n] {
+    X[i] = i;
+  }
+  bag<int> D;
+  foreach x in X {
+    foreach j in [1:x] {
+      D += j;
+    }
+    D += 0;
+  }
+  assertEqual(bag_size(D), (n * (n + 1)) %/ 2 + n, "size(D)");
+
+  // Other writer inside loop body
+  bag<int> E;
+  foreach i in [1:n] {
+    E += i;
+    wait (X[i]) {
+      E += X[i];
+    }
+  }
+  assertEqual(bag_sum(E), n * (n + 1), "sum(E)");
+  trace("DONE");
+}
@@ -0,0 +1,17 @@
+// Test fallback to external preprocessor for features that the
+// builtin preprocessor does not handle: token pasting and
+// stringification
+import assert;
+import io;
+
+#define PASTE(a, b) a ## b
+#define STR(x) #x
+
+main {
+  int PASTE(x, 1) = 1;
+  int xy = PASTE(x, 1) + 1;
+  printf("PASTE: %i", xy);
+  printf("STR: %s", STR(hello));
+  // Line numbers should still refer to this file
+  assert(xy == 2, "xy");
+}
@@ -4890,6 +4890,39 @@ ADLB_Read_Refcount_Decr_Cmd(ClientData cdata, Tcl_Interp *interp,
 }
 
 
+/**
+   usage: adlb::refcount_incr_multi [ <id> <read change> <write change> ]*
+   Modify read and write refcounts of several data items.  Read and
+   write changes for the same item are applied together.
+*/
+static int
+ADLB_Refcount_Incr_Multi_Cmd(ClientData cdata, Tcl_Interp *interp,
+                   int objc, Tcl_Obj *const objv[])
+{
+  TCL_CONDITION((objc - 1) % 3 == 0,
+                "requires triples of id, read change and write change!");
+
+  for (int i = 1; i < objc; i += 3)
+  {
+    int rc;
+    adlb_datum_id id;
+    rc = ADLB_EXTRACT_HANDLE_ID(objv[i], &id);
+    TCL_CHECK(rc);
+
+    adlb_refc incr = ADLB_NO_REFC;
+    rc = Tcl_GetIntFromObj(interp, objv[i + 1], &incr.read_refcount);
+    TCL_CHECK_MSG(rc, "Error extracting reference count");
+    rc = Tcl_GetIntFromObj(interp, objv[i + 2], &incr.write_refcount);
+    TCL_CHECK_MSG(rc, "Error extracting reference count");
+
+    rc = ADLB_Refcount_incr(id, incr);
+    if (rc != ADLB_SUCCESS)
+      return TCL_ERROR;
+  }
+  return TCL_OK;
+}
+
+
 /**
    usage: adlb::read_refcount_enable
    If not set, all read reference count operations are ignored
@@ -5997,6 +6030,7 @@ tcl_adlb_init(Tcl_Interp* interp)
   COMMAND("blob2string", ADLB_Blob2String_Cmd);
   COMMAND("enable_read_refcount",  ADLB_Enable_Read_Refcount_Cmd);
   COMMAND("refcount_incr", ADLB_Refcount_Incr_Cmd);
+  COMMAND("refcount_incr_multi", ADLB_Refcount_Incr_Multi_Cmd);
   COMMAND("read_refcount_incr", ADLB_Read_Refcount_Incr_Cmd);
   COMMAND("read_refcount_decr", ADLB_Read_Refcount_Decr_Cmd);
   COMMAND("write_refcount_incr", ADLB_Write_Refcount_Incr_Cmd);
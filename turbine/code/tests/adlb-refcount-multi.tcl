@@ -0,0 +1,86 @@
+# Copyright 2013 University of Chicago and Argonne National Laboratory
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License
+# Test adlb::refcount_incr_multi, which STC emits for batches of
+# refcount changes
+
+package require turbine 1.0.1
+
+
+turbine::defaults
+turbine::init $servers
+turbine::enable_read_refcount
+
+if { ! [ adlb::amserver ] } {
+  set x [ adlb::unique ]
+  adlb::create $x integer
+  adlb::store $x integer 0
+  set y [ adlb::unique ]
+  adlb::create $y integer
+  adlb::store $y integer 1
+  set c [ adlb::unique ]
+  adlb::create $c container integer integer
+
+  # No changes is allowed
+  adlb::refcount_incr_multi
+
+  # Increment x and destroy y in one command
+  adlb::refcount_incr_multi $x 1 0 $y -1 0
+  if { ! [ adlb::exists $x ] } {
+    puts "x does not exist after incrementing refcount"
+    exit 1
+  }
+  if { [ adlb::exists $y ] } {
+    puts "y exists after refcount 0"
+    exit 1
+  }
+
+  # Close container with write change, while changing x
+  adlb::insert $c 0 $x integer
+  adlb::refcount_incr_multi $c 0 -1 $x -1 0
+  if { ! [ adlb::closed $c ] } {
+    puts "c not closed after write refcount 0"
+    exit 1
+  }
+  if { ! [ adlb::exists $x ] } {
+    puts "x does not exist after decrementing refcount to 1"
+    exit 1
+  }
+
+  # Read and write changes to same id applied together
+  set z [ adlb::unique ]
+  adlb::create $z integer
+  adlb::refcount_incr_multi $z 2 1
+  adlb::store $z integer 2 2
+  if { ! [ adlb::exists $z ] } {
+    puts "z does not exist after store"
+    exit 1
+  }
+  adlb::refcount_incr_multi $x -1 0 $z -3 0
+  if { [ adlb::exists $x ] || [ adlb::exists $z ] } {
+    puts "x or z exists after refcount 0"
+    exit 1
+  }
+
+  # Malformed argument list
+  if { ! [ catch { adlb::refcount_incr_multi $c 1 } ] } {
+    puts "incomplete triple was accepted"
+    exit 1
+  }
+} else {
+  adlb::server
+}
+
+turbine::finalize
+
+puts OK